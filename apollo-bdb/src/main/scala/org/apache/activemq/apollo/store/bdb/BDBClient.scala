@@ -79,8 +79,21 @@ class BDBClient(store: BDBStore) extends DispatchLogging {
     environment.close
   }
 
+  /**
+   * Forces the log written by the previous commits to disk.
+   */
+  def sync() = {
+    environment.flushLog(true)
+  }
+
   case class TxContext(tx:Transaction) {
 
+    /**
+     * Set to false to write the commit out without forcing it to disk.
+     * The BDBStore forces it later on as its fsync policy requests.
+     */
+    var commit_sync = true
+
     def with_entries_db[T](queueKey:Long)(func: (Database) => T): T = {
       val db = environment.openDatabase(tx, entries_db_name(queueKey), long_key_conf)
       try {
@@ -128,7 +141,11 @@ class BDBClient(store: BDBStore) extends DispatchLogging {
       }
 
       if(ok){
-        tx.commit
+        if( commit_sync ) {
+          tx.commit
+        } else {
+          tx.commitWriteNoSync
+        }
       } else {
         tx.abort
       }
@@ -220,6 +237,7 @@ class BDBClient(store: BDBStore) extends DispatchLogging {
           val queueEntry:QueueEntryRecord = value
           if( add_and_get(message_refs_db, queueEntry.messageKey, -1, tx)==0 ) {
             messages_db.delete(tx, queueEntry.messageKey)
+            store.message_cache.remove(queueEntry.messageKey)
           }
           true // keep cursoring..
         }
@@ -234,6 +252,7 @@ class BDBClient(store: BDBStore) extends DispatchLogging {
   def store(uows: Seq[BDBStore#DelayableUOW], callback:Runnable) {
     with_ctx { ctx=>
       import ctx._
+      ctx.commit_sync = false
 
       uows.foreach { uow =>
           uow.actions.foreach {
@@ -255,6 +274,7 @@ class BDBClient(store: BDBStore) extends DispatchLogging {
                   entries_db.delete(tx, queueEntry.queueSeq)
                   if( add_and_get(message_refs_db, queueEntry.messageKey, -1, tx)==0 ) {
                     messages_db.delete(tx, queueEntry.messageKey)
+                    store.message_cache.remove(queueEntry.messageKey)
                   }
                 }
               }
@@ -48,6 +48,9 @@ object BDBStore extends Log {
       if( config.directory==null ) {
         error("The BDB Store directory property must be configured.")
       }
+      if( !FsyncPolicy.is_valid(config.fsync_policy) ) {
+        error("Invalid fsync-policy: "+config.fsync_policy)
+      }
     }.result
   }
 }
@@ -71,6 +74,10 @@ class BDBStore extends DelayingStoreSupport with DispatchLogging {
   override def toString = "hawtdb store"
 
   def flush_delay = config.flush_delay
+
+  def message_cache_size = config.message_cache_size
+
+  protected def fsync_policy = FsyncPolicy(config)
   
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
@@ -84,6 +91,13 @@ class BDBStore extends DelayingStoreSupport with DispatchLogging {
     }
   }
 
+  protected def sync(callback: =>Unit) = {
+    executor_pool {
+      client.sync
+      callback
+    }
+  }
+
   def configure(config: StoreDTO, reporter: Reporter) = configure(config.asInstanceOf[BDBStoreDTO], reporter)
 
   def configure(config: BDBStoreDTO, reporter: Reporter) = {
@@ -121,8 +135,12 @@ class BDBStore extends DelayingStoreSupport with DispatchLogging {
         executor_pool.shutdown
         executor_pool.awaitTermination(1, TimeUnit.DAYS)
         executor_pool = null
+        // the last writes may still be waiting for a sync.
+        client.sync
         client.stop
-        onCompleted.run
+        perform_unsynced {
+          onCompleted.run
+        }
       }
     }.start
   }
@@ -141,6 +159,7 @@ class BDBStore extends DelayingStoreSupport with DispatchLogging {
       client.purge()
       next_queue_key.set(1)
       next_msg_key.set(1)
+      message_cache.clear
       callback
     }
   }
@@ -184,7 +203,7 @@ class BDBStore extends DelayingStoreSupport with DispatchLogging {
   load_source.resume
 
 
-  def loadMessage(messageKey: Long)(callback: (Option[MessageRecord]) => Unit) = {
+  protected def load_message(messageKey: Long)(callback: (Option[MessageRecord]) => Unit) = {
     message_load_latency_counter.start { end=>
       load_source.merge((messageKey, { (result)=>
         end()
@@ -241,6 +260,7 @@ class BDBStore extends DelayingStoreSupport with DispatchLogging {
 //        client.metric_journal_append = client.metric_journal_append_counter(true)
 //        client.metric_index_update = client.metric_index_update_counter(true)
         commit_latency = commit_latency_counter(true)
+        fsync_latency = fsync_latency_counter(true)
         message_load_batch_size =  message_load_batch_size_counter(true)
 
         poll_stats
@@ -260,6 +280,13 @@ class BDBStore extends DelayingStoreSupport with DispatchLogging {
     rc.message_load_latency = message_load_latency
     rc.message_load_batch_size = message_load_batch_size
 
+    rc.fsync_policy = fsync_policy.toString
+    rc.fsync_counter = metric_fsync_counter
+    rc.fsync_latency = fsync_latency
+
+    rc.message_cache_hit_ratio = message_cache.hit_ratio
+    rc.message_cache_size = message_cache.size
+
 //    rc.journal_append_latency = client.metric_journal_append
 //    rc.index_update_latency = client.metric_index_update
 
@@ -33,6 +33,10 @@ object HelperTrait {
     rc.size = pb.getSize
     rc.buffer = pb.getValue
     rc.expiration = pb.getExpiration
+    if( pb.hasHeaderDelta ) {
+      rc.header_delta = pb.getHeaderDelta
+    }
+    rc.compressed = pb.getCompressed
     rc
   }
 
@@ -43,6 +47,12 @@ object HelperTrait {
     pb.setSize(v.size)
     pb.setValue(v.buffer)
     pb.setExpiration(v.expiration)
+    if( v.header_delta!=null ) {
+      pb.setHeaderDelta(v.header_delta)
+    }
+    if( v.compressed ) {
+      pb.setCompressed(true)
+    }
     new DatabaseEntry(pb.freeze.toUnframedByteArray)
   }
 
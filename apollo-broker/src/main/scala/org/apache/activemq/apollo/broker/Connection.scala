@@ -109,6 +109,8 @@ class BrokerConnection(val connector: Connector, val id:Long) extends Connection
     }
   }
 
+  override def onTransportCommandsDrained() = protocolHandler.onTransportCommandsDrained
+
   override def onTransportFailure(error: IOException) = protocolHandler.onTransportFailure(error)
 
   override def onRefill = {
@@ -90,6 +90,10 @@ class Connector(val broker:Broker, val id:Long) extends BaseService with Dispatc
       debug("Accept error details: ", error)
     }
 
+    /**
+     * Transport servers may call this from any thread, the connection is
+     * tracked on the connector's queue.
+     */
     def onAccept(transport: Transport): Unit = {
       debug("Accepted connection from: %s", transport.getRemoteAddress)
 
@@ -97,24 +101,26 @@ class Connector(val broker:Broker, val id:Long) extends BaseService with Dispatc
         transport.setProtocolCodec(protocol.createProtocolCodec)
       }
 
-      accept_counter.incrementAndGet
-      var connection = new BrokerConnection(Connector.this, broker.connection_id_counter.incrementAndGet)
-      connection.protocolHandler = protocol.createProtocolHandler
-      connection.transport = transport
+      dispatchQueue {
+        accept_counter.incrementAndGet
+        var connection = new BrokerConnection(Connector.this, broker.connection_id_counter.incrementAndGet)
+        connection.protocolHandler = protocol.createProtocolHandler
+        connection.transport = transport
 
-      if( STICK_ON_THREAD_QUEUES ) {
-        connection.dispatchQueue.setTargetQueue(Dispatch.getRandomThreadQueue)
-      }
+        if( STICK_ON_THREAD_QUEUES ) {
+          connection.dispatchQueue.setTargetQueue(Dispatch.getRandomThreadQueue)
+        }
 
-      // We release when it gets removed form the connections list.
-      connection.dispatchQueue.retain
-      connections.put(connection.id, connection)
+        // We release when it gets removed form the connections list.
+        connection.dispatchQueue.retain
+        connections.put(connection.id, connection)
 
-      try {
-        connection.start()
-      } catch {
-        case e1: Exception => {
-          onAcceptError(e1)
+        try {
+          connection.start()
+        } catch {
+          case e1: Exception => {
+            onAcceptError(e1)
+          }
         }
       }
     }
@@ -61,11 +61,13 @@ trait DeliveryConsumer extends Retained {
 /**
  * Before a delivery producer can send Delivery objects to a delivery
  * consumer, it creates a Delivery session which it uses to send
- * the deliveries over.
+ * the deliveries over.  Producers which offer deliveries in bursts
+ * can open a batch on the session so that the burst reaches the
+ * consumer in one hop.
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
-trait DeliverySession extends Sink[Delivery] {
+trait DeliverySession extends BatchingSink[Delivery] {
   def producer:DeliveryProducer
   def consumer:DeliveryConsumer
   def close:Unit
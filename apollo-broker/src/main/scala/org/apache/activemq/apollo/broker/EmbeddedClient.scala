@@ -0,0 +1,249 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import _root_.org.fusesource.hawtdispatch._
+import _root_.org.fusesource.hawtdispatch.ScalaDispatch._
+import collection.mutable.{ListBuffer, HashMap}
+import org.apache.activemq.apollo.dto.{BindingDTO, PointToPointBindingDTO}
+import org.apache.activemq.apollo.store.StoreUOW
+
+/**
+ * <p>
+ * A client for services embedded in the same JVM as the broker.  It
+ * produces and consumes Delivery objects directly against a virtual
+ * host's router, so messages never get encoded to or parsed from a wire
+ * protocol and no transport is involved.
+ * </p>
+ * <p>
+ * Messages are passed on as is, so they need to be messages of the
+ * protocol the consumers expect, for example StompFrameMessage objects
+ * for STOMP subscribers.  The destination of a route is only looked up
+ * once, when the route is first used.
+ * </p>
+ * <p>
+ * The route and consumer callbacks are executed on the client's
+ * dispatch queue, and sends have to be done from it too.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class EmbeddedClient(val host:VirtualHost) extends DeliveryProducer {
+
+  val dispatchQueue = createQueue("embedded client")
+
+  private val routes = HashMap[Destination, DeliveryProducerRoute]()
+  private val connecting = HashMap[Destination, ListBuffer[(DeliveryProducerRoute)=>Unit]]()
+  private var consumers = List[EmbeddedConsumer]()
+  private var closed = false
+
+  /**
+   * Gets the producer route to a destination.  The route gets connected
+   * to the router the first time it's asked for and is then reused.
+   */
+  def route(destination:Destination)(cb:(DeliveryProducerRoute)=>Unit):Unit = dispatchQueue {
+    routes.get(destination) match {
+      case Some(route) =>
+        cb(route)
+      case None =>
+        connecting.get(destination) match {
+          case Some(callbacks) =>
+            callbacks += cb
+          case None =>
+            val callbacks = ListBuffer(cb)
+            connecting.put(destination, callbacks)
+            // the route executes the callback on our dispatch queue.
+            host.router.connect(destination, this) { route=>
+              connecting.remove(destination)
+              if( closed ) {
+                host.router.disconnect(route)
+              } else {
+                routes.put(destination, route)
+                callbacks.foreach( _(route) )
+              }
+            }
+        }
+    }
+  }
+
+  /**
+   * Sends a message over a route.  The route retains the message for as
+   * long as it needs it, so the caller still owns its reference to the
+   * message.  Several sends can be grouped into a batch using the route's
+   * open_batch and flush_batch.
+   *
+   * @param size the size of the message used for flow control.
+   * @param ack executed once the message has been processed.
+   * @return false if the route is full.  The message should be sent again
+   *         once the route's refiller is executed.
+   */
+  def send(route:DeliveryProducerRoute, message:Message, size:Int, ack:(StoreUOW)=>Unit=null):Boolean = {
+    if( route.full ) {
+      false
+    } else {
+      val delivery = new Delivery
+      delivery.message = message
+      delivery.size = size
+      delivery.ack = ack
+      route.offer(delivery)
+    }
+  }
+
+  /**
+   * Subscribes to a destination.  The handler gets each Delivery on the
+   * client's dispatch queue.  If auto_ack is false, the handler has to
+   * execute the delivery's ack when it's non null once it has processed
+   * the message.
+   *
+   * @param on_failure executed on the client's dispatch queue with the
+   *        reason the subscription could not be established.  The returned
+   *        consumer is then not subscribed to anything.
+   */
+  def subscribe(destination:Destination, auto_ack:Boolean=true, on_failure:(String)=>Unit=null)(handler:(Delivery)=>Unit):EmbeddedConsumer = {
+    val topic = destination.getDomain == Router.TOPIC_DOMAIN || destination.getDomain == Router.TEMP_TOPIC_DOMAIN
+    val binding = if( topic ) {
+      null
+    } else {
+      val rc = new PointToPointBindingDTO
+      rc.destination = destination.getName.toString
+      rc
+    }
+
+    val consumer = new EmbeddedConsumer(destination, binding, auto_ack, handler)
+    dispatchQueue {
+      consumers ::= consumer
+    }
+
+    if( binding==null ) {
+      host.router.bind(destination, consumer)
+      consumer.release
+    } else {
+      host.router.create_queue(binding) { x=>
+        x match {
+          case Some(queue:Queue) =>
+            queue.bind(consumer::Nil)
+            consumer.release
+          case None =>
+            dispatchQueue {
+              consumers = consumers.filterNot( _ == consumer )
+              consumer.release
+              if( on_failure!=null ) {
+                on_failure("Could not create the queue for: "+destination.getName)
+              }
+            }
+        }
+      }
+    }
+    consumer
+  }
+
+  def unsubscribe(consumer:EmbeddedConsumer):Unit = dispatchQueue {
+    if( consumers.contains(consumer) ) {
+      consumers = consumers.filterNot( _ == consumer )
+      if( consumer.binding==null ) {
+        host.router.unbind(consumer.destination, consumer)
+      } else {
+        host.router.get_queue(consumer.binding) { queue=>
+          queue.foreach( _.unbind(consumer::Nil) )
+        }
+      }
+    }
+  }
+
+  /**
+   * Disconnects all the routes and consumers of the client.
+   */
+  def close:Unit = dispatchQueue {
+    if( !closed ) {
+      closed = true
+      routes.values.foreach( host.router.disconnect(_) )
+      routes.clear
+      consumers.foreach( unsubscribe(_) )
+    }
+  }
+
+  class EmbeddedConsumer(val destination:Destination, val binding:BindingDTO, val auto_ack:Boolean, handler:(Delivery)=>Unit) extends BaseRetained with DeliveryConsumer {
+    val dispatchQueue = EmbeddedClient.this.dispatchQueue
+
+    dispatchQueue.retain
+    setDisposer(^{
+      session_manager.release
+      dispatchQueue.release
+    })
+
+    // hands the deliveries to the handler.
+    private val handler_sink = new Sink[Delivery] {
+      var refiller:Runnable = null
+      def full = false
+      def offer(delivery:Delivery) = {
+        try {
+          handler(delivery)
+        } finally {
+          delivery.message.release
+        }
+        true
+      }
+    }
+
+    val session_manager = new SinkMux[Delivery](handler_sink, dispatchQueue, Delivery)
+
+    def matches(delivery:Delivery) = true
+
+    def connect(p:DeliveryProducer) = new DeliverySession {
+      retain
+
+      def producer = p
+      def consumer = EmbeddedConsumer.this
+
+      val session = session_manager.open(producer.dispatchQueue)
+
+      def close = {
+        session_manager.close(session)
+        release
+      }
+
+      // Delegate all the flow control stuff to the session
+      def full = session.full
+      def offer(delivery:Delivery) = {
+        if( session.full ) {
+          false
+        } else {
+          // the producer may reuse the delivery, so hand over a copy.
+          val copy = delivery.copy
+          if( delivery.ack!=null ) {
+            if( auto_ack ) {
+              delivery.ack(null)
+            } else {
+              copy.ack = delivery.ack
+            }
+          }
+          copy.message.retain
+          val rc = session.offer(copy)
+          assert(rc, "offer should be accepted since it was not full")
+          true
+        }
+      }
+
+      override def open_batch = session.open_batch
+      override def flush_batch = session.flush_batch
+
+      def refiller = session.refiller
+      def refiller_=(value:Runnable) = { session.refiller=value }
+    }
+  }
+
+}
@@ -104,6 +104,14 @@ class Queue(val host: VirtualHost, var id:Long, val binding:Binding) extends Bas
    */
   def tune_persistent = host.store !=null
 
+  /**
+   * Should the store compress the messages this queue swaps out?
+   */
+  lazy val compress = {
+    val config = host.router.destination_config(binding.destination)
+    config!=null && config.compress
+  }
+
   /**
    * Should messages be flushed or swapped out of memory if
    * no consumers need the message?
@@ -439,6 +447,50 @@ class Queue(val host: VirtualHost, var id:Long, val binding:Binding) extends Bas
   }
 
 
+  /**
+   * Subscriptions which have deliveries batched up in the current
+   * dispatch pass.  Their batches get flushed once the pass completes
+   * so that each consumer gets the run of entries it took in one shot.
+   */
+  var batched_subscriptions = List[Subscription]()
+
+  // Set while a dispatch_pass is executing.
+  private var dispatching = false
+
+  /**
+   * Executes a dispatch pass.  The batches the subscriptions opened
+   * during the pass are flushed as soon as it completes.
+   */
+  def dispatch_pass(func: =>Unit) = {
+    if( dispatching ) {
+      func
+    } else {
+      dispatching = true
+      try {
+        func
+      } finally {
+        dispatching = false
+        flush_dispatch_batches
+      }
+    }
+  }
+
+  def batch_dispatch(sub:Subscription) = {
+    // outside of a dispatch pass, flush once the current task is done.
+    if( batched_subscriptions == Nil && !dispatching ) {
+      dispatchQueue << flush_dispatch_batches_task
+    }
+    batched_subscriptions ::= sub
+  }
+
+  def flush_dispatch_batches = {
+    val subs = batched_subscriptions
+    batched_subscriptions = Nil
+    subs.foreach( _.flush_batch )
+  }
+
+  private val flush_dispatch_batches_task = ^{ flush_dispatch_batches }
+
   def drain_acks = {
     ack_source.getData.foreach {
       case (entry, tx) =>
@@ -500,6 +552,9 @@ class Queue(val host: VirtualHost, var id:Long, val binding:Binding) extends Bas
       }
     }
 
+    override def open_batch = session.open_batch
+    override def flush_batch = session.flush_batch
+
     def refiller = session.refiller
 
     def refiller_=(value: Runnable) = {session.refiller = value}
@@ -649,9 +704,11 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
    * entries as long as the dispatch results in advancing in their dispatch position.
    */
   def run() = {
-    var next = this;
-    while( next!=null && next.dispatch) {
-      next = next.getNext
+    queue.dispatch_pass {
+      var next = this;
+      while( next!=null && next.dispatch) {
+        next = next.getNext
+      }
     }
   }
 
@@ -964,7 +1021,9 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
                 
                 delivery.uow = queue.host.store.createStoreUOW
                 val uow = delivery.uow
-                delivery.storeKey = uow.store(delivery.createMessageRecord)
+                val record = delivery.createMessageRecord
+                record.compressible = queue.compress
+                delivery.storeKey = uow.store(record)
                 store
                 if( asap ) {
                   uow.completeASAP
@@ -1161,6 +1220,8 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         queue.loading_size -= size
 
         val delivery = new Delivery()
+        // the store leaves compressed values as they are until the message is needed.
+        MessageCompression.decompress(messageRecord)
         delivery.message = ProtocolFactory.get(messageRecord.protocol.toString).get.decode(messageRecord)
         delivery.size = messageRecord.size
         delivery.storeKey = messageRecord.key
@@ -1397,7 +1458,28 @@ class Subscription(queue:Queue) extends DeliveryProducer with DispatchLogging {
 
   def matches(entry:Delivery) = session.consumer.matches(entry)
   def full = session.full
-  def offer(delivery:Delivery) = session.offer(delivery)
+
+  // Set while the session is holding on to a batch of deliveries.
+  var batching = false
+
+  def offer(delivery:Delivery) = {
+    if( !batching ) {
+      batching = true
+      session.open_batch
+      queue.batch_dispatch(this)
+    }
+    session.offer(delivery)
+  }
+
+  def flush_batch = {
+    if( batching ) {
+      batching = false
+      // The session may have already been closed..
+      if( session!=null ) {
+        session.flush_batch
+      }
+    }
+  }
 
   def acquire(entry:QueueEntry) = new AcquiredQueueEntry(entry)
 
@@ -26,7 +26,7 @@ import collection.JavaConversions
 import org.apache.activemq.apollo.util._
 import collection.mutable.{ListBuffer, HashMap}
 import org.apache.activemq.apollo.store.QueueRecord
-import org.apache.activemq.apollo.dto.{PointToPointBindingDTO, BindingDTO}
+import org.apache.activemq.apollo.dto.{DestinationDTO, PointToPointBindingDTO, BindingDTO}
 import path.{PathFilter, PathMap}
 import scala.collection.immutable.List
 
@@ -75,6 +75,20 @@ class Router(val host:VirtualHost) extends DispatchLogging {
   // Can store bindings on wild cards paths
   val bindings = new PathMap[Queue]()
 
+  /**
+   * @return the configuration of the first configured destination which
+   * matches the name or null if there is none.
+   */
+  def destination_config(name:AsciiBuffer):DestinationDTO = {
+    if( host.config==null ) {
+      return null
+    }
+    import JavaConversions._
+    host.config.destinations.find { dto=>
+      dto.name!=null && PathFilter.parseFilter(new AsciiBuffer(dto.name)).matches(name)
+    }.getOrElse(null)
+  }
+
   private def is_topic(destination:Destination) = {
     destination.getDomain match {
       case TOPIC_DOMAIN => true
@@ -337,7 +351,7 @@ trait Route extends Retained {
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
-case class DeliveryProducerRoute(val router:Router, val destination:Destination, val producer:DeliveryProducer) extends BaseRetained with Route with Sink[Delivery] with DispatchLogging {
+case class DeliveryProducerRoute(val router:Router, val destination:Destination, val producer:DeliveryProducer) extends BaseRetained with Route with BatchingSink[Delivery] with DispatchLogging {
 
   override protected def log = Router
   override def dispatchQueue = producer.dispatchQueue
@@ -379,6 +393,7 @@ case class DeliveryProducerRoute(val router:Router, val destination:Destination,
   } >>: dispatchQueue
 
   def disconnected() = ^ {
+    batching = false
     this.targets.foreach { x=>
       debug("producer route detaching from conusmer.")
       x.close
@@ -400,8 +415,29 @@ case class DeliveryProducerRoute(val router:Router, val destination:Destination,
   var overflowSessions = List[DeliverySession]()
   var refiller:Runnable=null
 
+  // When batching, the targets hold on to the offered deliveries
+  // until the batch is flushed.
+  var batching = false
+
   def full = overflow!=null
 
+  // should the store compress the messages sent to the destination?
+  lazy val compress = {
+    val config = router.destination_config(destination.getName)
+    config!=null && config.compress
+  }
+
+  override def open_batch = {
+    batching = true
+  }
+
+  override def flush_batch = {
+    if( batching ) {
+      batching = false
+      targets.foreach( _.flush_batch )
+    }
+  }
+
   def offer(delivery:Delivery) = {
     if( full ) {
       false
@@ -418,10 +454,15 @@ case class DeliveryProducerRoute(val router:Router, val destination:Destination,
 
           if( storeOnMatch ) {
             delivery.uow = router.host.store.createStoreUOW
-            delivery.storeKey = delivery.uow.store(delivery.createMessageRecord)
+            val record = delivery.createMessageRecord
+            record.compressible = compress
+            delivery.storeKey = delivery.uow.store(record)
             storeOnMatch = false
           }
 
+          if( batching ) {
+            target.open_batch
+          }
 
           if( !target.offer(delivery) ) {
             overflowSessions ::= target
@@ -51,6 +51,30 @@ trait Sink[T] {
   var refiller:Runnable
 }
 
+/**
+ * <p>
+ * A sink which can hold on to the values offered to it while a batch
+ * is open so that they get passed on to the down stream side as a single
+ * unit once the batch is flushed.  Sinks which don't support batching
+ * just pass on values as they are offered.
+ * <p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+trait BatchingSink[T] extends Sink[T] {
+
+  /**
+   * Values offered after this call are held until
+   * flush_batch is called.
+   */
+  def open_batch:Unit = {}
+
+  /**
+   * Passes on all the values held since the batch was opened.
+   */
+  def flush_batch:Unit = {}
+}
+
 /**
  * <p>
  * A delivery sink which is connected to a transport. It expects the caller's dispatch
@@ -116,6 +140,64 @@ class OverflowSink[T](val downstream:Sink[T]) extends Sink[T] {
   def full = overflowed || downstream.full
 }
 
+/**
+ * <p>
+ * Splits the values sent to a down stream sink into a control lane and a
+ * data lane.  Values offered to the control lane go ahead of the values
+ * waiting to get into the down stream sink through the data lane, so that
+ * small control values don't get stuck behind a backlog of bulk data.
+ * Each lane keeps the order of the values offered to it.
+ * </p>
+ * <p>
+ * Like an OverflowSink, the control lane always accepts values.  The data
+ * lane reports that it's full while control values are waiting.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class PrioritySink[T](val downstream:Sink[T]) {
+
+  private val control_overflow = new LinkedList[T]()
+
+  downstream.refiller = ^{ drain }
+
+  private def drain:Unit = {
+    while( !control_overflow.isEmpty ) {
+      val value = control_overflow.removeFirst
+      if( !downstream.offer(value) ) {
+        control_overflow.addFirst(value)
+        return
+      }
+    }
+    if( data.refiller!=null ) {
+      data.refiller.run
+    }
+  }
+
+  val control:Sink[T] = new Sink[T] {
+    var refiller:Runnable = null
+    def full = false
+    def offer(value:T) = {
+      if( !control_overflow.isEmpty || !downstream.offer(value) ) {
+        control_overflow.addLast(value)
+      }
+      true
+    }
+  }
+
+  val data:Sink[T] = new Sink[T] {
+    var refiller:Runnable = null
+    def full = !control_overflow.isEmpty || downstream.full
+    def offer(value:T) = {
+      if( full ) {
+        false
+      } else {
+        downstream.offer(value)
+      }
+    }
+  }
+}
+
 object MapSink {
   def apply[X,Y](downstream:Sink[X])(func: Y=>X ) = {
     new Sink[Y] {
@@ -142,6 +224,11 @@ object MapSink {
  * uses credit based flow control to cut down the cross thread
  * events issued.
  * </p>
+ * <p>
+ * When a producer is executing on the same thread as the target's
+ * dispatch queue, the session skips all that and offers straight to the
+ * target sink.
+ * </p>
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
@@ -176,22 +263,44 @@ class SinkMux[T](val target:Sink[T], val queue:DispatchQueue, val sizer:Sizer[T]
   })
 
   // use a event aggregating source to coalesce multiple events from the same thread.
-  // all the sessions send to the same source.
-  val source = createSource(new ListEventAggregator[(Session,T)](), queue)
+  // all the sessions send to the same source.  Sessions send the values
+  // they batched up as a single event.
+  val source = createSource(new ListEventAggregator[(Session,List[T])](), queue)
   source.setEventHandler(^{drain_source});
   source.resume
 
+  // The thread queue the consumer side was last seen executing on.
+  @volatile
+  private var consumer_thread:DispatchQueue = null
+
   def drain_source = {
-    source.getData.foreach { event =>
-      // overflow sinks can always accept more values.
-      overflow.offer(event)
+    consumer_thread = Dispatch.getCurrentThreadQueue
+    source.getData.foreach { case (session, values) =>
+      session.received += 1
+      values.foreach { value =>
+        // overflow sinks can always accept more values.
+        overflow.offer((session, value))
+      }
+    }
+  }
+
+  /**
+   * Is it safe for a producer executing on the producer_queue to call directly
+   * into the target sink?  It is when both sides are the same serial queue or
+   * when the consumer side is bound to the thread queue we are currently executing
+   * on, since the two then can never execute concurrently.
+   */
+  def is_collocated(producer_queue:DispatchQueue) = {
+    (producer_queue eq queue) || {
+      val thread_queue = Dispatch.getCurrentThreadQueue
+      thread_queue!=null && (consumer_thread eq thread_queue) && (queue.getTargetQueue eq thread_queue)
     }
   }
 
   /**
    * tracks one producer to consumer session / credit window.
    */
-  class Session(val producer_queue:DispatchQueue) extends Sink[T] {
+  class Session(val producer_queue:DispatchQueue) extends BatchingSink[T] {
 
     // retain since the producer will be using this source to send messages
     // to the consumer
@@ -214,25 +323,96 @@ class SinkMux[T](val target:Sink[T], val queue:DispatchQueue, val sizer:Sizer[T]
     var refiller:Runnable = null
     var _full = false
 
+    // While a batch is open, offered values are held here (in reverse order)
+    // and the credits they use are only debited once the batch is flushed.
+    private var batch:List[T] = null
+    private var batch_size = 0
+
+    // Counts the events sent to / received from the source so that we
+    // know if any values are still in flight to the consumer side.
+    private var sent = 0L
+    @volatile
+    var received = 0L
+
     def close = {
+      flush_batch
       credit_adder.release
       source.release
       closed=true
     }
 
-    override def full = _full
+    override def full = _full || ( batch_size > 0 && credits-batch_size <= 0 )
 
     override def offer(value: T) = {
-      if( _full || closed ) {
+      if( full || closed ) {
         false
       } else {
-        credit_adder.retain
-        internal_credit(-sizer.size(value))
-        source.merge((this, value))
+        if( batch!=null ) {
+          credit_adder.retain
+          batch ::= value
+          batch_size += sizer.size(value)
+        } else {
+          credit_adder.retain
+          internal_credit(-sizer.size(value))
+          if( offer_direct(value) ) {
+            delivered_direct(value)
+          } else {
+            send(value::Nil)
+          }
+        }
         true
       }
     }
 
+    /**
+     * Collocated producers hand the value straight to the target sink.  Only done when
+     * nothing sent earlier is still in flight so that ordering is preserved.
+     */
+    private def offer_direct(value:T) = {
+      sent == received && !overflow.overflowed && is_collocated(producer_queue) && target.offer(value)
+    }
+
+    /**
+     * A value delivered directly still used up credit, it comes back through the
+     * credit_adder just like for values leaving the overflow.  So the producer
+     * keeps getting flow controlled by the session window when it sends
+     * faster than the credit events get processed.
+     */
+    private def delivered_direct(value:T) = {
+      credit_adder.merge(sizer.size(value))
+      credit_adder.release
+    }
+
+    private def send(values:List[T]) = {
+      sent += 1
+      source.merge((this, values))
+    }
+
+    override def open_batch = {
+      if( batch==null ) {
+        batch = Nil
+      }
+    }
+
+    override def flush_batch = {
+      if( batch!=null ) {
+        var values = batch.reverse
+        val size = batch_size
+        batch = null
+        batch_size = 0
+
+        internal_credit(-size)
+        while( values!=Nil && offer_direct(values.head) ) {
+          delivered_direct(values.head)
+          values = values.tail
+        }
+
+        if( values!=Nil ) {
+          send(values)
+        }
+      }
+    }
+
     def internal_credit(value:Int) = {
       credits += value;
       if( closed || credits <= 0 ) {
@@ -265,7 +445,7 @@ class SinkMux[T](val target:Sink[T], val queue:DispatchQueue, val sizer:Sizer[T]
 
   }
 
-  def open(producer_queue:DispatchQueue):Sink[T] = {
+  def open(producer_queue:DispatchQueue):BatchingSink[T] = {
     val session = createSession(producer_queue)
     sessions = session :: sessions
     session.capacity(session_max_credits)
@@ -19,7 +19,8 @@ package org.apache.activemq.apollo.broker.protocol
 import org.apache.activemq.apollo.broker.{Message, ProtocolException}
 import org.fusesource.hawtbuf.{AsciiBuffer, Buffer}
 import org.apache.activemq.apollo.store.MessageRecord
-import org.apache.activemq.apollo.transport.{ProtocolCodec}
+import org.apache.activemq.apollo.transport.{CompressingProtocolCodec, ProtocolCodec}
+import CompressingProtocolCodec._
 import java.nio.channels.{WritableByteChannel, ReadableByteChannel}
 import java.nio.ByteBuffer
 import java.io.IOException
@@ -88,9 +89,12 @@ class MultiProtocolCodec(val protocols: Array[Protocol]) extends ProtocolCodec {
   if (protocols.isEmpty) {
     throw new IllegalArgumentException("No protocol configured for identification.")
   }
-  val buffer = ByteBuffer.allocate(protocols.foldLeft(0) {(a, b) => a.max(b.maxIdentificaionLength)})
+  val buffer = ByteBuffer.allocate(protocols.foldLeft(PREFIX.length) {(a, b) => a.max(b.maxIdentificaionLength)})
   var channel: ReadableByteChannel = null
 
+  // set once the client has asked for a compressed connection.
+  var inflater: InflatingChannel = null
+
   def setReadableByteChannel(channel: ReadableByteChannel) = {this.channel = channel}
 
   def read: AnyRef = {
@@ -99,11 +103,31 @@ class MultiProtocolCodec(val protocols: Array[Protocol]) extends ProtocolCodec {
     }
 
     channel.read(buffer)
-    val buff = new Buffer(buffer.array(), 0, buffer.position())
+    var buff = new Buffer(buffer.array(), 0, buffer.position())
+
+    if( inflater==null && buff.length > 0 && PREFIX.startsWith(buff.slice(0, buff.length.min(PREFIX.length))) ) {
+      if( buff.length < PREFIX.length ) {
+        // wait for the rest of the prefix.
+        return null
+      }
+      // The rest of the connection is compressed, identify the protocol
+      // using the inflated data.
+      inflater = new InflatingChannel
+      inflater.setChannel(channel)
+      inflater.unread(buff.data, PREFIX.length, buff.length-PREFIX.length)
+      channel = inflater
+      buffer.clear
+      channel.read(buffer)
+      buff = new Buffer(buffer.array(), 0, buffer.position())
+    }
+
     protocols.foreach {protocol =>
       if (protocol.matchesIdentification(buff)) {
         val protocolCodec = protocol.createProtocolCodec()
         protocolCodec.unread(buff)
+        if( inflater!=null ) {
+          return new CompressingProtocolCodec(protocolCodec, inflater)
+        }
         return protocolCodec
       }
     }
@@ -126,6 +150,8 @@ class MultiProtocolCodec(val protocols: Array[Protocol]) extends ProtocolCodec {
 
   def getWriteCounter = 0L
 
+  def getBufferFootprint = buffer.capacity
+
   def protocol = "multi"
 
 }
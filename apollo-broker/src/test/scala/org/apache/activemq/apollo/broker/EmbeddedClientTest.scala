@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import _root_.org.fusesource.hawtdispatch._
+import _root_.org.fusesource.hawtdispatch.ScalaDispatch._
+import java.util.concurrent.{LinkedBlockingQueue, TimeUnit, CountDownLatch}
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.fusesource.hawtbuf.AsciiBuffer
+
+/**
+ * <p>
+ * Tests sending and subscribing through the EmbeddedClient against a
+ * virtual host without a store.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class EmbeddedClientTest extends FunSuiteSupport {
+
+  class TestMessage(val body:String, val destination:Destination) extends BaseRetained with Message {
+    def id:AsciiBuffer = null
+    def producer:AsciiBuffer = null
+    def priority:Byte = 4
+    def expiration = -1L
+    def persistent = false
+    def protocol:Protocol = null
+    def getBodyAs[T](`type`:Class[T]):T = null.asInstanceOf[T]
+    def getProperty(name:String):AnyRef = null
+    def getLocalConnectionId:AnyRef = null
+  }
+
+  def create_host = {
+    val host = new VirtualHost(null, 1)
+    host.config = VirtualHost.defaultConfig
+    host
+  }
+
+  def queue(name:String) = SingleDestination(Router.QUEUE_DOMAIN, new AsciiBuffer(name))
+  def topic(name:String) = SingleDestination(Router.TOPIC_DOMAIN, new AsciiBuffer(name))
+
+  def sync[T](queue:DispatchQueue)(func: =>T):T = {
+    var rc:Option[T] = None
+    val done = new CountDownLatch(1)
+    queue {
+      rc = Some(func)
+      done.countDown
+    }
+    assert(done.await(5, TimeUnit.SECONDS), "timed out")
+    rc.get
+  }
+
+  def within(func: =>Boolean) = {
+    val timeout = System.currentTimeMillis + 5000
+    while( !func && System.currentTimeMillis < timeout ) {
+      Thread.sleep(10)
+    }
+    func
+  }
+
+  /**
+   * Sends a message once the route to the destination is connected.
+   */
+  def send(client:EmbeddedClient, destination:Destination, body:String) = {
+    client.route(destination) { route=>
+      val message = new TestMessage(body, destination)
+      assert(client.send(route, message, body.length))
+      message.release
+    }
+  }
+
+  def dequeued(host:VirtualHost, name:String) = {
+    val queue = sync(host.dispatchQueue) {
+      host.router.queues.valuesIterator.find( _.binding.destination == new AsciiBuffer(name) ).get
+    }
+    sync(queue.dispatchQueue) { queue.dequeue_item_counter }
+  }
+
+  test("messages sent to a queue reach its subscriber and are acked automatically") {
+    val host = create_host
+    val client = new EmbeddedClient(host)
+    val received = new LinkedBlockingQueue[String]()
+    client.subscribe(queue("test")) { delivery=>
+      received.add(delivery.message.asInstanceOf[TestMessage].body)
+    }
+
+    send(client, queue("test"), "hello")
+    send(client, queue("test"), "world")
+    expect("hello") { received.poll(5, TimeUnit.SECONDS) }
+    expect("world") { received.poll(5, TimeUnit.SECONDS) }
+    expect(true) { within( dequeued(host, "test") == 2 ) }
+    client.close
+  }
+
+  test("without auto ack the queue waits for the subscriber to ack") {
+    val host = create_host
+    val client = new EmbeddedClient(host)
+    val received = new LinkedBlockingQueue[Delivery]()
+    client.subscribe(queue("test"), false) { delivery=>
+      received.add(delivery)
+    }
+
+    send(client, queue("test"), "hello")
+    val delivery = received.poll(5, TimeUnit.SECONDS)
+    expect("hello") { delivery.message.asInstanceOf[TestMessage].body }
+    expect(true) { delivery.ack!=null }
+    Thread.sleep(200)
+    expect(0) { dequeued(host, "test") }
+
+    client.dispatchQueue {
+      delivery.ack(null)
+    }
+    expect(true) { within( dequeued(host, "test") == 1 ) }
+    client.close
+  }
+
+  test("every topic subscriber gets the messages sent to the topic") {
+    val host = create_host
+    val client = new EmbeddedClient(host)
+    val received = new LinkedBlockingQueue[String]()
+    for( i <- 1 to 2 ) {
+      client.subscribe(topic("test")) { delivery=>
+        received.add(i+":"+delivery.message.asInstanceOf[TestMessage].body)
+      }
+    }
+    // give the bindings a chance to reach the router.
+    sync(host.dispatchQueue) {}
+
+    send(client, topic("test"), "hello")
+    val rc = List(received.poll(5, TimeUnit.SECONDS), received.poll(5, TimeUnit.SECONDS))
+    expect(List("1:hello", "2:hello")) { rc.sortWith(_ < _) }
+    client.close
+  }
+
+  test("a closed client no longer gets messages") {
+    val host = create_host
+    val consumer = new EmbeddedClient(host)
+    val received = new LinkedBlockingQueue[String]()
+    consumer.subscribe(topic("test")) { delivery=>
+      received.add(delivery.message.asInstanceOf[TestMessage].body)
+    }
+    sync(host.dispatchQueue) {}
+
+    consumer.close
+    // the close queues the unsubscribe which then queues the unbind.
+    sync(consumer.dispatchQueue) {}
+    sync(consumer.dispatchQueue) {}
+    sync(host.dispatchQueue) {}
+
+    val producer = new EmbeddedClient(host)
+    send(producer, topic("test"), "hello")
+    expect(null) { received.poll(500, TimeUnit.MILLISECONDS) }
+    producer.close
+  }
+
+}
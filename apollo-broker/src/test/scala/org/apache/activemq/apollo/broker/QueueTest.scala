@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import _root_.org.fusesource.hawtdispatch._
+import _root_.org.fusesource.hawtdispatch.ScalaDispatch._
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.fusesource.hawtbuf.AsciiBuffer
+
+/**
+ * <p>
+ * Tests when a queue flushes the deliveries its subscriptions batched up.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class QueueTest extends FunSuiteSupport {
+
+  /**
+   * Records the calls the subscription makes, only used from the queue's dispatch queue.
+   */
+  class RecordingSession(val producer:DeliveryProducer) extends DeliverySession {
+    var events = List[String]()
+    var refiller:Runnable = null
+    def consumer:DeliveryConsumer = null
+    def full = false
+    def offer(delivery:Delivery) = {
+      events ::= "offer:"+delivery.size
+      true
+    }
+    override def open_batch = events ::= "open"
+    override def flush_batch = events ::= "flush"
+    def close = {}
+  }
+
+  def create_queue = {
+    val binding = new PointToPointBindingFactory().create(PointToPointBinding.POINT_TO_POINT_KIND, new AsciiBuffer("test").buffer)
+    new Queue(null, 1, binding) {
+      override def tune_persistent = false
+    }
+  }
+
+  def subscribe(queue:Queue) = {
+    val sub = new Subscription(queue)
+    val session = new RecordingSession(sub)
+    sub.session = session
+    (sub, session)
+  }
+
+  def delivery(size:Int) = {
+    val rc = new Delivery
+    rc.size = size
+    rc
+  }
+
+  def sync[T](queue:DispatchQueue)(func: =>T):T = {
+    var rc:Option[T] = None
+    val done = new CountDownLatch(1)
+    queue {
+      rc = Some(func)
+      done.countDown
+    }
+    assert(done.await(5, TimeUnit.SECONDS), "timed out")
+    rc.get
+  }
+
+  test("batches are flushed at the end of the dispatch pass") {
+    val queue = create_queue
+    val (sub, session) = subscribe(queue)
+
+    sync(queue.dispatchQueue) {
+      // work queued up behind the pass must not delay the flush.
+      queue.dispatchQueue {
+        session.events ::= "backlog"
+      }
+      queue.dispatch_pass {
+        sub.offer(delivery(1))
+        sub.offer(delivery(2))
+        expect(List("open", "offer:1", "offer:2")) { session.events.reverse }
+      }
+      expect(List("open", "offer:1", "offer:2", "flush")) { session.events.reverse }
+    }
+    expect(List("open", "offer:1", "offer:2", "flush", "backlog")) {
+      sync(queue.dispatchQueue) { session.events.reverse }
+    }
+  }
+
+  test("a nested dispatch pass leaves the flush to the outer pass") {
+    val queue = create_queue
+    val (sub, session) = subscribe(queue)
+
+    sync(queue.dispatchQueue) {
+      queue.dispatch_pass {
+        queue.dispatch_pass {
+          sub.offer(delivery(1))
+        }
+        sub.offer(delivery(2))
+      }
+      expect(List("open", "offer:1", "offer:2", "flush")) { session.events.reverse }
+    }
+  }
+
+  test("deliveries offered outside of a dispatch pass are flushed after the current task") {
+    val queue = create_queue
+    val (sub, session) = subscribe(queue)
+
+    sync(queue.dispatchQueue) {
+      sub.offer(delivery(1))
+      expect(List("open", "offer:1")) { session.events.reverse }
+    }
+    expect(List("open", "offer:1", "flush")) {
+      sync(queue.dispatchQueue) { session.events.reverse }
+    }
+  }
+
+}
@@ -0,0 +1,248 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import _root_.org.fusesource.hawtdispatch._
+import _root_.org.fusesource.hawtdispatch.ScalaDispatch._
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import org.apache.activemq.apollo.util.FunSuiteSupport
+
+/**
+ * <p>
+ * Tests the credit window and the batching of SinkMux sessions.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class SinkMuxTest extends FunSuiteSupport {
+
+  /**
+   * Values are sized by their value.
+   */
+  object IntSizer extends Sizer[Int] {
+    def size(value:Int) = value
+  }
+
+  /**
+   * Records the values offered to it, only used from the consumer queue.
+   */
+  class RecordingSink extends Sink[Int] {
+    var values = List[Int]()
+    var full = false
+    var refiller:Runnable = null
+    def offer(value:Int) = {
+      if( full ) {
+        false
+      } else {
+        values ::= value
+        true
+      }
+    }
+  }
+
+  /**
+   * Executes func on the queue and waits for it to complete.
+   */
+  def sync[T](queue:DispatchQueue)(func: =>T):T = {
+    var rc:Option[T] = None
+    val done = new CountDownLatch(1)
+    queue {
+      rc = Some(func)
+      done.countDown
+    }
+    assert(done.await(5, TimeUnit.SECONDS), "timed out")
+    rc.get
+  }
+
+  /**
+   * Waits until the sink has received the expected values.
+   */
+  def received(consumer_queue:DispatchQueue, sink:RecordingSink, expected:List[Int]) = {
+    var rc = List[Int]()
+    val timeout = System.currentTimeMillis + 5000
+    while( rc != expected && System.currentTimeMillis < timeout ) {
+      rc = sync(consumer_queue) { sink.values.reverse }
+      if( rc != expected ) {
+        Thread.sleep(10)
+      }
+    }
+    expect(expected) { rc }
+  }
+
+  def create_mux(max_credits:Int) = {
+    val consumer_queue = createQueue("consumer")
+    val sink = new RecordingSink
+    val mux = new SinkMux[Int](sink, consumer_queue, IntSizer)
+    mux.session_max_credits = max_credits
+    (consumer_queue, sink, mux)
+  }
+
+  def open(mux:SinkMux[Int], producer_queue:DispatchQueue) = {
+    val session = sync(producer_queue) { mux.open(producer_queue) }
+    // the open dispatched the initial credit to the producer queue.
+    sync(producer_queue) {}
+    session
+  }
+
+  test("values reach the target in the order they were offered") {
+    val (consumer_queue, sink, mux) = create_mux(100)
+    val producer_queue = createQueue("producer")
+    val session = open(mux, producer_queue)
+    session.refiller = ^{}
+
+    sync(producer_queue) {
+      expect(true) { session.offer(1) }
+      expect(true) { session.offer(2) }
+      expect(true) { session.offer(3) }
+    }
+    received(consumer_queue, sink, List(1, 2, 3))
+  }
+
+  test("a batch is held until it is flushed") {
+    val (consumer_queue, sink, mux) = create_mux(100)
+    val producer_queue = createQueue("producer")
+    val session = open(mux, producer_queue)
+    session.refiller = ^{}
+
+    sync(producer_queue) {
+      session.open_batch
+      session.offer(1)
+      session.offer(2)
+      session.offer(3)
+    }
+    // give anything sent early a chance to arrive.
+    sync(producer_queue) {}
+    Thread.sleep(50)
+    expect(Nil) { sync(consumer_queue) { sink.values } }
+
+    sync(producer_queue) {
+      session.flush_batch
+    }
+    received(consumer_queue, sink, List(1, 2, 3))
+  }
+
+  test("a session is full once the batch uses up its credits") {
+    val (consumer_queue, sink, mux) = create_mux(100)
+    val producer_queue = createQueue("producer")
+    val session = open(mux, producer_queue)
+    val refilled = new CountDownLatch(1)
+    session.refiller = ^{ refilled.countDown }
+
+    sync(producer_queue) {
+      session.open_batch
+      expect(true) { session.offer(60) }
+      expect(false) { session.full }
+      expect(true) { session.offer(50) }
+      expect(true) { session.full }
+      expect(false) { session.offer(1) }
+      session.flush_batch
+      expect(true) { session.full }
+    }
+    received(consumer_queue, sink, List(60, 50))
+
+    // the credit comes back once the values leave the overflow.
+    assert(refilled.await(5, TimeUnit.SECONDS), "refiller not called")
+    expect(false) { sync(producer_queue) { session.full } }
+  }
+
+  test("collocated producers deliver directly but stay within the credit window") {
+    val (consumer_queue, sink, mux) = create_mux(100)
+    // sharing the consumer queue makes the producer collocated.
+    val session = open(mux, consumer_queue)
+    val refilled = new CountDownLatch(1)
+    session.refiller = ^{ refilled.countDown }
+
+    sync(consumer_queue) {
+      expect(true) { session.offer(60) }
+      expect(List(60)) { sink.values }
+      expect(false) { session.full }
+      expect(true) { session.offer(50) }
+      expect(List(50, 60)) { sink.values }
+      // the credit of the direct deliveries has not come back yet.
+      expect(true) { session.full }
+      expect(false) { session.offer(1) }
+    }
+
+    assert(refilled.await(5, TimeUnit.SECONDS), "refiller not called")
+    expect(false) { sync(consumer_queue) { session.full } }
+  }
+
+  /**
+   * Sends count values through a session as fast as its credit window allows
+   * and returns the sorted offer to delivery latencies in nanoseconds.
+   */
+  def latencies(consumer_queue:DispatchQueue, producer_queue:DispatchQueue, count:Int) = {
+    val sent = new Array[Long](count)
+    val arrived = new Array[Long](count)
+    val sink = new Sink[Int] {
+      var refiller:Runnable = null
+      def full = false
+      def offer(value:Int) = {
+        arrived(value) = System.nanoTime
+        true
+      }
+    }
+    val mux = new SinkMux[Int](sink, consumer_queue, new Sizer[Int] {
+      def size(value:Int) = 100
+    })
+    val session = open(mux, producer_queue)
+
+    val done = new CountDownLatch(1)
+    var next = 0
+    def pump:Unit = {
+      while( next < count && !session.full ) {
+        sent(next) = System.nanoTime
+        session.offer(next)
+        next += 1
+      }
+      if( next == count ) {
+        done.countDown
+      }
+    }
+    session.refiller = ^{ pump }
+    producer_queue { pump }
+    assert(done.await(30, TimeUnit.SECONDS), "timed out sending")
+
+    val timeout = System.currentTimeMillis + 5000
+    while( sync(consumer_queue) { arrived(count-1) } == 0 && System.currentTimeMillis < timeout ) {
+      Thread.sleep(10)
+    }
+
+    val rc = new Array[Long](count)
+    sync(consumer_queue) {
+      for( i <- 0 until count ) {
+        rc(i) = arrived(i) - sent(i)
+      }
+    }
+    java.util.Arrays.sort(rc)
+    rc
+  }
+
+  test("in vm delivery latency") {
+    val count = Integer.getInteger("SINK_MUX_VALUES", 100000).intValue
+
+    def report(label:String, rc:Array[Long]) = {
+      expect(true) { rc(0) >= 0 }
+      info("%s latency: p50 %,d ns, p99 %,d ns".format(label, rc(count/2), rc(count*99/100)))
+    }
+
+    val consumer_queue = createQueue("consumer")
+    report("collocated", latencies(consumer_queue, consumer_queue, count))
+    report("cross queue", latencies(createQueue("consumer"), createQueue("producer"), count))
+  }
+
+}
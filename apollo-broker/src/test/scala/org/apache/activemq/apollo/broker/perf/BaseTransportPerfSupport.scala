@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.perf
+
+import java.net.URL
+
+/**
+ * Runs the same small set of scenarios over each of the transports a
+ * client on the same host can use so that their throughput can be
+ * compared side by side.  The ssl runs show what TLS costs over plain tcp.
+ */
+abstract class BaseTransportPerfSupport extends BrokerPerfSupport {
+
+  PERSISTENT = false
+
+  def reportResourceTemplate():URL = { classOf[BaseTransportPerfSupport].getResource("transport-report.html") }
+  def transports = List("pipe", "tcp", "ssl", "unix", "shm")
+  def messageSizes = List(20, 1024)
+
+  for( transport <- transports ; messageSize <- messageSizes ) {
+
+    def benchmark(name:String)(func: =>Unit) {
+      test(name) {
+        useTransport(transport)
+        this.PTP = false
+        this.MESSAGE_SIZE = messageSize
+        func
+      }
+    }
+
+    val prefix = transport+" topic "+(if((messageSize%1024)==0) (messageSize/1024)+"k" else messageSize+"b" )+" "
+
+    for( (producers, consumers) <- List((1, 1), (10, 10)) ) {
+      benchmark(format("%s%d->1->%d", prefix, producers, consumers)) {
+        producerCount = producers;
+        consumerCount = consumers;
+        destCount = 1;
+
+        createConnections();
+
+        // Start 'em up.
+        startClients();
+        try {
+          reportRates();
+        } finally {
+          stopServices();
+        }
+      }
+    }
+  }
+
+}
@@ -40,7 +40,8 @@ abstract class BrokerPerfSupport extends FunSuiteSupport with BeforeAndAfterEach
   var PERFORMANCE_SAMPLES = Integer.parseInt(System.getProperty("PERFORMANCE_SAMPLES", "6"))
   var SAMPLE_PERIOD = java.lang.Long.parseLong(System.getProperty("SAMPLE_PERIOD", "1000"))
 
-  protected var TCP = true // Set to use tcp IO
+  // The transport to use: tcp, unix, shm or pipe
+  protected var TRANSPORT = System.getProperty("TRANSPORT", "tcp")
 
   var USE_KAHA_DB = true
   var PURGE_STORE = true
@@ -96,18 +97,44 @@ abstract class BrokerPerfSupport extends FunSuiteSupport with BeforeAndAfterEach
 
   override protected def beforeAll(configMap: Map[String, Any]) = {
     super.beforeAll(configMap)
-    if (TCP) {
-      sendBrokerBindURI = "tcp://localhost:10000"
-      receiveBrokerBindURI = "tcp://localhost:20000"
-
-      sendBrokerConnectURI = "tcp://localhost:10000?protocol=" + getRemoteProtocolName()
-      receiveBrokerConnectURI = "tcp://localhost:20000?protocol=" + getRemoteProtocolName()
-    } else {
-      sendBrokerConnectURI = "pipe://SendBroker"
-      receiveBrokerConnectURI = "pipe://ReceiveBroker"
+    useTransport(TRANSPORT)
+  }
 
-      sendBrokerBindURI = sendBrokerConnectURI
-      receiveBrokerBindURI = receiveBrokerConnectURI
+  /**
+   * Sets the broker bind and connect URIs to use the given transport.
+   */
+  def useTransport(transport:String) = {
+    TRANSPORT = transport
+    transport match {
+      case "tcp" =>
+        sendBrokerBindURI = "tcp://localhost:10000"
+        receiveBrokerBindURI = "tcp://localhost:20000"
+
+        sendBrokerConnectURI = "tcp://localhost:10000?protocol=" + getRemoteProtocolName()
+        receiveBrokerConnectURI = "tcp://localhost:20000?protocol=" + getRemoteProtocolName()
+      case "ssl" =>
+        // keystore.p12 holds a self signed certificate for localhost.
+        val store = classOf[BrokerPerfSupport].getResource("keystore.p12").toString
+        sendBrokerBindURI = "ssl://localhost:10000?keyStore="+store+"&keyStorePassword=password"
+        receiveBrokerBindURI = "ssl://localhost:20000?keyStore="+store+"&keyStorePassword=password"
+
+        sendBrokerConnectURI = "ssl://localhost:10000?trustStore="+store+"&trustStorePassword=password&protocol=" + getRemoteProtocolName()
+        receiveBrokerConnectURI = "ssl://localhost:20000?trustStore="+store+"&trustStorePassword=password&protocol=" + getRemoteProtocolName()
+      case "unix" | "shm" =>
+        val dir = System.getProperty("java.io.tmpdir")
+        sendBrokerBindURI = transport+":" + new File(dir, "apollo-send-"+transport).getPath
+        receiveBrokerBindURI = transport+":" + new File(dir, "apollo-receive-"+transport).getPath
+
+        sendBrokerConnectURI = sendBrokerBindURI + "?protocol=" + getRemoteProtocolName()
+        receiveBrokerConnectURI = receiveBrokerBindURI + "?protocol=" + getRemoteProtocolName()
+      case "pipe" =>
+        sendBrokerConnectURI = "pipe://SendBroker"
+        receiveBrokerConnectURI = "pipe://ReceiveBroker"
+
+        sendBrokerBindURI = sendBrokerConnectURI
+        receiveBrokerBindURI = receiveBrokerConnectURI
+      case _ =>
+        throw new IllegalArgumentException("Unknown transport: "+transport)
     }
   }
 
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.protocol
+
+import java.io.{ByteArrayOutputStream, IOException}
+import java.nio.ByteBuffer
+import java.nio.channels.{WritableByteChannel, ReadableByteChannel}
+import java.util.zip.Deflater
+import org.apache.activemq.apollo.broker.Message
+import org.apache.activemq.apollo.store.MessageRecord
+import org.apache.activemq.apollo.transport.{CompressingProtocolCodec, ProtocolCodec}
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.fusesource.hawtbuf.{AsciiBuffer, Buffer}
+
+/**
+ * <p>
+ * Tests how the MultiProtocolCodec identifies plain and compressed
+ * connections when their first bytes trickle in.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class MultiProtocolTest extends FunSuiteSupport {
+
+  val MAGIC = new AsciiBuffer("TEST")
+
+  /**
+   * Only remembers the data the multi protocol codec pushed back into it.
+   */
+  class TestCodec extends ProtocolCodec {
+    val unread_data = new ByteArrayOutputStream
+    def protocol = "test"
+    def setReadableByteChannel(channel: ReadableByteChannel) = {}
+    def read = null
+    def unread(buffer: Buffer) = unread_data.write(buffer.data, buffer.offset, buffer.length)
+    def getReadCounter = 0L
+    def setWritableByteChannel(channel: WritableByteChannel) = {}
+    def write(value: Any) = throw new UnsupportedOperationException
+    def flush = ProtocolCodec.BufferState.EMPTY
+    def getWriteCounter = 0L
+    def getBufferFootprint = 0
+  }
+
+  class TestProtocol extends Protocol {
+    def protocol = "test"
+    def createProtocolCodec = new TestCodec
+    def createProtocolHandler = throw new UnsupportedOperationException
+    def encode(message: Message) = throw new UnsupportedOperationException
+    def decode(message: MessageRecord) = throw new UnsupportedOperationException
+    def isIdentifiable = true
+    def maxIdentificaionLength = MAGIC.length
+    def matchesIdentification(buffer: Buffer) = buffer.length >= MAGIC.length && buffer.startsWith(MAGIC)
+  }
+
+  /**
+   * Hands out the data it was given at most chunk bytes per read.
+   */
+  class TrickleChannel(data:Array[Byte], chunk:Int) extends ReadableByteChannel {
+    var position = 0
+    def read(dst:ByteBuffer) = {
+      val count = chunk.min(dst.remaining).min(data.length-position)
+      dst.put(data, position, count)
+      position += count
+      count
+    }
+    def isOpen = true
+    def close = {}
+  }
+
+  def deflate(data:Array[Byte]) = {
+    val deflater = new Deflater(Deflater.BEST_SPEED)
+    deflater.setInput(data)
+    val rc = new Array[Byte](data.length+64)
+    val count = deflater.deflate(rc, 0, rc.length, Deflater.SYNC_FLUSH)
+    rc.take(count)
+  }
+
+  def identify(data:Array[Byte], chunk:Int) = {
+    val codec = new MultiProtocolCodec(Array[Protocol](new TestProtocol))
+    codec.setReadableByteChannel(new TrickleChannel(data, chunk))
+    var rc:AnyRef = null
+    var reads = 0
+    while( rc==null && reads < 100 ) {
+      rc = codec.read
+      reads += 1
+    }
+    rc
+  }
+
+  def unread_text(codec:AnyRef) = new String(codec.asInstanceOf[TestCodec].unread_data.toByteArray, "UTF-8")
+
+  test("plain protocols are identified from partial reads") {
+    val rc = identify("TESTING".getBytes("UTF-8"), 3)
+    expect(true) { rc.isInstanceOf[TestCodec] }
+    expect(true) { unread_text(rc).startsWith("TEST") }
+  }
+
+  test("compressed connections are identified from a prefix which arrives in pieces") {
+    val data = CompressingProtocolCodec.PREFIX.toByteArray ++ deflate("TESTING".getBytes("UTF-8"))
+    for( chunk <- List(1, 3, 8, data.length) ) {
+      val rc = identify(data, chunk)
+      expect(true) { rc.isInstanceOf[CompressingProtocolCodec] }
+      // the protocol codec gets the inflated bytes it was identified by.
+      val next = rc.asInstanceOf[CompressingProtocolCodec].getNext
+      expect(true) { unread_text(next).startsWith("TEST") }
+    }
+  }
+
+  test("unknown protocols fail once the identification buffer is full") {
+    intercept[IOException] {
+      identify("UNKNOWN PROTOCOL".getBytes("UTF-8"), 3)
+    }
+  }
+
+}
@@ -62,6 +62,10 @@ class CassandraClient() {
     rc.size = pb.getSize
     rc.buffer = pb.getValue
     rc.expiration = pb.getExpiration
+    if( pb.hasHeaderDelta ) {
+      rc.header_delta = pb.getHeaderDelta
+    }
+    rc.compressed = pb.getCompressed
     rc
   }
 
@@ -71,6 +75,12 @@ class CassandraClient() {
     pb.setSize(v.size)
     pb.setValue(v.buffer)
     pb.setExpiration(v.expiration)
+    if( v.header_delta!=null ) {
+      pb.setHeaderDelta(v.header_delta)
+    }
+    if( v.compressed ) {
+      pb.setCompressed(true)
+    }
     pb.freeze.toUnframedByteArray
   }
   
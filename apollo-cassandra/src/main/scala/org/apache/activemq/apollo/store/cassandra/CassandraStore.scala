@@ -70,6 +70,14 @@ class CassandraStore extends DelayingStoreSupport with Logging {
 
   def flush_delay = config.flush_delay
 
+  def message_cache_size = config.message_cache_size
+
+  // cassandra makes the writes durable as per its consistency level,
+  // there is nothing local to sync.
+  protected def fsync_policy = FsyncPolicy.never
+
+  protected def sync(callback: =>Unit) = callback
+
   override def toString = "cassandra store"
 
   protected def get_next_msg_key = next_msg_key.getAndIncrement
@@ -90,6 +98,8 @@ class CassandraStore extends DelayingStoreSupport with Logging {
     val rc = new StoreStatusDTO
     rc.state = serviceState.toString
     rc.state_since = serviceState.since
+    rc.message_cache_hit_ratio = message_cache.hit_ratio
+    rc.message_cache_size = message_cache.size
     callback(rc)
   }
 
@@ -169,6 +179,7 @@ class CassandraStore extends DelayingStoreSupport with Logging {
     blocking {
       client.purge
       next_msg_key.set(1)
+      message_cache.clear
       callback
     }
   }
@@ -206,7 +217,7 @@ class CassandraStore extends DelayingStoreSupport with Logging {
     }
   }
 
-  def loadMessage(id: Long)(callback: (Option[MessageRecord]) => Unit) = {
+  protected def load_message(id: Long)(callback: (Option[MessageRecord]) => Unit) = {
     blocking {
       callback( client.loadMessage(id) )
     }
@@ -45,6 +45,44 @@ public class ConnectionStatusDTO extends ServiceStatusDTO {
 	@XmlAttribute(name="write-counter")
 	public long write_counter;
 
+    /**
+     * The number of write calls made to the socket.
+     */
+	@XmlAttribute(name="write-calls")
+	public long write_calls;
+
+    /**
+     * The average number of bytes written per write call.
+     */
+	@XmlAttribute(name="average-write-size")
+	public long average_write_size;
+
+    /**
+     * The number of bytes of read and write buffer space the connection
+     * is currently holding on to.  Idle connections should be at or near 0.
+     */
+	@XmlAttribute(name="buffer-footprint")
+	public int buffer_footprint;
+
+    /**
+     * For ssl connections, the number of nanoseconds the handshake took.
+     */
+	@XmlAttribute(name="ssl-handshake-time")
+	public long ssl_handshake_time;
+
+    /**
+     * For ssl connections, true if the handshake resumed an earlier session.
+     */
+	@XmlAttribute(name="ssl-session-resumed")
+	public boolean ssl_session_resumed;
+
+    /**
+     * For ssl connections, the number of bytes the handshake and the TLS
+     * record framing added on top of the read and write counters.
+     */
+	@XmlAttribute(name="ssl-overhead")
+	public long ssl_overhead;
+
     /**
      * The protocol the connection is using.
      */
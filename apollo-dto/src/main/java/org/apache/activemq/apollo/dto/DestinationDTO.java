@@ -46,6 +46,11 @@ public class DestinationDTO {
      */
     public boolean unified = false;
 
-    
+    /**
+     * If set to true, then the store compresses the bodies of the
+     * messages sent to the destination when it writes them out.
+     */
+    public boolean compress = false;
+
 
 }
@@ -58,5 +58,34 @@ public class HawtDBStoreDTO extends StoreDTO {
     @XmlAttribute(name="fail-if-locked")
     public boolean fail_if_locked = false;
 
+    /**
+     * The number of threads which load messages and list queues
+     * concurrently with the journal writes and index updates.
+     */
+    @XmlAttribute(name="read-threads")
+    public int read_threads = 4;
+
+    /**
+     * Messages loaded from the journal which are at least this big
+     * are not read onto the heap.  They are sent to consumers straight
+     * from the journal file.  Set to 0 to disable.
+     */
+    @XmlAttribute(name="file-region-threshold")
+    public int file_region_threshold = 1024*64;
+
+    /**
+     * Batched message loads are read in journal order, and records which
+     * are at most this many bytes apart in the same journal file are read
+     * together with a single read.
+     */
+    @XmlAttribute(name="load-coalesce-gap")
+    public int load_coalesce_gap = 1024*16;
+
+    /**
+     * The maximum number of bytes read by a single coalesced read.
+     */
+    @XmlAttribute(name="load-coalesce-size")
+    public int load_coalesce_size = 1024*512;
+
 
 }
@@ -18,6 +18,7 @@ package org.apache.activemq.apollo.dto;
 
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
@@ -37,4 +38,40 @@ public class HawtDBStoreStatusDTO extends StoreStatusDTO {
     @XmlElement(name="message-load-batch-size")
     public IntMetricDTO message_load_batch_size;
 
+    /**
+     * The number of tasks waiting on or being run by the journal writer.
+     */
+    @XmlAttribute(name="writer-queue-depth")
+    public int writer_queue_depth;
+
+    /**
+     * The time it takes tasks to get through the journal writer.
+     */
+    @XmlElement(name="writer-latency")
+    public TimeMetricDTO writer_latency;
+
+    /**
+     * The number of tasks waiting on or being run by the index updater.
+     */
+    @XmlAttribute(name="indexer-queue-depth")
+    public int indexer_queue_depth;
+
+    /**
+     * The time it takes tasks to get through the index updater.
+     */
+    @XmlElement(name="indexer-latency")
+    public TimeMetricDTO indexer_latency;
+
+    /**
+     * The number of tasks waiting on or being run by the readers.
+     */
+    @XmlAttribute(name="reader-queue-depth")
+    public int reader_queue_depth;
+
+    /**
+     * The time it takes tasks to get through the readers.
+     */
+    @XmlElement(name="reader-latency")
+    public TimeMetricDTO reader_latency;
+
 }
\ No newline at end of file
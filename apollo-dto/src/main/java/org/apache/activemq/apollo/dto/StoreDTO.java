@@ -41,5 +41,30 @@ public abstract class StoreDTO {
     @XmlAttribute(name="flush-delay", required=false)
     public long flush_delay = 100;
 
+    /**
+     * When the store forces the updates it writes out to disk.  "batch"
+     * forces every flushed batch of units of work.  "periodic" forces at most
+     * every fsync-interval milliseconds or once fsync-size bytes have been
+     * written, so that all the batches written in the mean time share one
+     * fsync.  "never" leaves it to the operating system.  A unit of work
+     * completes once it's been forced to disk, or as soon as it's written
+     * when the policy is "never".
+     */
+    @XmlAttribute(name="fsync-policy", required=false)
+    public String fsync_policy = "batch";
+
+    @XmlAttribute(name="fsync-interval", required=false)
+    public long fsync_interval = 100;
+
+    @XmlAttribute(name="fsync-size", required=false)
+    public long fsync_size = 1024*1024*4;
+
+    /**
+     * The maximum number of bytes of recently stored messages that the store
+     * keeps in memory so that they can be loaded again without going to
+     * disk.  Set to 0 to disable the cache.
+     */
+    @XmlAttribute(name="message-cache-size", required=false)
+    public long message_cache_size = 1024*1024*8;
 
 }
@@ -80,4 +80,34 @@ public class StoreStatusDTO {
     @XmlElement(name="flush-latency")
     public TimeMetricDTO flush_latency;
 
+    /**
+     * The fsync policy the store is using.
+     */
+    @XmlAttribute(name="fsync-policy")
+    public String fsync_policy;
+
+    /**
+     * The number of times the store forced its updates to disk.
+     */
+    @XmlAttribute(name="fsync-counter")
+    public long fsync_counter;
+
+    /**
+     * The amount of time it takes to force the store updates to disk.
+     */
+    @XmlElement(name="fsync-latency")
+    public TimeMetricDTO fsync_latency;
+
+    /**
+     * The fraction of message loads which were served from the message cache.
+     */
+    @XmlAttribute(name="message-cache-hit-ratio")
+    public float message_cache_hit_ratio;
+
+    /**
+     * The number of bytes held by the message cache.
+     */
+    @XmlAttribute(name="message-cache-size")
+    public long message_cache_size;
+
 }
\ No newline at end of file
@@ -22,7 +22,11 @@ import java.{util=>ju}
 import model.{AddQueue, AddQueueEntry, AddMessage}
 import org.apache.activemq.apollo.dto.HawtDBStoreDTO
 import java.io.File
+import java.io.EOFException
 import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
 import org.fusesource.hawtdb.internal.journal.{JournalListener, Journal, Location}
 import org.apache.activemq.apollo.store.hawtdb.model.Type._
@@ -33,7 +37,7 @@ import collection.mutable.{LinkedHashMap, HashMap, ListBuffer}
 import collection.JavaConversions
 import ju.{TreeSet, HashSet}
 
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{RejectedExecutionException, TimeUnit}
 import org.fusesource.hawtdb.api._
 import org.apache.activemq.apollo.store._
 import org.apache.activemq.apollo.util._
@@ -47,6 +51,8 @@ object HawtDBClient extends Log {
 
   val CLOSED_STATE = 1
   val OPEN_STATE = 2
+
+  val FILE_REGION_HEAD_SIZE = 1024*4
 }
 
 /**
@@ -68,6 +74,12 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
   private var lockFile: LockFile = null
   private val trackingGen = new AtomicLong(0)
   private val lockedDatatFiles = new HashSet[jl.Integer]()
+  // the read only channels the coalesced loads read the data files with.
+  // A channel supports concurrent positional reads so the readers share it.
+  private val runChannels = new ju.HashMap[jl.Integer, FileChannel]()
+  // data files which loaded file regions still read from, with the
+  // number of regions reading from them.  Cleanup leaves them alone.
+  private val pinnedDataFiles = new ju.HashMap[jl.Integer, jl.Integer]()
 
   private var recovering = false
   private var nextRecoveryPosition: Location = null
@@ -130,7 +142,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
       } else {
         info("Database " + lockFileName + " is locked... waiting " + (DATABASE_LOCKED_WAIT_DELAY / 1000) + " seconds for the database to be unlocked.")
         dispatchQueue.dispatchAfter(DATABASE_LOCKED_WAIT_DELAY, TimeUnit.MILLISECONDS, ^ {
-          hawtDBStore.executor_pool {
+          hawtDBStore.writer {
             lock(func _)
           }
         })
@@ -150,16 +162,25 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
       journal.setChecksum(true);
       journal.setListener( new JournalListener{
         def synced(writes: Array[JournalListener.Write]) = {
-          var onCompletes = List[Runnable]()
-          withTx { tx=>
-            val helper = new TxHelper(tx)
+          val now = System.nanoTime
+          metric_journal_append_counter.synchronized {
             writes.foreach { write=>
-              val func = write.getAttachment.asInstanceOf[(TxHelper, Location)=>List[Runnable]]
-              onCompletes = onCompletes ::: func(helper, write.getLocation)
+              metric_journal_append_counter += now - write.getAttachment.asInstanceOf[Append].start
             }
-            helper.storeRootBean
           }
-          onCompletes.foreach( _.run )
+          // index on the indexer so that the journal can go on syncing the next writes.
+          hawtDBStore.indexer {
+            var onCompletes = List[Runnable]()
+            withTx { tx=>
+              val helper = new TxHelper(tx)
+              writes.foreach { write=>
+                val func = write.getAttachment.asInstanceOf[Append].func
+                onCompletes = onCompletes ::: func(helper, write.getLocation)
+              }
+              helper.storeRootBean
+            }
+            onCompletes.foreach( _.run )
+          }
         }
       })
 
@@ -216,7 +237,10 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
 
   def stop() = {
     schedule_version.incrementAndGet
+    close_run_channels(null)
     journal.close
+    // closing the journal syncs the last writes, let the indexer finish with them.
+    hawtDBStore.indexer.shutdown
     indexFileFactory.close
     lockFile.unlock
   }
@@ -268,7 +292,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
 
   def listQueues: Seq[Long] = {
     val rc = ListBuffer[Long]()
-    withTx { tx =>
+    withReadTx { tx =>
       val helper = new TxHelper(tx)
       import JavaConversions._
       import helper._
@@ -281,7 +305,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
   }
 
   def getQueue(queueKey: Long): Option[QueueRecord] = {
-    withTx { tx =>
+    withReadTx { tx =>
         val helper = new TxHelper(tx)
         import helper._
 
@@ -299,7 +323,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
   }
 
   def listQueueEntryGroups(queueKey: Long, limit: Int) : Seq[QueueEntryRange] = {
-    withTx { tx =>
+    withReadTx { tx =>
         val helper = new TxHelper(tx)
         import JavaConversions._
         import helper._
@@ -336,7 +360,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
 
   def getQueueEntries(queueKey: Long, firstSeq:Long, lastSeq:Long): Seq[QueueEntryRecord] = {
     var rc = ListBuffer[QueueEntryRecord]()
-    withTx { tx =>
+    withReadTx { tx =>
       val helper = new TxHelper(tx)
       import JavaConversions._
       import helper._
@@ -366,11 +390,11 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
   var metric_load_from_journal = metric_load_from_journal_counter(false)
 
   def loadMessages(requests: ListBuffer[(Long, (Option[MessageRecord])=>Unit)]) = {
-    val locations = withTx { tx =>
+    val locations = withReadTx { tx =>
       val helper = new TxHelper(tx)
       import helper._
       requests.flatMap { case (messageKey, callback)=>
-        val location = metric_load_from_index_counter.time {
+        val location = timed(metric_load_from_index_counter) {
           messageKeyIndex.get(messageKey)
         }
         if( location==null ) {
@@ -383,41 +407,140 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
       }
     }
 
-    locations.foreach { case (location, callback)=>
-      val addMessage = metric_load_from_journal_counter.time {
-        load(location, classOf[AddMessage.Getter])
-      }
-      callback( addMessage.map( x => toMessageRecord(x) ) )
+    // Read the records in journal order so that neighboring records get
+    // read with one sequential read instead of one random read each.
+    val sorted = locations.sortWith { (a, b) =>
+      val (x, y) = (a._1, b._1)
+      x.getDataFileId < y.getDataFileId || (x.getDataFileId == y.getDataFileId && x.getOffset < y.getOffset)
     }
 
+    var run = ListBuffer[(Location, (Option[MessageRecord])=>Unit)]()
+    sorted.foreach { request =>
+      if( !run.isEmpty && !coalescable(run, request._1) ) {
+        load_run(run)
+        run = ListBuffer()
+      }
+      run += request
+    }
+    if( !run.isEmpty ) {
+      load_run(run)
+    }
   }
 
-  def loadMessage(messageKey: Long): Option[MessageRecord] = {
-    metric_load_from_index_counter.start { end =>
-      withTx { tx =>
-        val helper = new TxHelper(tx)
-        import helper._
-
-        val location = messageKeyIndex.get(messageKey)
-        end()
+  private def coalescable(run:Seq[(Location, (Option[MessageRecord])=>Unit)], location:Location) = {
+    val first = run.head._1
+    val last = run.last._1
+    location.getDataFileId == first.getDataFileId &&
+      location.getOffset - (last.getOffset + last.getSize) <= config.load_coalesce_gap &&
+      location.getOffset + location.getSize - first.getOffset <= config.load_coalesce_size
+  }
 
-        if (location != null) {
-          metric_load_from_journal_counter.time {
-            load(location, classOf[AddMessage.Getter]) match {
-              case Some(x) =>
-                val messageRecord: MessageRecord = x
-                Some(messageRecord)
-              case None => None
+  /**
+   * Loads a run of records which sit close to each other in the same
+   * journal file using a single read.
+   */
+  private def load_run(run:Seq[(Location, (Option[MessageRecord])=>Unit)]) = {
+    if( run.size == 1 ) {
+      val (location, callback) = run.head
+      val record = timed(metric_load_from_journal_counter) {
+        load_message(location)
+      }
+      callback( record )
+    } else {
+      val first = run.head._1
+      val last = run.last._1
+      val data = try {
+        timed(metric_load_from_journal_counter) {
+          val channel = run_channel(first.getDataFileId)
+          val rc = new Array[Byte](last.getOffset + last.getSize - first.getOffset)
+          val bb = ByteBuffer.wrap(rc)
+          while( bb.hasRemaining ) {
+            if( channel.read(bb, first.getOffset + bb.position) < 0 ) {
+              throw new EOFException("The data file ended before: "+last)
             }
           }
+          rc
+        }
+      } catch {
+        case e: IOException =>
+          debug(e, "Could not read the journal records from: %s to: %s", first, last)
+          null
+      }
+
+      run.foreach { case (location, callback)=>
+        val head = location.getOffset - first.getOffset
+        if( data == null || !valid_record_head(data, head, location) ) {
+          // fall back to reading it through the journal, which also
+          // knows about the writes still in flight.
+          callback( load_message(location) )
         } else {
-          debug("Message not indexed.  Journal location could not be determined for message: %s", messageKey)
-          None
+          val offset = head + Journal.RECORD_HEAD_SPACE
+          val record = new Buffer(data, offset, location.getSize - Journal.RECORD_HEAD_SPACE)
+          callback( load_message(location, record, first.getOffset) )
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if the record head at the offset of the data holds the
+   *         size and type of the record the location points at.
+   */
+  private def valid_record_head(data:Array[Byte], offset:Int, location:Location) = {
+    ByteBuffer.wrap(data).getInt(offset) == location.getSize && data(offset+4) == location.getType
+  }
+
+  private def run_channel(id:Int):FileChannel = runChannels.synchronized {
+    val key = jl.Integer.valueOf(id)
+    var rc = runChannels.get(key)
+    if( rc==null ) {
+      rc = new RandomAccessFile(journal.getFile(id), "r").getChannel
+      runChannels.put(key, rc)
+    }
+    rc
+  }
+
+  /**
+   * Closes the run channels of the given data files, or all of them when
+   * ids is null.
+   */
+  private def close_run_channels(ids:ju.Collection[jl.Integer]) = runChannels.synchronized {
+    import JavaConversions._
+    val closing = new ju.ArrayList[jl.Integer](if( ids==null ) runChannels.keySet else ids)
+    closing.foreach { id=>
+      val channel = runChannels.remove(id)
+      if( channel!=null ) {
+        try {
+          channel.close
+        } catch {
+          case e:IOException =>
+            debug(e, "Could not close data file: %d", id)
         }
       }
     }
   }
 
+  def loadMessage(messageKey: Long): Option[MessageRecord] = {
+    val location = withReadTx { tx =>
+      val helper = new TxHelper(tx)
+      import helper._
+
+      timed(metric_load_from_index_counter) {
+        messageKeyIndex.get(messageKey)
+      }
+    }
+
+    // the journal read does not need the index.
+    if (location != null) {
+      timed(metric_load_from_journal_counter) {
+        load_message(location)
+      }
+    } else {
+      debug("Message not indexed.  Journal location could not be determined for message: %s", messageKey)
+      None
+    }
+  }
+
 
   /////////////////////////////////////////////////////////////////////
   //
@@ -440,6 +563,92 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
     }
   }
 
+  /**
+   * Loads a message record.  If the message value is large, the record
+   * references where the value sits in the journal file instead of holding
+   * on to it, and only the first FILE_REGION_HEAD_SIZE bytes are kept on the
+   * heap so the protocol can decode its headers.
+   */
+  private def load_message(location: Location): Option[MessageRecord] = {
+    try {
+      load_message(location, read(location), location.getOffset.toLong + Journal.RECORD_HEAD_SPACE)
+    } catch {
+      case e: Throwable =>
+        debug(e, "Could not load journal record at: %s", location)
+        None
+    }
+  }
+
+  /**
+   * Loads a message record from record data which was already read.  The
+   * first byte of the data's backing array sits at position base of the
+   * journal file.
+   */
+  private def load_message(location: Location, record: Buffer, base: Long): Option[MessageRecord] = {
+    try {
+      parse(record) match {
+        case (updateType, batch, data) =>
+          val record_data = data.data
+          val rc:MessageRecord = decode(location, updateType, data).asInstanceOf[AddMessage.Getter]
+          val value = rc.buffer
+          val threshold = config.file_region_threshold
+          // the value must be a slice of the record data for us to know where it is in the file,
+          // and compressed values have to be inflated before they can be sent.
+          if( threshold > 0 && value!=null && !rc.compressed && value.length >= threshold && (value.data eq record_data) ) {
+            open_data_file(location.getDataFileId) match {
+              case Some(file) =>
+                rc.file_region = FileRegion(file, base + value.offset, value.length)
+                rc.buffer = new Buffer(value.data, value.offset, value.length.min(FILE_REGION_HEAD_SIZE)).deepCopy
+              case None =>
+                // keep the value we read on the heap.
+            }
+          }
+          Some(rc)
+      }
+    } catch {
+      case e: Throwable =>
+        debug(e, "Could not load journal record at: %s", location)
+        None
+    }
+  }
+
+  /**
+   * Opens a data file for a file region.  The file is pinned so that cleanup
+   * does not remove it until the region is released, and since it's opened
+   * right away the region stays readable even if the file was already
+   * removed by the time the region gets sent.
+   */
+  private def open_data_file(id:Int):Option[OpenFile] = {
+    val key = jl.Integer.valueOf(id)
+    pinnedDataFiles.synchronized {
+      val count = pinnedDataFiles.get(key)
+      pinnedDataFiles.put(key, if( count==null ) 1 else count.intValue+1)
+    }
+    def unpin = pinnedDataFiles.synchronized {
+      val count = pinnedDataFiles.get(key).intValue
+      if( count == 1 ) {
+        pinnedDataFiles.remove(key)
+      } else {
+        pinnedDataFiles.put(key, count-1)
+      }
+    }
+    try {
+      Some(new OpenFile(journal.getFile(id), unpin))
+    } catch {
+      case e:IOException =>
+        unpin
+        debug(e, "Could not open data file: %d", id)
+        None
+    }
+  }
+
+  /**
+   * @return the ids of the data files which file regions are reading from.
+   */
+  private[hawtdb] def pinned_data_files = pinnedDataFiles.synchronized {
+    new ju.HashSet[jl.Integer](pinnedDataFiles.keySet)
+  }
+
   private def _store(updates: Seq[TypeCreatable], onComplete: Runnable): Unit = {
     val batch = next_batch_id
     begin(batch)
@@ -475,7 +684,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
 
     val buffer = baos.toBuffer()
     append(buffer) { (helper, location) =>
-      metric_index_update_counter.time {
+      timed(metric_index_update_counter) {
         executeStore(helper, location, batch, update, onComplete)
       }
     }
@@ -512,8 +721,9 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
     }
   }
 
-  def load(location: Location) = {
-    var data = read(location)
+  def load(location: Location) = parse(read(location))
+
+  private def parse(data: Buffer) = {
     val editor = data.bigEndianEditor
     val updateType = editor.readByte()
     val batch = editor.readInt
@@ -628,14 +838,10 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
   //
   /////////////////////////////////////////////////////////////////////
 
+  private case class Append(start:Long, func:(TxHelper, Location) => List[Runnable])
+
   private def append(data: Buffer)(cb: (TxHelper, Location) => List[Runnable]): Unit = {
-    metric_journal_append_counter.start { end =>
-      def cbintercept(tx:TxHelper,location:Location) = {
-        end()
-        cb(tx, location)
-      }
-      journal.write(data, cbintercept _ )
-    }
+    journal.write(data, Append(System.nanoTime, cb))
   }
 
   def read(location: Location) = journal.read(location)
@@ -736,6 +942,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
     import helper._
 
     def removeMessage(key:Long) = {
+      hawtDBStore.message_cache.remove(key)
       val location = messageKeyIndex.remove(key)
       if (location != null) {
         val fileId:jl.Integer = location.getDataFileId()
@@ -915,9 +1122,14 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
   def scheduleFlush(version:Int): Unit = {
     def try_flush() = {
       if (version == schedule_version.get) {
-        hawtDBStore.executor_pool {
-          flush
-          scheduleFlush(version)
+        try {
+          hawtDBStore.indexer {
+            flush
+            scheduleFlush(version)
+          }
+        } catch {
+          // the store stopped since the version was checked.
+          case e:RejectedExecutionException =>
         }
       }
     }
@@ -936,11 +1148,16 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
   def scheduleCleanup(version:Int): Unit = {
     def try_cleanup() = {
       if (version == schedule_version.get) {
-        hawtDBStore.executor_pool {
-          withTx {tx =>
-            cleanup(tx)
+        try {
+          hawtDBStore.indexer {
+            withTx {tx =>
+              cleanup(tx)
+            }
+            scheduleCleanup(version)
           }
-          scheduleCleanup(version)
+        } catch {
+          // the store stopped since the version was checked.
+          case e:RejectedExecutionException =>
         }
       }
     }
@@ -964,6 +1181,11 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
       gcCandidateSet.removeAll(lockedDatatFiles)
     }
 
+    // or the ones file regions are still reading from.
+    pinnedDataFiles.synchronized {
+      gcCandidateSet.removeAll(pinnedDataFiles.keySet)
+    }
+
     // Don't GC files that we will need for recovery..
 
     // Notice we are using the storedRootBuffer and not the rootBuffer field.
@@ -999,6 +1221,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
       }
       if (!gcCandidateSet.isEmpty()) {
         debug("Cleanup removing the data files: %s", gcCandidateSet)
+        close_run_channels(gcCandidateSet)
         journal.removeDataFiles(gcCandidateSet)
       }
     }
@@ -1075,7 +1298,40 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
 
   }
 
-  private def withTx[T](func: (Transaction) => T): T = {
+  // HawtDB page file transactions are not safe to run concurrently, and
+  // the indexes share the root bean the indexer updates.  So the index is
+  // only accessed by one thread at a time, the readers only run their
+  // journal reads concurrently.
+  private val index_lock = new Object
+
+  /**
+   * Runs the func in a transaction which is only used to read the index.
+   * It gets rolled back so it never conflicts with the indexer's updates.
+   */
+  private def withReadTx[T](func: (Transaction) => T): T = index_lock.synchronized {
+    val tx = indexFile.tx
+    try {
+      func(tx)
+    } finally {
+      tx.rollback
+      tx.close
+    }
+  }
+
+  // the load metrics are updated by several readers.
+  private def timed[T](counter:TimeCounter)(func: =>T):T = {
+    val start = System.nanoTime
+    try {
+      func
+    } finally {
+      val end = System.nanoTime
+      counter.synchronized {
+        counter += end - start
+      }
+    }
+  }
+
+  private def withTx[T](func: (Transaction) => T): T = index_lock.synchronized {
     val tx = indexFile.tx
     var ok = false
     try {
@@ -49,11 +49,34 @@ object HawtDBStore extends Log {
       if( config.directory==null ) {
         error("The HawtDB Store directory property must be configured.")
       }
+      if( !FsyncPolicy.is_valid(config.fsync_policy) ) {
+        error("Invalid fsync-policy: "+config.fsync_policy)
+      } else if( !FsyncPolicy(config).is_batch ) {
+        // the HawtDB journal forces every batch it writes.
+        error("The HawtDB Store only supports the batch fsync-policy.")
+      }
     }.result
   }
 }
 
 /**
+ * <p>
+ * A store which keeps its updates in a HawtDB journal and indexes them in
+ * a HawtDB page file.  The work is pipelined over separate threads so that
+ * the stages don't queue up behind each other:
+ * </p>
+ * <ul>
+ * <li>the writer encodes updates and appends them to the journal,</li>
+ * <li>the indexer applies the synced journal records to the index and runs
+ *     the periodic index flush and cleanup,</li>
+ * <li>the readers load messages and list queues using read only index
+ *     transactions.</li>
+ * </ul>
+ * <p>
+ * The journal forces every batch it writes to disk before it gets indexed,
+ * so only the batch fsync policy is supported.
+ * </p>
+ *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
@@ -64,18 +87,24 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
   var next_queue_key = new AtomicLong(1)
   var next_msg_key = new AtomicLong(1)
 
-  var executor_pool:ExecutorService = _
+  var writer:PipelineStage = _
+  var indexer:PipelineStage = _
+  var readers:PipelineStage = _
   var config:HawtDBStoreDTO = defaultConfig
   val client = new HawtDBClient(this)
 
   override def toString = "hawtdb store"
 
   def flush_delay = config.flush_delay
+
+  def message_cache_size = config.message_cache_size
+
+  protected def fsync_policy = FsyncPolicy(config)
   
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
   protected def store(uows: Seq[DelayableUOW])(callback: =>Unit) = {
-    executor_pool {
+    writer {
       client.store(uows, ^{
         dispatchQueue {
           callback
@@ -84,6 +113,9 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
     }
   }
 
+  // the journal has already forced the writes by the time they complete.
+  protected def sync(callback: =>Unit) = callback
+
   def configure(config: StoreDTO, reporter: Reporter) = configure(config.asInstanceOf[HawtDBStoreDTO], reporter)
 
   def configure(config: HawtDBStoreDTO, reporter: Reporter) = {
@@ -98,16 +130,12 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
   }
 
   protected def _start(onCompleted: Runnable) = {
-    executor_pool = Executors.newFixedThreadPool(1, new ThreadFactory(){
-      def newThread(r: Runnable) = {
-        val rc = new Thread(r, "hawtdb store client")
-        rc.setDaemon(true)
-        rc
-      }
-    })
+    writer = new PipelineStage("hawtdb store writer", 1)
+    indexer = new PipelineStage("hawtdb store indexer", 1)
+    readers = new PipelineStage("hawtdb store reader", config.read_threads)
     client.config = config
     poll_stats
-    executor_pool {
+    writer {
       client.start(^{
         next_msg_key.set( client.rootBuffer.getLastMessageKey.longValue +1 )
         next_queue_key.set( client.rootBuffer.getLastQueueKey.longValue +1 )
@@ -119,11 +147,13 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
   protected def _stop(onCompleted: Runnable) = {
     new Thread() {
       override def run = {
-        executor_pool.shutdown
-        executor_pool.awaitTermination(1, TimeUnit.DAYS)
-        executor_pool = null
+        writer.shutdown
+        readers.shutdown
+        // the client shuts down the indexer once the journal is closed.
         client.stop
-        onCompleted.run
+        perform_unsynced {
+          onCompleted.run
+        }
       }
     }.start
   }
@@ -138,10 +168,11 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
    * Deletes all stored data from the store.
    */
   def purge(callback: =>Unit) = {
-    executor_pool {
+    writer {
       client.purge(^{
         next_queue_key.set(1)
         next_msg_key.set(1)
+        message_cache.clear
         callback
       })
     }
@@ -152,31 +183,31 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
    * Ges the last queue key identifier stored.
    */
   def getLastQueueKey(callback:(Option[Long])=>Unit):Unit = {
-    executor_pool {
+    readers {
       callback(Some(client.rootBuffer.getLastQueueKey.longValue))
     }
   }
 
   def addQueue(record: QueueRecord)(callback: (Boolean) => Unit) = {
-    executor_pool {
+    writer {
      client.addQueue(record, ^{ callback(true) })
     }
   }
 
   def removeQueue(queueKey: Long)(callback: (Boolean) => Unit) = {
-    executor_pool {
+    writer {
       client.removeQueue(queueKey,^{ callback(true) })
     }
   }
 
   def getQueue(queueKey: Long)(callback: (Option[QueueRecord]) => Unit) = {
-    executor_pool {
+    readers {
       callback( client.getQueue(queueKey) )
     }
   }
 
   def listQueues(callback: (Seq[Long]) => Unit) = {
-    executor_pool {
+    readers {
       callback( client.listQueues )
     }
   }
@@ -186,7 +217,7 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
   load_source.resume
 
 
-  def loadMessage(messageKey: Long)(callback: (Option[MessageRecord]) => Unit) = {
+  protected def load_message(messageKey: Long)(callback: (Option[MessageRecord]) => Unit) = {
     message_load_latency_counter.start { end=>
       load_source.merge((messageKey, { (result)=>
         end()
@@ -198,19 +229,19 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
   def drain_loads = {
     var data = load_source.getData
     message_load_batch_size_counter += data.size
-    executor_pool ^{
+    readers {
       client.loadMessages(data)
     }
   }
 
   def listQueueEntryRanges(queueKey: Long, limit: Int)(callback: (Seq[QueueEntryRange]) => Unit) = {
-    executor_pool ^{
+    readers {
       callback( client.listQueueEntryGroups(queueKey, limit) )
     }
   }
 
   def listQueueEntries(queueKey: Long, firstSeq: Long, lastSeq: Long)(callback: (Seq[QueueEntryRecord]) => Unit) = {
-    executor_pool ^{
+    readers {
       callback( client.getQueueEntries(queueKey, firstSeq, lastSeq) )
     }
   }
@@ -234,14 +265,26 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
     rc
   }
 
+  var writer_latency = TimeMetric(0, 0, 0, 0)
+  var indexer_latency = TimeMetric(0, 0, 0, 0)
+  var reader_latency = TimeMetric(0, 0, 0, 0)
+
   def poll_stats:Unit = {
     def displayStats = {
       if( serviceState.isStarted ) {
 
         flush_latency = flush_latency_counter(true)
         message_load_latency = message_load_latency_counter(true)
-        client.metric_journal_append = client.metric_journal_append_counter(true)
-        client.metric_index_update = client.metric_index_update_counter(true)
+        client.metric_journal_append = client.metric_journal_append_counter.synchronized {
+          client.metric_journal_append_counter(true)
+        }
+        client.metric_index_update = client.metric_index_update_counter.synchronized {
+          client.metric_index_update_counter(true)
+        }
+        writer_latency = writer.latency(true)
+        indexer_latency = indexer.latency(true)
+        reader_latency = readers.latency(true)
+        fsync_latency = fsync_latency_counter(true)
         commit_latency = commit_latency_counter(true)
         message_load_batch_size =  message_load_batch_size_counter(true)
 
@@ -262,9 +305,25 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
     rc.message_load_latency = message_load_latency
     rc.message_load_batch_size = message_load_batch_size
 
+    rc.fsync_policy = fsync_policy.toString
+    rc.fsync_counter = metric_fsync_counter
+    rc.fsync_latency = fsync_latency
+
+    rc.message_cache_hit_ratio = message_cache.hit_ratio
+    rc.message_cache_size = message_cache.size
+
     rc.journal_append_latency = client.metric_journal_append
     rc.index_update_latency = client.metric_index_update
 
+    if( writer!=null ) {
+      rc.writer_queue_depth = writer.queue_depth
+      rc.indexer_queue_depth = indexer.queue_depth
+      rc.reader_queue_depth = readers.queue_depth
+    }
+    rc.writer_latency = writer_latency
+    rc.indexer_latency = indexer_latency
+    rc.reader_latency = reader_latency
+
     rc.canceled_message_counter = metric_canceled_message_counter
     rc.canceled_enqueue_counter = metric_canceled_enqueue_counter
     rc.flushed_message_counter = metric_flushed_message_counter
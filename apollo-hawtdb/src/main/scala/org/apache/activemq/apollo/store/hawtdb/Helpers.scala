@@ -41,6 +41,10 @@ object Helpers {
     rc.size = pb.getSize
     rc.buffer = pb.getValue
     rc.expiration = pb.getExpiration
+    if( pb.hasHeaderDelta ) {
+      rc.header_delta = pb.getHeaderDelta
+    }
+    rc.compressed = pb.getCompressed
     rc
   }
 
@@ -51,6 +55,12 @@ object Helpers {
     pb.setSize(v.size)
     pb.setValue(v.buffer)
     pb.setExpiration(v.expiration)
+    if( v.header_delta!=null ) {
+      pb.setHeaderDelta(v.header_delta)
+    }
+    if( v.compressed ) {
+      pb.setCompressed(true)
+    }
     pb
   }
 
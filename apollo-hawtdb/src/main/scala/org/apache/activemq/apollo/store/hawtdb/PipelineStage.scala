@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.store.hawtdb
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{RejectedExecutionException, ThreadFactory, Executors, TimeUnit}
+import org.apache.activemq.apollo.util.{TimeMetric, TimeCounter}
+
+/**
+ * <p>
+ * The threads which run one stage of the HawtDB store's pipeline.  It
+ * keeps track of how many tasks are waiting on the stage and how long
+ * tasks take to get through it, waiting included.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class PipelineStage(val name:String, val threads:Int) {
+
+  private val executor = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+    def newThread(r: Runnable) = {
+      val rc = new Thread(r, name)
+      rc.setDaemon(true)
+      rc
+    }
+  })
+
+  private val depth = new AtomicInteger()
+  private val latency_counter = new TimeCounter
+
+  def apply(task: =>Unit):Unit = {
+    val start = System.nanoTime
+    depth.incrementAndGet
+    try {
+      executor.execute(new Runnable() {
+        def run = {
+          try {
+            task
+          } finally {
+            depth.decrementAndGet
+            val end = System.nanoTime
+            latency_counter.synchronized {
+              latency_counter += end - start
+            }
+          }
+        }
+      })
+    } catch {
+      // the stage has been shutdown.
+      case e:RejectedExecutionException =>
+        depth.decrementAndGet
+        throw e
+    }
+  }
+
+  /**
+   * @return the number of tasks which have not yet completed.
+   */
+  def queue_depth = depth.get
+
+  def latency(reset:Boolean):TimeMetric = latency_counter.synchronized {
+    latency_counter(reset)
+  }
+
+  /**
+   * Waits for the queued tasks to complete and stops the threads.
+   */
+  def shutdown() = {
+    executor.shutdown
+    executor.awaitTermination(1, TimeUnit.DAYS)
+  }
+
+}
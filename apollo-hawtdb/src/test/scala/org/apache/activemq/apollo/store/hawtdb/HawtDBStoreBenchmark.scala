@@ -18,6 +18,9 @@ package org.apache.activemq.apollo.store.hawtdb
 
 import org.apache.activemq.apollo.store.StoreBenchmarkSupport
 import org.apache.activemq.apollo.store.Store
+import org.fusesource.hawtdispatch.TaskTracker
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import collection.mutable.ListBuffer
 
 
 /**
@@ -31,4 +34,86 @@ class HawtDBStoreBenchmark extends StoreBenchmarkSupport {
     rc
   }
 
+  /**
+   * Generates JSON order documents which compress about as well as
+   * real application payloads do.
+   */
+  def json_payload(messageSize:Int) = {
+    val random = new java.util.Random(messageSize)
+    val buffer = new StringBuilder(messageSize+256)
+    buffer.append("{\"orders\":[")
+    while( buffer.length < messageSize ) {
+      buffer.append("{\"id\":").append(random.nextInt(1000000))
+      buffer.append(",\"customer\":\"customer-").append(random.nextInt(1000)).append("\"")
+      buffer.append(",\"price\":").append(random.nextInt(10000)/100.0)
+      buffer.append(",\"quantity\":").append(random.nextInt(100))
+      buffer.append(",\"status\":\"").append(if(random.nextBoolean) "shipped" else "pending").append("\"},")
+    }
+    buffer.append("{}]}")
+    buffer.toString
+  }
+
+  test("compressed store enqueue and load latencey") {
+    val content = json_payload(1024*4)
+
+    println("without compression:")
+    val A = addQueue("A")
+    loadMessages(A, storeMessages(A, content))
+
+    println("with compression:")
+    val B = addQueue("B")
+    loadMessages(B, storeMessages(B, content, true))
+  }
+
+  /**
+   * Loads back the messages of a queue which was swapped out while another
+   * queue was being filled, so its records are spread over the journal.
+   * The message cache is disabled so that every load goes to the journal.
+   * For cold page cache numbers, drop the OS page cache (for example with
+   * "echo 3 > /proc/sys/vm/drop_caches") while the test waits before loading.
+   */
+  test("swapped queue batch load rate") {
+    val hawtdb = store.asInstanceOf[HawtDBStore]
+    val cache_size = hawtdb.config.message_cache_size
+    hawtdb.config.message_cache_size = 0
+    try {
+      val A = addQueue("A")
+      val B = addQueue("B")
+      val content = payload("message\n", 1024)
+
+      val keys = ListBuffer[Long]()
+      val tracker = new TaskTracker()
+      for( seq <- 1 to 50000 ) {
+        val batch = store.createStoreUOW
+        val a = addMessage(batch, content).key
+        batch.enqueue(entry(A, seq, a))
+        val b = addMessage(batch, content).key
+        batch.enqueue(entry(B, seq, b))
+        batch.completeASAP
+        tracker.release(batch)
+        keys += a
+      }
+      tracker.await
+      Thread.sleep(1000*5)
+
+      for( batch_size <- List(1, 10, 100) ) {
+        var remaining = keys.toList
+        val metric = benchmarkCount(remaining.size / batch_size) {
+          val latch = new CountDownLatch(batch_size)
+          remaining.take(batch_size).foreach { key=>
+            store.loadMessage(key) { msg=>
+              latch.countDown
+            }
+          }
+          latch.await
+          remaining = remaining.drop(batch_size)
+        }
+        println("swapped load batch size: "+batch_size)
+        println("swapped load rate is: "+(metric.rate(TimeUnit.SECONDS)*batch_size)+" loads/s")
+      }
+    } finally {
+      hawtdb.config.message_cache_size = cache_size
+    }
+  }
+
 }
@@ -16,7 +16,13 @@
  */
 package org.apache.activemq.apollo.store.hawtdb
 
-import org.apache.activemq.apollo.store.{Store, StoreFunSuiteSupport}
+import java.io.ByteArrayOutputStream
+import java.nio.channels.Channels
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import org.apache.activemq.apollo.store.{MessageRecord, Store, StoreFunSuiteSupport}
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtbuf.AsciiBuffer._
 
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
@@ -30,3 +36,103 @@ class HawtDBStoreTest extends StoreFunSuiteSupport {
   }
 
 }
+
+/**
+ * Runs the same tests against a store without a message cache so
+ * that the loads read the journal.
+ */
+class HawtDBStoreUncachedTest extends StoreFunSuiteSupport {
+
+  def createStore(flushDelay:Long):Store = {
+    val rc = new HawtDBStore
+    rc.config.flush_delay = flushDelay
+    rc.config.message_cache_size = 0
+    rc.config.read_threads = 4
+    rc
+  }
+
+  override def message_cache_enabled = false
+
+  test("loads on several reader threads while the indexer keeps updating") {
+    val A = addQueue("A")
+    val contents = (1 to 50).map("message "+_).toList
+    val msgKeys = populate(A, contents)
+
+    val writer = new Thread() {
+      override def run = {
+        for( i <- 1 to 20 ) {
+          populate(A, (1 to 10).map("more "+_).toList, 100+(i*10))
+        }
+      }
+    }
+    writer.start
+
+    val failures = new AtomicInteger
+    val rounds = 20
+    val latch = new CountDownLatch(rounds*msgKeys.size)
+    for( round <- 1 to rounds ) {
+      msgKeys.zip(contents).foreach { case (msgKey, content) =>
+        store.loadMessage(msgKey) { rc=>
+          if( rc.isEmpty || rc.get.buffer != ascii(content).buffer ) {
+            failures.incrementAndGet
+          }
+          latch.countDown
+        }
+      }
+    }
+    expect(true)(latch.await(60, TimeUnit.SECONDS))
+    writer.join
+    expect(0)(failures.get)
+  }
+
+}
+
+/**
+ * Runs the same tests against a store which leaves the values of
+ * big messages in the journal files when it loads them.
+ */
+class HawtDBStoreFileRegionTest extends StoreFunSuiteSupport {
+
+  def createStore(flushDelay:Long):Store = {
+    val rc = new HawtDBStore
+    rc.config.flush_delay = flushDelay
+    rc.config.message_cache_size = 0
+    rc.config.file_region_threshold = 1024
+    rc
+  }
+
+  override def message_cache_enabled = false
+
+  def client = store.asInstanceOf[HawtDBStore].client
+
+  test("a loaded file region can be sent after its data file is removed") {
+    val A = addQueue("A")
+    val content = "big message "*1000
+    val msgKeys = populate(A, content::Nil)
+
+    val loaded = CB[Option[MessageRecord]]( cb=> store.loadMessage(msgKeys.head)(cb) ).get
+    val region = loaded.file_region
+    expect(true)(region!=null)
+    expect(content.length)(region.length)
+
+    // cleanup will leave the data file alone while the region is in use.
+    expect(1)(client.pinned_data_files.size)
+
+    // but even if the file goes away between the load and the send
+    // the region still reads the value since it holds the file open.
+    expect(true)(region.file.delete)
+    val out = new ByteArrayOutputStream
+    val channel = Channels.newChannel(out)
+    var position = 0L
+    while( position < region.length ) {
+      position += region.channel.transferTo(region.offset+position, region.length-position, channel)
+    }
+    expect(ascii(content).buffer)(new Buffer(out.toByteArray))
+    expect(ascii(content).buffer)(region.read)
+
+    // once released, the data file is no longer pinned.
+    region.release
+    expect(0)(client.pinned_data_files.size)
+  }
+
+}
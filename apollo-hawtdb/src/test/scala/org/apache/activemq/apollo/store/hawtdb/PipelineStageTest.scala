@@ -0,0 +1,49 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.store.hawtdb
+
+import java.util.concurrent.{RejectedExecutionException, TimeUnit, CountDownLatch}
+import org.apache.activemq.apollo.util.FunSuiteSupport
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class PipelineStageTest extends FunSuiteSupport {
+
+  test("the queue depth counts the tasks which have not completed") {
+    val stage = new PipelineStage("test", 1)
+    val blocker = new CountDownLatch(1)
+    stage {
+      blocker.await(5, TimeUnit.SECONDS)
+    }
+    stage {}
+    expect(2)(stage.queue_depth)
+    blocker.countDown
+    stage.shutdown
+    expect(0)(stage.queue_depth)
+  }
+
+  test("tasks are rejected once the stage is shutdown") {
+    val stage = new PipelineStage("test", 1)
+    stage.shutdown
+    intercept[RejectedExecutionException] {
+      stage {}
+    }
+    expect(0)(stage.queue_depth)
+  }
+
+}
@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.store.journal
+
+import model._
+import java.io.{DataInput, DataOutput}
+import org.fusesource.hawtbuf.Buffer
+import org.apache.activemq.apollo.store.{MessageRecord, QueueRecord, QueueEntryRecord}
+
+/**
+ * <p>
+ * Conversions between the store records and the way the journal
+ * store encodes them in its log and index snapshots.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+object Helpers {
+
+  implicit def to_MessageRecord(pb: MessagePB.Getter): MessageRecord = {
+    val rc = new MessageRecord
+    rc.key = pb.getMessageKey
+    rc.protocol = pb.getProtocol
+    rc.size = pb.getSize
+    rc.buffer = pb.getValue
+    rc.expiration = pb.getExpiration
+    if( pb.hasHeaderDelta ) {
+      rc.header_delta = pb.getHeaderDelta
+    }
+    rc.compressed = pb.getCompressed
+    rc
+  }
+
+  implicit def to_MessagePB(v: MessageRecord): MessagePB.Bean = {
+    val pb = new MessagePB.Bean
+    pb.setMessageKey(v.key)
+    pb.setProtocol(v.protocol)
+    pb.setSize(v.size)
+    pb.setValue(v.buffer)
+    pb.setExpiration(v.expiration)
+    if( v.header_delta!=null ) {
+      pb.setHeaderDelta(v.header_delta)
+    }
+    if( v.compressed ) {
+      pb.setCompressed(true)
+    }
+    pb
+  }
+
+  implicit def to_QueueEntryRecord(pb: QueueEntryPB.Getter): QueueEntryRecord = {
+    val rc = new QueueEntryRecord
+    rc.queueKey = pb.getQueueKey
+    rc.queueSeq = pb.getQueueSeq
+    rc.messageKey = pb.getMessageKey
+    rc.attachment = pb.getAttachment
+    rc.size = pb.getSize
+    rc.redeliveries = pb.getRedeliveries.toShort
+    rc
+  }
+
+  implicit def to_QueueEntryPB(v: QueueEntryRecord): QueueEntryPB.Bean = {
+    val pb = new QueueEntryPB.Bean
+    pb.setQueueKey(v.queueKey)
+    pb.setQueueSeq(v.queueSeq)
+    pb.setMessageKey(v.messageKey)
+    pb.setAttachment(v.attachment)
+    pb.setSize(v.size)
+    pb.setRedeliveries(v.redeliveries)
+    pb
+  }
+
+  implicit def to_QueueRecord(pb: QueuePB.Getter): QueueRecord = {
+    val rc = new QueueRecord
+    rc.key = pb.getKey
+    rc.binding_data = pb.getBindingData
+    rc.binding_kind = pb.getBindingKind
+    rc
+  }
+
+  implicit def to_QueuePB(v: QueueRecord): QueuePB.Bean = {
+    val pb = new QueuePB.Bean
+    pb.setKey(v.key)
+    pb.setBindingData(v.binding_data)
+    pb.setBindingKind(v.binding_kind)
+    pb
+  }
+
+  def copy(v: QueueEntryRecord): QueueEntryRecord = {
+    val rc = new QueueEntryRecord
+    rc.queueKey = v.queueKey
+    rc.queueSeq = v.queueSeq
+    rc.messageKey = v.messageKey
+    rc.attachment = v.attachment
+    rc.size = v.size
+    rc.redeliveries = v.redeliveries
+    rc
+  }
+
+  def write_buffer(os:DataOutput, value:Buffer) = {
+    if( value==null ) {
+      os.writeInt(-1)
+    } else {
+      os.writeInt(value.length)
+      os.write(value.data, value.offset, value.length)
+    }
+  }
+
+  def read_buffer(is:DataInput):Buffer = {
+    val length = is.readInt
+    if( length < 0 ) {
+      null
+    } else {
+      val rc = new Buffer(length)
+      is.readFully(rc.data)
+      rc
+    }
+  }
+
+}
@@ -0,0 +1,660 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.store.journal
+
+import java.{lang=>jl}
+import java.{util=>ju}
+
+import dto.JournalStoreDTO
+import model._
+import java.io._
+import java.nio.ByteBuffer
+import collection.JavaConversions
+import collection.mutable.ListBuffer
+import org.fusesource.hawtbuf.DataByteArrayOutputStream
+import org.apache.activemq.apollo.store._
+import org.apache.activemq.apollo.util._
+
+object JournalClient extends Log {
+
+  val DATABASE_LOCKED_WAIT_DELAY = 10 * 1000
+
+  // The kinds of updates stored in a log record.  Each update is
+  // stored as its kind, its length and then its data.
+  val ADD_QUEUE:Byte = 1
+  val REMOVE_QUEUE:Byte = 2
+  val ADD_MESSAGE:Byte = 3
+  val ADD_QUEUE_ENTRY:Byte = 4
+  val REMOVE_QUEUE_ENTRY:Byte = 5
+  val PURGE:Byte = 6
+
+  val SNAPSHOT_FILE = "index.snapshot"
+  val SNAPSHOT_MAGIC = 0x4a534e50
+
+  /**
+   * Where a message is stored in the log and how many queue
+   * entries reference it.
+   */
+  final class MessageEntry(val pos:Long, val length:Int) {
+    var refs = 0
+  }
+
+  final class QueueEntries(val record:QueueRecord) {
+    val entries = new ju.TreeMap[jl.Long, QueueEntryRecord]()
+  }
+}
+
+/**
+ * <p>
+ * Stores all updates in an append only memory mapped log.  Each
+ * flushed batch of units of work becomes a single log record, so a batch is
+ * either fully replayed or not at all.
+ * </p>
+ * <p>
+ * The index is kept in memory: the queues with their entries and the log
+ * position of every referenced message.  It is periodically written out to a
+ * snapshot file so that startup only has to replay the log written since the
+ * last snapshot.  Each log segment keeps a count of the referenced messages
+ * it holds, and is deleted once that drops to zero and a snapshot covers it.
+ * </p>
+ * <p>
+ * All methods must be called from the store's executor.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class JournalClient(store: JournalStore) extends DispatchLogging {
+
+  import JournalClient._
+  import Helpers._
+
+  override def log: Log = JournalClient
+
+  def dispatchQueue = store.dispatchQueue
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Helpers
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  private def directory = config.directory
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Public interface used by the JournalStore
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  var config: JournalStoreDTO = null
+
+  private var lock_file:LockFile = _
+  private var journal:MappedLog = _
+
+  private val messages = new ju.HashMap[jl.Long, MessageEntry]()
+  private val queues = new ju.TreeMap[jl.Long, QueueEntries]()
+  // maps segment base -> number of referenced messages in the segment.
+  private val segment_refs = new ju.HashMap[jl.Long, jl.Integer]()
+
+  private var recovering = false
+  private var snapshot_position = 0L
+
+  var last_message_key = 0L
+  var last_queue_key = 0L
+
+  @volatile
+  var log_segments = 0
+  @volatile
+  var log_size = 0L
+  @volatile
+  var indexed_messages = 0L
+
+  val metric_journal_append_counter = new TimeCounter
+  var metric_journal_append = metric_journal_append_counter(false)
+
+  val metric_index_snapshot_counter = new TimeCounter
+  var metric_index_snapshot = metric_index_snapshot_counter(false)
+
+  def start() = {
+    directory.mkdirs
+    lock
+
+    val start = System.currentTimeMillis
+    journal = new MappedLog(directory, config.log_size)
+    journal.open
+    load_snapshot
+
+    var replayed = 0
+    recovering = true
+    try {
+      journal.replay(snapshot_position) { (pos, data) =>
+        index(pos, data, data.length)
+        replayed += 1
+      }
+    } finally {
+      recovering = false
+    }
+    gc
+
+    val end = System.currentTimeMillis
+    info("Replayed %d log records in %,.3f seconds.", replayed, ((end - start) / 1000.0f))
+  }
+
+  def stop() = {
+    snapshot
+    journal.close
+    lock_file.unlock
+    messages.clear
+    queues.clear
+    segment_refs.clear
+  }
+
+  private def lock() = {
+    lock_file = new LockFile(new File(directory, "lock"), true)
+    var locked = false
+    while( !locked ) {
+      try {
+        lock_file.lock
+        locked = true
+      } catch {
+        case e: IOException =>
+          if( config.fail_if_locked ) {
+            throw e
+          }
+          info("Store " + directory + " is locked... waiting " + (DATABASE_LOCKED_WAIT_DELAY / 1000) + " seconds for it to be unlocked.")
+          Thread.sleep(DATABASE_LOCKED_WAIT_DELAY)
+      }
+    }
+  }
+
+  def purge() = {
+    val batch = new DataByteArrayOutputStream(5)
+    batch.writeByte(PURGE)
+    batch.writeInt(0)
+    append(batch)
+    // snapshot right away so that the purged segments get deleted.
+    snapshot
+  }
+
+  def addQueue(record: QueueRecord) = {
+    val batch = new DataByteArrayOutputStream(256)
+    write_update(batch, ADD_QUEUE, to_QueuePB(record).freeze.toUnframedByteArray)
+    append(batch)
+    // queue updates are rare, they don't wait for the fsync policy.
+    journal.force
+  }
+
+  def removeQueue(queueKey: Long) = {
+    val batch = new DataByteArrayOutputStream(13)
+    batch.writeByte(REMOVE_QUEUE)
+    batch.writeInt(8)
+    batch.writeLong(queueKey)
+    append(batch)
+    journal.force
+  }
+
+  /**
+   * Forces the log segments appended to since the last sync to disk.
+   */
+  def sync() = {
+    journal.force
+  }
+
+  def store(uows: Seq[JournalStore#DelayableUOW]) = {
+    val batch = new DataByteArrayOutputStream(1024*4)
+    uows.foreach { uow =>
+      uow.actions.foreach { case (msg, action) =>
+
+        val record = action.messageRecord
+        if (record != null) {
+          val data = to_MessagePB(record).freeze.toUnframedByteArray
+          batch.writeByte(ADD_MESSAGE)
+          batch.writeInt(8 + data.length)
+          batch.writeLong(record.key)
+          batch.write(data)
+        }
+
+        action.enqueues.foreach { entry =>
+          write_update(batch, ADD_QUEUE_ENTRY, to_QueueEntryPB(entry).freeze.toUnframedByteArray)
+        }
+
+        action.dequeues.foreach { entry =>
+          batch.writeByte(REMOVE_QUEUE_ENTRY)
+          batch.writeInt(16)
+          batch.writeLong(entry.queueKey)
+          batch.writeLong(entry.queueSeq)
+        }
+      }
+    }
+    if( batch.size > 0 ) {
+      append(batch)
+    }
+  }
+
+  def listQueues: Seq[Long] = {
+    import JavaConversions._
+    val rc = ListBuffer[Long]()
+    queues.keySet.foreach { key =>
+      rc += key.longValue
+    }
+    rc
+  }
+
+  def getQueue(queueKey: Long): Option[QueueRecord] = {
+    val queue = queues.get(queueKey)
+    if( queue==null ) {
+      None
+    } else {
+      Some(queue.record)
+    }
+  }
+
+  def listQueueEntryGroups(queueKey: Long, limit: Int) : Seq[QueueEntryRange] = {
+    import JavaConversions._
+    val rc = ListBuffer[QueueEntryRange]()
+    val queue = queues.get(queueKey)
+    if( queue!=null ) {
+      var group:QueueEntryRange = null
+      queue.entries.values.foreach { entry =>
+        if( group == null ) {
+          group = new QueueEntryRange
+          group.firstQueueSeq = entry.queueSeq
+        }
+        group.lastQueueSeq = entry.queueSeq
+        group.count += 1
+        group.size += entry.size
+        if( group.count == limit) {
+          rc += group
+          group = null
+        }
+      }
+      if( group!=null ) {
+        rc += group
+      }
+    }
+    rc
+  }
+
+  def getQueueEntries(queueKey: Long, firstSeq:Long, lastSeq:Long): Seq[QueueEntryRecord] = {
+    import JavaConversions._
+    val rc = ListBuffer[QueueEntryRecord]()
+    val queue = queues.get(queueKey)
+    if( queue!=null ) {
+      queue.entries.subMap(firstSeq, true, lastSeq, true).values.foreach { entry =>
+        rc += copy(entry)
+      }
+    }
+    rc
+  }
+
+  def loadMessages(requests: ListBuffer[(Long, (Option[MessageRecord])=>Unit)]) = {
+    requests.foreach { case (messageKey, callback)=>
+      callback( loadMessage(messageKey) )
+    }
+  }
+
+  def loadMessage(messageKey: Long): Option[MessageRecord] = {
+    val message = messages.get(messageKey)
+    if( message==null ) {
+      debug("Message not indexed: %s", messageKey)
+      None
+    } else {
+      try {
+        val data = journal.read(message.pos, message.length)
+        Some(to_MessageRecord(MessagePB.FACTORY.parseUnframed(data)))
+      } catch {
+        // covers corrupt records too, the protobuf parse errors are IOExceptions.
+        case e: IOException =>
+          warn(e, "Could not load message %d from log position: %d", messageKey, message.pos)
+          None
+      }
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Log access
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  private def write_update(batch:DataByteArrayOutputStream, kind:Byte, data:Array[Byte]) = {
+    batch.writeByte(kind)
+    batch.writeInt(data.length)
+    batch.write(data)
+  }
+
+  private def append(batch:DataByteArrayOutputStream) = {
+    val buffer = batch.toBuffer
+    val pos = metric_journal_append_counter.time {
+      journal.append(buffer.data, buffer.offset, buffer.length)
+    }
+    index(pos, buffer.data, buffer.length)
+    update_stats
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Methods that index the updates stored in a log record.
+  // Used both in normal operation and during recovery.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  private def index(pos:Long, data:Array[Byte], length:Int):Unit = {
+    val data_pos = pos + MappedLog.RECORD_HEAD_SIZE
+    val buffer = ByteBuffer.wrap(data, 0, length)
+    // a message is stored in the same record as its queue entries.
+    var added = List[Long]()
+    while( buffer.hasRemaining ) {
+      val kind = buffer.get
+      val size = buffer.getInt
+      val offset = buffer.position
+      kind match {
+        case ADD_MESSAGE =>
+          // only the key is needed, the record is read back on load.
+          val messageKey = buffer.getLong(offset)
+          if( index_add_message(messageKey, data_pos + offset + 8, size - 8) ) {
+            added ::= messageKey
+          }
+        case ADD_QUEUE_ENTRY =>
+          index_add_entry(QueueEntryPB.FACTORY.parseUnframed(ju.Arrays.copyOfRange(data, offset, offset+size)))
+        case REMOVE_QUEUE_ENTRY =>
+          index_remove_entry(buffer.getLong(offset), buffer.getLong(offset+8))
+        case ADD_QUEUE =>
+          index_add_queue(QueuePB.FACTORY.parseUnframed(ju.Arrays.copyOfRange(data, offset, offset+size)))
+        case REMOVE_QUEUE =>
+          index_remove_queue(buffer.getLong(offset))
+        case PURGE =>
+          index_purge
+        case _ =>
+          throw new IOException("Invalid update type "+kind+" at log position: "+(data_pos+offset))
+      }
+      buffer.position(offset + size)
+    }
+    // drop the messages nothing got enqueued to, for example because their
+    // queue was removed, otherwise they would pin their log segment forever.
+    added.foreach { messageKey =>
+      val message = messages.get(messageKey)
+      if( message!=null && message.refs <= 0 ) {
+        messages.remove(messageKey)
+        store.message_cache.remove(messageKey)
+        add_segment_ref(message.pos, -1)
+      }
+    }
+  }
+
+  private def index_add_queue(record:QueueRecord) = {
+    if( record.key > last_queue_key ) {
+      last_queue_key = record.key
+    }
+    if( !queues.containsKey(record.key) ) {
+      queues.put(record.key, new QueueEntries(record))
+    }
+  }
+
+  private def index_remove_queue(queueKey:Long) = {
+    import JavaConversions._
+    val queue = queues.remove(queueKey)
+    if( queue!=null ) {
+      queue.entries.values.foreach { entry =>
+        release_message(entry.messageKey)
+      }
+    }
+  }
+
+  /**
+   * @return true if the message was not indexed yet.
+   */
+  private def index_add_message(messageKey:Long, pos:Long, length:Int) = {
+    if( messageKey > last_message_key ) {
+      last_message_key = messageKey
+    }
+    if( !messages.containsKey(messageKey) ) {
+      messages.put(messageKey, new MessageEntry(pos, length))
+      add_segment_ref(pos, 1)
+      true
+    } else {
+      warn("Message replay detected for: %d", messageKey)
+      false
+    }
+  }
+
+  private def index_add_entry(entry:QueueEntryRecord) = {
+    val queue = queues.get(entry.queueKey)
+    if( queue!=null ) {
+      val previous = queue.entries.put(entry.queueSeq, entry)
+      val message = messages.get(entry.messageKey)
+      if( message!=null ) {
+        message.refs += 1
+      }
+      if( previous!=null ) {
+        error("Duplicate queue entry seq %d", entry.queueSeq)
+        release_message(previous.messageKey)
+      }
+    } else {
+      error("Queue not found: %d", entry.queueKey)
+    }
+  }
+
+  private def index_remove_entry(queueKey:Long, queueSeq:Long) = {
+    val queue = queues.get(queueKey)
+    if( queue!=null ) {
+      val entry = queue.entries.remove(queueSeq)
+      if( entry!=null ) {
+        release_message(entry.messageKey)
+      } else if( !recovering ) {
+        error("Queue entry not found for seq %d", queueSeq)
+      }
+    } else if( !recovering ) {
+      error("Queue not found: %d", queueKey)
+    }
+  }
+
+  private def release_message(messageKey:Long) = {
+    val message = messages.get(messageKey)
+    if( message!=null ) {
+      message.refs -= 1
+      if( message.refs <= 0 ) {
+        // message is no longer referenced.. we can remove it..
+        messages.remove(messageKey)
+        store.message_cache.remove(messageKey)
+        add_segment_ref(message.pos, -1)
+      }
+    }
+  }
+
+  private def index_purge() = {
+    queues.clear
+    messages.clear
+    segment_refs.clear
+    last_message_key = 0
+    last_queue_key = 0
+    info("Store purged.")
+  }
+
+  private def add_segment_ref(pos:Long, amount:Int) = {
+    val segment = journal.segment(pos)
+    if( segment!=null ) {
+      val key:jl.Long = segment.base
+      val counter = segment_refs.get(key)
+      val update = amount + (if( counter==null ) 0 else counter.intValue)
+      if( update <= 0 ) {
+        segment_refs.remove(key)
+      } else {
+        segment_refs.put(key, update)
+      }
+    }
+  }
+
+  private def update_stats() = {
+    log_segments = journal.segments.size
+    log_size = journal.total_size
+    indexed_messages = messages.size
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Index snapshots and log segment cleanup
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  /**
+   * Writes the index out to the snapshot file and deletes the log segments
+   * which are no longer needed.
+   */
+  def snapshot():Unit = {
+    val position = journal.append_position
+    if( position == snapshot_position ) {
+      return
+    }
+    metric_index_snapshot_counter.time {
+      import JavaConversions._
+
+      // the log must be on disk before the snapshot which skips its replay is.
+      journal.force
+
+      val tmp = new File(directory, SNAPSHOT_FILE+".tmp")
+      val fos = new FileOutputStream(tmp)
+      val os = new DataOutputStream(new BufferedOutputStream(fos, 1024*64))
+      try {
+        os.writeInt(SNAPSHOT_MAGIC)
+        os.writeLong(position)
+        os.writeLong(last_message_key)
+        os.writeLong(last_queue_key)
+
+        os.writeInt(queues.size)
+        queues.values.foreach { queue =>
+          os.writeLong(queue.record.key)
+          write_buffer(os, queue.record.binding_kind)
+          write_buffer(os, queue.record.binding_data)
+          os.writeInt(queue.entries.size)
+          queue.entries.values.foreach { entry =>
+            os.writeLong(entry.queueSeq)
+            os.writeLong(entry.messageKey)
+            os.writeInt(entry.size)
+            os.writeShort(entry.redeliveries)
+            write_buffer(os, entry.attachment)
+          }
+        }
+
+        os.writeInt(messages.size)
+        messages.entrySet.foreach { entry =>
+          val message = entry.getValue
+          os.writeLong(entry.getKey.longValue)
+          os.writeLong(message.pos)
+          os.writeInt(message.length)
+          os.writeInt(message.refs)
+        }
+        os.flush
+        fos.getFD.sync
+      } finally {
+        os.close
+      }
+
+      val file = new File(directory, SNAPSHOT_FILE)
+      if( !tmp.renameTo(file) ) {
+        file.delete
+        if( !tmp.renameTo(file) ) {
+          throw new IOException("Could not rename the index snapshot "+tmp+" to "+file)
+        }
+      }
+      snapshot_position = position
+    }
+    gc
+  }
+
+  private def load_snapshot() = {
+    val file = new File(directory, SNAPSHOT_FILE)
+    if( file.exists ) {
+      val is = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024*64))
+      try {
+        if( is.readInt != SNAPSHOT_MAGIC ) {
+          throw new IOException("Not an index snapshot file")
+        }
+        snapshot_position = is.readLong
+        last_message_key = is.readLong
+        last_queue_key = is.readLong
+
+        var queue_count = is.readInt
+        while( queue_count > 0 ) {
+          val record = new QueueRecord
+          record.key = is.readLong
+          val kind = read_buffer(is)
+          if( kind!=null ) {
+            record.binding_kind = kind.ascii
+          }
+          record.binding_data = read_buffer(is)
+          val queue = new QueueEntries(record)
+          var entry_count = is.readInt
+          while( entry_count > 0 ) {
+            val entry = new QueueEntryRecord
+            entry.queueKey = record.key
+            entry.queueSeq = is.readLong
+            entry.messageKey = is.readLong
+            entry.size = is.readInt
+            entry.redeliveries = is.readShort
+            entry.attachment = read_buffer(is)
+            queue.entries.put(entry.queueSeq, entry)
+            entry_count -= 1
+          }
+          queues.put(record.key, queue)
+          queue_count -= 1
+        }
+
+        var message_count = is.readInt
+        while( message_count > 0 ) {
+          val key = is.readLong
+          val message = new MessageEntry(is.readLong, is.readInt)
+          message.refs = is.readInt
+          messages.put(key, message)
+          add_segment_ref(message.pos, 1)
+          message_count -= 1
+        }
+      } catch {
+        case e: IOException =>
+          // fall back to replaying all the log we still have.
+          warn(e, "Could not load the index snapshot %s, replaying the whole log.", file)
+          queues.clear
+          messages.clear
+          segment_refs.clear
+          last_message_key = 0
+          last_queue_key = 0
+          snapshot_position = if( journal.segments.isEmpty ) 0L else journal.segments.firstKey.longValue
+      } finally {
+        is.close
+      }
+    }
+  }
+
+  /**
+   * Deletes the log segments which hold no referenced messages
+   * and which do not have to be replayed.
+   */
+  private def gc() = {
+    import JavaConversions._
+    val unused = journal.segments.values.filter { segment =>
+      segment.end <= snapshot_position &&
+      !journal.is_appending_to(segment) &&
+      !segment_refs.containsKey(segment.base)
+    }.toList
+    unused.foreach { segment =>
+      debug("Deleting log segment: %s", segment.file)
+      journal.delete(segment)
+    }
+    update_stats
+  }
+
+}
@@ -0,0 +1,328 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.store.journal
+
+import dto.{JournalStoreDTO, JournalStoreStatusDTO}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import collection.Seq
+import org.fusesource.hawtdispatch.ScalaDispatch._
+import java.io.File
+import java.util.concurrent._
+import org.apache.activemq.apollo.store._
+import org.apache.activemq.apollo.util._
+import ReporterLevel._
+import org.fusesource.hawtdispatch.ListEventAggregator
+import org.apache.activemq.apollo.dto.{StoreStatusDTO, IntMetricDTO, TimeMetricDTO, StoreDTO}
+
+object JournalStore extends Log {
+
+  /**
+   * Creates a default a configuration object.
+   */
+  def defaultConfig() = {
+    val rc = new JournalStoreDTO
+    rc.directory = new File("activemq-data")
+    rc
+  }
+
+  /**
+   * Validates a configuration object.
+   */
+  def validate(config: JournalStoreDTO, reporter:Reporter):ReporterLevel = {
+    new Reporting(reporter) {
+      if( config.directory==null ) {
+        error("The Journal Store directory property must be configured.")
+      }
+      if( config.log_size <= 0 ) {
+        error("The Journal Store log-size property must be positive.")
+      }
+      if( !FsyncPolicy.is_valid(config.fsync_policy) ) {
+        error("Invalid fsync-policy: "+config.fsync_policy)
+      }
+    }.result
+  }
+}
+
+/**
+ * <p>
+ * A store which keeps its data in an append only memory mapped log
+ * and indexes it in memory.  See the JournalClient for the details.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class JournalStore extends DelayingStoreSupport with DispatchLogging {
+
+  import JournalStore._
+
+  override def log: Log = JournalStore
+
+  var next_queue_key = new AtomicLong(1)
+  var next_msg_key = new AtomicLong(1)
+
+  var executor_pool:ExecutorService = _
+  var config:JournalStoreDTO = defaultConfig
+  val client = new JournalClient(this)
+
+  override def toString = "journal store"
+
+  def flush_delay = config.flush_delay
+
+  def message_cache_size = config.message_cache_size
+
+  protected def fsync_policy = FsyncPolicy(config)
+  
+  protected def get_next_msg_key = next_msg_key.getAndIncrement
+
+  protected def store(uows: Seq[DelayableUOW])(callback: =>Unit) = {
+    executor_pool {
+      client.store(uows)
+      dispatchQueue {
+        callback
+      }
+    }
+  }
+
+  protected def sync(callback: =>Unit) = {
+    executor_pool {
+      client.sync
+      callback
+    }
+  }
+
+  def configure(config: StoreDTO, reporter: Reporter) = configure(config.asInstanceOf[JournalStoreDTO], reporter)
+
+  def configure(config: JournalStoreDTO, reporter: Reporter) = {
+    if ( JournalStore.validate(config, reporter) < ERROR ) {
+      if( serviceState.isStarted ) {
+        // TODO: apply changes while he broker is running.
+        reporter.report(WARN, "Updating journal store configuration at runtime is not yet supported.  You must restart the broker for the change to take effect.")
+      } else {
+        this.config = config
+      }
+    }
+  }
+
+  val schedule_version = new AtomicInteger()
+
+  protected def _start(onCompleted: Runnable) = {
+    executor_pool = Executors.newFixedThreadPool(1, new ThreadFactory(){
+      def newThread(r: Runnable) = {
+        val rc = new Thread(r, "journal store client")
+        rc.setDaemon(true)
+        rc
+      }
+    })
+    client.config = config
+    poll_stats
+    executor_pool {
+      client.start()
+      next_msg_key.set( client.last_message_key +1 )
+      next_queue_key.set( client.last_queue_key +1 )
+      scheduleSnapshot(schedule_version.get)
+      onCompleted.run
+    }
+  }
+
+  protected def _stop(onCompleted: Runnable) = {
+    schedule_version.incrementAndGet
+    new Thread() {
+      override def run = {
+        executor_pool.shutdown
+        executor_pool.awaitTermination(1, TimeUnit.DAYS)
+        executor_pool = null
+        // the last writes may still be waiting for a sync.
+        client.sync
+        client.stop
+        perform_unsynced {
+          onCompleted.run
+        }
+      }
+    }.start
+  }
+
+  def scheduleSnapshot(version:Int): Unit = {
+    def try_snapshot() = {
+      if (version == schedule_version.get) {
+        executor_pool {
+          client.snapshot
+          scheduleSnapshot(version)
+        }
+      }
+    }
+    dispatchQueue.dispatchAfter(config.index_snapshot_interval, TimeUnit.MILLISECONDS, ^ {try_snapshot})
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Implementation of the Store interface
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  /**
+   * Deletes all stored data from the store.
+   */
+  def purge(callback: =>Unit) = {
+    executor_pool {
+      client.purge()
+      next_queue_key.set(1)
+      next_msg_key.set(1)
+      message_cache.clear
+      callback
+    }
+  }
+
+
+  /**
+   * Ges the last queue key identifier stored.
+   */
+  def getLastQueueKey(callback:(Option[Long])=>Unit):Unit = {
+    executor_pool {
+      callback(Some(client.last_queue_key))
+    }
+  }
+
+  def addQueue(record: QueueRecord)(callback: (Boolean) => Unit) = {
+    executor_pool {
+      client.addQueue(record)
+      callback(true)
+    }
+  }
+
+  def removeQueue(queueKey: Long)(callback: (Boolean) => Unit) = {
+    executor_pool {
+      client.removeQueue(queueKey)
+      callback(true)
+    }
+  }
+
+  def getQueue(queueKey: Long)(callback: (Option[QueueRecord]) => Unit) = {
+    executor_pool {
+      callback( client.getQueue(queueKey) )
+    }
+  }
+
+  def listQueues(callback: (Seq[Long]) => Unit) = {
+    executor_pool {
+      callback( client.listQueues )
+    }
+  }
+
+  val load_source = createSource(new ListEventAggregator[(Long, (Option[MessageRecord])=>Unit)](), dispatchQueue)
+  load_source.setEventHandler(^{drain_loads});
+  load_source.resume
+
+
+  protected def load_message(messageKey: Long)(callback: (Option[MessageRecord]) => Unit) = {
+    message_load_latency_counter.start { end=>
+      load_source.merge((messageKey, { (result)=>
+        end()
+        callback(result)
+      }))
+    }
+  }
+
+  def drain_loads = {
+    var data = load_source.getData
+    message_load_batch_size_counter += data.size
+    executor_pool ^{
+      client.loadMessages(data)
+    }
+  }
+
+  def listQueueEntryRanges(queueKey: Long, limit: Int)(callback: (Seq[QueueEntryRange]) => Unit) = {
+    executor_pool ^{
+      callback( client.listQueueEntryGroups(queueKey, limit) )
+    }
+  }
+
+  def listQueueEntries(queueKey: Long, firstSeq: Long, lastSeq: Long)(callback: (Seq[QueueEntryRecord]) => Unit) = {
+    executor_pool ^{
+      callback( client.getQueueEntries(queueKey, firstSeq, lastSeq) )
+    }
+  }
+
+
+  implicit def toTimeMetricDTO( m: TimeMetric) = {
+    val rc = new TimeMetricDTO()
+    rc.count = m.count
+    rc.max = m.max
+    rc.min = m.min
+    rc.total = m.total
+    rc
+  }
+
+  implicit def toIntMetricDTO( m: IntMetric) = {
+    val rc = new IntMetricDTO()
+    rc.count = m.count
+    rc.max = m.max
+    rc.min = m.min
+    rc.total = m.total
+    rc
+  }
+
+  def poll_stats:Unit = {
+    def displayStats = {
+      if( serviceState.isStarted ) {
+
+        flush_latency = flush_latency_counter(true)
+        message_load_latency = message_load_latency_counter(true)
+        client.metric_journal_append = client.metric_journal_append_counter(true)
+        client.metric_index_snapshot = client.metric_index_snapshot_counter(true)
+        commit_latency = commit_latency_counter(true)
+        fsync_latency = fsync_latency_counter(true)
+        message_load_batch_size =  message_load_batch_size_counter(true)
+
+        poll_stats
+      }
+    }
+
+    dispatchQueue.dispatchAfter(1, TimeUnit.SECONDS, ^{ displayStats })
+  }
+
+  def storeStatusDTO(callback:(StoreStatusDTO)=>Unit) = dispatchQueue {
+    val rc = new JournalStoreStatusDTO
+
+    rc.state = serviceState.toString
+    rc.state_since = serviceState.since
+
+    rc.flush_latency = flush_latency
+    rc.message_load_latency = message_load_latency
+    rc.message_load_batch_size = message_load_batch_size
+
+    rc.fsync_policy = fsync_policy.toString
+    rc.fsync_counter = metric_fsync_counter
+    rc.fsync_latency = fsync_latency
+
+    rc.message_cache_hit_ratio = message_cache.hit_ratio
+    rc.message_cache_size = message_cache.size
+
+    rc.journal_append_latency = client.metric_journal_append
+    rc.index_snapshot_latency = client.metric_index_snapshot
+
+    rc.log_segments = client.log_segments
+    rc.log_size = client.log_size
+    rc.indexed_messages = client.indexed_messages
+
+    rc.canceled_message_counter = metric_canceled_message_counter
+    rc.canceled_enqueue_counter = metric_canceled_enqueue_counter
+    rc.flushed_message_counter = metric_flushed_message_counter
+    rc.flushed_enqueue_counter = metric_flushed_enqueue_counter
+
+    callback(rc)
+  }
+}
@@ -0,0 +1,266 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.store.journal
+
+import java.{lang=>jl}
+import java.{util=>ju}
+
+import java.io.{IOException, RandomAccessFile, File}
+import java.nio.channels.FileChannel
+import java.util.zip.Adler32
+import collection.mutable.ListBuffer
+import org.apache.activemq.apollo.util._
+
+object MappedLog extends Log {
+
+  // every record starts with its length and the checksum of its data.
+  val RECORD_HEAD_SIZE = 8
+
+  val LOG_SUFFIX = ".log"
+
+  def checksum(data:Array[Byte], offset:Int, length:Int):Int = {
+    val checksum = new Adler32
+    checksum.update(data, offset, length)
+    checksum.getValue.toInt
+  }
+
+}
+
+/**
+ * A log file which is mapped into memory.  Log positions are global, the
+ * segment holds the positions from base up to base+size.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class LogSegment(val file:File, val base:Long, val size:Int) {
+
+  private val raf = new RandomAccessFile(file, "rw")
+  val buffer = raf.getChannel.map(FileChannel.MapMode.READ_WRITE, 0, size)
+
+  def end = base + size
+
+  def read(pos:Long, length:Int):Array[Byte] = {
+    val rc = new Array[Byte](length)
+    val view = buffer.duplicate
+    view.position((pos - base).toInt)
+    view.get(rc)
+    rc
+  }
+
+  def write(offset:Int, data:Array[Byte], data_offset:Int, length:Int) = {
+    val view = buffer.duplicate
+    view.position(offset)
+    view.put(data, data_offset, length)
+  }
+
+  def zero(offset:Int) = {
+    val zeros = new Array[Byte](1024*4)
+    val view = buffer.duplicate
+    view.position(offset)
+    while( view.hasRemaining ) {
+      view.put(zeros, 0, zeros.length.min(view.remaining))
+    }
+  }
+
+  def force() = buffer.force
+
+  def close() = raf.close
+
+}
+
+/**
+ * <p>
+ * An append only log made up of memory mapped segment files.  Records
+ * never span segments, when a record does not fit in the current segment
+ * a new segment is started.  The segment files are named after the log
+ * position they start at.
+ * </p>
+ * <p>
+ * This class is not thread safe.  It is used from the store's executor.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class MappedLog(val directory:File, val log_size:Int) extends Logging {
+
+  import MappedLog._
+
+  override protected def log: Log = MappedLog
+
+  val segments = new ju.TreeMap[jl.Long, LogSegment]()
+
+  private var append_segment:LogSegment = null
+  private var append_offset = 0
+  private var start_position = 0L
+  private val unforced = ListBuffer[LogSegment]()
+
+  def open() = {
+    directory.mkdirs
+    val files = directory.listFiles
+    if( files!=null ) {
+      files.foreach { file =>
+        val name = file.getName
+        if( name.endsWith(LOG_SUFFIX) ) {
+          val base = jl.Long.parseLong(name.substring(0, name.length-LOG_SUFFIX.length), 16)
+          segments.put(base, new LogSegment(file, base, file.length.toInt))
+        }
+      }
+    }
+  }
+
+  def close() = {
+    import collection.JavaConversions._
+    segments.values.foreach( _.close )
+    segments.clear
+    unforced.clear
+    append_segment = null
+    append_offset = 0
+  }
+
+  /**
+   * @return the log position the next record will be appended at.
+   */
+  def append_position = if( append_segment==null ) {
+    start_position
+  } else {
+    append_segment.base + append_offset
+  }
+
+  def total_size = {
+    import collection.JavaConversions._
+    segments.values.foldLeft(0L)( _ + _.size )
+  }
+
+  def is_appending_to(segment:LogSegment) = segment eq append_segment
+
+  /**
+   * Appends a record to the log.
+   *
+   * @return the position of the record.  The record data starts
+   *         RECORD_HEAD_SIZE bytes after it.
+   */
+  def append(data:Array[Byte], offset:Int, length:Int):Long = {
+    val needed = RECORD_HEAD_SIZE + length
+    if( append_segment==null || append_offset + needed > append_segment.size ) {
+      val base = if( append_segment==null ) {
+        start_position
+      } else {
+        unforced += append_segment
+        append_segment.end
+      }
+      append_segment = create_segment(base, needed.max(log_size))
+      append_offset = 0
+    }
+
+    val pos = append_segment.base + append_offset
+    append_segment.write(append_offset + RECORD_HEAD_SIZE, data, offset, length)
+    append_segment.buffer.putInt(append_offset + 4, checksum(data, offset, length))
+    append_segment.buffer.putInt(append_offset, length)
+    append_offset += needed
+    pos
+  }
+
+  /**
+   * Forces the appended records to disk.
+   */
+  def force() = {
+    unforced.foreach( _.force )
+    unforced.clear
+    if( append_segment!=null ) {
+      append_segment.force
+    }
+  }
+
+  private def create_segment(base:Long, size:Int) = {
+    val file = new File(directory, "%016x%s".format(base, LOG_SUFFIX))
+    // don't map in stale data left by a segment which was discarded.
+    file.delete
+    val rc = new LogSegment(file, base, size)
+    segments.put(base, rc)
+    rc
+  }
+
+  def segment(pos:Long):LogSegment = {
+    val entry = segments.floorEntry(pos)
+    if( entry==null ) {
+      null
+    } else {
+      entry.getValue
+    }
+  }
+
+  def read(pos:Long, length:Int):Array[Byte] = {
+    val segment = this.segment(pos)
+    if( segment==null || pos+length > segment.end ) {
+      throw new IOException("Invalid log position: "+pos)
+    }
+    segment.read(pos, length)
+  }
+
+  def delete(segment:LogSegment) = {
+    segments.remove(segment.base)
+    segment.close
+    segment.file.delete
+  }
+
+  /**
+   * Passes the data of every record stored at or after the given position
+   * to the func and then sets up the log to append after the last record.
+   * A partially written record at the end of the log is discarded.
+   */
+  def replay(from:Long)(func:(Long, Array[Byte])=>Unit):Unit = {
+    start_position = from
+    var entry = segments.floorEntry(from)
+    if( entry==null ) {
+      entry = segments.ceilingEntry(from)
+    }
+    while( entry!=null ) {
+      val segment = entry.getValue
+      var offset = (from - segment.base).max(0).toInt
+      var done = false
+      while( !done && offset + RECORD_HEAD_SIZE <= segment.size ) {
+        val length = segment.buffer.getInt(offset)
+        if( length == 0 ) {
+          done = true
+        } else {
+          var data:Array[Byte] = null
+          if( length > 0 && offset + RECORD_HEAD_SIZE + length <= segment.size ) {
+            data = segment.read(segment.base + offset + RECORD_HEAD_SIZE, length)
+            if( checksum(data, 0, length) != segment.buffer.getInt(offset + 4) ) {
+              data = null
+            }
+          }
+          if( data == null ) {
+            if( segments.higherKey(segment.base)!=null ) {
+              throw new IOException("Corrupted log record at: "+(segment.base + offset))
+            }
+            warn("Discarding the partially written log record at: %d", segment.base + offset)
+            segment.zero(offset)
+            done = true
+          } else {
+            func(segment.base + offset, data)
+            offset += RECORD_HEAD_SIZE + length
+          }
+        }
+      }
+      append_segment = segment
+      append_offset = offset
+      entry = segments.higherEntry(segment.base)
+    }
+  }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.store.journal.dto;
+
+import org.apache.activemq.apollo.dto.StoreDTO;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.io.File;
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@XmlRootElement(name="journal-store")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class JournalStoreDTO extends StoreDTO {
+
+    @XmlAttribute
+    public File directory;
+
+    /**
+     * The size of the memory mapped log segment files.  Log records
+     * bigger than this get a segment of their own.
+     */
+    @XmlAttribute(name="log-size")
+    public int log_size = 1024*1024*64;
+
+    /**
+     * How often in milliseconds the in memory index is written out to
+     * a snapshot file.  Only the log written after the last snapshot
+     * is replayed on startup, and segments are only reclaimed once a
+     * snapshot covers them.
+     */
+    @XmlAttribute(name="index-snapshot-interval")
+    public long index_snapshot_interval = 30 * 1000L;
+
+    @XmlAttribute(name="fail-if-locked")
+    public boolean fail_if_locked = false;
+
+}
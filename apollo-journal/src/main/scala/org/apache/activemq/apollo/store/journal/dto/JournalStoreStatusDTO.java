@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.store.journal.dto;
+
+import org.apache.activemq.apollo.dto.IntMetricDTO;
+import org.apache.activemq.apollo.dto.StoreStatusDTO;
+import org.apache.activemq.apollo.dto.TimeMetricDTO;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@XmlRootElement(name="journal-store-status")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class JournalStoreStatusDTO extends StoreStatusDTO {
+
+    @XmlElement(name="journal-append-latency")
+    public TimeMetricDTO journal_append_latency;
+
+    @XmlElement(name="index-snapshot-latency")
+    public TimeMetricDTO index_snapshot_latency;
+
+    @XmlElement(name="message-load-batch-size")
+    public IntMetricDTO message_load_batch_size;
+
+    /**
+     * The number of log segment files in use.
+     */
+    @XmlAttribute(name="log-segments")
+    public int log_segments;
+
+    /**
+     * The number of bytes held in the log segment files.
+     */
+    @XmlAttribute(name="log-size")
+    public long log_size;
+
+    /**
+     * The number of messages in the index.
+     */
+    @XmlAttribute(name="indexed-messages")
+    public long indexed_messages;
+
+}
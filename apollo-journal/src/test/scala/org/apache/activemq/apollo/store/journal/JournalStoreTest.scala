@@ -0,0 +1,138 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.store.journal
+
+import org.fusesource.hawtbuf.AsciiBuffer._
+import java.io.File
+import org.apache.activemq.apollo.util.LoggingTracker
+import org.apache.activemq.apollo.store._
+import org.fusesource.hawtdispatch.ScalaDispatch._
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class JournalStoreTest extends StoreFunSuiteSupport {
+
+  def createStore(flushDelay:Long):Store = {
+    val rc = new JournalStore
+    rc.config.flush_delay = flushDelay
+    rc
+  }
+
+  def restart(before: =>Unit) = {
+    var tracker = new LoggingTracker("store stop")
+    tracker.stop(store)
+    tracker.await
+
+    before
+
+    store = createStore(5*1000)
+    tracker = new LoggingTracker("store startup")
+    tracker.start(store)
+    tracker.await
+  }
+
+  def check_recovered(queueKey:Long, msgKeys:Seq[Long]) = {
+    expectCB(List(queueKey).toSeq) { cb=>
+      store.listQueues(cb)
+    }
+    val entries:Seq[QueueEntryRecord] = CB( cb=> store.listQueueEntries(queueKey, 1, msgKeys.size)(cb) )
+    expect(msgKeys) {
+      entries.map( _.messageKey )
+    }
+    val rc:Option[MessageRecord] = CB( cb=> store.loadMessage(msgKeys.last)(cb) )
+    expect(ascii("message 3").buffer) {
+      rc.get.buffer
+    }
+  }
+
+  test("recovers from the index snapshot") {
+    val A = addQueue("A")
+    val msgKeys = populate(A, "message 1"::"message 2"::"message 3"::Nil)
+    restart {}
+    check_recovered(A, msgKeys)
+  }
+
+  test("recovers by replaying the log") {
+    val A = addQueue("A")
+    val msgKeys = populate(A, "message 1"::"message 2"::"message 3"::Nil)
+    restart {
+      new File(JournalStore.defaultConfig.directory, JournalClient.SNAPSHOT_FILE).delete
+    }
+    check_recovered(A, msgKeys)
+  }
+
+  test("messages enqueued to a missing queue are not kept in the index") {
+    val A = addQueue("A")
+    val msgKeys = populate(A, "message 1"::"message 2"::"message 3"::Nil)
+    val orphans = populate(A+100, "orphan"::Nil)
+    restart {
+      new File(JournalStore.defaultConfig.directory, JournalClient.SNAPSHOT_FILE).delete
+    }
+    check_recovered(A, msgKeys)
+    expect(None) {
+      CB[Option[MessageRecord]]( cb=> store.loadMessage(orphans.head)(cb) )
+    }
+  }
+
+  test("units of work waiting for a sync complete when the store stops") {
+    var tracker = new LoggingTracker("store stop")
+    tracker.stop(store)
+    tracker.await
+
+    val periodic = new JournalStore
+    periodic.config.flush_delay = 5*1000
+    periodic.config.fsync_policy = "periodic"
+    // so that only the stop syncs.
+    periodic.config.fsync_interval = 60*1000
+    store = periodic
+    tracker = new LoggingTracker("store startup")
+    tracker.start(store)
+    tracker.await
+
+    val A = addQueue("A")
+    val batch = store.createStoreUOW
+    val msgKey = addMessage(batch, "message 1")
+    batch.enqueue(entry(A, 1, msgKey))
+    val performed = new CountDownLatch(1)
+    batch.onComplete(^{ performed.countDown })
+    batch.release
+    store.flushMessage(msgKey) {}
+    expect(false) { performed.await(500, TimeUnit.MILLISECONDS) }
+
+    restart {
+      expect(true) { performed.await(5, TimeUnit.SECONDS) }
+    }
+  }
+
+}
+
+/**
+ * Runs the same tests against a store which groups its fsyncs.
+ */
+class JournalStorePeriodicFsyncTest extends StoreFunSuiteSupport {
+
+  def createStore(flushDelay:Long):Store = {
+    val rc = new JournalStore
+    rc.config.flush_delay = flushDelay
+    rc.config.fsync_policy = "periodic"
+    rc.config.fsync_interval = 50
+    rc
+  }
+
+}
@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.shm;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * Watches the rings of the shared memory transports and dispatches their
+ * read and write events to their dispatch queues.  There is no way to get
+ * a notification when another process writes to shared memory, so a
+ * single thread polls all the transports of the JVM.
+ * </p>
+ * <p>
+ * While there is traffic the thread spins so it picks up new data within
+ * a few hundred nanoseconds.  Once it has been idle for a while it parks
+ * for increasing periods of time up to a max park time, which bounds the
+ * latency seen after an idle period.  Writers in the same JVM wake it up
+ * right away.  The thread exits once the last transport unregisters and
+ * a new one gets started by the next register.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ShmPoller implements Runnable {
+
+    public static final ShmPoller DEFAULT = new ShmPoller(
+            Integer.getInteger("apollo.shm.spin", 10000),
+            TimeUnit.MICROSECONDS.toNanos(Long.getLong("apollo.shm.max_park", 1000)));
+
+    private static final long MIN_PARK = 1000;
+
+    private final int spin;
+    private final long maxPark;
+    private final CopyOnWriteArrayList<ShmTransport> transports = new CopyOnWriteArrayList<ShmTransport>();
+    // read without the lock by wakeup().
+    private volatile Thread thread;
+
+    /**
+     * @param spin the number of idle polls to do before parking.
+     * @param maxPark the max number of nanoseconds to park for.
+     */
+    public ShmPoller(int spin, long maxPark) {
+        this.spin = spin;
+        this.maxPark = maxPark;
+    }
+
+    public synchronized void register(ShmTransport transport) {
+        transports.add(transport);
+        if( thread == null ) {
+            thread = new Thread(this, "shm transport poller");
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public void unregister(ShmTransport transport) {
+        transports.remove(transport);
+        if( transports.isEmpty() ) {
+            // so the thread notices it can exit.
+            wakeup();
+        }
+    }
+
+    /**
+     * @return true if the polling thread is running.
+     */
+    public boolean isPolling() {
+        return thread != null;
+    }
+
+    /**
+     * Lets the poller know there may be new data to pick up.
+     */
+    public void wakeup() {
+        Thread t = thread;
+        if( t != null ) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    public void run() {
+        int idle = 0;
+        long park = MIN_PARK;
+        while( true ) {
+            if( transports.isEmpty() ) {
+                synchronized (this) {
+                    // checked again under the lock so a concurrent register
+                    // either sees the thread or starts a new one.
+                    if( transports.isEmpty() ) {
+                        thread = null;
+                        return;
+                    }
+                }
+            }
+
+            boolean busy = false;
+            for (ShmTransport transport : transports) {
+                busy |= transport.poll();
+            }
+
+            if( busy ) {
+                idle = 0;
+                park = MIN_PARK;
+            } else if( idle < spin ) {
+                idle++;
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(this, park);
+                park = Math.min(park*2, maxPark);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,217 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.shm;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * <p>
+ * A single producer, single consumer byte ring buffer laid out in a region
+ * of shared memory, usually a memory mapped file which two processes have
+ * mapped.  One side only writes to the ring and the other side only reads
+ * from it.  It's a plain byte stream so protocol codecs do their own
+ * framing on top of it, just like they do over a socket.
+ * </p>
+ * <p>
+ * The read and write positions are ever increasing counters which each sit
+ * on their own cache line.  Each side only updates its own counter and
+ * publishes it with a release store, and reads the other side's counter
+ * with an acquire load, so no locks or system calls are needed.  The
+ * channel methods never block: they return 0 when the ring is empty or
+ * full.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ShmRing implements ByteChannel {
+
+    private static final int READ_POSITION = 0;
+    private static final int WRITE_POSITION = 64;
+    private static final int CLOSED = 128;
+
+    /**
+     * The number of bytes used by the ring's counters ahead of its data.
+     */
+    public static final int OVERHEAD = 192;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+
+    // each side gets its own view of the data so they don't share buffer positions.
+    private final ByteBuffer readView;
+    private final ByteBuffer writeView;
+
+    /**
+     * @param buffer the region holding the ring, it must be {@link #size(int)} bytes
+     *               long and start at an address aligned to 8 bytes.
+     * @param capacity the number of data bytes in the ring, must be a power of 2
+     */
+    public ShmRing(ByteBuffer buffer, int capacity) {
+        if( Integer.bitCount(capacity)!=1 ) {
+            throw new IllegalArgumentException("The capacity must be a power of 2");
+        }
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.mask = capacity-1;
+
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(OVERHEAD);
+        dup.limit(OVERHEAD+capacity);
+        ByteBuffer data = dup.slice();
+        this.readView = data.duplicate();
+        this.writeView = data.duplicate();
+    }
+
+    /**
+     * @return the number of bytes a ring with the given capacity takes up.
+     */
+    public static int size(int capacity) {
+        return OVERHEAD + capacity;
+    }
+
+    /**
+     * Resets the ring to empty.  Only done by the side creating the shared
+     * region before the other side gets to see it.
+     */
+    public void init() {
+        LONGS.setRelease(buffer, READ_POSITION, 0L);
+        LONGS.setRelease(buffer, WRITE_POSITION, 0L);
+        INTS.setRelease(buffer, CLOSED, 0);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Reads as many bytes as are available and fit in the destination.
+     *
+     * @return the number of bytes read, or -1 once the ring has been closed
+     *         and all the data written before the close has been read.
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        long head = (long) LONGS.getOpaque(buffer, READ_POSITION);
+        long tail = (long) LONGS.getAcquire(buffer, WRITE_POSITION);
+        int available = (int) (tail - head);
+        if( available == 0 ) {
+            if( isClosed() ) {
+                // check again since data may have been written just before the close.
+                if( (long) LONGS.getAcquire(buffer, WRITE_POSITION) == head ) {
+                    return -1;
+                }
+                return read(dst);
+            }
+            return 0;
+        }
+
+        int count = Math.min(available, dst.remaining());
+        int offset = (int) (head & mask);
+        int first = Math.min(count, capacity - offset);
+
+        readView.limit(offset + first);
+        readView.position(offset);
+        dst.put(readView);
+        if( count > first ) {
+            readView.limit(count - first);
+            readView.position(0);
+            dst.put(readView);
+        }
+
+        LONGS.setRelease(buffer, READ_POSITION, head + count);
+        return count;
+    }
+
+    /**
+     * Writes as many bytes as there is free space for in the ring.
+     *
+     * @return the number of bytes written.
+     */
+    public int write(ByteBuffer src) throws IOException {
+        if( isClosed() ) {
+            throw new ClosedChannelException();
+        }
+        long tail = (long) LONGS.getOpaque(buffer, WRITE_POSITION);
+        long head = (long) LONGS.getAcquire(buffer, READ_POSITION);
+        int free = capacity - (int) (tail - head);
+
+        int count = Math.min(free, src.remaining());
+        if( count == 0 ) {
+            return 0;
+        }
+        int offset = (int) (tail & mask);
+        int first = Math.min(count, capacity - offset);
+
+        int limit = src.limit();
+        writeView.clear();
+        writeView.position(offset);
+        src.limit(src.position() + first);
+        writeView.put(src);
+        if( count > first ) {
+            writeView.clear();
+            src.limit(src.position() + (count - first));
+            writeView.put(src);
+        }
+        src.limit(limit);
+
+        LONGS.setRelease(buffer, WRITE_POSITION, tail + count);
+        return count;
+    }
+
+    /**
+     * @return true if there is data to read or the ring has been closed.
+     */
+    public boolean isReadable() {
+        return (long) LONGS.getAcquire(buffer, WRITE_POSITION) != (long) LONGS.getOpaque(buffer, READ_POSITION) || isClosed();
+    }
+
+    /**
+     * @return true if there is free space to write to or the ring has been closed.
+     */
+    public boolean isWritable() {
+        long tail = (long) LONGS.getOpaque(buffer, WRITE_POSITION);
+        long head = (long) LONGS.getAcquire(buffer, READ_POSITION);
+        return tail - head < capacity || isClosed();
+    }
+
+    public boolean isClosed() {
+        return (int) INTS.getAcquire(buffer, CLOSED) != 0;
+    }
+
+    public boolean isOpen() {
+        return !isClosed();
+    }
+
+    /**
+     * Closes the ring for both sides.  The reader still gets the data which
+     * was written before the close and then sees the end of the stream.
+     * The writer's next write fails.
+     */
+    public void close() {
+        INTS.setRelease(buffer, CLOSED, 1);
+    }
+
+}
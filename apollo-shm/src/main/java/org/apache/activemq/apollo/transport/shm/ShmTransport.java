@@ -0,0 +1,468 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.shm;
+
+import org.apache.activemq.apollo.transport.ProtocolCodec;
+import org.apache.activemq.apollo.transport.Transport;
+import org.apache.activemq.apollo.transport.TransportListener;
+import org.apache.activemq.apollo.util.JavaBaseService;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.DispatchQueue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * A transport which exchanges data with a process on the same host through
+ * a memory mapped file.  The file holds a small header and a
+ * {@link ShmRing} for each direction.  The protocol codec reads from the
+ * inbound ring and writes to the outbound ring just like it would read
+ * from and write to a socket.
+ * </p>
+ * <p>
+ * The client creates and initializes the file in the server's directory.
+ * The server maps it, marks it accepted and deletes it, so it goes away
+ * once both sides unmap it.  Read and write events come from the
+ * {@link ShmPoller}.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ShmTransport extends JavaBaseService implements Transport {
+
+    static final String SUFFIX = ".ring";
+
+    private static final int MAGIC = 0x53484d31;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int STATE_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int REQUESTED = 1;
+    private static final int ACCEPTED = 2;
+
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final File file;
+    private final MappedByteBuffer mapping;
+    private final ShmRing inbound;
+    private final ShmRing outbound;
+
+    private TransportListener listener;
+    private ProtocolCodec wireformat;
+    private DispatchQueue dispatchQueue;
+    private String remoteAddress;
+
+    private volatile boolean connecting;
+    private volatile boolean connected;
+    private volatile boolean failed;
+    private volatile boolean readSuspended;
+    private volatile boolean writeWaiting;
+    private long connectDeadline;
+    private long connectTimeout = 30*1000;
+
+    private final AtomicBoolean readScheduled = new AtomicBoolean();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+    private final Runnable DRAIN_INBOUND = new Runnable() {
+        public void run() {
+            readScheduled.set(false);
+            drainInbound();
+        }
+    };
+
+    private final Runnable DRAIN_OUTBOUND = new Runnable() {
+        public void run() {
+            writeScheduled.set(false);
+            drainOutbound();
+        }
+    };
+
+    private ShmTransport(File file, boolean client, MappedByteBuffer mapping, int capacity) {
+        this.file = file;
+        this.mapping = mapping;
+
+        ShmRing toServer = new ShmRing(slice(mapping, HEADER_SIZE, ShmRing.size(capacity)), capacity);
+        ShmRing toClient = new ShmRing(slice(mapping, HEADER_SIZE + ShmRing.size(capacity), ShmRing.size(capacity)), capacity);
+        this.inbound = client ? toClient : toServer;
+        this.outbound = client ? toServer : toClient;
+        this.remoteAddress = file.getPath();
+    }
+
+    /**
+     * Creates the file for a new connection in the server's directory.
+     *
+     * @param directory the directory the server is bound to.
+     * @param capacity the size of the ring in each direction, must be a power of 2.
+     */
+    public static ShmTransport connect(File directory, int capacity) throws IOException {
+        if( !directory.isDirectory() ) {
+            throw new IOException("Server is not bound: " + directory);
+        }
+        // the file gets renamed once it's initialized so the server never sees it half done.
+        File tmp = File.createTempFile("connection-", ".tmp", directory);
+        MappedByteBuffer mapping = map(tmp, HEADER_SIZE + 2 * ShmRing.size(capacity));
+        mapping.putInt(MAGIC_OFFSET, MAGIC);
+        mapping.putInt(CAPACITY_OFFSET, capacity);
+
+        ShmTransport transport = new ShmTransport(new File(directory, tmp.getName().replace(".tmp", SUFFIX)), true, mapping, capacity);
+        transport.inbound.init();
+        transport.outbound.init();
+        INTS.setRelease(mapping, STATE_OFFSET, REQUESTED);
+
+        if( !tmp.renameTo(transport.file) ) {
+            tmp.delete();
+            throw new IOException("Could not create the connection file: " + transport.file);
+        }
+        transport.connecting = true;
+        return transport;
+    }
+
+    /**
+     * Maps a connection file created by a client and accepts it.
+     */
+    static ShmTransport accept(File file) throws IOException {
+        MappedByteBuffer mapping = map(file, HEADER_SIZE);
+        if( mapping.getInt(MAGIC_OFFSET) != MAGIC || (int) INTS.getAcquire(mapping, STATE_OFFSET) != REQUESTED ) {
+            throw new IOException("Not a shared memory connection file: " + file);
+        }
+        int capacity = mapping.getInt(CAPACITY_OFFSET);
+        mapping = map(file, HEADER_SIZE + 2 * ShmRing.size(capacity));
+
+        ShmTransport transport = new ShmTransport(file, false, mapping, capacity);
+        INTS.setRelease(mapping, STATE_OFFSET, ACCEPTED);
+        // both sides have it mapped now, so the name is no longer needed.
+        file.delete();
+        transport.connected = true;
+        return transport;
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if( raf.length() < size ) {
+                raf.setLength(size);
+            }
+            MappedByteBuffer rc = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            rc.order(ByteOrder.nativeOrder());
+            return rc;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(offset);
+        dup.limit(offset + length);
+        return dup.slice();
+    }
+
+    public DispatchQueue getDispatchQueue() {
+        return dispatchQueue;
+    }
+
+    public void setDispatchQueue(DispatchQueue queue) {
+        if (dispatchQueue != null) {
+            dispatchQueue.release();
+        }
+        this.dispatchQueue = queue;
+        if (dispatchQueue != null) {
+            dispatchQueue.retain();
+        }
+    }
+
+    protected void _start(Runnable onCompleted) {
+        if (dispatchQueue == null) {
+            throw new IllegalArgumentException("dispatchQueue is not set");
+        }
+        connectDeadline = System.currentTimeMillis() + connectTimeout;
+        if( connected ) {
+            dispatchQueue.execute(new Runnable() {
+                public void run() {
+                    onConnected();
+                }
+            });
+        }
+        ShmPoller.DEFAULT.register(this);
+        if( onCompleted!=null ) {
+            onCompleted.run();
+        }
+    }
+
+    protected void _stop(Runnable onCompleted) {
+        ShmPoller.DEFAULT.unregister(this);
+        outbound.close();
+        inbound.close();
+        if( connecting ) {
+            // the server never picked it up.
+            connecting = false;
+            file.delete();
+        }
+        if( connected ) {
+            connected = false;
+            listener.onTransportDisconnected();
+        }
+        setDispatchQueue(null);
+        this.wireformat = null;
+        if( onCompleted!=null ) {
+            onCompleted.run();
+        }
+    }
+
+    private void onConnected() {
+        if (getServiceState() != STARTED) {
+            return;
+        }
+        connected = true;
+        listener.onTransportConnected();
+        drainInbound();
+    }
+
+    /**
+     * Called by the poller thread to check on the rings.
+     *
+     * @return true if there is activity on the transport.
+     */
+    boolean poll() {
+        if( failed ) {
+            return false;
+        }
+        if( connecting ) {
+            if( (int) INTS.getAcquire(mapping, STATE_OFFSET) == ACCEPTED ) {
+                connecting = false;
+                dispatchQueue.execute(new Runnable() {
+                    public void run() {
+                        onConnected();
+                    }
+                });
+                return true;
+            } else if( System.currentTimeMillis() > connectDeadline ) {
+                connecting = false;
+                failed = true;
+                dispatchQueue.execute(new Runnable() {
+                    public void run() {
+                        listener.onTransportFailure(new IOException("Timed out waiting for the server to accept the connection: " + file));
+                    }
+                });
+            }
+            return false;
+        }
+        if( !connected ) {
+            return false;
+        }
+
+        boolean busy = false;
+        if( !readSuspended && inbound.isReadable() ) {
+            busy = true;
+            if( readScheduled.compareAndSet(false, true) ) {
+                dispatchQueue.execute(DRAIN_INBOUND);
+            }
+        }
+        if( writeWaiting && outbound.isWritable() ) {
+            busy = true;
+            if( writeScheduled.compareAndSet(false, true) ) {
+                dispatchQueue.execute(DRAIN_OUTBOUND);
+            }
+        }
+        return busy;
+    }
+
+    public void onTransportFailure(IOException error) {
+        if( !failed ) {
+            failed = true;
+            listener.onTransportFailure(error);
+        }
+    }
+
+    public boolean full() {
+        return writeWaiting;
+    }
+
+    public boolean offer(Object command) {
+        assert Dispatch.getCurrentQueue() == dispatchQueue;
+        try {
+            if (!connected) {
+                throw new IOException("Not connected.");
+            }
+            if (getServiceState() != STARTED) {
+                throw new IOException("Not running.");
+            }
+
+            ProtocolCodec.BufferState rc = wireformat.write(command);
+            switch (rc ) {
+                case FULL:
+                    return false;
+                case WAS_EMPTY:
+                    // flush once the rest of the commands being processed have been written.
+                    if( writeScheduled.compareAndSet(false, true) ) {
+                        dispatchQueue.execute(DRAIN_OUTBOUND);
+                    }
+                default:
+                    return true;
+            }
+        } catch (IOException e) {
+            onTransportFailure(e);
+            return false;
+        }
+    }
+
+    private void drainOutbound() {
+        if (getServiceState() != STARTED || !connected || failed) {
+            return;
+        }
+        try {
+            long start = wireformat.getWriteCounter();
+            ProtocolCodec.BufferState rc = wireformat.flush();
+            if( wireformat.getWriteCounter() != start ) {
+                // a peer in this JVM may be parked.
+                ShmPoller.DEFAULT.wakeup();
+            }
+            if( rc == ProtocolCodec.BufferState.EMPTY ) {
+                writeWaiting = false;
+                listener.onRefill();
+            } else {
+                // the ring is full, the poller lets us know when the peer has made room.
+                writeWaiting = true;
+            }
+        } catch (IOException e) {
+            onTransportFailure(e);
+        }
+    }
+
+    private void drainInbound() {
+        if (!getServiceState().isStarted() || !connected || failed || readSuspended) {
+            return;
+        }
+        boolean delivered = false;
+        try {
+            Object command = wireformat.read();
+            while ( command!=null ) {
+                delivered = true;
+                try {
+                    listener.onTransportCommand(command);
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    onTransportFailure(new IOException("Transport listener failure."));
+                }
+
+                // the transport may be suspended after processing a command.
+                if (getServiceState() == STOPPED || readSuspended || failed) {
+                    break;
+                }
+
+                command = wireformat.read();
+            }
+        } catch (IOException e) {
+            onTransportFailure(e);
+        } finally {
+            // let the listener know we are done with this batch of commands.
+            if( delivered ) {
+                listener.onTransportCommandsDrained();
+            }
+        }
+    }
+
+    public void suspendRead() {
+        readSuspended = true;
+    }
+
+    public void resumeRead() {
+        readSuspended = false;
+        if( dispatchQueue!=null ) {
+            dispatchQueue.execute(new Runnable(){
+                public void run() {
+                    drainInbound();
+                }
+            });
+        }
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public <T> T narrow(Class<T> target) {
+        if (target.isAssignableFrom(getClass())) {
+            return target.cast(this);
+        }
+        return null;
+    }
+
+    public String getTypeId() {
+        return "shm";
+    }
+
+    public void reconnect(URI uri) {
+        throw new UnsupportedOperationException();
+    }
+
+    public TransportListener getTransportListener() {
+        return listener;
+    }
+
+    public void setTransportListener(TransportListener listener) {
+        this.listener = listener;
+    }
+
+    public ProtocolCodec getProtocolCodec() {
+        return wireformat;
+    }
+
+    public void setProtocolCodec(ProtocolCodec protocolCodec) {
+        this.wireformat = protocolCodec;
+        if( protocolCodec!=null ) {
+            protocolCodec.setReadableByteChannel(inbound);
+            protocolCodec.setWritableByteChannel(outbound);
+        }
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public boolean isDisposed() {
+        return getServiceState() == STOPPED;
+    }
+
+    public boolean isFaultTolerant() {
+        return false;
+    }
+
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets how many milliseconds a client waits for the server to accept
+     * the connection.
+     */
+    public void setConnectTimeout(long connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+}
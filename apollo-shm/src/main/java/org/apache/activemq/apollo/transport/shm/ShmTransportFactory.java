@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.shm;
+
+import java.io.File;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.activemq.apollo.transport.Transport;
+import org.apache.activemq.apollo.transport.TransportFactory;
+import org.apache.activemq.apollo.transport.TransportServer;
+import org.apache.activemq.apollo.util.IntrospectionSupport;
+import org.apache.activemq.apollo.util.URISupport;
+
+import static org.apache.activemq.apollo.transport.TransportFactorySupport.configure;
+import static org.apache.activemq.apollo.transport.TransportFactorySupport.verify;
+
+/**
+ * Creates shared memory transports for <code>shm:</code> locations.  The
+ * location's path is the directory the server is bound to, for example
+ * <code>shm:/var/run/apollo/shm?ringSize=4194304</code>.  The
+ * <code>ringSize</code> connect option sets the size of the ring in each
+ * direction.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ShmTransportFactory implements TransportFactory.Provider {
+
+    public static final int DEFAULT_RING_SIZE = 1024*1024;
+
+    public TransportServer bind(String location) throws Exception {
+        if( !location.startsWith("shm:") ) {
+            return null;
+        }
+
+        URI uri = new URI(location);
+        Map<String, String> options = new HashMap<String, String>(URISupport.parseParamters(uri));
+        ShmTransportServer server = new ShmTransportServer(uri);
+        IntrospectionSupport.setProperties(server, options);
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("Invalid bind parameters: " + options);
+        }
+        return server;
+    }
+
+    public Transport connect(String location) throws Exception {
+        if( !location.startsWith("shm:") ) {
+            return null;
+        }
+
+        URI uri = new URI(location);
+        Map<String, String> options = new HashMap<String, String>(URISupport.parseParamters(uri));
+
+        int ringSize = DEFAULT_RING_SIZE;
+        String value = options.remove("ringSize");
+        if( value!=null ) {
+            ringSize = Integer.parseInt(value);
+        }
+
+        ShmTransport transport = ShmTransport.connect(new File(uri.getPath()), ringSize);
+        configure(transport, options);
+        return verify(transport, options);
+    }
+
+}
@@ -0,0 +1,181 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.shm;
+
+import org.apache.activemq.apollo.transport.TransportAcceptListener;
+import org.apache.activemq.apollo.transport.TransportServer;
+import org.fusesource.hawtdispatch.DispatchQueue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A transport server which accepts shared memory connections.  It's bound
+ * to a directory and clients connect by creating connection files in it.
+ * The directory is checked for new connection files every accept interval.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ShmTransportServer implements TransportServer {
+
+    private final URI bindURI;
+    private final File directory;
+    private TransportAcceptListener listener;
+    private DispatchQueue dispatchQueue;
+    private long acceptInterval = 10;
+
+    private boolean running;
+    private int suspended;
+
+    public ShmTransportServer(URI location) {
+        this.bindURI = location;
+        this.directory = new File(location.getPath());
+    }
+
+    public void setAcceptListener(TransportAcceptListener listener) {
+        this.listener = listener;
+    }
+
+    public URI getConnectURI() {
+        return bindURI;
+    }
+
+    public InetSocketAddress getSocketAddress() {
+        return null;
+    }
+
+    public DispatchQueue getDispatchQueue() {
+        return dispatchQueue;
+    }
+
+    public void setDispatchQueue(DispatchQueue dispatchQueue) {
+        this.dispatchQueue = dispatchQueue;
+    }
+
+    public void suspend() {
+        dispatchQueue.execute(new Runnable() {
+            public void run() {
+                suspended++;
+            }
+        });
+    }
+
+    public void resume() {
+        dispatchQueue.execute(new Runnable() {
+            public void run() {
+                suspended--;
+                if( suspended==0 ) {
+                    accept();
+                }
+            }
+        });
+    }
+
+    public void start() throws Exception {
+        start(null);
+    }
+
+    public void start(Runnable onCompleted) throws Exception {
+        directory.mkdirs();
+        if( !directory.isDirectory() ) {
+            throw new IOException("Not a directory: " + directory);
+        }
+        // connection files left behind by a previous run are stale.
+        File[] files = directory.listFiles();
+        if( files!=null ) {
+            for (File file : files) {
+                if( file.getName().endsWith(ShmTransport.SUFFIX) ) {
+                    file.delete();
+                }
+            }
+        }
+        dispatchQueue.execute(new Runnable() {
+            public void run() {
+                running = true;
+                schedule();
+            }
+        });
+        if( onCompleted!=null ) {
+            dispatchQueue.execute(onCompleted);
+        }
+    }
+
+    public void stop() throws Exception {
+        stop(null);
+    }
+
+    public void stop(final Runnable onCompleted) throws Exception {
+        dispatchQueue.execute(new Runnable() {
+            public void run() {
+                running = false;
+                if( onCompleted!=null ) {
+                    onCompleted.run();
+                }
+            }
+        });
+    }
+
+    private void schedule() {
+        dispatchQueue.dispatchAfter(acceptInterval, TimeUnit.MILLISECONDS, new Runnable() {
+            public void run() {
+                if( running ) {
+                    accept();
+                    schedule();
+                }
+            }
+        });
+    }
+
+    private void accept() {
+        if( !running || suspended > 0 ) {
+            return;
+        }
+        File[] files = directory.listFiles();
+        if( files==null ) {
+            return;
+        }
+        for (File file : files) {
+            if( file.getName().endsWith(ShmTransport.SUFFIX) ) {
+                try {
+                    listener.onAccept(ShmTransport.accept(file));
+                } catch (IOException e) {
+                    file.delete();
+                    listener.onAcceptError(e);
+                }
+            }
+        }
+    }
+
+    public long getAcceptInterval() {
+        return acceptInterval;
+    }
+
+    /**
+     * Sets how many milliseconds to wait between checks for new connections.
+     */
+    public void setAcceptInterval(long acceptInterval) {
+        this.acceptInterval = acceptInterval;
+    }
+
+    public String toString() {
+        return "" + bindURI;
+    }
+
+}
@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.shm;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests reading and writing a ring, from one thread and from a producer
+ * and a consumer thread.
+ */
+public class ShmRingTest extends TestCase {
+
+    private ShmRing ring(int capacity) {
+        ShmRing rc = new ShmRing(ByteBuffer.allocateDirect(ShmRing.size(capacity)), capacity);
+        rc.init();
+        return rc;
+    }
+
+    private static ByteBuffer bytes(int start, int count) {
+        ByteBuffer rc = ByteBuffer.allocate(count);
+        for( int i=0; i < count; i++ ) {
+            rc.put((byte) (start + i));
+        }
+        rc.flip();
+        return rc;
+    }
+
+    private static ByteBuffer read(ShmRing ring, int size) throws Exception {
+        ByteBuffer rc = ByteBuffer.allocate(size);
+        ring.read(rc);
+        rc.flip();
+        return rc;
+    }
+
+    public void testTheCapacityMustBeAPowerOf2() {
+        try {
+            new ShmRing(ByteBuffer.allocateDirect(ShmRing.size(100)), 100);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testDataWrapsAroundTheEndOfTheRing() throws Exception {
+        ShmRing ring = ring(16);
+        assertEquals(10, ring.write(bytes(0, 10)));
+        assertEquals(bytes(0, 10), read(ring, 10));
+
+        // starts at offset 10, so it wraps to the start of the ring.
+        assertEquals(12, ring.write(bytes(10, 12)));
+        assertEquals(bytes(10, 12), read(ring, 12));
+        assertFalse(ring.isReadable());
+    }
+
+    public void testFullAndEmpty() throws Exception {
+        ShmRing ring = ring(16);
+        assertFalse(ring.isReadable());
+        assertTrue(ring.isWritable());
+        assertEquals(0, ring.read(ByteBuffer.allocate(8)));
+
+        ByteBuffer src = bytes(0, 20);
+        assertEquals(16, ring.write(src));
+        assertEquals(4, src.remaining());
+        assertFalse(ring.isWritable());
+        assertEquals(0, ring.write(src));
+
+        assertEquals(bytes(0, 4), read(ring, 4));
+        assertTrue(ring.isWritable());
+        assertEquals(4, ring.write(src));
+        assertEquals(bytes(4, 16), read(ring, 32));
+        assertFalse(ring.isReadable());
+    }
+
+    public void testPendingDataIsReadAfterTheClose() throws Exception {
+        ShmRing ring = ring(16);
+        ring.write(bytes(0, 5));
+        ring.close();
+        assertFalse(ring.isOpen());
+
+        try {
+            ring.write(bytes(5, 1));
+            fail("expected ClosedChannelException");
+        } catch (ClosedChannelException e) {
+        }
+
+        assertTrue(ring.isReadable());
+        assertEquals(bytes(0, 5), read(ring, 16));
+        assertEquals(-1, ring.read(ByteBuffer.allocate(16)));
+    }
+
+    public void testProducerAndConsumerThreads() throws Exception {
+        final ShmRing ring = ring(1024);
+        final int total = 4*1024*1024;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread producer = new Thread("producer") {
+            public void run() {
+                try {
+                    // odd sized writes so they don't line up with the ring's end.
+                    ByteBuffer src = ByteBuffer.allocate(333);
+                    int written = 0;
+                    while( written < total ) {
+                        src.clear();
+                        while( src.hasRemaining() && written + src.position() < total ) {
+                            src.put((byte) ((written + src.position()) % 251));
+                        }
+                        src.flip();
+                        while( src.hasRemaining() ) {
+                            written += ring.write(src);
+                            Thread.onSpinWait();
+                        }
+                    }
+                    ring.close();
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+
+        producer.start();
+        ByteBuffer dst = ByteBuffer.allocate(500);
+        int read = 0;
+        int count;
+        while( (count = ring.read(dst)) >= 0 ) {
+            dst.flip();
+            while( dst.hasRemaining() ) {
+                assertEquals("at byte " + read, (byte) (read % 251), dst.get());
+                read++;
+            }
+            dst.clear();
+            if( count == 0 ) {
+                Thread.onSpinWait();
+            }
+        }
+        producer.join(10000);
+        assertNull(failure.get());
+        assertEquals(total, read);
+    }
+
+}
@@ -0,0 +1,246 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.shm;
+
+import junit.framework.TestCase;
+import org.apache.activemq.apollo.transport.ProtocolCodec;
+import org.apache.activemq.apollo.transport.Transport;
+import org.apache.activemq.apollo.transport.TransportAcceptListener;
+import org.apache.activemq.apollo.transport.TransportListener;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdispatch.Dispatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects a client to a server through a shared memory file and
+ * exchanges a few commands.
+ */
+public class ShmTransportTest extends TestCase {
+
+    /**
+     * A codec which reads and writes new line terminated strings.
+     */
+    static class LineCodec implements ProtocolCodec {
+        ReadableByteChannel readChannel;
+        WritableByteChannel writeChannel;
+        final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        ByteBuffer writeBuffer = ByteBuffer.allocate(0);
+        long writeCounter;
+
+        public String protocol() {
+            return "line";
+        }
+
+        public void setReadableByteChannel(ReadableByteChannel channel) {
+            readChannel = channel;
+        }
+
+        public Object read() throws IOException {
+            while( true ) {
+                byte[] data = pending.toByteArray();
+                for( int i=0; i < data.length; i++ ) {
+                    if( data[i]=='\n' ) {
+                        pending.reset();
+                        pending.write(data, i+1, data.length-i-1);
+                        return new String(data, 0, i, "UTF-8");
+                    }
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(64);
+                int count = readChannel.read(buffer);
+                if( count < 0 ) {
+                    throw new EOFException();
+                }
+                if( count == 0 ) {
+                    return null;
+                }
+                pending.write(buffer.array(), 0, count);
+            }
+        }
+
+        public void unread(Buffer buffer) {
+            pending.write(buffer.data, buffer.offset, buffer.length);
+        }
+
+        public long getReadCounter() {
+            return 0;
+        }
+
+        public void setWritableByteChannel(WritableByteChannel channel) {
+            writeChannel = channel;
+        }
+
+        public BufferState write(Object value) throws IOException {
+            boolean wasEmpty = !writeBuffer.hasRemaining();
+            byte[] line = (value+"\n").getBytes("UTF-8");
+            ByteBuffer next = ByteBuffer.allocate(writeBuffer.remaining()+line.length);
+            next.put(writeBuffer).put(line).flip();
+            writeBuffer = next;
+            return wasEmpty ? BufferState.WAS_EMPTY : BufferState.NOT_EMPTY;
+        }
+
+        public BufferState flush() throws IOException {
+            writeCounter += writeChannel.write(writeBuffer);
+            return writeBuffer.hasRemaining() ? BufferState.NOT_EMPTY : BufferState.EMPTY;
+        }
+
+        public long getWriteCounter() {
+            return writeCounter;
+        }
+
+        public int getBufferFootprint() {
+            return 0;
+        }
+    }
+
+    /**
+     * Collects the commands a transport receives.
+     */
+    static class RecordingListener implements TransportListener {
+        final LinkedBlockingQueue<Object> commands = new LinkedBlockingQueue<Object>();
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        Transport transport;
+
+        public void onTransportCommand(Object command) {
+            commands.add(command);
+        }
+        public void onTransportCommandsDrained() {
+        }
+        public void onRefill() {
+        }
+        public void onTransportFailure(IOException error) {
+            error.printStackTrace();
+        }
+        public void onTransportConnected() {
+            connected.countDown();
+        }
+        public void onTransportDisconnected() {
+            disconnected.countDown();
+        }
+    }
+
+    /**
+     * Sends every command it receives back.
+     */
+    static class EchoListener extends RecordingListener {
+        public void onTransportCommand(Object command) {
+            transport.offer(command);
+        }
+    }
+
+    private File directory;
+    private ShmTransportServer server;
+    private final LinkedBlockingQueue<ShmTransport> accepted = new LinkedBlockingQueue<ShmTransport>();
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("shm").toFile();
+        server = new ShmTransportServer(new URI("shm:" + directory.getPath()));
+        server.setDispatchQueue(Dispatch.createQueue("server"));
+        server.setAcceptListener(new TransportAcceptListener() {
+            public void onAccept(Transport transport) {
+                EchoListener listener = new EchoListener();
+                listener.transport = transport;
+                transport.setDispatchQueue(Dispatch.createQueue("accepted"));
+                transport.setProtocolCodec(new LineCodec());
+                transport.setTransportListener(listener);
+                try {
+                    transport.start();
+                } catch (Exception e) {
+                    onAcceptError(e);
+                }
+                accepted.add((ShmTransport) transport);
+            }
+            public void onAcceptError(Exception error) {
+                error.printStackTrace();
+            }
+        });
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+        directory.delete();
+    }
+
+    private void stop(Transport transport) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        transport.stop(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testConnectAndExchangeCommands() throws Exception {
+        final ShmTransport client = ShmTransport.connect(directory, 1024);
+        RecordingListener listener = new RecordingListener();
+        client.setDispatchQueue(Dispatch.createQueue("client"));
+        client.setProtocolCodec(new LineCodec());
+        client.setTransportListener(listener);
+        client.start();
+
+        assertTrue(listener.connected.await(5, TimeUnit.SECONDS));
+        ShmTransport serverSide = accepted.poll(5, TimeUnit.SECONDS);
+        assertNotNull(serverSide);
+        // the server deletes the connection file once it has it mapped.
+        assertEquals(0, directory.listFiles().length);
+
+        client.getDispatchQueue().execute(new Runnable() {
+            public void run() {
+                // bigger than the ring so it has to wait for the peer to make room.
+                StringBuilder big = new StringBuilder();
+                while( big.length() < 3000 ) {
+                    big.append("x");
+                }
+                client.offer("hello");
+                client.offer(big.toString());
+                client.offer("world");
+            }
+        });
+        assertEquals("hello", listener.commands.poll(5, TimeUnit.SECONDS));
+        assertEquals(3000, ((String) listener.commands.poll(5, TimeUnit.SECONDS)).length());
+        assertEquals("world", listener.commands.poll(5, TimeUnit.SECONDS));
+
+        assertTrue(ShmPoller.DEFAULT.isPolling());
+        stop(client);
+        stop(serverSide);
+        assertTrue(listener.disconnected.await(5, TimeUnit.SECONDS));
+
+        // the poller thread goes away with the last transport.
+        long deadline = System.currentTimeMillis() + 5000;
+        while( ShmPoller.DEFAULT.isPolling() && System.currentTimeMillis() < deadline ) {
+            Thread.sleep(10);
+        }
+        assertFalse(ShmPoller.DEFAULT.isPolling());
+    }
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp
+
+import _root_.org.fusesource.hawtdispatch.DispatchQueue
+import _root_.org.fusesource.hawtdispatch.ScalaDispatch._
+import _root_.org.fusesource.hawtbuf._
+import collection.mutable.ListBuffer
+import org.apache.activemq.apollo.store.StoreUOW
+import Stomp._
+import StompFrameConstants._
+
+/**
+ * <p>
+ * Tracks the receipts a STOMP connection has to send.  A SEND's receipt
+ * completes once its store unit of work does, which can be on a store
+ * thread.  The completions are passed back to the connection's queue and
+ * sent out by a single task, so the receipts completed by the same store
+ * flush go out as one write.
+ * </p>
+ * <p>
+ * Clients which connect with a 'receipt-mode:cumulative' header get at
+ * most one RECEIPT frame per flush.  It acknowledges the receipt it names
+ * and all the receipts requested before it, so the receipts of the other
+ * commands go through the tracker too.
+ * </p>
+ * <p>
+ * Only used from the connection's dispatch queue.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ReceiptTracker(val queue:DispatchQueue)(send:(AsciiBuffer)=>Unit) {
+
+  class PendingReceipt(val id:AsciiBuffer) {
+    var completed = false
+  }
+
+  var cumulative = false
+  // in cumulative mode, the receipts in the order they were requested.
+  val pending_receipts = new java.util.LinkedList[PendingReceipt]()
+  val completed_receipts = ListBuffer[AsciiBuffer]()
+  var flush_scheduled = false
+
+  /**
+   * Switches to cumulative receipts if the CONNECT frame asked for them.
+   *
+   * @return the headers the CONNECTED frame has to echo back.
+   */
+  def negotiate(connect_headers:HeaderMap):HeaderMap = {
+    val mode = connect_headers.find( _._1 == Headers.Connect.RECEIPT_MODE ).map( _._2 )
+    if( mode == Some(Headers.Connect.ReceiptModeValues.CUMULATIVE) ) {
+      cumulative = true
+      List((Headers.Connected.RECEIPT_MODE, Headers.Connect.ReceiptModeValues.CUMULATIVE))
+    } else {
+      Nil
+    }
+  }
+
+  /**
+   * @return the callback which completes the receipt.  It can be executed
+   *         from any thread.
+   */
+  def track(receipt:AsciiBuffer):(StoreUOW)=>Unit = {
+    if( cumulative ) {
+      val pending = new PendingReceipt(receipt)
+      pending_receipts.addLast(pending)
+      (uow:StoreUOW) => queue {
+        pending.completed = true
+        schedule_flush
+      }
+    } else {
+      (uow:StoreUOW) => queue {
+        completed_receipts += receipt
+        schedule_flush
+      }
+    }
+  }
+
+  def schedule_flush = {
+    if( !flush_scheduled ) {
+      flush_scheduled = true
+      queue {
+        flush
+      }
+    }
+  }
+
+  def flush:Unit = {
+    flush_scheduled = false
+    if( cumulative ) {
+      var last:AsciiBuffer = null
+      while( !pending_receipts.isEmpty && pending_receipts.getFirst.completed ) {
+        last = pending_receipts.removeFirst.id
+      }
+      if( last!=null ) {
+        send(last)
+      }
+    } else {
+      completed_receipts.foreach( send(_) )
+      completed_receipts.clear
+    }
+  }
+
+}
@@ -66,6 +66,9 @@ public interface Stomp {
         AsciiBuffer TRANSFORMATION = new AsciiBuffer("transformation");
         AsciiBuffer TRANSFORMATION_ERROR = new AsciiBuffer("transformation-error");
 
+        // set on SEND frames whose large bodies should be spooled to disk as they are read.
+        AsciiBuffer CHUNKED = new AsciiBuffer("chunked");
+
         public interface Response {
             AsciiBuffer RECEIPT_ID = new AsciiBuffer("receipt-id");
         }
@@ -116,6 +119,13 @@ public interface Stomp {
             AsciiBuffer PASSCODE = new AsciiBuffer("passcode");
             AsciiBuffer CLIENT_ID = new AsciiBuffer("client-id");
             AsciiBuffer REQUEST_ID = new AsciiBuffer("request-id");
+            AsciiBuffer RECEIPT_MODE = new AsciiBuffer("receipt-mode");
+
+            public interface ReceiptModeValues {
+                AsciiBuffer INDIVIDUAL = new AsciiBuffer("individual");
+                // a receipt acknowledges every receipt requested before it too.
+                AsciiBuffer CUMULATIVE = new AsciiBuffer("cumulative");
+            }
         }
 
         public interface Error {
@@ -125,6 +135,7 @@ public interface Stomp {
         public interface Connected {
             AsciiBuffer SESSION = new AsciiBuffer("session");
             AsciiBuffer RESPONSE_ID = new AsciiBuffer("response-id");
+            AsciiBuffer RECEIPT_MODE = new AsciiBuffer("receipt-mode");
         }
 
         public interface Ack {
@@ -21,6 +21,7 @@ import java.io.File
 import org.apache.activemq.apollo.dto.{CassandraStoreDTO, HawtDBStoreDTO}
 import org.apache.activemq.apollo.util._
 import org.apache.activemq.apollo.store.bdb.dto.BDBStoreDTO
+import org.apache.activemq.apollo.store.journal.dto.JournalStoreDTO
 
 /**
  */
@@ -62,6 +63,11 @@ object StompBroker {
         rc.directory = new File("activemq-data")
         rc
 
+      case "journal" =>
+        val rc = new JournalStoreDTO
+        rc.directory = new File("activemq-data")
+        rc
+
       case "cassandra" =>
         val rc = new CassandraStoreDTO
         rc.hosts.add("localhost:9160")
@@ -26,8 +26,8 @@ import Stomp.Headers._
 import BufferConversions._
 import _root_.scala.collection.JavaConversions._
 import StompFrameConstants._
-import java.io.{EOFException, DataOutput, DataInput, IOException}
-import java.nio.channels.{SocketChannel, WritableByteChannel, ReadableByteChannel}
+import java.io.{EOFException, DataOutput, DataInput, IOException, File, RandomAccessFile}
+import java.nio.channels.{GatheringByteChannel, SocketChannel, WritableByteChannel, ReadableByteChannel}
 import org.apache.activemq.apollo.transport._
 import org.apache.activemq.apollo.store.MessageRecord
 import _root_.org.fusesource.hawtbuf._
@@ -36,6 +36,8 @@ import org.apache.activemq.apollo.util._
 
 object StompCodec extends Log {
     val READ_BUFFFER_SIZE = 1024*64;
+    val EMPTY_SEGMENTS = new Array[ByteBuffer](0)
+    val GATHER_THRESHOLD = 1024
     val MAX_COMMAND_LENGTH = 1024;
     val MAX_HEADER_LENGTH = 1024 * 10;
     val MAX_HEADERS = 1000;
@@ -56,6 +58,29 @@ object StompCodec extends Log {
       rc.direct_buffer = frame.content.asInstanceOf[DirectContent].direct_buffer
     }
 
+    if( frame.are_headers_in_content_buffer ) {
+      // The original headers and content can be stored as the slice of the
+      // buffer they were received in.  Only the action and updated headers
+      // need to get encoded into the header delta.
+      val delta = new ByteArrayOutputStream(frame.action.length + 1 + frame.size_of_updated_headers + 1)
+      frame.action.writeTo(delta)
+      delta.write(NEWLINE)
+      for( (key, value) <- frame.updated_headers ) {
+        key.writeTo(delta)
+        delta.write(SEPERATOR)
+        value.writeTo(delta)
+        delta.write(NEWLINE)
+      }
+      delta.write(NEWLINE)
+      rc.header_delta = delta.toBuffer
+
+      val buffer1 = frame.headers.head._1;
+      val buffer2 = frame.content.asInstanceOf[BufferContent].content;
+      val length = (buffer2.offset-buffer1.offset)+buffer2.length
+      rc.buffer = new Buffer(buffer1.data, buffer1.offset, length)
+      return rc
+    }
+
     def buffer_size = if (rc.direct_buffer!=null) { frame.size - (rc.direct_buffer.size - 1) } else { frame.size }
     val os = new ByteArrayOutputStream(buffer_size)
 
@@ -72,56 +97,99 @@ object StompCodec extends Log {
       }
     }
 
-    // we can optimize a little if the headers and content are in the same buffer..
-    if( frame.are_headers_in_content_buffer ) {
-
-      val offset = frame.headers.head._1.offset;
-      val buffer1 = frame.headers.head._1;
-      val buffer2 = frame.content.asInstanceOf[BufferContent].content;
-      val length = (buffer2.offset-buffer1.offset)+buffer2.length
-      os.write( buffer1.data, offset, length)
-
-    } else {
-      for( (key, value) <- frame.headers ) {
-        key.writeTo(os)
-        os.write(SEPERATOR)
-        value.writeTo(os)
-        os.write(NEWLINE)
-      }
+    for( (key, value) <- frame.headers ) {
+      key.writeTo(os)
+      os.write(SEPERATOR)
+      value.writeTo(os)
       os.write(NEWLINE)
-      if ( rc.direct_buffer==null ) {
-        frame.content.writeTo(os)
-      }
+    }
+    os.write(NEWLINE)
+    if ( rc.direct_buffer==null ) {
+      frame.content.writeTo(os)
     }
     rc.buffer = os.toBuffer
     rc
   }
 
   def decode(message: MessageRecord):StompFrameMessage = {
-
-    val buffer = message.buffer.buffer
-    def read_line = {
-      val pos = buffer.indexOf('\n'.toByte)
-      if( pos<0 ) {
-        throw new IOException("expected a new line")
-      } else {
-        val rc = buffer.slice(0, pos).ascii
-        buffer.offset += (pos+1)
-        buffer.length -= (pos+1)
-        rc
+    if( message.file_region!=null ) {
+      // the store only gave us the start of the frame, the rest is in a file.
+      val region = message.file_region
+      val buffer = message.buffer.buffer
+      val start = buffer.offset
+      try {
+        val (action, headers, updated_headers) = decode_head(message.header_delta, buffer)
+        val consumed = buffer.offset - start
+        new StompFrameMessage(new StompFrame(action, headers.toList, FileContent(region.slice(consumed, region.length-consumed)), updated_headers.toList))
+      } catch {
+        case e:IOException=>
+          // the headers did not fit in the head buffer, load it all.
+          try {
+            decode_frame(message.header_delta, region.read, null)
+          } finally {
+            region.release
+          }
       }
+    } else {
+      decode_frame(message.header_delta, message.buffer, message.direct_buffer)
     }
+  }
 
+  private def decode_frame(header_delta:Buffer, record:Buffer, direct_buffer:DirectBuffer):StompFrameMessage = {
+    val buffer = record.buffer
+    val (action, headers, updated_headers) = decode_head(header_delta, buffer)
+    if( direct_buffer==null ) {
+      new StompFrameMessage(new StompFrame(action, headers.toList, BufferContent(buffer), updated_headers.toList))
+    } else {
+      new StompFrameMessage(new StompFrame(action, headers.toList, DirectContent(direct_buffer), updated_headers.toList))
+    }
+  }
 
-    val action = if( TRIM ) {
-        read_line.trim()
-      } else {
-        read_line
-      }
+  /**
+   * Parses the action and headers, leaving the buffer positioned at the
+   * start of the content.  When the record has a header delta, the delta
+   * holds the action and the updated headers, and the buffer starts with
+   * the original headers.
+   */
+  private def decode_head(header_delta:Buffer, buffer:Buffer):(AsciiBuffer, HeaderMapBuffer, HeaderMapBuffer) = {
+    if( header_delta==null ) {
+      val action = decode_action(buffer)
+      (action, decode_headers(buffer), new HeaderMapBuffer())
+    } else {
+      val delta = header_delta.buffer
+      val action = decode_action(delta)
+      val updated_headers = decode_headers(delta)
+      (action, decode_headers(buffer), updated_headers)
+    }
+  }
+
+  private def decode_line(buffer:Buffer) = {
+    val pos = buffer.indexOf('\n'.toByte)
+    if( pos<0 ) {
+      throw new IOException("expected a new line")
+    } else {
+      val rc = buffer.slice(0, pos).ascii
+      buffer.offset += (pos+1)
+      buffer.length -= (pos+1)
+      rc
+    }
+  }
+
+  private def decode_action(buffer:Buffer) = {
+    if( TRIM ) {
+      decode_line(buffer).trim()
+    } else {
+      decode_line(buffer)
+    }
+  }
 
+  /**
+   * Parses header lines up to and including the blank line which ends them.
+   */
+  private def decode_headers(buffer:Buffer):HeaderMapBuffer = {
     val headers = new HeaderMapBuffer()
 
-    var line = read_line
+    var line = decode_line(buffer)
     while( line.length() > 0 ) {
       try {
           val seperatorIndex = line.indexOf(SEPERATOR)
@@ -142,14 +210,9 @@ object StompCodec extends Log {
             e.printStackTrace
             throw new IOException("Unable to parser header line [" + line + "]")
       }
-      line = read_line
-    }
-
-    if( message.direct_buffer==null ) {
-      new StompFrameMessage(new StompFrame(action, headers.toList, BufferContent(buffer)))
-    } else {
-      new StompFrameMessage(new StompFrame(action, headers.toList, DirectContent(message.direct_buffer)))
+      line = decode_line(buffer)
     }
+    headers
   }
 
 }
@@ -161,6 +224,35 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
 
   var memory_pool:DirectBufferPool = null
 
+  /**
+   * The read and write buffers are borrowed from this pool while data is
+   * in flight and are given back when the connection goes idle.
+   */
+  var buffer_pool = BufferPool.DEFAULT
+
+  /**
+   * The bodies of SEND frames with a 'chunked:true' header which are bigger
+   * than this get read in pieces of this size and spooled to a file.
+   */
+  var chunk_size = 1024*1024
+
+  /**
+   * Where the bodies of chunked SEND frames get spooled to.
+   */
+  var spool_directory = new File(System.getProperty("java.io.tmpdir"))
+
+  /**
+   * Chunked SEND frames with a bigger body than this are rejected so that
+   * a client can't fill up the spool directory.
+   */
+  var max_spool_size = Integer.getInteger("apollo.stomp.max_spool_size", MAX_DATA_LENGTH).intValue
+
+  /**
+   * The file the body of the chunked SEND frame being read is spooled to.
+   */
+  var spool_file:File = null
+  var spool:RandomAccessFile = null
+
   implicit def wrap(x: Buffer) = ByteBuffer.wrap(x.data, x.offset, x.length);
   implicit def wrap(x: Byte) = {
     ByteBuffer.wrap(Array(x));
@@ -179,21 +271,67 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
   var write_counter = 0L
   var write_channel:WritableByteChannel = null
 
-  var next_write_buffer = new DataByteArrayOutputStream(write_buffer_size)
+  // the write buffers are only allocated while there is data to be written.
+  var next_write_size = 1024
+  var next_write_buffer:DataByteArrayOutputStream = null
   var next_write_direct:ByteBuffer = null
   var next_write_direct_frame:StompFrame = null
 
-  var write_buffer = ByteBuffer.allocate(0)
+  // large content buffers are not copied into the write buffer, instead
+  // the write buffer gets cut into segments around references to them.
+  var next_write_segments = List[ByteBuffer]()
+  var next_write_mark = 0
+  var next_write_gathered = 0
+
+  var write_segments = EMPTY_SEGMENTS
+  var write_segment = 0
+  var write_pooled:Array[Byte] = null
   var write_direct:ByteBuffer = null
   var write_direct_frame:StompFrame = null
 
-  def is_full = next_write_direct!=null || next_write_buffer.size() >= (write_buffer_size >> 2)
-  def is_empty = write_buffer.remaining() == 0 && write_direct==null
+  // receipts are staged in their own buffer so they can be written out
+  // ahead of the staged MESSAGE frames.  They only wait for the write which
+  // is already in progress.
+  var next_control_buffer:DataByteArrayOutputStream = null
+
+  // file content gets transferred straight from the file to the channel.
+  var next_write_file:FileRegion = null
+  var next_write_file_frame:StompFrame = null
+  var write_file:FileRegion = null
+  var write_file_frame:StompFrame = null
+  var write_file_position = 0L
+  var write_file_trailer:ByteBuffer = null
+
+  def is_full = next_write_direct!=null || next_write_file!=null || (next_write_buffer!=null && next_write_buffer.size()+next_write_gathered >= (write_buffer_size >> 2))
+  def is_empty = write_segment == write_segments.length && write_direct==null && write_file==null
+  def is_control_full = next_control_buffer!=null && next_control_buffer.size() >= (write_buffer_size >> 2)
+
+  /**
+   * The frames which may be written out ahead of the staged MESSAGE frames.
+   * The broker only sends receipts for SEND frames, and those are not
+   * ordered against the messages it delivers.  Every other frame, an ERROR
+   * in particular, has to stay behind the MESSAGE frames staged before it.
+   */
+  def is_control(frame:StompFrame) = {
+    frame.action == Responses.RECEIPT && (frame.content eq NilContent)
+  }
+
+  def borrow_write_buffer(size:Int) = {
+    val pooled = buffer_pool.borrow(size)
+    new DataByteArrayOutputStream(0) {
+      buf = pooled
+    }
+  }
 
   def setWritableByteChannel(channel: WritableByteChannel) = {
     this.write_channel = channel
     if( this.write_channel.isInstanceOf[SocketChannel] ) {
-      this.write_channel.asInstanceOf[SocketChannel].socket().setSendBufferSize(write_buffer_size);
+      try {
+        this.write_channel.asInstanceOf[SocketChannel].socket().setSendBufferSize(write_buffer_size);
+      } catch {
+        // unix domain socket channels don't have a socket to size.
+        case e:UnsupportedOperationException =>
+      }
     }
   }
 
@@ -201,11 +339,17 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
 
 
   def write(command: Any):ProtocolCodec.BufferState =  {
-    if ( is_full) {
+    val frame = command.asInstanceOf[StompFrame]
+    if( is_control(frame) ) {
+      write_control(frame)
+    } else if ( is_full) {
       ProtocolCodec.BufferState.FULL
     } else {
       val was_empty = is_empty
-      encode(command.asInstanceOf[StompFrame], next_write_buffer);
+      if( next_write_buffer==null ) {
+        next_write_buffer = borrow_write_buffer(next_write_size)
+      }
+      encode(frame);
       if( was_empty ) {
         ProtocolCodec.BufferState.WAS_EMPTY
       } else {
@@ -214,7 +358,67 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
     }
   }
 
-  def encode(frame:StompFrame, os:DataOutput) = {
+  /**
+   * Receipts are accepted even when the MESSAGE frames have filled up the
+   * write buffer.
+   */
+  def write_control(frame:StompFrame):ProtocolCodec.BufferState = {
+    if ( is_control_full ) {
+      ProtocolCodec.BufferState.FULL
+    } else {
+      val was_empty = is_empty
+      if( next_control_buffer==null ) {
+        next_control_buffer = borrow_write_buffer(512)
+      }
+      val os = next_control_buffer
+      frame.action.writeTo(os)
+      os.write(NEWLINE)
+      write_headers(os, frame.updated_headers)
+      write_headers(os, frame.headers)
+      os.write(NEWLINE)
+      frame.content.writeTo(os)
+      END_OF_FRAME_BUFFER.writeTo(os)
+      if( was_empty ) {
+        ProtocolCodec.BufferState.WAS_EMPTY
+      } else {
+        ProtocolCodec.BufferState.NOT_EMPTY
+      }
+    }
+  }
+
+  def write_headers(os:DataByteArrayOutputStream, headers:HeaderMap) = {
+    for( (key, value) <- headers ) {
+      key.writeTo(os)
+      os.write(SEPERATOR)
+      value.writeTo(os)
+      os.write(NEWLINE)
+    }
+  }
+
+  /**
+   * Content buffers smaller than the threshold get copied into the write
+   * buffer, bigger ones are written out straight from where they are.
+   */
+  def gather(buffer:Buffer) = {
+    if( buffer.length >= GATHER_THRESHOLD ) {
+      cut_write_segment
+      next_write_segments ::= buffer.toByteBuffer
+      next_write_gathered += buffer.length
+    } else {
+      buffer.writeTo(next_write_buffer)
+    }
+  }
+
+  def cut_write_segment = {
+    val pos = next_write_buffer.size
+    if( pos > next_write_mark ) {
+      next_write_segments ::= ByteBuffer.wrap(next_write_buffer.getData, next_write_mark, pos-next_write_mark)
+      next_write_mark = pos
+    }
+  }
+
+  def encode(frame:StompFrame) = {
+    val os = next_write_buffer
     frame.action.writeTo(os)
     os.write(NEWLINE)
 
@@ -235,7 +439,7 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
       val buffer1 = frame.headers.head._1;
       val buffer2 = frame.content.asInstanceOf[BufferContent].content;
       val length = (buffer2.offset-buffer1.offset)+buffer2.length
-      os.write( buffer1.data, offset, length)
+      gather( new Buffer(buffer1.data, offset, length) )
       END_OF_FRAME_BUFFER.writeTo(os)
 
     } else {
@@ -252,8 +456,12 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
           next_write_direct = x.direct_buffer.buffer.duplicate
           next_write_direct.clear
           next_write_direct_frame = frame
+        case x:FileContent=>
+          // the end of frame gets written once the file has been transferred.
+          next_write_file = x.region
+          next_write_file_frame = frame
         case x:BufferContent=>
-          x.content.writeTo(os)
+          gather(x.content)
           END_OF_FRAME_BUFFER.writeTo(os)
         case _=>
           END_OF_FRAME_BUFFER.writeTo(os)
@@ -261,14 +469,57 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
     }
   }
 
+  def write_segments_out = {
+    write_channel match {
+      case channel:GatheringByteChannel =>
+        write_counter += channel.write(write_segments, write_segment, write_segments.length-write_segment)
+        while( write_segment < write_segments.length && write_segments(write_segment).remaining==0 ) {
+          write_segment += 1
+        }
+      case channel =>
+        var done = false
+        while( !done && write_segment < write_segments.length ) {
+          val segment = write_segments(write_segment)
+          write_counter += channel.write(segment)
+          if( segment.remaining==0 ) {
+            write_segment += 1
+          } else {
+            done = true
+          }
+        }
+    }
+  }
+
+
+  def write_file_out = {
+    if( write_file_position < write_file.length ) {
+      val count = write_file.channel.transferTo(write_file.offset+write_file_position, write_file.length-write_file_position, write_channel)
+      write_counter += count
+      write_file_position += count
+    }
+    if( write_file_position == write_file.length ) {
+      if( write_file_trailer==null ) {
+        write_file_trailer = END_OF_FRAME_BUFFER.toByteBuffer
+      }
+      write_counter += write_channel.write(write_file_trailer)
+      if( write_file_trailer.remaining == 0 ) {
+        write_file_position = 0
+        write_file_trailer = null
+        write_file = null
+        // lets the region close the file once nothing else uses it.
+        write_file_frame.release
+        write_file_frame = null
+      }
+    }
+  }
 
   def flush():ProtocolCodec.BufferState = {
 
     // if we have a pending write that is being sent over the socket...
-    if ( write_buffer.remaining() != 0 ) {
-      write_counter += write_channel.write(write_buffer)
+    if ( write_segment < write_segments.length ) {
+      write_segments_out
     }
-    if ( write_buffer.remaining() == 0 && write_direct!=null ) {
+    if ( write_segment == write_segments.length && write_direct!=null ) {
       write_counter += write_channel.write(write_direct)
       if( write_direct.remaining() == 0 ) {
         write_direct = null
@@ -276,18 +527,47 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
         write_direct_frame = null
       }
     }
+    if ( write_segment == write_segments.length && write_direct==null && write_file!=null ) {
+      write_file_out
+    }
+
+    // if it's been fully written, give the buffer back to the pool.
+    if ( is_empty && write_pooled!=null ) {
+        buffer_pool.release(write_pooled)
+        write_pooled = null
+        write_segments = EMPTY_SEGMENTS
+        write_segment = 0
+    }
+
+    // staged receipts go out before the staged MESSAGE frames.
+    if ( is_empty && next_control_buffer!=null ) {
+        write_segments = Array(ByteBuffer.wrap(next_control_buffer.getData, 0, next_control_buffer.size()))
+        write_segment = 0
+        write_pooled = next_control_buffer.getData
+        next_control_buffer = null
+    }
 
     // if it is now empty try to refill...
-    if ( is_empty && next_write_buffer.size()!=0 ) {
-        // size of next buffer is based on how much was used in the previous buffer.
-        val prev_size = (write_buffer.position()+512).max(512).min(write_buffer_size)
-        write_buffer = next_write_buffer.toBuffer().toByteBuffer()
+    if ( is_empty && next_write_buffer!=null && (next_write_buffer.size()!=0 || !next_write_segments.isEmpty) ) {
+        cut_write_segment
+        // size of next buffer is based on how much was used in this buffer.
+        next_write_size = (next_write_buffer.size()+512).max(512).min(write_buffer_size)
+        write_segments = next_write_segments.reverse.toArray
+        write_segment = 0
+        write_pooled = next_write_buffer.getData
         write_direct = next_write_direct
         write_direct_frame = next_write_direct_frame
+        write_file = next_write_file
+        write_file_frame = next_write_file_frame
 
-        next_write_buffer = new DataByteArrayOutputStream(prev_size)
+        next_write_buffer = null
+        next_write_segments = Nil
+        next_write_mark = 0
+        next_write_gathered = 0
         next_write_direct = null
         next_write_direct_frame = null
+        next_write_file = null
+        next_write_file_frame = null
     }
 
     if ( is_empty ) {
@@ -311,20 +591,77 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
   var read_buffer_size = 1024*64
   var read_channel:ReadableByteChannel = null
 
-  var read_buffer = ByteBuffer.allocate(read_buffer_size)
+  // the read buffer is only allocated while there is data being read.
+  var next_read_size = 1024
+  var read_buffer:ByteBuffer = null
+  // set once decoded frames have sliced up the read buffer, it then can't
+  // be given back to the pool.
+  var read_buffer_shared = false
+  // decoded frames up to this size get copied out of the read buffer.
+  var copy_frame_size = 1024*4
   var read_end = 0
   var read_start = 0
   var next_action:FrameReader = read_action
 
+  def borrow_read_buffer(size:Int) = {
+    read_buffer = ByteBuffer.wrap(buffer_pool.borrow(size))
+    read_buffer_shared = false
+    read_start = 0
+    read_end = 0
+  }
+
+  /**
+   * Drops the read buffer if the connection is idle between frames.  It
+   * goes back to the pool unless frames still reference it.
+   */
+  def release_read_buffer = {
+    if( (next_action eq read_action) && read_start == read_buffer.position ) {
+      // size of next buffer is based on how much was used in this buffer.
+      next_read_size = (read_buffer.position+512).max(512).min(read_buffer_size)
+      if( !read_buffer_shared ) {
+        buffer_pool.release(read_buffer.array)
+      }
+      read_buffer = null
+      read_buffer_shared = false
+      read_start = 0
+      read_end = 0
+    }
+  }
+
+  def getBufferFootprint = {
+    var rc = 0
+    if( write_pooled!=null ) {
+      rc += write_pooled.length
+    }
+    if( next_write_buffer!=null ) {
+      rc += next_write_buffer.getData.length
+    }
+    if( next_control_buffer!=null ) {
+      rc += next_control_buffer.getData.length
+    }
+    if( read_buffer!=null ) {
+      rc += read_buffer.capacity
+    }
+    rc
+  }
+
   def setReadableByteChannel(channel: ReadableByteChannel) = {
     this.read_channel = channel
     if( this.read_channel.isInstanceOf[SocketChannel] ) {
-      this.read_channel.asInstanceOf[SocketChannel].socket().setReceiveBufferSize(read_buffer_size);
+      try {
+        this.read_channel.asInstanceOf[SocketChannel].socket().setReceiveBufferSize(read_buffer_size);
+      } catch {
+        // unix domain socket channels don't have a socket to size.
+        case e:UnsupportedOperationException =>
+      }
     }
   }
 
   def unread(buffer: Buffer) = {
     assert(read_counter == 0)
+    if( read_buffer==null ) {
+      borrow_read_buffer(read_buffer_size.max(buffer.length))
+    }
     read_buffer.put(buffer.data, buffer.offset, buffer.length)
     read_counter += buffer.length
   }
@@ -335,6 +672,10 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
 
     var command:Object = null
     while( command==null ) {
+      if( read_buffer==null ) {
+        borrow_read_buffer(next_read_size)
+      }
+
       // do we need to read in more data???
       if (read_end == read_buffer.position()) {
 
@@ -354,13 +695,19 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
                 }
               }
 
-              var new_buffer = new Array[Byte](new_capacity)
+              var new_buffer = buffer_pool.borrow(new_capacity)
 
               if (size > 0) {
                   System.arraycopy(read_buffer.array(), read_start, new_buffer, 0, size)
               }
 
+              // the action and headers of a partially read frame still
+              // reference the old buffer.
+              if( !read_buffer_shared && (next_action eq read_action) ) {
+                buffer_pool.release(read_buffer.array)
+              }
               read_buffer = ByteBuffer.wrap(new_buffer)
+              read_buffer_shared = false
               read_buffer.position(size)
               read_start = 0
               read_end = size
@@ -372,6 +719,7 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
           if (count == -1) {
               throw new EOFException("Peer disconnected")
           } else if (count == 0) {
+              release_read_buffer
               return null
           }
           read_counter += count
@@ -381,11 +729,49 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
 
       // Sanity checks to make sure the wireformat is behaving as expected.
       assert(read_start <= read_end)
-      assert(read_end <= read_buffer.position())
+      assert(read_buffer==null || read_end <= read_buffer.position())
+    }
+    if( read_buffer!=null ) {
+      command = detach(command.asInstanceOf[StompFrame])
     }
     return command
   }
 
+  /**
+   * The frame's headers and body are slices of the read buffer.  Small
+   * frames get copied out of it so that the buffer can still go back to the
+   * pool once the connection goes idle.  Bigger frames keep referencing it,
+   * the buffer is then marked as shared and left to the garbage collector.
+   */
+  def detach(frame:StompFrame):StompFrame = {
+    if( frame.content.isInstanceOf[FileContent] ) {
+      // spooled frames don't reference the read buffer.
+      return frame
+    }
+    val array = read_buffer.array
+    val start = frame.action.offset
+    val length = read_start - start
+    if( !(frame.action.data eq array) || length > copy_frame_size ) {
+      read_buffer_shared = true
+      frame
+    } else {
+      val copy = new Array[Byte](length)
+      System.arraycopy(array, start, copy, 0, length)
+
+      def rebase(value:AsciiBuffer) = if( value.data eq array ) {
+        new AsciiBuffer(copy, value.offset-start, value.length)
+      } else {
+        value
+      }
+      val content = frame.content match {
+        case BufferContent(value) if value.data eq array =>
+          BufferContent(new Buffer(copy, value.offset-start, value.length))
+        case x => x
+      }
+      StompFrame(rebase(frame.action), frame.headers.map(x=> (rebase(x._1), rebase(x._2))), content, frame.updated_headers)
+    }
+  }
+
   def read_line(buffer:ByteBuffer, maxLength:Int, errorMessage:String):Buffer = {
       val read_limit = buffer.position
       while( read_end < read_limit ) {
@@ -403,7 +789,7 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
       return null
   }
 
-  def read_action:FrameReader = (buffer)=> {
+  lazy val read_action:FrameReader = (buffer)=> {
     val line = read_line(buffer, MAX_COMMAND_LENGTH, "The maximum command length was exceeded")
     if( line !=null ) {
       var action = line
@@ -459,49 +845,72 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
               throw new IOException("Specified content-length is not a valid integer")
           }
 
-          if (SIZE_CHECK && length > MAX_DATA_LENGTH) {
-              throw new IOException("The maximum data length was exceeded")
-          }
+          def is_chunked = action == Commands.SEND && get(headers, CHUNKED) == Some(TRUE)
+          if( length > chunk_size && is_chunked ) {
 
-          // lets try to keep the content of big message outside of the JVM's garbage collection
-          // to keep the number of GCs down when moving big messages.
-          def is_message = action == Commands.SEND || action == Responses.MESSAGE
-          if( length > 1024 && memory_pool!=null && is_message) {
+            // The body is too big to hold in memory in one go, so it gets
+            // spooled to a file one chunk at a time.  The action and headers
+            // are copied since the read buffer gets reused for the chunks.
+            if( length > max_spool_size ) {
+              throw new IOException("The maximum chunked content length was exceeded")
+            }
+            if( spool_directory.getUsableSpace < length ) {
+              throw new IOException("Not enough disk space to spool the chunked content")
+            }
+            val spooled_headers = headers.toList.map { case (name, value) =>
+              (name.deepCopy.ascii, value.deepCopy.ascii)
+            }
+            spool_file = File.createTempFile("stomp-", ".spool", spool_directory)
+            spool = new RandomAccessFile(spool_file, "rw")
+            next_action = read_spooled_body(action.deepCopy.ascii, spooled_headers, length, length)
 
-            val ma = memory_pool.alloc(length+1)
+          } else {
 
-            val read_limit = buffer.position
-            if( (read_limit-read_start) < length+1 ) {
-              // buffer did not contain the fully stomp body
+            if (SIZE_CHECK && length > MAX_DATA_LENGTH) {
+                throw new IOException("The maximum data length was exceeded")
+            }
 
-              ma.buffer.put( buffer.array, read_start, read_limit-read_start )
+            // lets try to keep the content of big message outside of the JVM's garbage collection
+            // to keep the number of GCs down when moving big messages.
+            def is_message = action == Commands.SEND || action == Responses.MESSAGE
+            if( length > 1024 && memory_pool!=null && is_message) {
 
-              read_buffer = ma.buffer
-              read_end = read_limit-read_start
-              read_start = 0
+              val ma = memory_pool.alloc(length+1)
 
-              next_action = read_binary_body_direct(action, headers, ma)
+              val read_limit = buffer.position
+              if( (read_limit-read_start) < length+1 ) {
+                // buffer did not contain the fully stomp body
 
-            } else {
-              // The current buffer already read in all the data...
+                ma.buffer.put( buffer.array, read_start, read_limit-read_start )
 
-              if( buffer.array()(read_start+length)!= 0 ) {
-                 throw new IOException("Expected null termintor after "+length+" content bytes")
-              }
+                read_buffer = ma.buffer
+                read_end = read_limit-read_start
+                read_start = 0
+
+                next_action = read_binary_body_direct(action, headers, ma)
 
-              // copy the body out to the direct buffer
-              ma.buffer.put( buffer.array, read_start, read_limit-read_start )
+              } else {
+                // The current buffer already read in all the data...
+
+                if( buffer.array()(read_start+length)!= 0 ) {
+                   throw new IOException("Expected null termintor after "+length+" content bytes")
+                }
 
-              // and reposition to reuse non-direct space.
-              buffer.position(read_start)
-              read_end = read_start
+                // copy the body out to the direct buffer
+                ma.buffer.put( buffer.array, read_start, read_limit-read_start )
 
-              next_action = read_action
-              rc = new StompFrame(ascii(action), headers.toList, DirectContent(ma))
+                // and reposition to reuse non-direct space.
+                buffer.position(read_start)
+                read_end = read_start
+
+                next_action = read_action
+                rc = new StompFrame(ascii(action), headers.toList, DirectContent(ma))
+              }
+
+            } else {
+              next_action = read_binary_body(action, headers, length)
             }
 
-          } else {
-            next_action = read_binary_body(action, headers, length)
           }
 
         } else {
@@ -546,7 +955,9 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
         ma.buffer.rewind
         ma.buffer.limit(ma.size-1)
 
-        read_buffer = ByteBuffer.allocate(read_buffer_size)
+        // a new read buffer gets borrowed on the next read.
+        read_buffer = null
+        read_buffer_shared = false
         read_end = 0
         read_start = 0
         true
@@ -563,6 +974,94 @@ class StompCodec extends ProtocolCodec with DispatchLogging {
     }
   }
 
+  /**
+   * Reads the body of a chunked SEND one chunk at a time and appends the
+   * chunks to a spool file, so at most one chunk of the body is held in
+   * the read buffer.  Once the whole body is in the file, a single frame
+   * is returned whose content is the spooled file.  The file gets deleted
+   * when that content is released, or by close_spool if the frame can't
+   * be completed.
+   */
+  def read_spooled_body(action:AsciiBuffer, headers:HeaderMap, length:Int, remaining:Int):FrameReader = (buffer)=> {
+    try {
+      val count = (buffer.position-read_start).min(remaining)
+      if( count > 0 ) {
+        val chunk = ByteBuffer.wrap(buffer.array, read_start, count)
+        while( chunk.hasRemaining ) {
+          spool.getChannel.write(chunk)
+        }
+        read_start += count
+        read_end = read_start
+      }
+      val left = remaining-count
+      if( left > 0 ) {
+        next_action = read_spooled_body(action, headers, length, left)
+        reuse_read_buffer(chunk_size.min(left+1))
+        null
+      } else if( read_start == buffer.position ) {
+        // still waiting on the null terminator.
+        next_action = read_spooled_body(action, headers, length, 0)
+        null
+      } else {
+        if( buffer.array()(read_start)!= 0 ) {
+           throw new IOException("Expected null termintor after "+length+" content bytes")
+        }
+        read_start += 1
+        read_end = read_start
+        spool.close
+        next_action = read_action
+        val file = spool_file
+        spool = null
+        spool_file = null
+        StompFrame(action, headers, FileContent(FileRegion(new OpenFile(file, file.delete), 0, length)))
+      }
+    } catch {
+      case e:IOException =>
+        close_spool
+        throw e
+    }
+  }
+
+  /**
+   * Closes and deletes the spool file of a chunked SEND frame which was
+   * not completely read.  Called when the frame fails to decode and when
+   * the connection goes away in the middle of the frame.
+   */
+  def close_spool = {
+    if( spool!=null ) {
+      try {
+        spool.close
+      } catch {
+        case e:IOException =>
+      }
+      spool = null
+    }
+    if( spool_file!=null ) {
+      spool_file.delete
+      spool_file = null
+    }
+  }
+
+  /**
+   * Called once everything in the read buffer was consumed while spooling
+   * a body.  The buffer gets read into again from the start, unless frames
+   * still reference it, and it's sized to hold size bytes so that the rest
+   * of the chunk can be read in one go.
+   */
+  def reuse_read_buffer(size:Int) = {
+    if( read_buffer_shared || read_buffer.capacity < size ) {
+      if( !read_buffer_shared ) {
+        buffer_pool.release(read_buffer.array)
+      }
+      read_buffer = ByteBuffer.wrap(buffer_pool.borrow(size))
+      read_buffer_shared = false
+    } else {
+      read_buffer.clear
+    }
+    read_start = 0
+    read_end = 0
+  }
+
   def read_content(buffer:ByteBuffer, contentLength:Int):Buffer = {
       val read_limit = buffer.position
       if( (read_limit-read_start) < contentLength+1 ) {
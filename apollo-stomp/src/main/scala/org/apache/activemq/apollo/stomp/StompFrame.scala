@@ -37,6 +37,87 @@ object StompFrameConstants {
 
 }
 
+/**
+ * The well known headers which the codec indexes as it parses frames so
+ * that they can be accessed without scanning the header list.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+object KnownHeaders {
+  import StompFrameConstants._
+
+  val MESSAGE_ID = 0
+  val DESTINATION = 1
+  val PRIORITY = 2
+  val EXPIRATION_TIME = 3
+  val PERSISTENT = 4
+  val CONTENT_LENGTH = 5
+  val RECEIPT_REQUESTED = 6
+
+  val NAMES = Array[AsciiBuffer](
+    Stomp.Headers.Message.MESSAGE_ID,
+    Stomp.Headers.Send.DESTINATION,
+    Stomp.Headers.Send.PRIORITY,
+    Stomp.Headers.Send.EXPIRATION_TIME,
+    Stomp.Headers.Send.PERSISTENT,
+    Stomp.Headers.CONTENT_LENGTH,
+    Stomp.Headers.RECEIPT_REQUESTED
+  )
+
+  // the indexes of the names, grouped by name length.
+  private val MAX_LENGTH = NAMES.foldLeft(0)( _ max _.length )
+  private val BY_LENGTH = {
+    val rc = new Array[List[Int]](MAX_LENGTH+1)
+    for( i <- 0 until rc.length ) {
+      rc(i) = Nil
+    }
+    for( i <- 0 until NAMES.length ) {
+      rc(NAMES(i).length) ::= i
+    }
+    rc
+  }
+
+  /**
+   * @return the index of the header name or -1 if it's not a well known header.
+   */
+  def index_of(name:AsciiBuffer):Int = {
+    if( name.length > MAX_LENGTH ) {
+      return -1
+    }
+    var l = BY_LENGTH(name.length)
+    while( l!=Nil ) {
+      if( NAMES(l.head) == name ) {
+        return l.head
+      }
+      l = l.tail
+    }
+    -1
+  }
+
+  /**
+   * Records the header value in the index unless an earlier header of the
+   * same name was already recorded.
+   */
+  def record(index:Array[AsciiBuffer], name:AsciiBuffer, value:AsciiBuffer) = {
+    val i = index_of(name)
+    if( i >= 0 && index(i)==null ) {
+      index(i) = value
+    }
+  }
+
+  def create_index = new Array[AsciiBuffer](NAMES.length)
+
+  def index(headers:HeaderMap) = {
+    val rc = create_index
+    var l = headers
+    while( l!=Nil ) {
+      record(rc, l.head._1, l.head._2)
+      l = l.tail
+    }
+    rc
+  }
+}
+
 import StompFrameConstants._
 import StompConstants._;
 import BufferConversions._
@@ -46,54 +127,56 @@ import Buffer._
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 case class StompFrameMessage(frame:StompFrame) extends Message {
+  import KnownHeaders._
   
   def protocol = StompProtocol
 
   /**
    * the globally unique id of the message
    */
-  var id: AsciiBuffer = null
+  lazy val id: AsciiBuffer = frame.known_header(MESSAGE_ID)
 
   /**
    * the globally unique id of the producer
    */
   var producer: AsciiBuffer = null
 
+  //
+  // The rest of the attributes are only parsed out of the
+  // headers once they are accessed.
+  //
+
   /**
    *  the message priority.
    */
-  var priority:Byte = 4;
+  lazy val priority:Byte = {
+    val value = frame.known_header(PRIORITY)
+    if( value==null ) 4 else java.lang.Integer.parseInt(value).toByte
+  }
 
   /**
    * a positive value indicates that the delivery has an expiration
    * time.
    */
-  var expiration: Long = -1;
+  lazy val expiration: Long = {
+    val value = frame.known_header(EXPIRATION_TIME)
+    if( value==null ) -1 else java.lang.Long.parseLong(value)
+  }
 
   /**
    * true if the delivery is persistent
    */
-  var persistent = false
+  lazy val persistent = {
+    val value = frame.known_header(PERSISTENT)
+    value!=null && java.lang.Boolean.parseBoolean(value)
+  }
 
   /**
    * where the message was sent to.
    */
-  var destination: Destination = null
-
-  for( header <- (frame.updated_headers ::: frame.headers).reverse ) {
-    header match {
-      case (Stomp.Headers.Message.MESSAGE_ID, value) =>
-        id = value
-      case (Stomp.Headers.Send.PRIORITY, value) =>
-        priority = java.lang.Integer.parseInt(value).toByte
-      case (Stomp.Headers.Send.DESTINATION, value) =>
-        destination = value
-      case (Stomp.Headers.Send.EXPIRATION_TIME, value) =>
-        expiration = java.lang.Long.parseLong(value)
-      case (Stomp.Headers.Send.PERSISTENT, value) =>
-        persistent = java.lang.Boolean.parseBoolean(value)
-      case _ =>
-    }
+  lazy val destination: Destination = {
+    val value = frame.known_header(DESTINATION)
+    if( value==null ) null else value
   }
 
   def getBodyAs[T](toType : Class[T]) = {
@@ -127,11 +210,7 @@ case class StompFrameMessage(frame:StompFrame) extends Message {
     }).asInstanceOf[T]
   }
 
-  def getLocalConnectionId = {
-    val pos = id.indexOf(':')
-    assert(pos >0 )
-    id.slice(id.offset, pos).toString
-  }
+  def getLocalConnectionId = IdGenerator.getSeedFromId(id.toString)
 
   /* avoid paying the price of creating the header index. lots of times we don't need it */
   lazy val headerIndex: Map[AsciiBuffer, AsciiBuffer] =  {
@@ -239,6 +318,37 @@ case class DirectContent(direct_buffer:DirectBuffer) extends StompContent {
   override def release = direct_buffer.release
 }
 
+/**
+ * Content which was left in a file by the store.  It gets transferred
+ * straight from the file to the socket when it's sent to a consumer.
+ * The region keeps the file open until the content is released.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+case class FileContent(region:FileRegion) extends StompContent {
+  def length = region.length
+
+  def writeTo(os:OutputStream) = {
+    var remaining = region.length
+    var position = region.offset
+    while( remaining > 0 ) {
+      val c = remaining.min(1024*64)
+      region.slice((position-region.offset).toInt, c).read.writeTo(os)
+      position += c
+      remaining -= c
+    }
+  }
+
+  def buffer:Buffer = region.read
+
+  def utf8:UTF8Buffer = {
+    buffer.utf8
+  }
+
+  override def retain = region.retain
+  override def release = region.release
+}
+
 /**
  * Represents all the data in a STOMP frame.
  *
@@ -246,6 +356,37 @@ case class DirectContent(direct_buffer:DirectBuffer) extends StompContent {
  */
 case class StompFrame(action:AsciiBuffer, headers:HeaderMap=Nil, content:StompContent=NilContent, updated_headers:HeaderMap=Nil) {
 
+  /**
+   * The values of the well known headers found in the headers list indexed
+   * by the KnownHeaders constants.  It's built from the headers list the first
+   * time it's needed so equal frames and copies always agree on it.
+   *
+   * The index holds the header values themselves, which are slices of the buffer
+   * the frame was read from, rather than their positions in that buffer.  That
+   * way a lookup needs nothing but the index, no bytes get copied, and the values
+   * stay valid when the headers get reused by another frame, like the MESSAGE
+   * frame built for a SEND, which does not share the read buffer's positions.
+   */
+  lazy val header_index:Array[AsciiBuffer] = KnownHeaders.index(headers)
+
+  /**
+   * @return the value of the well known header at the KnownHeaders index or null
+   */
+  def known_header(index:Int):AsciiBuffer = {
+    // updated headers take precedence over the original headers.
+    if( updated_headers!=Nil ) {
+      val name = KnownHeaders.NAMES(index)
+      var l = updated_headers
+      while( l!=Nil ) {
+        if( l.head._1 == name ) {
+          return l.head._2
+        }
+        l = l.tail
+      }
+    }
+    header_index(index)
+  }
+
   def size_of_updated_headers = {
     size_of(updated_headers)
   }
@@ -296,9 +437,14 @@ case class StompFrame(action:AsciiBuffer, headers:HeaderMap=Nil, content:StompCo
   }
 
   def header(name:AsciiBuffer) = {
-    updated_headers.filter( _._1 == name ).headOption.orElse(
-      headers.filter( _._1 == name ).headOption
-    ).map(_._2).getOrElse(null)
+    val index = KnownHeaders.index_of(name)
+    if( index >= 0 ) {
+      known_header(index)
+    } else {
+      updated_headers.filter( _._1 == name ).headOption.orElse(
+        headers.filter( _._1 == name ).headOption
+      ).map(_._2).getOrElse(null)
+    }
   }
 
   def retain = content.retain
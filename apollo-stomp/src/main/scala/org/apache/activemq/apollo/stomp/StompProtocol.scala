@@ -192,7 +192,10 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
           true
         }
       }
-      
+
+      override def open_batch = session.open_batch
+      override def flush_batch = session.flush_batch
+
       def refiller = session.refiller
       def refiller_=(value:Runnable) = { session.refiller=value }
 
@@ -206,6 +209,7 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
   var consumers = Map[AsciiBuffer, StompConsumer]()
 
   var producerRoutes = Map[Destination, DeliveryProducerRoute]()
+  var batched_routes = List[DeliveryProducerRoute]()
   var host:VirtualHost = null
 
   private def queue = connection.dispatchQueue
@@ -213,25 +217,43 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
 
   override def onTransportConnected() = {
 
-    session_manager = new SinkMux[StompFrame]( MapSink(connection.transportSink){x=>x}, dispatchQueue, StompFrame)
-    connection_sink = new OverflowSink(session_manager.open(dispatchQueue));
-    connection_sink.refiller = ^{}
+    // receipts and other control frames go ahead of the MESSAGE frames
+    // the consumers have not handed to the transport yet.  Only receipts
+    // get ahead of the ones the codec already staged.
+    val lanes = new PrioritySink[StompFrame](MapSink(connection.transportSink){x=>x})
+    session_manager = new SinkMux[StompFrame]( lanes.data, dispatchQueue, StompFrame)
+    connection_sink = lanes.control
     
     connection.connector.broker.getDefaultVirtualHost(
       queue.wrap { (host)=>
         this.host=host
         if( this.host.direct_buffer_pool!=null ) {
-          val wf = connection.transport.getProtocolCodec.asInstanceOf[StompCodec]
-          wf.memory_pool = this.host.direct_buffer_pool
+          stomp_codec.memory_pool = this.host.direct_buffer_pool
         }
         connection.transport.resumeRead
       }
     )
   }
 
+  /**
+   * @return the connection's StompCodec, which is wrapped by another codec
+   *         on compressed connections.
+   */
+  def stomp_codec:StompCodec = {
+    def unwrap(codec:ProtocolCodec):StompCodec = codec match {
+      case x:StompCodec => x
+      case x:CompressingProtocolCodec => unwrap(x.getNext)
+      case _ => throw new IllegalStateException("Not a stomp codec: "+codec)
+    }
+    unwrap(connection.transport.getProtocolCodec)
+  }
+
   override def onTransportDisconnected() = {
     if( !closed ) {
       closed=true;
+      // drops the spool file of a chunked frame which was cut off.
+      stomp_codec.close_spool
+      flush_batched_routes
       producerRoutes.foreach{
         case(_,route)=> host.router.disconnect(route)
       }
@@ -283,8 +305,40 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
   }
 
 
+  override def onTransportCommandsDrained() = flush_batched_routes
+
+  def flush_batched_routes = {
+    if( batched_routes!=Nil ) {
+      batched_routes.foreach( _.flush_batch )
+      batched_routes = Nil
+    }
+  }
+
   def on_stomp_connect(headers:HeaderMap) = {
-    connection_sink.offer(StompFrame(Responses.CONNECTED))
+    connection_sink.offer(StompFrame(Responses.CONNECTED, receipts.negotiate(headers)))
+  }
+
+  lazy val receipts = new ReceiptTracker(queue)({ receipt=>
+    if( !connection.stopped ) {
+      send_receipt(receipt)
+    }
+  })
+
+  /**
+   * @return the callback which completes the receipt.
+   */
+  def track_receipt(receipt:AsciiBuffer):(StoreUOW)=>Unit = receipts.track(receipt)
+
+  /**
+   * Sends the receipt of a command which has been fully processed.  It
+   * may be held back by a cumulative receipt still in progress.
+   */
+  def command_receipt(headers:HeaderMap) = {
+    get(headers, Stomp.Headers.RECEIPT_REQUESTED).foreach( track_receipt(_)(null) )
+  }
+
+  def send_receipt(receipt:AsciiBuffer) = {
+    connection_sink.offer(StompFrame(Responses.RECEIPT, List((Stomp.Headers.Response.RECEIPT_ID, receipt))))
   }
 
   def get(headers:HeaderMap, name:AsciiBuffer):Option[AsciiBuffer] = {
@@ -299,7 +353,13 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
   }
 
   def on_stomp_send(frame:StompFrame) = {
-    get(frame.headers, Headers.Send.DESTINATION) match {
+    Option(frame.known_header(KnownHeaders.DESTINATION)) match {
+      case Some(dest) if frame.content.isInstanceOf[FileContent] && host.store!=null =>
+        // the queues of a host with a store persist their messages and the
+        // store would read the spooled body fully into memory.
+        frame.release
+        die("Chunked messages can not be sent to a virtual host with a message store.")
+
       case Some(dest)=>
         val destiantion:Destination = dest
 
@@ -318,17 +378,31 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
             connection.transport.suspendRead
             host.router.connect(destiantion, producer) { route =>
                 if( !connection.stopped ) {
-                  connection.transport.resumeRead
                   route.refiller = ^{
                     connection.transport.resumeRead
                   }
                   producerRoutes += destiantion->route
+                  // the first send opens the batch too, so the sends read
+                  // right after the route connects join it.
+                  route.open_batch
+                  batched_routes ::= route
                   send_via_route(route, frame)
+                  connection.transport.resumeRead
+                  // the read pass resumeRead queued runs first and flushes
+                  // the batch, this covers the case where nothing was read.
+                  queue {
+                    flush_batched_routes
+                  }
                 }
             }
 
           case Some(route)=>
-            // we can re-use the existing producer route
+            // we can re-use the existing producer route. Sends which arrive
+            // in the same read pass get batched up on the route.
+            if( !route.batching ) {
+              route.open_batch
+              batched_routes ::= route
+            }
             send_via_route(route, frame)
 
         }
@@ -339,38 +413,31 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
     }
   }
 
-  var message_id_counter = 0;
-  def next_message_id = {
-    message_id_counter += 1
-    // TODO: properly generate mesage ids
-    new AsciiBuffer("msg:"+message_id_counter);
-  }
+  val message_id_generator = new AsciiIdGenerator
+  def next_message_id = message_id_generator.generateId
 
   def send_via_route(route:DeliveryProducerRoute, frame:StompFrame) = {
     var storeBatch:StoreUOW=null
     // User might be asking for ack that we have prcoessed the message..
     val receipt = frame.header(Stomp.Headers.RECEIPT_REQUESTED)
 
+    // We may need to add some headers..
+    var updated_headers:HeaderMap = frame.updated_headers
+    if( frame.known_header(KnownHeaders.MESSAGE_ID)==null ) {
+      updated_headers ::= (Stomp.Headers.Message.MESSAGE_ID, next_message_id)
+    }
+
     if( !route.targets.isEmpty ) {
 
-      // We may need to add some headers..
-      var message = get( frame.headers, Stomp.Headers.Message.MESSAGE_ID) match {
-        case None=>
-          var updated_headers:HeaderMap=Nil;
-          updated_headers ::= (Stomp.Headers.Message.MESSAGE_ID, next_message_id)
-          StompFrameMessage(StompFrame(Stomp.Responses.MESSAGE, frame.headers, frame.content, updated_headers))
-        case Some(id)=>
-          StompFrameMessage(StompFrame(Stomp.Responses.MESSAGE, frame.headers, frame.content))
-      }
+      var message_frame = StompFrame(Stomp.Responses.MESSAGE, frame.headers, frame.content, updated_headers)
+      var message = StompFrameMessage(message_frame)
 
       val delivery = new Delivery
       delivery.message = message
       delivery.size = message.frame.size
 
       if( receipt!=null ) {
-        delivery.ack = { storeTx =>
-          connection_sink.offer(StompFrame(Responses.RECEIPT, List((Stomp.Headers.Response.RECEIPT_ID, receipt))))
-        }
+        delivery.ack = track_receipt(receipt)
       }
 
       // routes can always accept at least 1 delivery...
@@ -385,7 +452,8 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
     } else {
       // info("Dropping message.  No consumers interested in message.")
       if( receipt!=null ) {
-        connection_sink.offer(StompFrame(Responses.RECEIPT, List((Stomp.Headers.Response.RECEIPT_ID, receipt))))
+        // still goes through the tracker to keep cumulative receipts in order.
+        track_receipt(receipt)(null)
       }
     }
     frame.release
@@ -460,21 +528,38 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
             val consumer = new StompConsumer(destination, ack, selector, binding);
             consumers += (id -> consumer)
 
+            // the receipt is tracked now to keep it in order with the other
+            // receipts, but only completed once the consumer is bound.
+            val receipt = get(headers, Stomp.Headers.RECEIPT_REQUESTED).map(track_receipt(_))
+            def on_bound = receipt.foreach( _(null) )
+
             if( binding==null ) {
 
               // consumer is bind bound as a topic
               host.router.bind(destination, consumer)
               consumer.release
+              // runs after the bind on the router's queue.
+              host.dispatchQueue {
+                on_bound
+              }
 
             } else {
 
               // create a queue and bind the consumer to it.
               host.router.create_queue(binding) { x=>
                 x match {
-                  case Some(queue:Queue) =>
-                    queue.bind(consumer::Nil)
+                  case Some(target:Queue) =>
+                    target.bind(consumer::Nil)
+                    consumer.release
+                    // runs after the bind on the queue's queue.
+                    target.dispatchQueue {
+                      on_bound
+                    }
+                  case None =>
                     consumer.release
-                  case None => throw new RuntimeException("case not yet implemented.")
+                    queue {
+                      die("The queue of the subscription could not be created.")
+                    }
                 }
               }
             }
@@ -501,6 +586,7 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
             // a non-durable topic.
             // trace("The specified message id is not waiting for a client ack: %s", messageId)
         }
+        command_receipt(headers)
       case None=> die("message id header not set")
     }
   }
@@ -510,7 +596,7 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
     if( !connection.stopped ) {
       info("Shutting connection down due to: "+msg)
       connection.transport.suspendRead
-      connection.transport.offer(StompFrame(Responses.ERROR, Nil, BufferContent(ascii(msg))) )
+      connection_sink.offer(StompFrame(Responses.ERROR, Nil, BufferContent(ascii(msg))) )
       ^ {
         connection.stop()
       } >>: queue
@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp
+
+import _root_.org.fusesource.hawtdispatch.DispatchQueue
+import _root_.org.fusesource.hawtdispatch.ScalaDispatch._
+import _root_.org.fusesource.hawtbuf._
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import Stomp._
+
+/**
+ * <p>
+ * Tests which RECEIPT frames the ReceiptTracker sends, and when.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ReceiptTrackerTest extends FunSuiteSupport {
+
+  def ascii(value:String) = new AsciiBuffer(value)
+
+  def sync[T](queue:DispatchQueue)(func: =>T):T = {
+    var rc:Option[T] = None
+    val done = new CountDownLatch(1)
+    queue {
+      rc = Some(func)
+      done.countDown
+    }
+    assert(done.await(5, TimeUnit.SECONDS), "timed out")
+    rc.get
+  }
+
+  /**
+   * Creates a tracker which records the receipts it sends.
+   */
+  def tracker(cumulative:Boolean) = {
+    var sent = List[String]()
+    val rc = new ReceiptTracker(createQueue("receipts"))({ receipt=>
+      sent ::= receipt.toString
+    })
+    if( cumulative ) {
+      sync(rc.queue) {
+        rc.negotiate(List((Headers.Connect.RECEIPT_MODE, Headers.Connect.ReceiptModeValues.CUMULATIVE)))
+      }
+    }
+    (rc, ()=> {
+      // the completions hop onto the queue, then the flush gets queued.
+      sync(rc.queue) {}
+      sync(rc.queue) { sent.reverse }
+    })
+  }
+
+  test("each receipt is sent once completed") {
+    val (receipts, sent) = tracker(false)
+    val (r1, r2, r3) = sync(receipts.queue) {
+      (receipts.track(ascii("1")), receipts.track(ascii("2")), receipts.track(ascii("3")))
+    }
+    r2(null)
+    r1(null)
+    expect(List("2", "1")) { sent() }
+    r3(null)
+    expect(List("2", "1", "3")) { sent() }
+  }
+
+  test("cumulative receipts wait for the receipts requested before them") {
+    val (receipts, sent) = tracker(true)
+    val (r1, r2, r3) = sync(receipts.queue) {
+      (receipts.track(ascii("1")), receipts.track(ascii("2")), receipts.track(ascii("3")))
+    }
+    r2(null)
+    r3(null)
+    expect(Nil) { sent() }
+    // one receipt acknowledges all three.
+    r1(null)
+    expect(List("3")) { sent() }
+  }
+
+  test("cumulative receipts completed together are coalesced") {
+    val (receipts, sent) = tracker(true)
+    val callbacks = sync(receipts.queue) {
+      (1 to 10).map( i=> receipts.track(ascii(i.toString)) ).toList
+    }
+    sync(receipts.queue) {
+      callbacks.foreach( _(null) )
+    }
+    expect(List("10")) { sent() }
+  }
+
+  test("receipts of other commands stay in order behind pending cumulative receipts") {
+    val (receipts, sent) = tracker(true)
+    val send = sync(receipts.queue) {
+      receipts.track(ascii("send"))
+    }
+    // a SUBSCRIBE's receipt completes as soon as it's processed.
+    sync(receipts.queue) {
+      receipts.track(ascii("subscribe"))(null)
+    }
+    expect(Nil) { sent() }
+    send(null)
+    expect(List("subscribe")) { sent() }
+
+    // with nothing pending it goes right out.
+    sync(receipts.queue) {
+      receipts.track(ascii("ack"))(null)
+    }
+    expect(List("subscribe", "ack")) { sent() }
+  }
+
+  test("the CONNECTED frame echoes the cumulative receipt mode") {
+    val receipts = new ReceiptTracker(createQueue("receipts"))({ receipt=> })
+    expect(Nil) { receipts.negotiate(Nil) }
+    expect(Nil) { receipts.negotiate(List((Headers.Connect.RECEIPT_MODE, ascii("unknown")))) }
+    expect(false) { receipts.cumulative }
+
+    expect(List((Headers.Connected.RECEIPT_MODE, Headers.Connect.ReceiptModeValues.CUMULATIVE))) {
+      receipts.negotiate(List((Headers.Connect.RECEIPT_MODE, Headers.Connect.ReceiptModeValues.CUMULATIVE)))
+    }
+    expect(true) { receipts.cumulative }
+  }
+
+}
@@ -0,0 +1,230 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp
+
+import _root_.org.fusesource.hawtbuf._
+import java.io.{IOException, ByteArrayOutputStream}
+import java.nio.ByteBuffer
+import java.nio.channels.{WritableByteChannel, ReadableByteChannel}
+import org.apache.activemq.apollo.transport.{ProtocolCodec, BufferPool}
+import org.apache.activemq.apollo.util.FunSuiteSupport
+
+/**
+ * A channel which hands out the data it was given in the chunks it was
+ * given, then reports that nothing more is available.
+ */
+class ChunkedReadChannel(var chunks:List[Array[Byte]]) extends ReadableByteChannel {
+  def read(dst:ByteBuffer) = chunks match {
+    case Nil => 0
+    case head :: tail =>
+      val count = head.length.min(dst.remaining)
+      dst.put(head, 0, count)
+      chunks = if( count == head.length ) tail else head.drop(count) :: tail
+      count
+  }
+  def isOpen = true
+  def close = {}
+}
+
+/**
+ * A channel which collects what's written to it, at most limit bytes per write.
+ */
+class RecordingWriteChannel extends WritableByteChannel {
+  val data = new ByteArrayOutputStream
+  var limit = Integer.MAX_VALUE
+  def write(src:ByteBuffer) = {
+    val bytes = new Array[Byte](limit.min(src.remaining))
+    src.get(bytes)
+    data.write(bytes)
+    bytes.length
+  }
+  def isOpen = true
+  def close = {}
+}
+
+/**
+ * <p>
+ * Tests how the StompCodec decodes frames out of its pooled read buffers
+ * and in which order it writes frames out.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class StompCodecTest extends FunSuiteSupport {
+
+  def send(body:String) = "SEND\ndestination:/queue/a\ncontent-length:"+body.length+"\n\n"+body+"\u0000\n"
+
+  def codec(pool:BufferPool, chunks:String*) = {
+    val rc = new StompCodec
+    rc.buffer_pool = pool
+    rc.setReadableByteChannel(new ChunkedReadChannel(chunks.toList.map(_.getBytes("UTF-8"))))
+    rc
+  }
+
+  def read_all(codec:StompCodec) = {
+    var rc = List[StompFrame]()
+    var frame = codec.read.asInstanceOf[StompFrame]
+    while( frame!=null ) {
+      rc ::= frame
+      frame = codec.read.asInstanceOf[StompFrame]
+    }
+    rc.reverse
+  }
+
+  def body(frame:StompFrame) = frame.content.asInstanceOf[BufferContent].content.ascii.toString
+
+  def new_pool = new BufferPool(1024, 1024*64, 4, 4)
+
+  test("small frames are copied out so the read buffer goes back to the pool") {
+    val pool = new_pool
+    val frames = read_all(codec(pool, send("hello")+send("world")))
+
+    expect(List("hello", "world")) { frames.map(body(_)) }
+    expect(new AsciiBuffer("/queue/a")) { frames(0).header(Stomp.Headers.Send.DESTINATION) }
+    // the buffer was given back once the connection went idle.
+    expect(1) { pool.getReleased }
+  }
+
+  test("big frames keep the read buffer") {
+    val pool = new_pool
+    val big = "x" * 5000
+    val frames = read_all(codec(pool, send(big)))
+
+    expect(List(big)) { frames.map(body(_)) }
+    // the frame's body still references the buffer it was read into.
+    expect(true) { frames(0).content.asInstanceOf[BufferContent].content.data.length >= 5000 }
+    expect(0) { pool.getReleased }
+  }
+
+  test("frames read across buffer growths are intact") {
+    val pool = new_pool
+    // the first buffer borrowed is 1k, so this frame has to be moved to a
+    // bigger buffer after its headers were parsed.
+    val data = send("y" * 3000)
+    val frames = read_all(codec(pool, data.substring(0, 500), data.substring(500, 1500), data.substring(1500)))
+
+    expect(List("y" * 3000)) { frames.map(body(_)) }
+    expect(new AsciiBuffer("/queue/a")) { frames(0).header(Stomp.Headers.Send.DESTINATION) }
+    expect(new AsciiBuffer("SEND")) { frames(0).action }
+    // neither the first buffer, which the action and headers are slices of,
+    // nor the second one, which holds the body, could be given back.
+    expect(0) { pool.getReleased }
+  }
+
+  test("chunked bodies are spooled to a file and read back as one frame") {
+    val pool = new_pool
+    val big = "z" * 5000
+    val data = "SEND\ndestination:/queue/a\nchunked:true\ncontent-length:5000\n\n"+big+"\u0000\n"
+    val c = codec(pool, data.substring(0, 100), data.substring(100, 2100), data.substring(2100))
+    c.chunk_size = 1024
+    val frames = read_all(c)
+
+    expect(1) { frames.size }
+    expect(new AsciiBuffer("SEND")) { frames(0).action }
+    expect(new AsciiBuffer("/queue/a")) { frames(0).header(Stomp.Headers.Send.DESTINATION) }
+    val content = frames(0).content.asInstanceOf[FileContent]
+    expect(big) { content.buffer.ascii.toString }
+    // only chunk sized buffers were needed to read the body.
+    expect(true) { c.read_buffer==null || c.read_buffer.capacity <= 1024*2 }
+
+    // the spool file goes away once the frame is released.
+    val file = content.region.file
+    expect(true) { file.exists }
+    frames(0).release
+    expect(false) { file.exists }
+  }
+
+  test("the spool file of a chunked body which was cut off gets deleted") {
+    val data = "SEND\ndestination:/queue/a\nchunked:true\ncontent-length:5000\n\n"+("z" * 3000)
+    val c = codec(new_pool, data)
+    c.chunk_size = 1024
+    expect(Nil) { read_all(c) }
+
+    val file = c.spool_file
+    expect(true) { file.exists }
+    c.close_spool
+    expect(false) { file.exists }
+    expect(null) { c.spool }
+  }
+
+  test("chunked bodies bigger than the spool limit are rejected") {
+    val data = "SEND\ndestination:/queue/a\nchunked:true\ncontent-length:5000\n\n"+("z" * 5000)+"\u0000\n"
+    val c = codec(new_pool, data)
+    c.chunk_size = 1024
+    c.max_spool_size = 4096
+    intercept[IOException] {
+      read_all(c)
+    }
+    expect(null) { c.spool_file }
+  }
+
+  def write_codec(pool:BufferPool, channel:WritableByteChannel) = {
+    val rc = new StompCodec
+    rc.buffer_pool = pool
+    rc.setWritableByteChannel(channel)
+    rc
+  }
+
+  def message(body:String) = StompFrame(Stomp.Responses.MESSAGE, List((Stomp.Headers.Message.DESTINATION, new AsciiBuffer("/queue/a"))), BufferContent(new AsciiBuffer(body)))
+  def error = StompFrame(Stomp.Responses.ERROR, Nil, BufferContent(new AsciiBuffer("bad")))
+  def receipt = StompFrame(Stomp.Responses.RECEIPT, List((Stomp.Headers.Response.RECEIPT_ID, new AsciiBuffer("1"))))
+
+  def flush_all(codec:StompCodec) = {
+    var flushes = 0
+    while( codec.flush != ProtocolCodec.BufferState.EMPTY ) {
+      flushes += 1
+      assert(flushes < 100, "the codec never emptied")
+    }
+  }
+
+  def written_actions(channel:RecordingWriteChannel) = {
+    new String(channel.data.toByteArray, "UTF-8").split("\u0000\n").toList.map(_.split("\n")(0))
+  }
+
+  test("receipts go ahead of the staged messages but errors stay behind them") {
+    val out = new RecordingWriteChannel
+    out.limit = 0
+    val c = write_codec(new_pool, out)
+
+    expect(ProtocolCodec.BufferState.WAS_EMPTY) { c.write(message("hello")) }
+    expect(ProtocolCodec.BufferState.NOT_EMPTY) { c.write(error) }
+    expect(ProtocolCodec.BufferState.NOT_EMPTY) { c.write(receipt) }
+    c.flush
+
+    out.limit = Integer.MAX_VALUE
+    flush_all(c)
+    expect(List("RECEIPT", "MESSAGE", "ERROR")) { written_actions(out) }
+  }
+
+  test("errors wait until the messages filling the write buffer are written") {
+    val out = new RecordingWriteChannel
+    out.limit = 0
+    val c = write_codec(new_pool, out)
+
+    c.write(message("x" * 20000))
+    expect(ProtocolCodec.BufferState.FULL) { c.write(error) }
+    // receipts still get in.
+    expect(ProtocolCodec.BufferState.NOT_EMPTY) { c.write(receipt) }
+
+    out.limit = Integer.MAX_VALUE
+    flush_all(c)
+    expect(ProtocolCodec.BufferState.WAS_EMPTY) { c.write(error) }
+    flush_all(c)
+    expect(List("RECEIPT", "MESSAGE", "ERROR")) { written_actions(out) }
+  }
+
+}
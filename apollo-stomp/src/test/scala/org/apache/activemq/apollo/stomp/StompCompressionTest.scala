@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp
+
+import java.io._
+import java.net.{InetSocketAddress, Socket}
+import java.util.zip.{Inflater, InflaterInputStream, Deflater, DeflaterOutputStream}
+import org.apache.activemq.apollo.broker.Broker
+import org.apache.activemq.apollo.transport.CompressingProtocolCodec
+import org.apache.activemq.apollo.transport.tcp.TcpTransportServer
+import org.apache.activemq.apollo.util.{LoggingTracker, FunSuiteSupport}
+
+/**
+ * <p>
+ * Runs a STOMP client against a broker over a compressed connection.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class StompCompressionTest extends FunSuiteSupport {
+
+  var broker:Broker = null
+  var port = 0
+
+  override protected def beforeAll() = {
+    broker = new Broker()
+    val config = Broker.defaultConfig
+    config.connectors.get(0).bind = "tcp://0.0.0.0:0"
+    broker.config = config
+    val tracker = new LoggingTracker("broker startup")
+    tracker.start(broker)
+    tracker.await
+    port = broker.connectors.head.transportServer.asInstanceOf[TcpTransportServer].getSocketAddress.getPort
+  }
+
+  override protected def afterAll() = {
+    val tracker = new LoggingTracker("broker shutdown")
+    tracker.stop(broker)
+    tracker.await
+  }
+
+  class CompressedClient {
+    val socket = new Socket
+    socket.connect(new InetSocketAddress("localhost", port))
+    socket.setSoTimeout(5000)
+
+    val prefix = CompressingProtocolCodec.PREFIX.toByteArray
+    socket.getOutputStream.write(prefix)
+    val reply = new Array[Byte](prefix.length)
+    new DataInputStream(socket.getInputStream).readFully(reply)
+    assert(java.util.Arrays.equals(prefix, reply), "the broker did not accept the compressed connection")
+
+    val out = new DeflaterOutputStream(socket.getOutputStream, new Deflater(Deflater.BEST_SPEED), 1024, true)
+    val in = new InflaterInputStream(socket.getInputStream, new Inflater, 1024)
+
+    def send(frame:String) = {
+      out.write(frame.getBytes("UTF-8"))
+      out.write(0)
+      out.write('\n')
+      out.flush
+    }
+
+    /**
+     * @return the next frame without its null terminator.
+     */
+    def receive():String = {
+      val rc = new ByteArrayOutputStream
+      var c = in.read
+      // skip the new lines which can trail the previous frame.
+      while( c == '\n' ) {
+        c = in.read
+      }
+      while( c > 0 ) {
+        rc.write(c)
+        c = in.read
+      }
+      if( c < 0 ) {
+        throw new EOFException
+      }
+      new String(rc.toByteArray, "UTF-8")
+    }
+
+    def close() = socket.close
+  }
+
+  test("a client connects, sends and receives over a compressed connection") {
+    val client = new CompressedClient
+    try {
+      client.send("CONNECT\n\n")
+      expect(true) { client.receive.startsWith("CONNECTED\n") }
+
+      client.send("SUBSCRIBE\ndestination:/queue/compressed\nreceipt:sub\n\n")
+      expect(true) { client.receive.startsWith("RECEIPT\n") }
+
+      val body = "hello " * 100
+      client.send("SEND\ndestination:/queue/compressed\ncontent-length:"+body.length+"\n\n"+body)
+      val message = client.receive
+      expect(true) { message.startsWith("MESSAGE\n") }
+      expect(true) { message.endsWith("\n\n"+body) }
+    } finally {
+      client.close
+    }
+  }
+
+}
@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp
+
+import _root_.org.fusesource.hawtbuf._
+import AsciiBuffer._
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import KnownHeaders._
+
+/**
+ * <p>
+ * Tests the well known header index of STOMP frames.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class StompFrameTest extends FunSuiteSupport {
+
+  def send_frame = StompFrame(Stomp.Commands.SEND, List(
+    (ascii("custom"), ascii("1")),
+    (Stomp.Headers.Send.DESTINATION, ascii("/queue/a")),
+    (Stomp.Headers.Send.PRIORITY, ascii("7")),
+    // only the first occurrence of a header counts.
+    (Stomp.Headers.Send.DESTINATION, ascii("/queue/b"))
+  ))
+
+  test("well known headers are found by index") {
+    val frame = send_frame
+    expect(ascii("/queue/a")) { frame.known_header(DESTINATION) }
+    expect(ascii("7")) { frame.known_header(PRIORITY) }
+    expect(null) { frame.known_header(MESSAGE_ID) }
+  }
+
+  test("updated headers take precedence over the original headers") {
+    val frame = send_frame.copy(updated_headers=List((Stomp.Headers.Send.PRIORITY, ascii("2"))))
+    expect(ascii("2")) { frame.known_header(PRIORITY) }
+    expect(ascii("/queue/a")) { frame.known_header(DESTINATION) }
+    expect(ascii("2")) { frame.header(Stomp.Headers.Send.PRIORITY) }
+  }
+
+  test("header finds well known and other headers") {
+    val frame = send_frame
+    expect(ascii("/queue/a")) { frame.header(Stomp.Headers.Send.DESTINATION) }
+    expect(ascii("1")) { frame.header(ascii("custom")) }
+    expect(null) { frame.header(ascii("missing")) }
+  }
+
+  test("the index is built once and follows the headers of copies") {
+    val frame = send_frame
+    expect(true) { frame.header_index eq frame.header_index }
+
+    val copy = frame.copy(headers=List((Stomp.Headers.Send.DESTINATION, ascii("/queue/c"))))
+    expect(ascii("/queue/c")) { copy.known_header(DESTINATION) }
+    expect(null) { copy.known_header(PRIORITY) }
+    expect(ascii("/queue/a")) { frame.known_header(DESTINATION) }
+  }
+
+  test("equal frames agree on their index") {
+    val a = send_frame
+    val b = send_frame
+    a.known_header(DESTINATION)
+    expect(a) { b }
+    expect(a.known_header(DESTINATION)) { b.known_header(DESTINATION) }
+  }
+
+  test("the message id is only looked up once") {
+    val frame = send_frame.copy(updated_headers=List((Stomp.Headers.Message.MESSAGE_ID, ascii("id:1"))))
+    val message = StompFrameMessage(frame)
+    expect(ascii("id:1")) { message.id }
+    expect(true) { message.id eq message.id }
+  }
+
+}
@@ -30,6 +30,7 @@ import _root_.org.apache.activemq.apollo.stomp.StompFrame
 import _root_.org.fusesource.hawtdispatch.ScalaDispatch._
 import java.io.File
 import org.apache.activemq.apollo.dto.{BrokerDTO, HawtDBStoreDTO}
+import org.apache.activemq.apollo.store.journal.dto.JournalStoreDTO
 
 
 class StompBrokerPerfTest extends BaseBrokerPerfSupport {
@@ -44,6 +45,38 @@ class StompBrokerPerfTest extends BaseBrokerPerfSupport {
 
 }
 
+/**
+ * Runs the same scenarios as StompBrokerPerfTest but over unix domain
+ * sockets so that its report can be compared against the tcp://localhost
+ * one.  The unix transport is only on the classpath when the build runs
+ * on JDK 16 or newer.
+ */
+class StompUnixBrokerPerfTest extends BaseBrokerPerfSupport {
+
+  override def description = "Using the STOMP protocol over unix domain sockets"
+
+  override def createProducer() = new StompRemoteProducer()
+
+  override def createConsumer() = new StompRemoteConsumer()
+
+  override def getRemoteProtocolName() = "stomp"
+
+  TRANSPORT = "unix"
+
+}
+
+class StompTransportPerfTest extends BaseTransportPerfSupport {
+
+  override def description = "Using the STOMP protocol over the pipe, tcp, unix domain socket and shared memory transports."
+
+  override def createProducer() = new StompRemoteProducer()
+
+  override def createConsumer() = new StompRemoteConsumer()
+
+  override def getRemoteProtocolName() = "stomp"
+
+}
+
 class StompPersistentBrokerPerfTest extends BasePersistentBrokerPerfSupport {
 
   override def description = "Using the STOMP protocol over TCP with no store."
@@ -81,6 +114,28 @@ class StompHawtDBPersistentBrokerPerfTest extends BasePersistentBrokerPerfSuppor
 
 }
 
+class StompJournalPersistentBrokerPerfTest extends BasePersistentBrokerPerfSupport {
+
+  override def description = "Using the STOMP protocol over TCP persisting to the journal store."
+
+  override def createProducer() = new StompRemoteProducer()
+
+  override def createConsumer() = new StompRemoteConsumer()
+
+  override def getRemoteProtocolName() = "stomp"
+
+  override def createBrokerConfig(name: String, bindURI: String, connectUri: String): BrokerDTO = {
+    val rc = super.createBrokerConfig(name, bindURI, connectUri)
+
+    val store = new JournalStoreDTO
+    store.directory = new File(new File(testDataDir, getClass.getName), name)
+
+    rc.virtual_hosts.get(0).store = store
+    rc
+  }
+
+}
+
 
 class StompRemoteConsumer extends RemoteConsumer {
   var outboundSink: OverflowSink[StompFrame] = null
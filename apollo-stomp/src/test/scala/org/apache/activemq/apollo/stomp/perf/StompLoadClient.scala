@@ -28,6 +28,8 @@ import java.lang.String._
 import java.util.concurrent.TimeUnit._
 import collection.mutable.Map
 import org.apache.activemq.apollo.stomp.Stomp
+import org.apache.activemq.apollo.transport.CompressingProtocolCodec
+import java.util.zip.{Inflater, InflaterInputStream, Deflater, DeflaterOutputStream}
 
 /**
  *
@@ -55,6 +57,7 @@ object StompLoadClient {
   var ack = "auto"
   var selector:String = null
   var durable = false
+  var compress = false
 
   var destinationType = "queue"
   var destinationName = "load"
@@ -149,6 +152,7 @@ object StompLoadClient {
     "destinationCount = "+destinationCount+"\n" +
     "destinationName  = "+destinationName+"\n" +
     "sampleInterval   = "+sampleInterval+"\n" +
+    "compress         = "+compress+"\n" +
     "\n"+
     "--- Producer Properties ---\n"+
     "producers        = "+producers+"\n"+
@@ -187,8 +191,22 @@ object StompLoadClient {
       socket = new Socket
       socket.connect(new InetSocketAddress(host, port))
       socket.setSoLinger(true, 0)
-      out = new BufferedOutputStream(socket.getOutputStream, bufferSize)
-      in = new BufferedInputStream(socket.getInputStream, bufferSize)
+      if( compress ) {
+        // ask the broker for a compressed connection.
+        val prefix = CompressingProtocolCodec.PREFIX.toByteArray
+        socket.getOutputStream.write(prefix)
+        // the broker accepts by sending the prefix back.
+        val reply = new Array[Byte](prefix.length)
+        new DataInputStream(socket.getInputStream).readFully(reply)
+        if( !java.util.Arrays.equals(prefix, reply) ) {
+          throw new IOException("The broker did not accept the compressed connection")
+        }
+        out = new BufferedOutputStream(new DeflaterOutputStream(socket.getOutputStream, new Deflater(Deflater.BEST_SPEED), bufferSize, true), bufferSize)
+        in = new BufferedInputStream(new InflaterInputStream(socket.getInputStream, new Inflater, bufferSize), bufferSize)
+      } else {
+        out = new BufferedOutputStream(socket.getOutputStream, bufferSize)
+        in = new BufferedInputStream(socket.getInputStream, bufferSize)
+      }
     }
 
     def close() = {
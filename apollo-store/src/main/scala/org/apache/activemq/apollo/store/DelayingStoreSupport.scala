@@ -30,6 +30,11 @@ import org.fusesource.hawtdispatch.{BaseRetained, ListEventAggregator}
  * so that it can support potentially be canceling the update due
  * to subsequent operation.
  * </p>
+ * <p>
+ * It also decides when the written updates get forced to disk as per
+ * the store's fsync policy, and only completes the units of work once
+ * that has happened.
+ * </p>
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
@@ -41,6 +46,22 @@ trait DelayingStoreSupport extends Store with BaseService {
 
   protected def store(uows: Seq[DelayableUOW])(callback: =>Unit):Unit
 
+  protected def fsync_policy:FsyncPolicy
+
+  protected def message_cache_size:Long
+
+  /**
+   * Loads a message which was not found in the message cache.
+   */
+  protected def load_message(messageKey: Long)(callback: (Option[MessageRecord]) => Unit):Unit
+
+  /**
+   * Forces everything the store has written so far to disk and then
+   * executes the callback.  Only called once the previous sync has
+   * completed.
+   */
+  protected def sync(callback: =>Unit):Unit
+
   /////////////////////////////////////////////////////////////////////
   //
   // Implementation of the BaseService interface
@@ -161,6 +182,24 @@ trait DelayingStoreSupport extends Store with BaseService {
   }
 
 
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Recently stored messages are cached so that consumers which are not
+  // far behind the producers can load them without going to disk.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  val message_cache = new MessageCache(message_cache_size)
+
+  def loadMessage(messageKey: Long)(callback: (Option[MessageRecord]) => Unit) = {
+    message_cache.get(messageKey) match {
+      case None =>
+        load_message(messageKey)(callback)
+      case rc =>
+        callback(rc)
+    }
+  }
+
   def flushMessage(messageKey: Long)(cb: => Unit) = dispatchQueue {
     val action: DelayableUOW#MessageAction = pendingStores.get(messageKey)
     if( action == null ) {
@@ -291,9 +330,28 @@ trait DelayingStoreSupport extends Store with BaseService {
     }
 
     if( !uows.isEmpty ) {
+      // Only compress the messages which actually get written out, the
+      // delayed ones that got canceled never needed it.
+      uows.foreach { uow=>
+        uow.actions.foreach { case (msg, action) =>
+          val record = action.messageRecord
+          if( record!=null ) {
+            if( record.compressible ) {
+              MessageCompression.compress(record)
+            }
+            // cached before the write so that a delete the store does
+            // while indexing it always comes after.
+            message_cache.put(record)
+          }
+        }
+      }
+
+      val size = uows.foldLeft(0L)( _ + uow_size(_) )
+
       flush_latency_counter.start { end=>
         store(uows) {
           end()
+          val policy = fsync_policy
           uows.foreach { uow=>
 
             uow.actions.foreach { case (msg, action) =>
@@ -307,12 +365,102 @@ trait DelayingStoreSupport extends Store with BaseService {
                 pending_enqueues.remove(k)
               }
             }
-            uow.onPerformed
+            if( policy.is_never ) {
+              uow.onPerformed
+            } else {
+              unsynced_uows += uow
+            }
+          }
+          if( !policy.is_never ) {
+            unsynced_size += size
+            schedule_sync(policy)
+          }
+        }
+      }
+    }
+  }
+
+  private def uow_size(uow:DelayableUOW) = {
+    var rc = 0L
+    uow.actions.foreach { case (msg, action) =>
+      val record = action.messageRecord
+      if( record!=null ) {
+        rc += (if( record.buffer!=null ) record.buffer.length else record.size)
+      }
+      rc += (action.enqueues.size + action.dequeues.size) * 32
+    }
+    rc
+  }
 
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Group commit: the units of work which were written while a sync was
+  // in progress all wait for and share the next sync.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  var unsynced_uows = ListBuffer[DelayableUOW]()
+  var unsynced_size = 0L
+  var syncing = false
+  var sync_scheduled = false
+
+  var metric_fsync_counter:Long = 0
+  val fsync_latency_counter = new TimeCounter
+  var fsync_latency = fsync_latency_counter(false)
+
+  private def schedule_sync(policy:FsyncPolicy) = {
+    if( policy.is_batch || unsynced_size >= policy.size ) {
+      request_sync
+    } else if( !sync_scheduled ) {
+      sync_scheduled = true
+      dispatchQueue.dispatchAfter(policy.interval, TimeUnit.MILLISECONDS, ^{
+        sync_scheduled = false
+        request_sync
+      })
+    }
+  }
+
+  private def request_sync:Unit = {
+    // once stopping, perform_unsynced completes whatever is left.
+    if( !serviceState.isStarted ) {
+      return
+    }
+    if( !syncing && !unsynced_uows.isEmpty ) {
+      syncing = true
+      val uows = unsynced_uows
+      unsynced_uows = ListBuffer[DelayableUOW]()
+      unsynced_size = 0
+
+      fsync_latency_counter.start { end=>
+        sync {
+          dispatchQueue {
+            end()
+            metric_fsync_counter += 1
+            syncing = false
+            uows.foreach( _.onPerformed )
+
+            // sync whatever got written while we were syncing.
+            if( !unsynced_uows.isEmpty ) {
+              schedule_sync(fsync_policy)
+            }
           }
         }
       }
     }
   }
 
+  /**
+   * Completes the units of work which were still waiting for a sync when
+   * the store got stopped, the store's threads may no longer be around
+   * to sync them.  Stores call it from _stop once their last writes have
+   * completed and been forced to disk.
+   */
+  protected def perform_unsynced(callback: =>Unit) = dispatchQueue {
+    val uows = unsynced_uows
+    unsynced_uows = ListBuffer[DelayableUOW]()
+    unsynced_size = 0
+    uows.foreach( _.onPerformed )
+    callback
+  }
+
 }
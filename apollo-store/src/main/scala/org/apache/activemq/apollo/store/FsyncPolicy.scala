@@ -0,0 +1,54 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.store
+
+import org.apache.activemq.apollo.dto.StoreDTO
+
+object FsyncPolicy {
+
+  val BATCH = "batch"
+  val PERIODIC = "periodic"
+  val NEVER = "never"
+
+  val never = FsyncPolicy(NEVER, 0, 0)
+
+  def apply(config:StoreDTO):FsyncPolicy = {
+    val kind = if( config.fsync_policy==null ) BATCH else config.fsync_policy
+    FsyncPolicy(kind, config.fsync_interval, config.fsync_size)
+  }
+
+  def is_valid(kind:String) = kind==null || kind==BATCH || kind==PERIODIC || kind==NEVER
+
+}
+
+/**
+ * <p>
+ * When a DelayingStoreSupport store forces the batches it writes to disk.
+ * See StoreDTO.fsync_policy.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+case class FsyncPolicy(kind:String, interval:Long, size:Long) {
+  import FsyncPolicy._
+
+  def is_batch = kind == BATCH
+  def is_periodic = kind == PERIODIC
+  def is_never = kind == NEVER
+
+  override def toString = kind
+}
@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.store
+
+import java.{util=>ju}
+import org.fusesource.hawtbuf.Buffer
+
+object MessageCache {
+
+  /**
+   * Rough per entry overhead of the record and the map entry.
+   */
+  val ENTRY_OVERHEAD = 128
+
+  /**
+   * Counts the arrays backing the record's buffers since those are
+   * what the cache keeps from being collected.
+   */
+  def record_size(record:MessageRecord) = {
+    var rc = ENTRY_OVERHEAD + record.buffer.data.length
+    if( record.header_delta!=null ) {
+      rc += record.header_delta.data.length
+    }
+    rc
+  }
+
+  /**
+   * @return a buffer which does not share its backing array when the
+   *         buffer only covers part of it, like a record sliced out of
+   *         a bigger read.
+   */
+  def compact(buffer:Buffer) = {
+    if( buffer==null || (buffer.offset==0 && buffer.length==buffer.data.length) ) {
+      buffer
+    } else {
+      new Buffer(buffer.toByteArray)
+    }
+  }
+
+  /**
+   * Copies the fields of a record so that the cached record
+   * is not changed when the caller decompresses or decodes it.
+   */
+  def copy(record:MessageRecord) = {
+    val rc = new MessageRecord
+    rc.key = record.key
+    rc.protocol = record.protocol
+    rc.size = record.size
+    rc.buffer = record.buffer
+    rc.header_delta = record.header_delta
+    rc.compressible = record.compressible
+    rc.compressed = record.compressed
+    rc.expiration = record.expiration
+    rc
+  }
+}
+
+/**
+ * <p>
+ * A cache of recently stored message records which lets a store
+ * serve the loads of consumers lagging just behind the producers
+ * without going to disk.  Entries are evicted in least recently used
+ * order once the records take up more than max_size bytes, and stores
+ * remove the records of the messages they delete.  A max_size of 0
+ * disables the cache.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class MessageCache(max_size: =>Long) {
+
+  import MessageCache._
+
+  private val entries = new ju.LinkedHashMap[Long, MessageRecord](16, 0.75f, true)
+  private var _size = 0L
+  private var _hits = 0L
+  private var _misses = 0L
+
+  def put(record:MessageRecord):Unit = synchronized {
+    val limit = max_size
+    // records backed by direct buffers or files are not ours to keep.
+    if( limit <= 0 || record.buffer==null || record.direct_buffer!=null || record.file_region!=null ) {
+      return
+    }
+    val cached = copy(record)
+    cached.buffer = compact(record.buffer)
+    cached.header_delta = compact(record.header_delta)
+    val size = record_size(cached)
+    if( size > limit ) {
+      return
+    }
+
+    val prev = entries.put(cached.key, cached)
+    if( prev!=null ) {
+      _size -= record_size(prev)
+    }
+    _size += size
+
+    val i = entries.values.iterator
+    while( _size > limit && i.hasNext ) {
+      _size -= record_size(i.next)
+      i.remove
+    }
+  }
+
+  def get(key:Long):Option[MessageRecord] = synchronized {
+    if( max_size <= 0 ) {
+      None
+    } else {
+      val rc = entries.get(key)
+      if( rc==null ) {
+        _misses += 1
+        None
+      } else {
+        _hits += 1
+        Some(copy(rc))
+      }
+    }
+  }
+
+  /**
+   * Drops the record of a message which got deleted from the store.
+   */
+  def remove(key:Long):Unit = synchronized {
+    val prev = entries.remove(key)
+    if( prev!=null ) {
+      _size -= record_size(prev)
+    }
+  }
+
+  def clear() = synchronized {
+    entries.clear
+    _size = 0
+  }
+
+  /**
+   * @return the number of bytes held by the cached records.
+   */
+  def size = synchronized { _size }
+
+  def hits = synchronized { _hits }
+
+  def misses = synchronized { _misses }
+
+  def hit_ratio:Float = synchronized {
+    val total = _hits + _misses
+    if( total==0 ) 0f else _hits.toFloat / total
+  }
+
+}
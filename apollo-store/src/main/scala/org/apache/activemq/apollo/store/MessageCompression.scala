@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.store
+
+import java.util.zip.{Inflater, Deflater}
+import java.io.IOException
+import org.fusesource.hawtbuf.Buffer
+
+/**
+ * <p>
+ * Compresses and decompresses the values of message records.  A compressed
+ * value is the length of the original value as a 4 byte int followed by
+ * the deflated bytes of the value.  The fastest deflate level is used since
+ * the goal is to cut down on the amount of store IO, not to get the best
+ * compression ratio.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+object MessageCompression {
+
+  /**
+   * Values smaller than this are not worth compressing.
+   */
+  val MIN_SIZE = 256
+
+  // zlib streams are expensive to setup, so each thread reuses them.
+  private val deflaters = new ThreadLocal[Deflater]() {
+    override def initialValue = new Deflater(Deflater.BEST_SPEED)
+  }
+  private val inflaters = new ThreadLocal[Inflater]() {
+    override def initialValue = new Inflater
+  }
+
+  /**
+   * Replaces the value of the record with a compressed version of it
+   * if that turns out to be smaller.
+   */
+  def compress(record:MessageRecord):Unit = {
+    val value = record.buffer
+    if( record.compressed || value==null || value.length < MIN_SIZE || record.direct_buffer!=null ) {
+      return
+    }
+
+    val deflater = deflaters.get
+    deflater.reset
+    deflater.setInput(value.data, value.offset, value.length)
+    deflater.finish
+
+    // no point in keeping the compressed version if it's not smaller.
+    val out = new Array[Byte](value.length)
+    write_int(out, value.length)
+    var pos = 4
+    while( !deflater.finished && pos < out.length ) {
+      pos += deflater.deflate(out, pos, out.length-pos)
+    }
+    if( deflater.finished && pos < value.length ) {
+      record.buffer = new Buffer(out, 0, pos)
+      record.compressed = true
+    }
+  }
+
+  /**
+   * Replaces the value of a compressed record with the original value.
+   */
+  def decompress(record:MessageRecord):Unit = {
+    if( !record.compressed ) {
+      return
+    }
+    val value = record.buffer
+    val out = new Array[Byte](read_int(value.data, value.offset))
+
+    val inflater = inflaters.get
+    inflater.reset
+    inflater.setInput(value.data, value.offset+4, value.length-4)
+    var pos = 0
+    while( !inflater.finished ) {
+      val count = inflater.inflate(out, pos, out.length-pos)
+      if( count==0 && (inflater.needsInput || inflater.needsDictionary || pos==out.length) ) {
+        throw new IOException("Corrupt compressed message value")
+      }
+      pos += count
+    }
+
+    record.buffer = new Buffer(out, 0, pos)
+    record.compressed = false
+  }
+
+  private def write_int(data:Array[Byte], value:Int) = {
+    data(0) = (value >>> 24).toByte
+    data(1) = (value >>> 16).toByte
+    data(2) = (value >>> 8).toByte
+    data(3) = value.toByte
+  }
+
+  private def read_int(data:Array[Byte], offset:Int) = {
+    ((data(offset) & 0xFF) << 24) |
+    ((data(offset+1) & 0xFF) << 16) |
+    ((data(offset+2) & 0xFF) << 8) |
+    (data(offset+3) & 0xFF)
+  }
+
+}
@@ -17,6 +17,7 @@
 package org.apache.activemq.apollo.store;
 
 import org.apache.activemq.apollo.util.DirectBuffer;
+import org.apache.activemq.apollo.util.FileRegion;
 import org.fusesource.hawtbuf.AsciiBuffer;
 import org.fusesource.hawtbuf.Buffer;
 
@@ -29,7 +30,30 @@ public class MessageRecord {
     public AsciiBuffer protocol;
     public int size;
     public Buffer buffer;
+    /**
+     * Headers the protocol added to the message after it was received.
+     * Keeping them separate lets buffer be a slice of the bytes that were
+     * received instead of a re-encoded copy of the message.
+     */
+    public Buffer header_delta = null;
     public DirectBuffer direct_buffer = null;
+    /**
+     * Set by stores which leave the value of large messages on disk.  The
+     * region holds the whole value, and buffer only holds the first few
+     * bytes of it.
+     */
+    public FileRegion file_region = null;
+    /**
+     * Set by the broker on messages sent to destinations which are configured
+     * to have their messages compressed.  The store compresses the value when
+     * it writes the record out.
+     */
+    public boolean compressible = false;
+    /**
+     * Set when buffer holds the compressed value.  Use
+     * MessageCompression.decompress to get the original value back.
+     */
+    public boolean compressed = false;
     public long expiration = 0;
 
 }
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.store
+
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtbuf.AsciiBuffer._
+import org.apache.activemq.apollo.util.FunSuiteSupport
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class MessageCacheTest extends FunSuiteSupport {
+
+  def record(key:Long, buffer:Buffer) = {
+    val rc = new MessageRecord
+    rc.key = key
+    rc.protocol = ascii("test-protocol")
+    rc.buffer = buffer
+    rc.size = buffer.length
+    rc
+  }
+
+  test("records sliced out of a bigger buffer do not keep it cached") {
+    val cache = new MessageCache(1024*1024)
+    val read = new Buffer(64*1024)
+    cache.put(record(1, read.slice(0, 10)))
+
+    expect(MessageCache.ENTRY_OVERHEAD + 10) { cache.size }
+    expect(10) { cache.get(1).get.buffer.data.length }
+  }
+
+  test("records are evicted in least recently used order") {
+    val size = MessageCache.ENTRY_OVERHEAD + 100
+    val cache = new MessageCache(size*2)
+    cache.put(record(1, new Buffer(100)))
+    cache.put(record(2, new Buffer(100)))
+    cache.get(1)
+    cache.put(record(3, new Buffer(100)))
+
+    expect(true) { cache.get(1).isDefined }
+    expect(None) { cache.get(2) }
+    expect(true) { cache.get(3).isDefined }
+    expect(size*2) { cache.size }
+  }
+
+  test("deleted messages are dropped") {
+    val cache = new MessageCache(1024*1024)
+    cache.put(record(1, new Buffer(100)))
+    cache.put(record(2, new Buffer(100)))
+    cache.remove(1)
+    cache.remove(3)
+
+    expect(None) { cache.get(1) }
+    expect(true) { cache.get(2).isDefined }
+    expect(MessageCache.ENTRY_OVERHEAD + 100) { cache.size }
+  }
+
+}
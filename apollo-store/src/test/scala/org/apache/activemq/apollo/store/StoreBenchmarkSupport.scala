@@ -94,12 +94,14 @@ abstract class StoreBenchmarkSupport extends FunSuiteSupport with BeforeAndAfter
     queueA.key
   }
 
-  def addMessage(batch:StoreUOW, content:String):Long = {
+  def addMessage(batch:StoreUOW, content:String, compressible:Boolean=false):MessageRecord = {
     var message = new MessageRecord
     message.protocol = ascii("test-protocol")
     message.buffer = ascii(content).buffer
     message.size = message.buffer.length
+    message.compressible = compressible
     batch.store(message)
+    message
   }
 
 
@@ -132,7 +134,7 @@ abstract class StoreBenchmarkSupport extends FunSuiteSupport with BeforeAndAfter
     var nextSeq = firstSeq
 
     messages.foreach { message=>
-      val msgKey = addMessage(batch, message)
+      val msgKey = addMessage(batch, message).key
       msgKeys += msgKey
       batch.enqueue(entry(queueKey, nextSeq, msgKey))
       nextSeq += 1
@@ -153,17 +155,25 @@ abstract class StoreBenchmarkSupport extends FunSuiteSupport with BeforeAndAfter
     loadMessages(A, messageKeys)
   }
 
-  def storeMessages(queue:Long) = {
+  test("store enqueue and dequeue latencey") {
+    val A = addQueue("A")
+    var messageKeys = storeMessages(A)
+    dequeueMessages(A, messageKeys)
+  }
+
+  def storeMessages(queue:Long, content:String=payload("message\n", 1024), compressible:Boolean=false) = {
 
     var seq = 0L
     var messageKeys = ListBuffer[Long]()
+    var content_size = 0L
+    var stored_size = 0L
 
-    val content = payload("message\n", 1024)
     var metric = benchmarkCount(100000) {
       seq += 1
 
       var batch = store.createStoreUOW
-      val message = addMessage(batch, content)
+      val record = addMessage(batch, content, compressible)
+      val message = record.key
       messageKeys += message
       batch.enqueue(entry(queue, seq, message))
 
@@ -173,9 +183,12 @@ abstract class StoreBenchmarkSupport extends FunSuiteSupport with BeforeAndAfter
       store.flushMessage(message) {}
 
       latch.await
+      content_size += record.size
+      stored_size += record.buffer.length
 
     }
     println("enqueue metrics: "+metric)
+    println("enqueue compression ratio is: "+(content_size.toFloat/stored_size))
     println("enqueue latency is: "+metric.latency(TimeUnit.MILLISECONDS)+" ms")
     println("enqueue rate is: "+metric.rate(TimeUnit.SECONDS)+" enqueues/s")
     messageKeys.toList
@@ -188,6 +201,7 @@ abstract class StoreBenchmarkSupport extends FunSuiteSupport with BeforeAndAfter
       val latch = new CountDownLatch(1)
       store.loadMessage(keys.head) { msg=>
         assert(msg.isDefined, "message key not found: "+keys.head)
+        MessageCompression.decompress(msg.get)
         latch.countDown
       }
       latch.await
@@ -200,6 +214,30 @@ abstract class StoreBenchmarkSupport extends FunSuiteSupport with BeforeAndAfter
 
   }
 
+  def dequeueMessages(queue:Long, messageKeys: List[Long]) = {
+
+    var seq = 0L
+    var keys = messageKeys.toList
+    val metric = benchmarkCount(keys.size) {
+      seq += 1
+
+      var batch = store.createStoreUOW
+      batch.dequeue(entry(queue, seq, keys.head))
+
+      val latch = new CountDownLatch(1)
+      batch.setDisposer(^{latch.countDown} )
+      batch.release
+
+      latch.await
+      keys = keys.drop(1)
+    }
+
+    println("dequeue metrics: "+metric)
+    println("dequeue latency is: "+metric.latency(TimeUnit.MILLISECONDS)+" ms")
+    println("dequeue rate is: "+metric.rate(TimeUnit.SECONDS)+" dequeues/s")
+
+  }
+
   case class Metric(count:Long, duration:Long) {
     def latency(unit:TimeUnit) = {
       ((duration).toFloat / unit.toNanos(1)) / count
@@ -23,6 +23,7 @@ import java.util.concurrent.{TimeUnit, CountDownLatch}
 import org.scalatest.{BeforeAndAfterEach, BeforeAndAfterAll}
 import collection.mutable.ListBuffer
 import org.apache.activemq.apollo.util.{LoggingTracker, FunSuiteSupport, LongCounter}
+import org.apache.activemq.apollo.dto.StoreStatusDTO
 
 /**
  * <p>Implements generic testing of Store implementations.</p>
@@ -35,6 +36,11 @@ abstract class StoreFunSuiteSupport extends FunSuiteSupport with BeforeAndAfterE
 
   def createStore(flushDelay:Long):Store
 
+  /**
+   * Override to return false when the created store has its message cache disabled.
+   */
+  def message_cache_enabled = true
+
   /**
    * Handy helper to call an async method on the store and wait for
    * the result of the callback.
@@ -141,6 +147,42 @@ abstract class StoreFunSuiteSupport extends FunSuiteSupport with BeforeAndAfterE
     }
   }
 
+  test("load a batch of stored messages") {
+    val A = addQueue("A")
+    val B = addQueue("B")
+    val contents = (1 to 20).map("message "+_).toList
+    val msgKeys = populate(A, contents)
+    populate(B, contents)
+
+    val loaded = new Array[Option[MessageRecord]](msgKeys.size)
+    val latch = new CountDownLatch(msgKeys.size)
+    msgKeys.reverse.zipWithIndex.foreach { case (msgKey, i) =>
+      store.loadMessage(msgKey) { rc=>
+        loaded(i) = rc
+        latch.countDown
+      }
+    }
+    latch.await
+    expect(contents.reverse.map(ascii(_).buffer)) {
+      loaded.toList.map(_.get.buffer)
+    }
+  }
+
+  test("recently stored messages load from the message cache") {
+    val A = addQueue("A")
+    val msgKeys = populate(A, "message 1"::Nil)
+
+    val rc:Option[MessageRecord] = CB( cb=> store.loadMessage(msgKeys.head)(cb) )
+    expect(ascii("message 1").buffer) {
+      rc.get.buffer
+    }
+
+    val status:StoreStatusDTO = CB( cb=> store.storeStatusDTO(cb) )
+    expect(message_cache_enabled) {
+      status.message_cache_hit_ratio > 0 && status.message_cache_size > 0
+    }
+  }
+
   test("add and list queues") {
     val A = addQueue("A")
     val B = addQueue("B")
@@ -206,5 +248,26 @@ abstract class StoreFunSuiteSupport extends FunSuiteSupport with BeforeAndAfterE
     }
   }
 
+  test("compressed messages load back the original value") {
+    val content = "compress me "*100
+    var batch = store.createStoreUOW
+    var message = new MessageRecord
+    message.protocol = ascii("test-protocol")
+    message.buffer = ascii(content).buffer
+    message.size = message.buffer.length
+    message.compressible = true
+    val m1 = batch.store(message)
+
+    val tracker = new TaskTracker()
+    tracker.release(batch)
+    store.flushMessage(m1) {}
+    tracker.await
+
+    val loaded = CB[Option[MessageRecord]]( cb=> store.loadMessage(m1)(cb) ).get
+    expect(true)(loaded.compressed)
+    MessageCompression.decompress(loaded)
+    expect(false)(loaded.compressed)
+    expect(ascii(content).buffer)(loaded.buffer)
+  }
 
 }
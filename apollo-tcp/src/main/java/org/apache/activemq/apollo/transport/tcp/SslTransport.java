@@ -0,0 +1,698 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.tcp;
+
+import org.apache.activemq.apollo.transport.BufferPool;
+import org.fusesource.hawtdispatch.Dispatch;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.*;
+import static javax.net.ssl.SSLEngineResult.Status.*;
+
+/**
+ * An SSL/TLS transport.  It runs an {@link SSLEngine} on top of the non
+ * blocking socket handling of the {@link TcpTransport}, so it uses the same
+ * dispatch sources and never blocks a dispatch thread on the network.
+ * <p>
+ * The engine is placed between the protocol codec and the socket channel.
+ * The network side buffers used to wrap and unwrap the TLS records are
+ * direct buffers, so the socket reads and writes don't get copied through
+ * a temporary one by the JDK.  They and the application side buffer are
+ * borrowed from the {@link BufferPool} while they hold data, so idle
+ * connections don't hold on to them.  Since the codec does not get the
+ * socket channel, the transport sizes the socket buffers itself.
+ * </p>
+ * <p>
+ * The handshake runs before the transport listener is told the transport
+ * is connected.  The expensive handshake tasks are run on the global
+ * dispatch queue.  Client side engines are created with the peer's host
+ * and port so that the JSSE client session cache can resume sessions with
+ * servers it has already done a full handshake with.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class SslTransport extends TcpTransport {
+
+    private final SSLContext sslContext;
+    private final SslTransportServer server;
+    private final BufferPool bufferPool = BufferPool.DEFAULT;
+
+    private SSLEngine engine;
+    private SslChannel sslChannel;
+    private boolean needClientAuth;
+    private boolean wantClientAuth;
+    private String enabledProtocols;
+    private int sendBufferSize = 1024*64;
+    private int receiveBufferSize = 1024*64;
+
+    private boolean handshaking;
+    private boolean runningTasks;
+    private long handshakeStart;
+    private long handshakeStartTime;
+    private long handshakeTime = -1;
+    private boolean sessionResumed;
+
+    /**
+     * Creates a client side transport.
+     */
+    public SslTransport(SSLContext sslContext) {
+        this(sslContext, null);
+    }
+
+    /**
+     * Creates a server side transport for a socket accepted by the server.
+     */
+    public SslTransport(SSLContext sslContext, SslTransportServer server) {
+        this.sslContext = sslContext;
+        this.server = server;
+    }
+
+    @Override
+    public void connected(SocketChannel channel) throws IOException {
+        engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        configureEngine();
+        if( needClientAuth ) {
+            engine.setNeedClientAuth(true);
+        } else if( wantClientAuth ) {
+            engine.setWantClientAuth(true);
+        }
+        super.connected(channel);
+    }
+
+    @Override
+    public void connecting(URI remoteLocation, URI localLocation) throws IOException {
+        engine = sslContext.createSSLEngine(remoteLocation.getHost(), remoteLocation.getPort());
+        engine.setUseClientMode(true);
+        configureEngine();
+        super.connecting(remoteLocation, localLocation);
+    }
+
+    private void configureEngine() {
+        if( enabledProtocols!=null ) {
+            engine.setEnabledProtocols(enabledProtocols.split(","));
+        }
+    }
+
+    @Override
+    protected ByteChannel codecChannel() {
+        if( sslChannel==null ) {
+            sslChannel = new SslChannel(channel);
+            configureSocket();
+        }
+        return sslChannel;
+    }
+
+    /**
+     * The protocol codecs size the socket buffers when they are handed a
+     * socket channel, but ours get the SslChannel, so it's done here.
+     */
+    private void configureSocket() {
+        try {
+            if( sendBufferSize > 0 ) {
+                channel.socket().setSendBufferSize(sendBufferSize);
+            }
+            if( receiveBufferSize > 0 ) {
+                channel.socket().setReceiveBufferSize(receiveBufferSize);
+            }
+        } catch (IOException e) {
+            // the OS defaults will have to do.
+        }
+    }
+
+    @Override
+    protected void fireConnected() {
+        codecChannel();
+        handshaking = true;
+        handshakeStart = System.nanoTime();
+        handshakeStartTime = System.currentTimeMillis();
+        try {
+            engine.beginHandshake();
+        } catch (SSLException e) {
+            onTransportFailure(e);
+            return;
+        }
+        // we need to see the handshake records before the listener starts reading.
+        resumeRead();
+    }
+
+    private void handshake() {
+        try {
+            while( true ) {
+                if( !sslChannel.flush() ) {
+                    resumeWrite();
+                    return;
+                }
+                // don't spin on a writable socket while we wait on the peer.
+                suspendWrite();
+                switch( engine.getHandshakeStatus() ) {
+                    case NEED_TASK:
+                        runTasks();
+                        return;
+                    case NEED_WRAP:
+                        sslChannel.wrapHandshake();
+                        break;
+                    case NEED_UNWRAP:
+                        if( !sslChannel.unwrapHandshake() ) {
+                            // wait for the read source to fire.
+                            return;
+                        }
+                        break;
+                    default:
+                        handshakeCompleted();
+                        return;
+                }
+            }
+        } catch (IOException e) {
+            onTransportFailure(e);
+        }
+    }
+
+    /**
+     * Runs the engine's delegated tasks on the global queue so that the key
+     * exchange math does not hold up the other connections sharing our
+     * dispatch thread.
+     */
+    private void runTasks() {
+        if( runningTasks ) {
+            return;
+        }
+        final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        Runnable task;
+        while( (task = engine.getDelegatedTask())!=null ) {
+            tasks.add(task);
+        }
+        runningTasks = true;
+        Dispatch.getGlobalQueue().execute(new Runnable() {
+            public void run() {
+                for (Runnable task : tasks) {
+                    task.run();
+                }
+                getDispatchQueue().execute(new Runnable() {
+                    public void run() {
+                        runningTasks = false;
+                        if( handshaking && isConnected() ) {
+                            handshake();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void handshakeCompleted() {
+        handshaking = false;
+        handshakeTime = System.nanoTime() - handshakeStart;
+        SSLSession session = engine.getSession();
+        sessionResumed = session.getCreationTime() < handshakeStartTime;
+        if( server!=null ) {
+            server.onHandshakeCompleted(handshakeTime, sessionResumed);
+        }
+        // the listener decides when to start reading.
+        suspendRead();
+        super.fireConnected();
+    }
+
+    @Override
+    protected void drainInbound() {
+        if( handshaking ) {
+            handshake();
+            return;
+        }
+        super.drainInbound();
+        // unwrapping can produce records the engine needs to send back.
+        if( sslChannel!=null && sslChannel.hasPendingOutput() ) {
+            resumeWrite();
+        }
+    }
+
+    @Override
+    protected void drainOutbound() {
+        if( handshaking ) {
+            handshake();
+            return;
+        }
+        super.drainOutbound();
+    }
+
+    @Override
+    protected boolean flushChannel() throws IOException {
+        return sslChannel==null || sslChannel.flush();
+    }
+
+    @Override
+    public void _stop(final Runnable onCompleted) {
+        if( isConnected() && !handshaking && sslChannel!=null ) {
+            // try to let the peer know we are closing, but don't wait around for it.
+            engine.closeOutbound();
+            try {
+                sslChannel.wrapHandshake();
+                sslChannel.flush();
+            } catch (IOException ignore) {
+            }
+        }
+        super._stop(new Runnable() {
+            public void run() {
+                if( sslChannel!=null ) {
+                    sslChannel.releaseBuffers();
+                }
+                if( onCompleted!=null ) {
+                    onCompleted.run();
+                }
+            }
+        });
+    }
+
+    @Override
+    public String getTypeId() {
+        return "ssl";
+    }
+
+    public SSLEngine getSSLEngine() {
+        return engine;
+    }
+
+    /**
+     * @return how long the handshake took in nanoseconds or -1 if it has
+     *         not completed yet.
+     */
+    public long getHandshakeTime() {
+        return handshakeTime;
+    }
+
+    /**
+     * @return true if the handshake resumed a previously established session
+     *         instead of doing a full key exchange.
+     */
+    public boolean isSessionResumed() {
+        return sessionResumed;
+    }
+
+    /**
+     * @return the number of bytes read from the socket, which includes the
+     *         handshake and the TLS record overhead.
+     */
+    public long getNetworkReadCounter() {
+        return sslChannel==null ? 0 : sslChannel.networkReadCounter;
+    }
+
+    /**
+     * @return the number of bytes written to the socket, which includes the
+     *         handshake and the TLS record overhead.
+     */
+    public long getNetworkWriteCounter() {
+        return sslChannel==null ? 0 : sslChannel.networkWriteCounter;
+    }
+
+    /**
+     * @return the number of bytes which TLS added on top of the bytes the
+     *         protocol codec read and wrote.
+     */
+    public long getSslOverhead() {
+        if( sslChannel==null ) {
+            return 0;
+        }
+        return (sslChannel.networkReadCounter - sslChannel.appReadCounter) + (sslChannel.networkWriteCounter - sslChannel.appWriteCounter);
+    }
+
+    public boolean isNeedClientAuth() {
+        return needClientAuth;
+    }
+
+    public void setNeedClientAuth(boolean needClientAuth) {
+        this.needClientAuth = needClientAuth;
+        if( engine!=null && !engine.getUseClientMode() ) {
+            engine.setNeedClientAuth(needClientAuth);
+        }
+    }
+
+    public boolean isWantClientAuth() {
+        return wantClientAuth;
+    }
+
+    public void setWantClientAuth(boolean wantClientAuth) {
+        this.wantClientAuth = wantClientAuth;
+        if( engine!=null && !engine.getUseClientMode() && !needClientAuth ) {
+            engine.setWantClientAuth(wantClientAuth);
+        }
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * Sets the socket's send buffer size, 0 keeps the OS default.
+     */
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Sets the socket's receive buffer size, 0 keeps the OS default.
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public String getEnabledProtocols() {
+        return enabledProtocols;
+    }
+
+    /**
+     * Sets the comma separated list of SSL/TLS protocol versions the
+     * connection may use, for example <code>TLSv1.2,TLSv1.3</code>.
+     */
+    public void setEnabledProtocols(String enabledProtocols) {
+        this.enabledProtocols = enabledProtocols;
+        if( engine!=null ) {
+            configureEngine();
+        }
+    }
+
+    /**
+     * The channel handed to the protocol codec.  Reads unwrap the records
+     * read from the socket and writes wrap the data into records written to
+     * the socket.
+     * <p>
+     * The netIn, appIn and netOut buffers are kept in 'fill' mode, their
+     * position is the amount of data they hold.  They are only borrowed from
+     * the pool while they hold data.
+     * </p>
+     */
+    final class SslChannel implements ByteChannel {
+
+        private final SocketChannel channel;
+
+        private ByteBuffer netIn;
+        private ByteBuffer appIn;
+        private ByteBuffer netOut;
+
+        long networkReadCounter;
+        long networkWriteCounter;
+        long appReadCounter;
+        long appWriteCounter;
+
+        SslChannel(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        boolean hasPendingOutput() {
+            return netOut!=null && netOut.position() > 0;
+        }
+
+        private ByteBuffer netIn() {
+            if( netIn==null ) {
+                netIn = bufferPool.borrowDirect(engine.getSession().getPacketBufferSize());
+            }
+            return netIn;
+        }
+
+        private ByteBuffer appIn() {
+            if( appIn==null ) {
+                appIn = ByteBuffer.wrap(bufferPool.borrow(engine.getSession().getApplicationBufferSize()));
+            }
+            return appIn;
+        }
+
+        private ByteBuffer netOut() {
+            if( netOut==null ) {
+                netOut = bufferPool.borrowDirect(engine.getSession().getPacketBufferSize());
+            }
+            return netOut;
+        }
+
+        private void releaseIdleBuffers() {
+            if( netIn!=null && netIn.position()==0 ) {
+                bufferPool.releaseDirect(netIn);
+                netIn = null;
+            }
+            if( appIn!=null && appIn.position()==0 ) {
+                bufferPool.release(appIn.array());
+                appIn = null;
+            }
+            if( netOut!=null && netOut.position()==0 ) {
+                bufferPool.releaseDirect(netOut);
+                netOut = null;
+            }
+        }
+
+        void releaseBuffers() {
+            if( netIn!=null ) {
+                bufferPool.releaseDirect(netIn);
+                netIn = null;
+            }
+            if( appIn!=null ) {
+                bufferPool.release(appIn.array());
+                appIn = null;
+            }
+            if( netOut!=null ) {
+                bufferPool.releaseDirect(netOut);
+                netOut = null;
+            }
+        }
+
+        /**
+         * Reads what the socket has available into netIn.
+         */
+        private int fill() throws IOException {
+            int count = channel.read(netIn());
+            if( count > 0 ) {
+                networkReadCounter += count;
+            }
+            return count;
+        }
+
+        private SSLEngineResult unwrap() throws SSLException {
+            netIn.flip();
+            try {
+                return engine.unwrap(netIn, appIn());
+            } finally {
+                netIn.compact();
+            }
+        }
+
+        /**
+         * @return true if the engine may be able to make more progress on the
+         *         handshake, false if it's waiting on more data from the peer.
+         */
+        boolean unwrapHandshake() throws IOException {
+            int count = fill();
+            try {
+                if( netIn.position()==0 ) {
+                    if( count < 0 ) {
+                        throw new EOFException("Peer disconnected during the SSL handshake.");
+                    }
+                    return false;
+                }
+                SSLEngineResult result = unwrap();
+                switch( result.getStatus() ) {
+                    case CLOSED:
+                        throw new EOFException("Peer closed the SSL session during the handshake.");
+                    case BUFFER_UNDERFLOW:
+                        if( count < 0 ) {
+                            throw new EOFException("Peer disconnected during the SSL handshake.");
+                        }
+                        return count > 0;
+                    case BUFFER_OVERFLOW:
+                        throw new SSLException("Unexpected application data during the SSL handshake.");
+                    default:
+                        return true;
+                }
+            } finally {
+                releaseIdleBuffers();
+            }
+        }
+
+        void wrapHandshake() throws IOException {
+            SSLEngineResult result = engine.wrap(EMPTY, netOut());
+            if( result.getStatus()==BUFFER_OVERFLOW ) {
+                throw new SSLException("SSL handshake record does not fit in the packet buffer.");
+            }
+        }
+
+        /**
+         * Writes out as much of netOut as the socket will take.
+         *
+         * @return true if netOut is empty.
+         */
+        boolean flushNetOut() throws IOException {
+            if( netOut==null ) {
+                return true;
+            }
+            if( netOut.position() > 0 ) {
+                netOut.flip();
+                try {
+                    networkWriteCounter += channel.write(netOut);
+                } finally {
+                    netOut.compact();
+                }
+            }
+            return netOut.position()==0;
+        }
+
+        /**
+         * Like flushNetOut but gives netOut back to the pool if it's empty.
+         */
+        boolean flush() throws IOException {
+            boolean rc = flushNetOut();
+            releaseIdleBuffers();
+            return rc;
+        }
+
+        private int drainAppIn(ByteBuffer dst) {
+            appIn.flip();
+            int count = Math.min(appIn.remaining(), dst.remaining());
+            int limit = appIn.limit();
+            appIn.limit(appIn.position() + count);
+            dst.put(appIn);
+            appIn.limit(limit);
+            appIn.compact();
+            appReadCounter += count;
+            return count;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            try {
+                while( true ) {
+                    if( appIn!=null && appIn.position() > 0 ) {
+                        return drainAppIn(dst);
+                    }
+                    int count = 0;
+                    if( netIn==null || netIn.position()==0 ) {
+                        count = fill();
+                        if( netIn.position()==0 ) {
+                            return count < 0 ? -1 : 0;
+                        }
+                    }
+                    SSLEngineResult result = unwrap();
+                    switch( result.getStatus() ) {
+                        case CLOSED:
+                            return appIn.position() > 0 ? drainAppIn(dst) : -1;
+                        case BUFFER_UNDERFLOW:
+                            // we need the rest of the record.
+                            if( count==0 ) {
+                                count = fill();
+                            }
+                            if( count < 0 ) {
+                                return -1;
+                            }
+                            if( count==0 ) {
+                                return 0;
+                            }
+                            break;
+                        case BUFFER_OVERFLOW:
+                            // can't happen, appIn is empty and sized for a full record.
+                            throw new SSLException("The SSL application buffer overflowed.");
+                        default:
+                            if( result.getHandshakeStatus()!=NOT_HANDSHAKING && result.getHandshakeStatus()!=FINISHED ) {
+                                rehandshake();
+                            }
+                    }
+                }
+            } finally {
+                releaseIdleBuffers();
+            }
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            if( !flushNetOut() ) {
+                return 0;
+            }
+            int rc = 0;
+            try {
+                while( src.hasRemaining() ) {
+                    SSLEngineResult result = engine.wrap(src, netOut());
+                    rc += result.bytesConsumed();
+                    if( result.getStatus()==CLOSED ) {
+                        throw new EOFException("The SSL session has been closed.");
+                    }
+                    if( result.getHandshakeStatus()!=NOT_HANDSHAKING && result.getHandshakeStatus()!=FINISHED ) {
+                        rehandshake();
+                    }
+                    // netOut holds one full record, so send it before wrapping the next.
+                    if( !flushNetOut() ) {
+                        break;
+                    }
+                    if( result.getStatus()!=BUFFER_OVERFLOW && result.bytesConsumed()==0 ) {
+                        break;
+                    }
+                }
+            } finally {
+                releaseIdleBuffers();
+            }
+            appWriteCounter += rc;
+            return rc;
+        }
+
+        /**
+         * Handles renegotiations and post handshake messages like TLS 1.3
+         * session tickets which show up once the connection is established.
+         * Those are small so they are handled inline.
+         */
+        private void rehandshake() throws IOException {
+            while( true ) {
+                switch( engine.getHandshakeStatus() ) {
+                    case NEED_TASK:
+                        Runnable task;
+                        while( (task = engine.getDelegatedTask())!=null ) {
+                            task.run();
+                        }
+                        break;
+                    case NEED_WRAP:
+                        wrapHandshake();
+                        if( !flushNetOut() ) {
+                            return;
+                        }
+                        break;
+                    default:
+                        // any records we still need will come in through read.
+                        return;
+                }
+            }
+        }
+
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+}
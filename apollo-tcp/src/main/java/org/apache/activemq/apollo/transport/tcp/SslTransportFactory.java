@@ -0,0 +1,166 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.tcp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.activemq.apollo.transport.Transport;
+import org.apache.activemq.apollo.transport.TransportFactory;
+import org.apache.activemq.apollo.transport.TransportServer;
+import org.apache.activemq.apollo.util.IntrospectionSupport;
+import org.apache.activemq.apollo.util.SslContext;
+import org.apache.activemq.apollo.util.URISupport;
+
+import static org.apache.activemq.apollo.transport.TransportFactorySupport.configure;
+import static org.apache.activemq.apollo.transport.TransportFactorySupport.verify;
+
+/**
+ * Creates transports for <code>ssl:</code> locations.
+ * <p>
+ * The key and trust stores can be configured with the <code>keyStore</code>,
+ * <code>keyStorePassword</code>, <code>keyPassword</code>,
+ * <code>trustStore</code> and <code>trustStorePassword</code> options.
+ * The stores can be given as file names or URLs.
+ * Otherwise the current thread's {@link SslContext} is used and if that's
+ * not set, the JVM's default SSL context.
+ * </p>
+ * <p>
+ * The SSL contexts built from options are cached so that all the client
+ * connections using the same stores share a client session cache, which
+ * is what lets them resume their sessions.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class SslTransportFactory implements TransportFactory.Provider {
+
+    private static final ConcurrentHashMap<String, SSLContext> CONTEXTS = new ConcurrentHashMap<String, SSLContext>();
+
+    public TransportServer bind(String location) throws Exception {
+        if( !location.startsWith("ssl:") ) {
+            return null;
+        }
+
+        URI uri = new URI(location);
+        Map<String, String> options = new HashMap<String, String>(URISupport.parseParamters(uri));
+        SslTransportServer server = new SslTransportServer(uri, getSSLContext(options));
+        IntrospectionSupport.setProperties(server, options);
+        Map<String, Object> transportOptions = IntrospectionSupport.extractProperties(options, "transport.");
+        server.setTransportOption(transportOptions);
+        return server;
+    }
+
+    public Transport connect(String location) throws Exception {
+        if( !location.startsWith("ssl:") ) {
+            return null;
+        }
+
+        URI uri = new URI(location);
+        Map<String, String> options = new HashMap<String, String>(URISupport.parseParamters(uri));
+
+        SslTransport transport = new SslTransport(getSSLContext(options));
+        transport.connecting(uri, null);
+
+        Map<String, Object> socketOptions = IntrospectionSupport.extractProperties(options, "socket.");
+        transport.setSocketOptions(socketOptions);
+
+        configure(transport, options);
+        return verify(transport, options);
+    }
+
+    /**
+     * Removes the key and trust store options and gets the SSL context they
+     * configure.
+     */
+    protected SSLContext getSSLContext(Map<String, String> options) throws Exception {
+        String keyStore = options.remove("keyStore");
+        String keyStorePassword = options.remove("keyStorePassword");
+        String keyPassword = options.remove("keyPassword");
+        String trustStore = options.remove("trustStore");
+        String trustStorePassword = options.remove("trustStorePassword");
+
+        if( keyStore==null && trustStore==null ) {
+            SslContext current = SslContext.getCurrentSslContext();
+            if( current!=null ) {
+                return current.getSSLContext();
+            }
+            return SSLContext.getDefault();
+        }
+
+        String key = keyStore+"|"+trustStore;
+        SSLContext rc = CONTEXTS.get(key);
+        if( rc==null ) {
+            KeyManager[] keyManagers = null;
+            if( keyStore!=null ) {
+                KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                char[] password = keyPassword!=null ? keyPassword.toCharArray() : toCharArray(keyStorePassword);
+                factory.init(loadKeyStore(keyStore, keyStorePassword), password);
+                keyManagers = factory.getKeyManagers();
+            }
+            TrustManager[] trustManagers = null;
+            if( trustStore!=null ) {
+                TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                factory.init(loadKeyStore(trustStore, trustStorePassword));
+                trustManagers = factory.getTrustManagers();
+            }
+            rc = new SslContext(keyManagers, trustManagers, null).getSSLContext();
+            SSLContext previous = CONTEXTS.putIfAbsent(key, rc);
+            if( previous!=null ) {
+                rc = previous;
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * @param location a file name or a URL
+     */
+    private static KeyStore loadKeyStore(String location, String password) throws Exception {
+        KeyStore rc = KeyStore.getInstance(KeyStore.getDefaultType());
+        InputStream is;
+        if( new File(location).exists() ) {
+            is = new FileInputStream(location);
+        } else {
+            is = new URL(location).openStream();
+        }
+        try {
+            rc.load(is, toCharArray(password));
+        } finally {
+            is.close();
+        }
+        return rc;
+    }
+
+    private static char[] toCharArray(String value) {
+        return value==null ? null : value.toCharArray();
+    }
+
+}
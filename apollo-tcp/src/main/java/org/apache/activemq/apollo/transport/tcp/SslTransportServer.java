@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.tcp;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A transport server which accepts SSL/TLS connections.
+ * <p>
+ * The server side session cache lives in the SSL context, so its size and
+ * timeout can be tuned here to control how many clients can resume their
+ * sessions and skip the full key exchange when they reconnect.  The server
+ * also keeps track of the handshakes it completes so that the handshake
+ * rate and the fraction of resumed sessions can be monitored.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class SslTransportServer extends TcpTransportServer {
+
+    private final SSLContext sslContext;
+
+    private boolean needClientAuth;
+    private boolean wantClientAuth;
+    private int sessionCacheSize = -1;
+    private int sessionTimeout = -1;
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong handshakeTime = new AtomicLong();
+
+    public SslTransportServer(URI location, SSLContext sslContext) {
+        super(location);
+        this.sslContext = sslContext;
+    }
+
+    @Override
+    public void start(Runnable onCompleted) throws IOException {
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        if( sessions!=null ) {
+            if( sessionCacheSize >= 0 ) {
+                sessions.setSessionCacheSize(sessionCacheSize);
+            }
+            if( sessionTimeout >= 0 ) {
+                sessions.setSessionTimeout(sessionTimeout);
+            }
+        }
+        super.start(onCompleted);
+    }
+
+    @Override
+    protected TcpTransport createTransport() {
+        SslTransport transport = new SslTransport(sslContext, this);
+        transport.setNeedClientAuth(needClientAuth);
+        transport.setWantClientAuth(wantClientAuth);
+        return transport;
+    }
+
+    void onHandshakeCompleted(long time, boolean resumed) {
+        handshakes.incrementAndGet();
+        handshakeTime.addAndGet(time);
+        if( resumed ) {
+            resumedHandshakes.incrementAndGet();
+        }
+    }
+
+    public SSLContext getSSLContext() {
+        return sslContext;
+    }
+
+    /**
+     * @return the number of handshakes completed by the accepted connections.
+     */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    /**
+     * @return the number of completed handshakes which resumed a session.
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * @return the average handshake time in nanoseconds.
+     */
+    public long getAverageHandshakeTime() {
+        long count = handshakes.get();
+        return count == 0 ? 0 : handshakeTime.get() / count;
+    }
+
+    public boolean isNeedClientAuth() {
+        return needClientAuth;
+    }
+
+    public void setNeedClientAuth(boolean needClientAuth) {
+        this.needClientAuth = needClientAuth;
+    }
+
+    public boolean isWantClientAuth() {
+        return wantClientAuth;
+    }
+
+    public void setWantClientAuth(boolean wantClientAuth) {
+        this.wantClientAuth = wantClientAuth;
+    }
+
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * Sets the max number of sessions kept for resumption, 0 means no limit.
+     */
+    public void setSessionCacheSize(int sessionCacheSize) {
+        this.sessionCacheSize = sessionCacheSize;
+    }
+
+    public int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    /**
+     * Sets the number of seconds a session can be resumed for, 0 means no limit.
+     */
+    public void setSessionTimeout(int sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+    }
+
+}
@@ -29,10 +29,12 @@ import org.fusesource.hawtdispatch.Retained;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An implementation of the {@link org.apache.activemq.apollo.transport.Transport} interface using raw tcp/ip
@@ -164,17 +166,35 @@ public class TcpTransport extends JavaBaseService implements Transport {
     private String remoteAddress;
     private ProtocolCodec wireformat;
 
-    private SocketChannel channel;
+    protected SocketChannel channel;
 
     private SocketState socketState = new DISCONNECTED();
 
     private DispatchQueue dispatchQueue;
     private DispatchSource readSource;
     private DispatchSource writeSource;
+    private boolean writeResumed;
 
     protected boolean useLocalHost = true;
     boolean full = false;
 
+    /**
+     * When corking, a write does not go out to the socket right away.  It
+     * waits for the rest of the commands being processed by the dispatch
+     * queue so that they all go out in one socket write.
+     */
+    private boolean cork = false;
+    /**
+     * The max number of milliseconds a corked write can be delayed.
+     */
+    private long corkLatency = 5;
+    private boolean corked;
+    private int corkGeneration;
+    private long corkedWrites;
+
+    private long writeCalls;
+    private long writeBytes;
+
     private final Runnable CANCEL_HANDLER = new Runnable() {
         public void run() {
             socketState.onCanceled();
@@ -195,24 +215,24 @@ public class TcpTransport extends JavaBaseService implements Transport {
         this.channel = channel;
 
         if( wireformat!=null ) {
-            wireformat.setReadableByteChannel(this.channel);
-            wireformat.setWritableByteChannel(this.channel);
+            wireformat.setReadableByteChannel(codecChannel());
+            wireformat.setWritableByteChannel(codecChannel());
         }
 
         this.channel.configureBlocking(false);
-        this.remoteAddress = channel.socket().getRemoteSocketAddress().toString();
+        this.remoteAddress = remoteAddress();
         this.socketState = new CONNECTED();
     }
 
     public void connecting(URI remoteLocation, URI localLocation) throws IOException {
-        this.channel = SocketChannel.open();
+        this.channel = openChannel();
         this.channel.configureBlocking(false);
         this.remoteLocation = remoteLocation;
         this.localLocation = localLocation;
 
         if( wireformat!=null ) {
-            wireformat.setReadableByteChannel(this.channel);
-            wireformat.setWritableByteChannel(this.channel);
+            wireformat.setReadableByteChannel(codecChannel());
+            wireformat.setWritableByteChannel(codecChannel());
         }
 
         if (localLocation != null) {
@@ -220,12 +240,39 @@ public class TcpTransport extends JavaBaseService implements Transport {
             channel.socket().bind(localAddress);
         }
 
-        String host = resolveHostName(remoteLocation.getHost());
-        InetSocketAddress remoteAddress = new InetSocketAddress(host, remoteLocation.getPort());
-        channel.connect(remoteAddress);
+        channel.connect(createRemoteAddress(remoteLocation));
         this.socketState = new CONNECTING();
     }
 
+    /**
+     * @return the channel the protocol codec reads from and writes to.
+     */
+    protected ByteChannel codecChannel() {
+        return channel;
+    }
+
+    /**
+     * @return a new unconnected socket channel.
+     */
+    protected SocketChannel openChannel() throws IOException {
+        return SocketChannel.open();
+    }
+
+    /**
+     * @return the address of the connected peer.
+     */
+    protected String remoteAddress() throws IOException {
+        return String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * @return the address of the remote location to connect to.
+     */
+    protected SocketAddress createRemoteAddress(URI remoteLocation) throws IOException {
+        String host = resolveHostName(remoteLocation.getHost());
+        return new InetSocketAddress(host, remoteLocation.getPort());
+    }
+
 
     public DispatchQueue getDispatchQueue() {
         return dispatchQueue;
@@ -297,7 +344,7 @@ public class TcpTransport extends JavaBaseService implements Transport {
         return host;
     }
 
-    private void onConnected() throws SocketException {
+    private void onConnected() throws IOException {
 
         readSource = Dispatch.createSource(channel, SelectionKey.OP_READ, dispatchQueue);
         writeSource = Dispatch.createSource(channel, SelectionKey.OP_WRITE, dispatchQueue);
@@ -316,7 +363,15 @@ public class TcpTransport extends JavaBaseService implements Transport {
             }
         });
 
-        remoteAddress = channel.socket().getRemoteSocketAddress().toString();
+        remoteAddress = remoteAddress();
+        fireConnected();
+    }
+
+    /**
+     * Lets the listener know the transport is connected.  The read source
+     * is still suspended until the listener resumes it.
+     */
+    protected void fireConnected() {
         listener.onTransportConnected();
     }
 
@@ -348,8 +403,22 @@ public class TcpTransport extends JavaBaseService implements Transport {
         return full;
     }
 
+    /**
+     * @return true if the caller is executing on our dispatch queue, or on a queue
+     * sharing the thread queue our dispatch queue is bound to.  Either way the caller
+     * can not execute concurrently with the transport.
+     */
+    boolean isCallerSerialized() {
+        if( Dispatch.getCurrentQueue() == dispatchQueue ) {
+            return true;
+        }
+        DispatchQueue threadQueue = Dispatch.getCurrentThreadQueue();
+        return threadQueue != null && threadQueue == dispatchQueue.getTargetQueue();
+    }
+
     public boolean offer(Object command) {
-        assert Dispatch.getCurrentQueue() == dispatchQueue;
+        // collocated producers may call in from a queue sharing our thread.
+        assert isCallerSerialized();
         try {
             if (!socketState.is(CONNECTED.class)) {
                 throw new IOException("Not connected.");
@@ -359,11 +428,22 @@ public class TcpTransport extends JavaBaseService implements Transport {
             }
 
             ProtocolCodec.BufferState rc = wireformat.write(command);
+            if( corked ) {
+                corkedWrites++;
+            }
             switch (rc ) {
                 case FULL:
+                    // the codec buffered as much as it's willing to, no point in waiting any longer.
+                    if( corked ) {
+                        uncork();
+                    }
                     return false;
                 case WAS_EMPTY:
-                    writeSource.resume();
+                    if( cork ) {
+                        cork();
+                    } else {
+                        resumeWrite();
+                    }
                 default:
                     return true;
             }
@@ -374,17 +454,111 @@ public class TcpTransport extends JavaBaseService implements Transport {
 
     }
 
+    private void cork() {
+        corked = true;
+        corkedWrites = 0;
+        final int generation = ++corkGeneration;
+        final Runnable timeout = new Runnable() {
+            public void run() {
+                if( corked && generation == corkGeneration ) {
+                    uncork();
+                }
+            }
+        };
+        // runs once the commands queued up ahead of it have been processed.
+        dispatchQueue.execute(new Runnable() {
+            long writes = 0;
+            boolean timed;
+            public void run() {
+                if( !corked || generation != corkGeneration ) {
+                    return;
+                }
+                if( corkedWrites != writes && corkLatency > 0 ) {
+                    // more commands got written since the last pass, they may
+                    // keep coming so wait for the next pass, but only for up to
+                    // corkLatency.  The timer is only needed in that case.
+                    writes = corkedWrites;
+                    if( !timed ) {
+                        timed = true;
+                        dispatchQueue.dispatchAfter(corkLatency, TimeUnit.MILLISECONDS, timeout);
+                    }
+                    dispatchQueue.execute(this);
+                } else {
+                    uncork();
+                }
+            }
+        });
+    }
+
+    private void uncork() {
+        corked = false;
+        if (getServiceState() != STARTED || !socketState.is(CONNECTED.class)) {
+            return;
+        }
+        try {
+            if( flush() == ProtocolCodec.BufferState.EMPTY ) {
+                listener.onRefill();
+            } else {
+                // let the write source finish it off.
+                resumeWrite();
+            }
+        } catch (IOException e) {
+            onTransportFailure(e);
+        }
+    }
+
+    private ProtocolCodec.BufferState flush() throws IOException {
+        long start = wireformat.getWriteCounter();
+        ProtocolCodec.BufferState rc = wireformat.flush();
+        if( rc == ProtocolCodec.BufferState.EMPTY && !flushChannel() ) {
+            rc = ProtocolCodec.BufferState.NOT_EMPTY;
+        }
+        long count = wireformat.getWriteCounter() - start;
+        if( count > 0 ) {
+            writeCalls++;
+            writeBytes += count;
+        }
+        return rc;
+    }
+
+    /**
+     * Writes out any data the codec channel has buffered up itself.
+     *
+     * @return true if there is no more buffered data.
+     */
+    protected boolean flushChannel() throws IOException {
+        return true;
+    }
+
+    /**
+     * Makes sure the write source is running so that drainOutbound gets
+     * called once the socket is writable.
+     */
+    protected void resumeWrite() {
+        if( !writeResumed ) {
+            writeResumed = true;
+            writeSource.resume();
+        }
+    }
+
+    protected void suspendWrite() {
+        if( writeResumed ) {
+            writeResumed = false;
+            writeSource.suspend();
+        }
+    }
+
     /**
      * @retruns true if there are no in progress writes.
      */
-    private void drainOutbound() {
+    protected void drainOutbound() {
         assert Dispatch.getCurrentQueue() == dispatchQueue;
         if (getServiceState() != STARTED || !socketState.is(CONNECTED.class)) {
             return;
         }
         try {
-            if( wireformat.flush() == ProtocolCodec.BufferState.EMPTY ) {
-                writeSource.suspend();
+            if( flush() == ProtocolCodec.BufferState.EMPTY ) {
+                suspendWrite();
                 listener.onRefill();
             }
         } catch (IOException e) {
@@ -392,13 +566,15 @@ public class TcpTransport extends JavaBaseService implements Transport {
         }
     }
 
-    private void drainInbound() {
+    protected void drainInbound() {
         if (!getServiceState().isStarted() || readSource.isSuspended()) {
             return;
         }
+        boolean delivered = false;
         try {
             Object command = wireformat.read();
             while ( command!=null ) {
+                delivered = true;
                 try {
                     listener.onTransportCommand(command);
                 } catch (Throwable e) {
@@ -408,13 +584,18 @@ public class TcpTransport extends JavaBaseService implements Transport {
 
                 // the transport may be suspended after processing a command.
                 if (getServiceState() == STOPPED || readSource.isSuspended()) {
-                    return;
+                    break;
                 }
 
                 command = wireformat.read();
             }
         } catch (IOException e) {
             onTransportFailure(e);
+        } finally {
+            // let the listener know we are done with this batch of commands.
+            if( delivered ) {
+                listener.onTransportCommandsDrained();
+            }
         }
     }
 
@@ -482,9 +663,9 @@ public class TcpTransport extends JavaBaseService implements Transport {
 
     public void setProtocolCodec(ProtocolCodec protocolCodec) {
         this.wireformat = protocolCodec;
-        if( channel!=null ) {
-            protocolCodec.setReadableByteChannel(this.channel);
-            protocolCodec.setWritableByteChannel(this.channel);
+        if( channel!=null && protocolCodec!=null ) {
+            protocolCodec.setReadableByteChannel(codecChannel());
+            protocolCodec.setWritableByteChannel(codecChannel());
         }
     }
 
@@ -518,6 +699,37 @@ public class TcpTransport extends JavaBaseService implements Transport {
     }
 
 
+    public boolean isCork() {
+        return cork;
+    }
+
+    public void setCork(boolean cork) {
+        this.cork = cork;
+    }
+
+    public long getCorkLatency() {
+        return corkLatency;
+    }
+
+    public void setCorkLatency(long corkLatency) {
+        this.corkLatency = corkLatency;
+    }
+
+    /**
+     * @return the number of flushes which wrote data to the socket.  Each
+     *         is usually a single write system call.
+     */
+    public long getWriteCalls() {
+        return writeCalls;
+    }
+
+    /**
+     * @return the average number of bytes written per write call.
+     */
+    public long getAverageWriteSize() {
+        return writeCalls == 0 ? 0 : writeBytes / writeCalls;
+    }
+
     private void trace(String message) {
         if( LOG.isTraceEnabled() ) {
             final String label = dispatchQueue.getLabel();
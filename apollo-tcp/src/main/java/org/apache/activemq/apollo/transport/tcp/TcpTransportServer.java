@@ -21,6 +21,8 @@ import org.apache.activemq.apollo.transport.Transport;
 import org.apache.activemq.apollo.transport.TransportAcceptListener;
 import org.apache.activemq.apollo.util.IOExceptionSupport;
 import org.apache.activemq.apollo.util.IntrospectionSupport;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.fusesource.hawtdispatch.Dispatch;
 import org.fusesource.hawtdispatch.DispatchQueue;
 import org.fusesource.hawtdispatch.DispatchSource;
@@ -30,8 +32,12 @@ import java.net.*;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A TCP based implementation of {@link TransportServer}
@@ -41,15 +47,144 @@ import java.util.Map;
 
 public class TcpTransportServer implements TransportServer {
 
-    private ServerSocketChannel channel;
+    private static final Log LOG = LogFactory.getLog(TcpTransportServer.class);
+
+    protected ServerSocketChannel channel;
     private TransportAcceptListener listener;
-    private URI bindURI;
-    private URI connectURI;
+    protected URI bindURI;
+    protected URI connectURI;
     private DispatchQueue dispatchQueue;
-    private DispatchSource acceptSource;
-    private int backlog = 500;
+    protected int backlog = 500;
     private Map<String, Object> transportOptions;
 
+    /**
+     * The number of server sockets to listen with.  When greater than 1,
+     * the sockets share the port using SO_REUSEPORT and each one accepts
+     * on it's own dispatch queue.  Falls back to a single socket when the
+     * JVM or the platform does not support SO_REUSEPORT.
+     */
+    private int acceptors = 1;
+    /**
+     * The max number of connections to accept per second, 0 means unlimited.
+     */
+    private int maxAcceptRate = 0;
+    /**
+     * The max number of accepted connections which can be waiting to be
+     * handed to the accept listener.  Once reached, the rest are left in
+     * the socket backlog.
+     */
+    private int maxPendingAccepts = 1000;
+
+    private final ArrayList<Acceptor> acceptorList = new ArrayList<Acceptor>();
+    private final AtomicInteger pendingAccepts = new AtomicInteger();
+
+    // token bucket used to rate limit the accepts.
+    private double acceptTokens;
+    private long acceptTokensUpdated;
+
+    /**
+     * Accepts connections from one server socket.
+     */
+    class Acceptor {
+        final ServerSocketChannel channel;
+        final DispatchQueue queue;
+        DispatchSource source;
+        // the source is suspended while either of these are set.
+        boolean throttled;
+        boolean suspended;
+
+        Acceptor(ServerSocketChannel channel, DispatchQueue queue) {
+            this.channel = channel;
+            this.queue = queue;
+        }
+
+        void start() {
+            source = Dispatch.createSource(channel, SelectionKey.OP_ACCEPT, queue);
+            source.setEventHandler(new Runnable() {
+                public void run() {
+                    accept();
+                }
+            });
+            source.setCancelHandler(new Runnable() {
+                public void run() {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                    }
+                }
+            });
+            source.resume();
+        }
+
+        void accept() {
+            try {
+                while( !throttled && !suspended ) {
+                    if( pendingAccepts.get() >= maxPendingAccepts ) {
+                        // resumed once the pending connections get handed off.
+                        throttle();
+                        return;
+                    }
+                    long delay = acquireAcceptToken();
+                    if( delay > 0 ) {
+                        throttle();
+                        queue.dispatchAfter(delay, TimeUnit.MILLISECONDS, new Runnable() {
+                            public void run() {
+                                unthrottle();
+                            }
+                        });
+                        return;
+                    }
+                    SocketChannel client = channel.accept();
+                    if( client==null ) {
+                        return;
+                    }
+                    pendingAccepts.incrementAndGet();
+                    handleSocket(client);
+                }
+            } catch (IOException e) {
+                listener.onAcceptError(e);
+            }
+        }
+
+        void throttle() {
+            if( !throttled ) {
+                throttled = true;
+                if( !suspended ) {
+                    source.suspend();
+                }
+            }
+        }
+
+        void unthrottle() {
+            if( throttled ) {
+                throttled = false;
+                if( !suspended ) {
+                    source.resume();
+                    accept();
+                }
+            }
+        }
+
+        void suspend() {
+            if( !suspended ) {
+                suspended = true;
+                if( !throttled ) {
+                    source.suspend();
+                }
+            }
+        }
+
+        void resume() {
+            if( suspended ) {
+                suspended = false;
+                if( !throttled ) {
+                    source.resume();
+                    accept();
+                }
+            }
+        }
+    }
+
     public TcpTransportServer(URI location) {
         this.bindURI = location;
     }
@@ -75,17 +210,47 @@ public class TcpTransportServer implements TransportServer {
     }
 
     public void suspend() {
-        acceptSource.resume();
+        for (final Acceptor acceptor : acceptorList) {
+            acceptor.queue.execute(new Runnable() {
+                public void run() {
+                    acceptor.suspend();
+                }
+            });
+        }
     }
 
     public void resume() {
-        acceptSource.resume();
+        for (final Acceptor acceptor : acceptorList) {
+            acceptor.queue.execute(new Runnable() {
+                public void run() {
+                    acceptor.resume();
+                }
+            });
+        }
     }
 
     public void start() throws Exception {
         start(null);
     }
     public void start(Runnable onCompleted) throws IOException {
+        ArrayList<ServerSocketChannel> channels = bindChannels();
+        for (int i = 0; i < channels.size(); i++) {
+            // accepts happen off the server's queue, which is usually the broker's.
+            DispatchQueue queue = Dispatch.createQueue("acceptor " + i + " for " + bindURI);
+            Acceptor acceptor = new Acceptor(channels.get(i), queue);
+            acceptorList.add(acceptor);
+            acceptor.start();
+        }
+        if( onCompleted!=null ) {
+            dispatchQueue.execute(onCompleted);
+        }
+    }
+
+    /**
+     * Binds the server socket channels which the acceptors will accept on
+     * and sets the connect URI.
+     */
+    protected ArrayList<ServerSocketChannel> bindChannels() throws IOException {
         URI bind = bindURI;
 
         String host = bind.getHost();
@@ -95,11 +260,33 @@ public class TcpTransportServer implements TransportServer {
         }
 
         InetAddress addr = InetAddress.getByName(host);
+        ArrayList<ServerSocketChannel> channels = new ArrayList<ServerSocketChannel>();
         try {
+            int count = acceptors;
             channel = ServerSocketChannel.open();
-            channel.configureBlocking(false);
-            channel.socket().bind(new InetSocketAddress(addr, bind.getPort()), backlog);
+            channels.add(channel);
+            if( count > 1 && !setReusePort(channel) ) {
+                LOG.warn("SO_REUSEPORT is not supported, so only 1 acceptor will be used for: " + bind);
+                count = 1;
+            }
+            bindChannel(channel, new InetSocketAddress(addr, bind.getPort()));
+            // the rest of the acceptors bind to the port the first one got.
+            InetSocketAddress bound = (InetSocketAddress) channel.socket().getLocalSocketAddress();
+            for (int i = 1; i < count; i++) {
+                ServerSocketChannel next = ServerSocketChannel.open();
+                channels.add(next);
+                if( !setReusePort(next) ) {
+                    throw new IOException("Could not enable SO_REUSEPORT");
+                }
+                bindChannel(next, new InetSocketAddress(addr, bound.getPort()));
+            }
         } catch (IOException e) {
+            for (ServerSocketChannel c : channels) {
+                try {
+                    c.close();
+                } catch (IOException ignore) {
+                }
+            }
             throw IOExceptionSupport.create("Failed to bind to server socket: " + bind + " due to: " + e, e);
         }
 
@@ -115,33 +302,7 @@ public class TcpTransportServer implements TransportServer {
                 throw IOExceptionSupport.create(e2);
             }
         }
-        
-        acceptSource = Dispatch.createSource(channel, SelectionKey.OP_ACCEPT, dispatchQueue);
-        acceptSource.setEventHandler(new Runnable() {
-            public void run() {
-                try {
-                    SocketChannel client = channel.accept();
-                    while( client!=null ) {
-                        handleSocket(client);
-                        client = channel.accept();
-                    }
-                } catch (IOException e) {
-                    listener.onAcceptError(e);
-                }
-            }
-        });
-        acceptSource.setCancelHandler(new Runnable() {
-            public void run() {
-                try {
-                    channel.close();
-                } catch (IOException e) {
-                }
-            }
-        });
-        acceptSource.resume();
-        if( onCompleted!=null ) {
-            dispatchQueue.execute(onCompleted);
-        }
+        return channels;
     }
 
     private URI connectURI(String hostname) throws URISyntaxException {
@@ -166,9 +327,115 @@ public class TcpTransportServer implements TransportServer {
     public void stop() throws Exception {
         stop(null);
     }
-    public void stop(Runnable onCompleted) throws Exception {
-        acceptSource.setDisposer(onCompleted);
-        acceptSource.release();
+    public void stop(final Runnable onCompleted) throws Exception {
+        final AtomicInteger remaining = new AtomicInteger(acceptorList.size());
+        for (final Acceptor acceptor : acceptorList) {
+            acceptor.source.setDisposer(new Runnable() {
+                public void run() {
+                    acceptor.queue.release();
+                    if( remaining.decrementAndGet()==0 && onCompleted!=null ) {
+                        onCompleted.run();
+                    }
+                }
+            });
+            acceptor.source.release();
+        }
+    }
+
+    private void bindChannel(ServerSocketChannel channel, InetSocketAddress address) throws IOException {
+        channel.configureBlocking(false);
+        channel.socket().bind(address, backlog);
+    }
+
+    /**
+     * Enables SO_REUSEPORT on the channel.  The option is looked up
+     * reflectively since it's only available on newer JVMs, and then only
+     * on the platforms which support it.
+     *
+     * @return false if the option is not supported.
+     */
+    static boolean setReusePort(ServerSocketChannel channel) {
+        try {
+            Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+            Set<?> supported = (Set<?>) ServerSocketChannel.class.getMethod("supportedOptions").invoke(channel);
+            if( !supported.contains(option) ) {
+                return false;
+            }
+            Class<?> optionClass = Class.forName("java.net.SocketOption");
+            ServerSocketChannel.class.getMethod("setOption", optionClass, Object.class).invoke(channel, option, Boolean.TRUE);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Takes a token from the accept rate limiter.
+     *
+     * @return 0 if a token was taken, otherwise the number of milliseconds
+     *         until the next token is available.
+     */
+    private synchronized long acquireAcceptToken() {
+        if( maxAcceptRate <= 0 ) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        if( acceptTokensUpdated == 0 ) {
+            acceptTokens = maxAcceptRate;
+        } else {
+            acceptTokens = Math.min(maxAcceptRate, acceptTokens + ((now - acceptTokensUpdated) * maxAcceptRate) / 1000000000.0);
+        }
+        acceptTokensUpdated = now;
+        if( acceptTokens >= 1 ) {
+            acceptTokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil(((1 - acceptTokens) * 1000) / maxAcceptRate));
+    }
+
+    private void onAcceptHandled() {
+        if( pendingAccepts.decrementAndGet() == maxPendingAccepts-1 ) {
+            // wake up the acceptors which stopped due to the pending limit.
+            for (final Acceptor acceptor : acceptorList) {
+                acceptor.queue.execute(new Runnable() {
+                    public void run() {
+                        acceptor.unthrottle();
+                    }
+                });
+            }
+        }
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public void setAcceptors(int acceptors) {
+        this.acceptors = Math.max(1, acceptors);
+    }
+
+    public int getMaxAcceptRate() {
+        return maxAcceptRate;
+    }
+
+    public void setMaxAcceptRate(int maxAcceptRate) {
+        this.maxAcceptRate = maxAcceptRate;
+    }
+
+    public int getMaxPendingAccepts() {
+        return maxPendingAccepts;
+    }
+
+    public void setMaxPendingAccepts(int maxPendingAccepts) {
+        this.maxPendingAccepts = Math.max(1, maxPendingAccepts);
+    }
+
+    /**
+     * @return the number of accepted connections which have not been handed
+     *         to the accept listener yet.
+     */
+    public int getPendingAccepts() {
+        return pendingAccepts.get();
     }
 
     public URI getBindURI() {
@@ -187,6 +454,12 @@ public class TcpTransportServer implements TransportServer {
         this.backlog = backlog;
     }
 
+    /**
+     * Sets up the transport for the accepted socket on the acceptor's
+     * queue, then hands it to the accept listener on a worker thread of the
+     * global queue.  The listener so has to be thread safe, but accepts
+     * don't hold up the server's queue.
+     */
     protected final void handleSocket(SocketChannel socket) throws IOException {
         HashMap<String, Object> options = new HashMap<String, Object>();
 //      options.put("maxInactivityDuration", Long.valueOf(maxInactivityDuration));
@@ -198,18 +471,41 @@ public class TcpTransportServer implements TransportServer {
 //      options.put("dynamicManagement", Boolean.valueOf(dynamicManagement));
 //      options.put("startLogging", Boolean.valueOf(startLogging));
 
-        Transport transport = createTransport(socket, options);
-        listener.onAccept(transport);
+        final Transport transport;
+        try {
+            transport = createTransport(socket, options);
+        } catch (IOException e) {
+            onAcceptHandled();
+            socket.close();
+            throw e;
+        }
+        Dispatch.getGlobalQueue().execute(new Runnable() {
+            public void run() {
+                try {
+                    listener.onAccept(transport);
+                } finally {
+                    onAcceptHandled();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return a new unconnected transport for an accepted socket.
+     */
+    protected TcpTransport createTransport() {
+        return new TcpTransport();
     }
 
     private Transport createTransport(SocketChannel socketChannel, HashMap<String, Object> options) throws IOException {
-        TcpTransport transport = new TcpTransport();
+        TcpTransport transport = createTransport();
         transport.connected(socketChannel);
         if( options!=null ) {
             IntrospectionSupport.setProperties(transport, options);
         }
         if (transportOptions != null) {
-            IntrospectionSupport.setProperties(transport, transportOptions);
+            // setProperties removes the options it applies, so give it a copy.
+            IntrospectionSupport.setProperties(transport, new HashMap<String, Object>(transportOptions));
         }
         return transport;
     }
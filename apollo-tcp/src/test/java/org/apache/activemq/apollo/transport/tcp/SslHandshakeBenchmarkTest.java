@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.tcp;
+
+import junit.framework.TestCase;
+import org.apache.activemq.apollo.transport.DefaultTransportListener;
+import org.apache.activemq.apollo.transport.Transport;
+import org.apache.activemq.apollo.transport.TransportAcceptListener;
+import org.fusesource.hawtdispatch.Dispatch;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the rate at which ssl connections can be established with full
+ * handshakes and with resumed sessions, and how many bytes each kind of
+ * handshake puts on the wire.
+ *
+ * The keystore.p12 test keystore holds a self signed certificate for
+ * localhost, its password is 'password'.
+ *
+ * The clients use TLS 1.2 since a TLS 1.3 server only sends the ticket
+ * used to resume the session after the handshake, and these clients close
+ * the connection without ever reading from it.
+ */
+public class SslHandshakeBenchmarkTest extends TestCase {
+
+    static final int HANDSHAKES = Integer.getInteger("HANDSHAKES", 200);
+
+    private SslTransportServer server;
+    private String connectURI;
+
+    @Override
+    protected void setUp() throws Exception {
+        String keyStore = SslHandshakeBenchmarkTest.class.getResource("keystore.p12").toString();
+        server = (SslTransportServer) new SslTransportFactory().bind("ssl://127.0.0.1:0?keyStore="+keyStore+"&keyStorePassword=password");
+        server.setDispatchQueue(Dispatch.createQueue("ssl server"));
+        server.setAcceptListener(new TransportAcceptListener() {
+            public void onAccept(Transport transport) {
+                transport.setDispatchQueue(Dispatch.createQueue());
+                transport.setTransportListener(new DefaultTransportListener());
+                try {
+                    transport.start();
+                } catch (Exception e) {
+                    onAcceptError(e);
+                }
+            }
+            public void onAcceptError(Exception error) {
+                error.printStackTrace();
+            }
+        });
+        server.start();
+        connectURI = "ssl://127.0.0.1:"+server.getSocketAddress().getPort()+"?protocol=null&enabledProtocols=TLSv1.2&trustStore="+keyStore+"&trustStorePassword=password";
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+
+    private SslTransport connect() throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final IOException failure[] = new IOException[1];
+        SslTransport transport = (SslTransport) new SslTransportFactory().connect(connectURI);
+        transport.setDispatchQueue(Dispatch.createQueue());
+        transport.setTransportListener(new DefaultTransportListener() {
+            public void onTransportConnected() {
+                connected.countDown();
+            }
+            public void onTransportFailure(IOException error) {
+                failure[0] = error;
+                connected.countDown();
+            }
+        });
+        transport.start();
+        assertTrue("handshake timed out", connected.await(30, TimeUnit.SECONDS));
+        if( failure[0]!=null ) {
+            throw failure[0];
+        }
+        return transport;
+    }
+
+    private void benchmark(String name, boolean resume, boolean expectResumed) throws Exception {
+        long start = System.nanoTime();
+        long bytes = 0;
+        int resumed = 0;
+        for( int i=0; i < HANDSHAKES; i++ ) {
+            SslTransport transport = connect();
+            bytes += transport.getNetworkReadCounter() + transport.getNetworkWriteCounter();
+            if( transport.isSessionResumed() ) {
+                resumed++;
+            }
+            if( !resume ) {
+                transport.getSSLEngine().getSession().invalidate();
+            }
+            transport.stop();
+        }
+        long duration = System.nanoTime() - start;
+        System.out.println(String.format("%s: %,.2f handshakes/sec, %,d bytes per handshake, %d of %d resumed",
+                name, HANDSHAKES * 1000000000.0 / duration, bytes / HANDSHAKES, resumed, HANDSHAKES));
+        if( expectResumed ) {
+            // the first one has to do a full handshake.
+            assertTrue(resumed >= HANDSHAKES - 1);
+        } else {
+            assertEquals(0, resumed);
+        }
+    }
+
+    public void testHandshakeRate() throws Exception {
+        benchmark("full handshakes", false, false);
+        benchmark("resumed handshakes", true, true);
+        System.out.println(String.format("server: %d handshakes, %d resumed, averaging %,d us",
+                server.getHandshakes(), server.getResumedHandshakes(), server.getAverageHandshakeTime()/1000));
+    }
+
+}
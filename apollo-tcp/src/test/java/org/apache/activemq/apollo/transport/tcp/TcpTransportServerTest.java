@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.tcp;
+
+import junit.framework.TestCase;
+import org.apache.activemq.apollo.transport.Transport;
+import org.apache.activemq.apollo.transport.TransportAcceptListener;
+import org.fusesource.hawtdispatch.Dispatch;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the server's acceptors accept connections, and that they
+ * stop accepting while the server is suspended.
+ */
+public class TcpTransportServerTest extends TestCase {
+
+    private TcpTransportServer server;
+    private final LinkedBlockingQueue<Transport> accepted = new LinkedBlockingQueue<Transport>();
+    private final ArrayList<Socket> sockets = new ArrayList<Socket>();
+
+    private void startServer(int acceptors) throws Exception {
+        server = new TcpTransportServer(new URI("tcp://localhost:0"));
+        server.setDispatchQueue(Dispatch.createQueue("server"));
+        server.setAcceptors(acceptors);
+        server.setAcceptListener(new TransportAcceptListener() {
+            public void onAccept(Transport transport) {
+                accepted.add(transport);
+            }
+            public void onAcceptError(Exception error) {
+                error.printStackTrace();
+            }
+        });
+        server.start();
+    }
+
+    private void connect() throws Exception {
+        Socket socket = new Socket();
+        sockets.add(socket);
+        socket.connect(new InetSocketAddress("localhost", server.getSocketAddress().getPort()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        if( server!=null ) {
+            server.stop();
+        }
+    }
+
+    public void testConnectionsAreAcceptedWithSeveralAcceptors() throws Exception {
+        // works whether or not SO_REUSEPORT is supported here, without it
+        // the server falls back to a single acceptor.
+        startServer(4);
+        for (int i = 0; i < 10; i++) {
+            connect();
+        }
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(accepted.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    public void testNothingIsAcceptedWhileSuspended() throws Exception {
+        startServer(1);
+        server.suspend();
+        connect();
+        assertNull(accepted.poll(500, TimeUnit.MILLISECONDS));
+
+        server.resume();
+        assertNotNull(accepted.poll(5, TimeUnit.SECONDS));
+    }
+
+    public void testSuspendingTwiceNeedsOnlyOneResume() throws Exception {
+        startServer(1);
+        server.suspend();
+        server.suspend();
+        server.resume();
+        connect();
+        assertNotNull(accepted.poll(5, TimeUnit.SECONDS));
+    }
+
+}
@@ -0,0 +1,333 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.tcp;
+
+import junit.framework.TestCase;
+import org.apache.activemq.apollo.transport.ProtocolCodec;
+import org.apache.activemq.apollo.transport.TransportListener;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.DispatchQueue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks which callers the transport lets offer commands to it, and how
+ * corking batches up its socket writes.
+ */
+public class TcpTransportTest extends TestCase {
+
+    /**
+     * A codec which writes out strings and reports that it's full once
+     * limit bytes are buffered up.
+     */
+    static class StringCodec implements ProtocolCodec {
+        WritableByteChannel channel;
+        ByteBuffer pending = ByteBuffer.allocate(0);
+        int limit = Integer.MAX_VALUE;
+        long writeCounter;
+
+        public String protocol() {
+            return "string";
+        }
+
+        public void setReadableByteChannel(ReadableByteChannel channel) {
+        }
+
+        public Object read() throws IOException {
+            return null;
+        }
+
+        public void unread(Buffer buffer) {
+            throw new UnsupportedOperationException();
+        }
+
+        public long getReadCounter() {
+            return 0;
+        }
+
+        public void setWritableByteChannel(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        public BufferState write(Object value) throws IOException {
+            boolean wasEmpty = !pending.hasRemaining();
+            byte[] data = ((String)value).getBytes("UTF-8");
+            ByteBuffer next = ByteBuffer.allocate(pending.remaining()+data.length);
+            next.put(pending).put(data).flip();
+            pending = next;
+            if( pending.remaining() >= limit ) {
+                return BufferState.FULL;
+            }
+            return wasEmpty ? BufferState.WAS_EMPTY : BufferState.NOT_EMPTY;
+        }
+
+        public BufferState flush() throws IOException {
+            writeCounter += channel.write(pending);
+            return pending.hasRemaining() ? BufferState.NOT_EMPTY : BufferState.EMPTY;
+        }
+
+        public long getWriteCounter() {
+            return writeCounter;
+        }
+
+        public int getBufferFootprint() {
+            return pending.capacity();
+        }
+    }
+
+    static class NoopListener implements TransportListener {
+        public void onTransportCommand(Object command) {
+        }
+        public void onTransportCommandsDrained() {
+        }
+        public void onRefill() {
+        }
+        public void onTransportFailure(IOException error) {
+        }
+        public void onTransportConnected() {
+        }
+        public void onTransportDisconnected() {
+        }
+    }
+
+    private TcpTransport transport;
+    private DispatchQueue threadQueue;
+    private StringCodec codec;
+    private ServerSocket serverSocket;
+    private Socket peer;
+
+    @Override
+    protected void setUp() throws Exception {
+        transport = new TcpTransport();
+        transport.setDispatchQueue(Dispatch.createQueue("transport"));
+
+        // look up the thread queue of one of the dispatch threads.
+        final DispatchQueue[] rc = new DispatchQueue[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        Dispatch.getGlobalQueue().execute(new Runnable() {
+            public void run() {
+                rc[0] = Dispatch.getCurrentThreadQueue();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        threadQueue = rc[0];
+        assertNotNull(threadQueue);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if( peer!=null ) {
+            final CountDownLatch done = new CountDownLatch(1);
+            transport.stop(new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            peer.close();
+            serverSocket.close();
+        }
+        transport.setDispatchQueue(null);
+    }
+
+    /**
+     * Connects the transport to a peer socket and starts it.
+     */
+    private void connect(boolean cork, long corkLatency) throws Exception {
+        serverSocket = new ServerSocket(0);
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", serverSocket.getLocalPort()));
+        peer = serverSocket.accept();
+        peer.setSoTimeout(5000);
+
+        codec = new StringCodec();
+        transport.setProtocolCodec(codec);
+        transport.setTransportListener(new NoopListener());
+        transport.setCork(cork);
+        transport.setCorkLatency(corkLatency);
+        transport.connected(channel);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        transport.start(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private <T> T onTransportQueue(final Callable<T> task) throws Exception {
+        final Object[] rc = new Object[1];
+        final Throwable[] error = new Throwable[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        transport.getDispatchQueue().execute(new Runnable() {
+            public void run() {
+                try {
+                    rc[0] = task.call();
+                } catch (Throwable e) {
+                    error[0] = e;
+                }
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        if( error[0] instanceof Error ) {
+            throw (Error)error[0];
+        }
+        if( error[0]!=null ) {
+            throw (Exception)error[0];
+        }
+        return (T)rc[0];
+    }
+
+    private long writeCalls() throws Exception {
+        return onTransportQueue(new Callable<Long>() {
+            public Long call() {
+                return transport.getWriteCalls();
+            }
+        });
+    }
+
+    private String receive(int size) throws Exception {
+        byte[] data = new byte[size];
+        new DataInputStream(peer.getInputStream()).readFully(data);
+        return new String(data, "UTF-8");
+    }
+
+    private boolean isCallerSerialized(DispatchQueue queue) throws InterruptedException {
+        final boolean[] rc = new boolean[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        queue.execute(new Runnable() {
+            public void run() {
+                rc[0] = transport.isCallerSerialized();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return rc[0];
+    }
+
+    public void testTransportQueueIsSerialized() throws Exception {
+        assertTrue(isCallerSerialized(transport.getDispatchQueue()));
+    }
+
+    public void testQueueSharingTheThreadIsSerialized() throws Exception {
+        transport.getDispatchQueue().setTargetQueue(threadQueue);
+        DispatchQueue producer = Dispatch.createQueue("producer");
+        producer.setTargetQueue(threadQueue);
+        assertTrue(isCallerSerialized(producer));
+    }
+
+    public void testOtherThreadsAreNotSerialized() throws Exception {
+        assertFalse(transport.isCallerSerialized());
+
+        // bound to a thread queue, but the caller is not a dispatch thread.
+        transport.getDispatchQueue().setTargetQueue(threadQueue);
+        assertFalse(transport.isCallerSerialized());
+    }
+
+    public void testCorkedWritesGoOutInOneFlushPerDrainCycle() throws Exception {
+        connect(true, 1000);
+        long calls = onTransportQueue(new Callable<Long>() {
+            public Long call() {
+                for( int i=0; i < 10; i++ ) {
+                    assertTrue(transport.offer("command"+i+"\n"));
+                }
+                return transport.getWriteCalls();
+            }
+        });
+        // nothing was written while the commands were being offered.
+        assertEquals(0, calls);
+
+        StringBuilder expected = new StringBuilder();
+        for( int i=0; i < 10; i++ ) {
+            expected.append("command"+i+"\n");
+        }
+        assertEquals(expected.toString(), receive(expected.length()));
+        assertEquals(1, writeCalls());
+    }
+
+    public void testFullUncorksEarly() throws Exception {
+        connect(true, 1000);
+        codec.limit = 10;
+        long calls = onTransportQueue(new Callable<Long>() {
+            public Long call() {
+                assertTrue(transport.offer("12345"));
+                assertFalse(transport.offer("67890"));
+                return transport.getWriteCalls();
+            }
+        });
+        // flushed right away instead of at the end of the drain cycle.
+        assertEquals(1, calls);
+        assertEquals("1234567890", receive(10));
+    }
+
+    public void testCorkLatencyBoundsTheDelay() throws Exception {
+        connect(true, 50);
+        final long start = System.nanoTime();
+        final long[] elapsed = new long[1];
+        final int[] offered = new int[1];
+        final CountDownLatch flushed = new CountDownLatch(1);
+        // keeps offering a command on every drain cycle, so the cork is only
+        // pulled by the latency timer.
+        transport.getDispatchQueue().execute(new Runnable() {
+            public void run() {
+                if( transport.getWriteCalls() > 0 ) {
+                    elapsed[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start);
+                    flushed.countDown();
+                    return;
+                }
+                transport.offer("x");
+                offered[0]++;
+                transport.getDispatchQueue().execute(this);
+            }
+        });
+        assertTrue(flushed.await(5, TimeUnit.SECONDS));
+        assertTrue("flushed after "+elapsed[0]+" ms", elapsed[0] < 1000);
+        // the commands offered until the timer fired went out together.
+        assertTrue(offered[0] > 1);
+        assertEquals(1, writeCalls());
+    }
+
+    public void testWriteCallsAndAverageWriteSizeAreReported() throws Exception {
+        connect(false, 0);
+        final String command = "0123456789";
+        for( int i=0; i < 3; i++ ) {
+            onTransportQueue(new Callable<Boolean>() {
+                public Boolean call() {
+                    return transport.offer(command);
+                }
+            });
+            assertEquals(command, receive(command.length()));
+        }
+        assertEquals(3, writeCalls());
+        assertEquals(10, transport.getAverageWriteSize());
+    }
+
+}
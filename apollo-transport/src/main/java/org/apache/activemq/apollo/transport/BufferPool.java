@@ -0,0 +1,255 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A pool of heap byte arrays which protocol codecs borrow their read and
+ * write buffers from while they have data in flight and give back once
+ * the connection goes idle.  This keeps the memory held by a large number
+ * of mostly idle connections down to nearly nothing.
+ * </p>
+ * <p>
+ * Buffers are handed out in power of 2 size classes.  Each thread keeps a
+ * small cache of free buffers per size class so that the common borrow and
+ * release cycle done on a connection's dispatch thread does not contend
+ * with other threads.  Buffers which overflow the thread cache go to a
+ * bounded shared free list.  Requests bigger than the largest size class
+ * are not pooled.  Buffers which are never released, for example because
+ * decoded frames still reference them, are simply left to the garbage
+ * collector.
+ * </p>
+ * <p>
+ * Direct buffers, for transports which do their own socket reads and
+ * writes into network buffers, are pooled the same way but only through
+ * their own shared free lists.  They are expensive to allocate and their
+ * memory is not reclaimed until they get garbage collected, so they are
+ * not spread out over the thread caches.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class BufferPool {
+
+    public static final int MIN_SIZE = 1024;
+    public static final int MAX_SIZE = 1024*64;
+
+    public static final BufferPool DEFAULT = new BufferPool(MIN_SIZE, MAX_SIZE, 16, 1024);
+
+    private final int minShift;
+    private final int classCount;
+    private final int threadCacheSize;
+    private final int sharedCacheSize;
+
+    private final ConcurrentLinkedQueue<byte[]>[] shared;
+    private final AtomicInteger[] sharedCounts;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] sharedDirect;
+    private final AtomicInteger[] sharedDirectCounts;
+
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache();
+        }
+    };
+
+    private class ThreadCache {
+        final byte[][][] buffers = new byte[classCount][threadCacheSize][];
+        final int[] counts = new int[classCount];
+    }
+
+    /**
+     * @param minSize the smallest size class, must be a power of 2
+     * @param maxSize the biggest size class, must be a power of 2
+     * @param threadCacheSize the number of free buffers per size class each thread can cache
+     * @param sharedCacheSize the number of free buffers per size class kept in the shared free list
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int minSize, int maxSize, int threadCacheSize, int sharedCacheSize) {
+        if( Integer.bitCount(minSize)!=1 || Integer.bitCount(maxSize)!=1 || minSize > maxSize ) {
+            throw new IllegalArgumentException("The min and max sizes must be powers of 2");
+        }
+        this.minShift = Integer.numberOfTrailingZeros(minSize);
+        this.classCount = Integer.numberOfTrailingZeros(maxSize) - minShift + 1;
+        this.threadCacheSize = threadCacheSize;
+        this.sharedCacheSize = sharedCacheSize;
+        this.shared = new ConcurrentLinkedQueue[classCount];
+        this.sharedCounts = new AtomicInteger[classCount];
+        this.sharedDirect = new ConcurrentLinkedQueue[classCount];
+        this.sharedDirectCounts = new AtomicInteger[classCount];
+        for (int i = 0; i < classCount; i++) {
+            shared[i] = new ConcurrentLinkedQueue<byte[]>();
+            sharedCounts[i] = new AtomicInteger();
+            sharedDirect[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            sharedDirectCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @return the size of the size class which the requested size falls into.
+     */
+    public int sizeClass(int size) {
+        int index = classIndex(size);
+        if( index < 0 ) {
+            return size;
+        }
+        return 1 << (index + minShift);
+    }
+
+    private int classIndex(int size) {
+        if( size <= (1<<minShift) ) {
+            return 0;
+        }
+        int index = 32 - Integer.numberOfLeadingZeros(size - 1) - minShift;
+        if( index >= classCount ) {
+            return -1;
+        }
+        return index;
+    }
+
+    /**
+     * Borrows a buffer which is at least the requested size.
+     */
+    public byte[] borrow(int size) {
+        borrowed.incrementAndGet();
+        int index = classIndex(size);
+        if( index < 0 ) {
+            allocated.incrementAndGet();
+            return new byte[size];
+        }
+
+        ThreadCache cache = threadCache.get();
+        int count = cache.counts[index];
+        if( count > 0 ) {
+            count--;
+            cache.counts[index] = count;
+            byte[] rc = cache.buffers[index][count];
+            cache.buffers[index][count] = null;
+            return rc;
+        }
+
+        byte[] rc = shared[index].poll();
+        if( rc!=null ) {
+            sharedCounts[index].decrementAndGet();
+            return rc;
+        }
+
+        allocated.incrementAndGet();
+        return new byte[1 << (index + minShift)];
+    }
+
+    /**
+     * Gives a buffer back to the pool.  The caller must not hold on to
+     * any references to the buffer once it's been released.  Buffers which
+     * are not exactly one of the size classes are just dropped.
+     */
+    public void release(byte[] buffer) {
+        int size = buffer.length;
+        int index = classIndex(size);
+        if( index < 0 || size != (1 << (index + minShift)) ) {
+            return;
+        }
+        released.incrementAndGet();
+
+        ThreadCache cache = threadCache.get();
+        int count = cache.counts[index];
+        if( count < threadCacheSize ) {
+            cache.buffers[index][count] = buffer;
+            cache.counts[index] = count+1;
+            return;
+        }
+
+        if( sharedCounts[index].incrementAndGet() <= sharedCacheSize ) {
+            shared[index].offer(buffer);
+        } else {
+            sharedCounts[index].decrementAndGet();
+        }
+    }
+
+    /**
+     * Borrows a cleared direct buffer which is at least the requested size.
+     */
+    public ByteBuffer borrowDirect(int size) {
+        borrowed.incrementAndGet();
+        int index = classIndex(size);
+        if( index < 0 ) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        ByteBuffer rc = sharedDirect[index].poll();
+        if( rc!=null ) {
+            sharedDirectCounts[index].decrementAndGet();
+            rc.clear();
+            return rc;
+        }
+
+        allocated.incrementAndGet();
+        return ByteBuffer.allocateDirect(1 << (index + minShift));
+    }
+
+    /**
+     * Gives a direct buffer back to the pool.  Like with {@link #release(byte[])}
+     * the caller must not hold on to it, and buffers which are not exactly
+     * one of the size classes are just dropped.
+     */
+    public void releaseDirect(ByteBuffer buffer) {
+        int size = buffer.capacity();
+        int index = classIndex(size);
+        if( !buffer.isDirect() || index < 0 || size != (1 << (index + minShift)) ) {
+            return;
+        }
+        released.incrementAndGet();
+
+        if( sharedDirectCounts[index].incrementAndGet() <= sharedCacheSize ) {
+            sharedDirect[index].offer(buffer);
+        } else {
+            sharedDirectCounts[index].decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of buffers which have been borrowed.
+     */
+    public long getBorrowed() {
+        return borrowed.get();
+    }
+
+    /**
+     * @return the number of borrow requests which had to allocate a new buffer.
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * @return the number of buffers which have been given back to the pool.
+     */
+    public long getReleased() {
+        return released.get();
+    }
+
+}
@@ -0,0 +1,409 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+import org.fusesource.hawtbuf.Buffer;
+
+/**
+ * <p>
+ * A ProtocolCodec which wraps another codec and deflates everything it
+ * writes and inflates everything it reads.  Each connection uses one
+ * deflate stream per direction for its whole life, so the compression
+ * history built up by earlier frames keeps helping the later ones.
+ * </p>
+ * <p>
+ * Compression is negotiated by the client sending the {@link #PREFIX}
+ * bytes before anything else.  A server which accepts compression replies
+ * with the same bytes as soon as it has read them.  Everything after the
+ * prefix is compressed in both directions.  The client checks the reply
+ * before it inflates anything, so a server which does not support
+ * compression fails the connection instead of having its reply inflated
+ * as garbage.  The wrapped codec's writes are only sync flushed
+ * down to the socket when the transport flushes the codec, so the codec's
+ * write batching still applies.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class CompressingProtocolCodec implements ProtocolCodec {
+
+    public static final AsciiBuffer PREFIX = new AsciiBuffer("DEFLATE\n");
+
+    private final ProtocolCodec next;
+    private final InflatingChannel inflater;
+    private final DeflatingChannel deflater = new DeflatingChannel();
+    private boolean writeEmpty = true;
+
+    /**
+     * Used on the client side.  The prefix gets sent ahead of the compressed
+     * data and the server's reply is expected ahead of the data it sends.
+     *
+     * @param next the codec to wrap
+     */
+    public CompressingProtocolCodec(ProtocolCodec next) {
+        this.next = next;
+        this.inflater = new InflatingChannel();
+        this.inflater.expect(PREFIX);
+        this.deflater.queue(PREFIX);
+    }
+
+    /**
+     * Used on the server side once the prefix has been read off the
+     * connection by the inflating channel passed in.  The prefix is
+     * sent back to the client to accept the compression.
+     */
+    public CompressingProtocolCodec(ProtocolCodec next, InflatingChannel inflater) {
+        this.next = next;
+        this.inflater = inflater;
+        this.deflater.queue(PREFIX);
+    }
+
+    public String protocol() {
+        return next.protocol();
+    }
+
+    public ProtocolCodec getNext() {
+        return next;
+    }
+
+    public void setReadableByteChannel(ReadableByteChannel channel) {
+        inflater.setChannel(channel);
+        next.setReadableByteChannel(inflater);
+    }
+
+    public Object read() throws IOException {
+        return next.read();
+    }
+
+    public void unread(Buffer buffer) {
+        next.unread(buffer);
+    }
+
+    public long getReadCounter() {
+        return next.getReadCounter();
+    }
+
+    public void setWritableByteChannel(WritableByteChannel channel) {
+        deflater.setChannel(channel);
+        next.setWritableByteChannel(deflater);
+        // send the prefix right away so the peer does not have to wait
+        // for the first frame to find out compression was accepted.
+        try {
+            deflater.flush();
+        } catch (IOException e) {
+            // the next flush will run into it again.
+        }
+    }
+
+    public BufferState write(Object value) throws IOException {
+        BufferState rc = next.write(value);
+        if( rc == BufferState.FULL ) {
+            return rc;
+        }
+        if( writeEmpty ) {
+            writeEmpty = false;
+            return BufferState.WAS_EMPTY;
+        }
+        return BufferState.NOT_EMPTY;
+    }
+
+    public BufferState flush() throws IOException {
+        BufferState rc = next.flush();
+        if( deflater.flush() && rc == BufferState.EMPTY ) {
+            writeEmpty = true;
+            return BufferState.EMPTY;
+        }
+        return BufferState.NOT_EMPTY;
+    }
+
+    public long getWriteCounter() {
+        return next.getWriteCounter();
+    }
+
+    /**
+     * @return The number of compressed bytes received.
+     */
+    public long getCompressedReadCounter() {
+        return inflater.counter;
+    }
+
+    /**
+     * @return The number of compressed bytes written.
+     */
+    public long getCompressedWriteCounter() {
+        return deflater.counter;
+    }
+
+    public int getBufferFootprint() {
+        return next.getBufferFootprint() + inflater.input.length + deflater.output.length;
+    }
+
+    /**
+     * A channel which inflates the data read from the underlying channel.
+     */
+    public static class InflatingChannel implements ReadableByteChannel {
+
+        private final Inflater inflater = new Inflater();
+        private ReadableByteChannel channel;
+        private byte[] input = new byte[1024*8];
+        private byte[] temp;
+        private long counter;
+        private boolean open = true;
+        private Buffer expected;
+
+        public void setChannel(ReadableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Makes the channel check that the stream starts with the given raw
+         * bytes before it inflates the rest of it.
+         */
+        void expect(Buffer prefix) {
+            expected = prefix.deepCopy();
+        }
+
+        /**
+         * Reads the raw bytes which are expected ahead of the compressed
+         * data off the underlying channel.
+         *
+         * @return false if they did not arrive yet.
+         */
+        private boolean readExpected() throws IOException {
+            int size = channel.read(ByteBuffer.wrap(input));
+            if( size < 0 ) {
+                throw new EOFException("Peer disconnected");
+            }
+            counter += size;
+            int count = Math.min(size, expected.length);
+            for( int i=0; i < count; i++ ) {
+                if( input[i] != expected.data[expected.offset+i] ) {
+                    throw new IOException("The peer did not accept the compressed connection");
+                }
+            }
+            expected.offset += count;
+            expected.length -= count;
+            if( expected.length > 0 ) {
+                return false;
+            }
+            expected = null;
+            inflater.setInput(input, count, size-count);
+            return true;
+        }
+
+        /**
+         * Pushes compressed data which was read off the underlying channel
+         * by someone else, ahead of the rest of the stream.
+         */
+        public void unread(byte[] data, int offset, int length) {
+            if( input.length < length ) {
+                input = new byte[length];
+            }
+            System.arraycopy(data, offset, input, 0, length);
+            inflater.setInput(input, 0, length);
+            counter += length;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            if( expected!=null && !readExpected() ) {
+                return 0;
+            }
+            int rc = 0;
+            boolean channelRead = false;
+            while( dst.hasRemaining() ) {
+                int count;
+                try {
+                    if( dst.hasArray() ) {
+                        count = inflater.inflate(dst.array(), dst.arrayOffset()+dst.position(), dst.remaining());
+                        dst.position(dst.position()+count);
+                    } else {
+                        if( temp==null ) {
+                            temp = new byte[1024*8];
+                        }
+                        count = inflater.inflate(temp, 0, Math.min(temp.length, dst.remaining()));
+                        dst.put(temp, 0, count);
+                    }
+                } catch (DataFormatException e) {
+                    throw (IOException) new IOException("Invalid compressed data: "+e.getMessage()).initCause(e);
+                }
+                rc += count;
+
+                if( count==0 ) {
+                    if( inflater.finished() ) {
+                        throw new EOFException("Compressed stream ended");
+                    }
+                    if( inflater.needsDictionary() ) {
+                        throw new IOException("Compressed stream needs a preset dictionary");
+                    }
+                    if( inflater.needsInput() ) {
+                        // only hit the socket once per read, so we don't spin on it.
+                        if( channelRead ) {
+                            break;
+                        }
+                        channelRead = true;
+                        int size = channel.read(ByteBuffer.wrap(input));
+                        if( size < 0 ) {
+                            return rc > 0 ? rc : -1;
+                        }
+                        if( size == 0 ) {
+                            break;
+                        }
+                        counter += size;
+                        inflater.setInput(input, 0, size);
+                    }
+                }
+            }
+            return rc;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public void close() throws IOException {
+            open = false;
+            inflater.end();
+        }
+    }
+
+    /**
+     * A channel which deflates the data written to it.  The compressed data
+     * is only pushed out to the underlying channel when it is flushed.
+     */
+    public static class DeflatingChannel implements WritableByteChannel {
+
+        /**
+         * Once this much compressed data is waiting on the underlying
+         * channel, writes stop being accepted.
+         */
+        public static final int MAX_PENDING = 1024*64;
+
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private WritableByteChannel channel;
+        private byte[] output = new byte[1024*8];
+        private int outputStart;
+        private int outputEnd;
+        private byte[] temp;
+        private boolean unflushed;
+        private long counter;
+        private boolean open = true;
+
+        public void setChannel(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Queues up raw bytes to go out ahead of the compressed data.
+         */
+        void queue(Buffer buffer) {
+            ensureCapacity(buffer.length);
+            System.arraycopy(buffer.data, buffer.offset, output, outputEnd, buffer.length);
+            outputEnd += buffer.length;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            if( outputEnd-outputStart >= MAX_PENDING ) {
+                // let the socket catch up first.
+                return 0;
+            }
+            int rc = src.remaining();
+            if( src.hasArray() ) {
+                deflater.setInput(src.array(), src.arrayOffset()+src.position(), rc);
+            } else {
+                if( temp==null || temp.length < rc ) {
+                    temp = new byte[rc];
+                }
+                src.duplicate().get(temp, 0, rc);
+                deflater.setInput(temp, 0, rc);
+            }
+            while( !deflater.needsInput() ) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            src.position(src.position()+rc);
+            unflushed = true;
+            return rc;
+        }
+
+        /**
+         * Sync flushes the deflater and writes out as much of the compressed
+         * data as the underlying channel will take.
+         *
+         * @return true if all the data made it out.
+         */
+        boolean flush() throws IOException {
+            if( unflushed ) {
+                unflushed = false;
+                int count;
+                do {
+                    count = deflate(Deflater.SYNC_FLUSH);
+                } while( count > 0 && outputEnd == output.length );
+            }
+            if( outputEnd > outputStart ) {
+                int count = channel.write(ByteBuffer.wrap(output, outputStart, outputEnd-outputStart));
+                counter += count;
+                outputStart += count;
+                if( outputStart == outputEnd ) {
+                    outputStart = 0;
+                    outputEnd = 0;
+                }
+            }
+            return outputStart == outputEnd;
+        }
+
+        private int deflate(int mode) {
+            ensureCapacity(1024);
+            int count = deflater.deflate(output, outputEnd, output.length-outputEnd, mode);
+            outputEnd += count;
+            return count;
+        }
+
+        private void ensureCapacity(int size) {
+            if( output.length-outputEnd >= size ) {
+                return;
+            }
+            int pending = outputEnd-outputStart;
+            byte[] target = output;
+            if( pending+size > output.length ) {
+                target = new byte[Math.max(output.length*2, pending+size)];
+            }
+            System.arraycopy(output, outputStart, target, 0, pending);
+            output = target;
+            outputStart = 0;
+            outputEnd = pending;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public void close() throws IOException {
+            open = false;
+            deflater.end();
+        }
+    }
+
+}
@@ -32,6 +32,9 @@ public class DefaultTransportListener implements TransportListener {
     public void onTransportCommand(Object command) {
     }
 
+    public void onTransportCommandsDrained() {
+    }
+
     public void onRefill() {
     }
 
@@ -104,6 +104,10 @@ public class ObjectStreamProtocolCodec implements ProtocolCodec {
         throw new UnsupportedOperationException();
     }
 
+    public int getBufferFootprint() {
+        return 0;
+    }
+
     public String protocol() {
         return WIREFORMAT_NAME;
     }
@@ -104,5 +104,11 @@ public interface ProtocolCodec {
      */
     public long getWriteCounter();
 
+    /**
+     * @return The number of bytes of read and write buffer space the codec
+     *         is currently holding on to.
+     */
+    public int getBufferFootprint();
+
 
 }
@@ -107,6 +107,10 @@ public class TransportFilter implements TransportListener, Transport {
         transportListener.onTransportCommand(command);
     }
 
+    public void onTransportCommandsDrained() {
+        transportListener.onTransportCommandsDrained();
+    }
+
     public void onRefill() {
         transportListener.onRefill();
     }
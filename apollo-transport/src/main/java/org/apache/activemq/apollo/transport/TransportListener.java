@@ -31,6 +31,13 @@ public interface TransportListener {
      */
     void onTransportCommand(Object command);
 
+    /**
+     * called once the transport has passed on all the commands
+     * it could read in the current pass.  Listeners can use this to
+     * flush any work that they batched up while processing those commands.
+     */
+    void onTransportCommandsDrained();
+
     /**
      * transport can now accept more commands for transmission. 
      */
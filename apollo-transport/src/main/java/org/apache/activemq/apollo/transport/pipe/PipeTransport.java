@@ -90,6 +90,7 @@ public class PipeTransport implements Transport {
                                 readCounter ++;
                                 listener.onTransportCommand(o);
                             }
+                            listener.onTransportCommandsDrained();
 
                             // let the peer know that they have been processed.
                             peer.dispatchQueue.dispatchAsync(new Runnable() {
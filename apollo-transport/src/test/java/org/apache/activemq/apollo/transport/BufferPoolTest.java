@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests the size classes and the free lists of the BufferPool.
+ */
+public class BufferPoolTest extends TestCase {
+
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(1024, 1024*64, 4, 4);
+        assertEquals(1024, pool.sizeClass(1));
+        assertEquals(1024, pool.sizeClass(1024));
+        assertEquals(2048, pool.sizeClass(1025));
+        assertEquals(1024*32, pool.sizeClass(1024*32-1));
+        assertEquals(1024*64, pool.sizeClass(1024*64));
+        // bigger than the largest size class.
+        assertEquals(1024*64+1, pool.sizeClass(1024*64+1));
+
+        assertEquals(1024, pool.borrow(10).length);
+        assertEquals(4096, pool.borrow(3000).length);
+    }
+
+    public void testInvalidSizes() {
+        try {
+            new BufferPool(1000, 1024*64, 4, 4);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new BufferPool(2048, 1024, 4, 4);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testReleasedBuffersAreReused() {
+        BufferPool pool = new BufferPool(1024, 1024*64, 4, 4);
+        byte[] buffer = pool.borrow(2000);
+        pool.release(buffer);
+        assertSame(buffer, pool.borrow(1500));
+        // a different size class does not get it.
+        pool.release(buffer);
+        assertNotSame(buffer, pool.borrow(1000));
+
+        assertEquals(3, pool.getBorrowed());
+        assertEquals(2, pool.getAllocated());
+        assertEquals(2, pool.getReleased());
+    }
+
+    public void testOversizeRequestsAreNotPooled() {
+        BufferPool pool = new BufferPool(1024, 1024*64, 4, 4);
+        byte[] buffer = pool.borrow(1024*64+1);
+        assertEquals(1024*64+1, buffer.length);
+        pool.release(buffer);
+        assertEquals(0, pool.getReleased());
+        assertNotSame(buffer, pool.borrow(1024*64+1));
+        assertEquals(2, pool.getAllocated());
+    }
+
+    public void testBuffersNotFromASizeClassAreDropped() {
+        BufferPool pool = new BufferPool(1024, 1024*64, 4, 4);
+        pool.release(new byte[1500]);
+        assertEquals(0, pool.getReleased());
+        assertEquals(1024, pool.borrow(1000).length);
+        assertEquals(1, pool.getAllocated());
+    }
+
+    public void testDirectBuffersArePooled() {
+        BufferPool pool = new BufferPool(1024, 1024*64, 4, 1);
+        ByteBuffer buffer = pool.borrowDirect(3000);
+        assertTrue(buffer.isDirect());
+        assertEquals(4096, buffer.capacity());
+
+        buffer.put((byte) 1);
+        pool.releaseDirect(buffer);
+        // comes back cleared, and the heap buffers don't get it.
+        assertEquals(4096, pool.borrow(4096).length);
+        ByteBuffer reused = pool.borrowDirect(4000);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(4096, reused.limit());
+
+        // only sharedCacheSize direct buffers are kept per size class.
+        ByteBuffer other = pool.borrowDirect(4096);
+        pool.releaseDirect(reused);
+        pool.releaseDirect(other);
+        assertSame(reused, pool.borrowDirect(4096));
+        assertNotSame(other, pool.borrowDirect(4096));
+
+        // heap buffers are not taken.
+        pool.releaseDirect(ByteBuffer.allocate(4096));
+        assertEquals(3, pool.getReleased());
+    }
+
+    public void testThreadCacheOverflowsToTheSharedList() throws Exception {
+        final BufferPool pool = new BufferPool(1024, 1024*64, 2, 1);
+        byte[][] buffers = new byte[4][];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.borrow(1024);
+        }
+        // 2 go to this thread's cache, 1 to the shared list and 1 is dropped.
+        for (int i = 0; i < buffers.length; i++) {
+            pool.release(buffers[i]);
+        }
+        assertEquals(4, pool.getAllocated());
+
+        // another thread can only get the one from the shared list.
+        final byte[][] borrowed = new byte[2][];
+        Thread thread = new Thread() {
+            public void run() {
+                borrowed[0] = pool.borrow(1024);
+                borrowed[1] = pool.borrow(1024);
+            }
+        };
+        thread.start();
+        thread.join();
+        assertSame(buffers[2], borrowed[0]);
+        assertNotSame(buffers[3], borrowed[1]);
+        assertEquals(5, pool.getAllocated());
+
+        // while this thread still has its cached ones.
+        assertSame(buffers[1], pool.borrow(1024));
+        assertSame(buffers[0], pool.borrow(1024));
+        assertEquals(5, pool.getAllocated());
+    }
+
+}
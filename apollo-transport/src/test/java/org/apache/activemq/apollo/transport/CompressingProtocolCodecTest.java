@@ -0,0 +1,332 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtbuf.Buffer;
+
+import org.apache.activemq.apollo.transport.CompressingProtocolCodec.DeflatingChannel;
+import org.apache.activemq.apollo.transport.CompressingProtocolCodec.InflatingChannel;
+
+/**
+ * Tests the deflating and inflating channels and the compression
+ * negotiation of the CompressingProtocolCodec.
+ */
+public class CompressingProtocolCodecTest extends TestCase {
+
+    /**
+     * Collects everything written to it.
+     */
+    static class RecordingChannel implements WritableByteChannel {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int limit = Integer.MAX_VALUE;
+
+        public int write(ByteBuffer src) {
+            int count = Math.min(limit, src.remaining());
+            for( int i=0; i < count; i++ ) {
+                data.write(src.get());
+            }
+            return count;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Hands out the data it was given at most chunk bytes per read, then
+     * reports that nothing more is available.
+     */
+    static class ChunkedChannel implements ReadableByteChannel {
+        final byte[] data;
+        final int chunk;
+        int position;
+
+        ChunkedChannel(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        public int read(ByteBuffer dst) {
+            int count = Math.min(chunk, Math.min(dst.remaining(), data.length-position));
+            dst.put(data, position, count);
+            position += count;
+            return count;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * A codec which reads and writes new line terminated strings.
+     */
+    static class LineCodec implements ProtocolCodec {
+        ReadableByteChannel readChannel;
+        WritableByteChannel writeChannel;
+        final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        ByteBuffer writeBuffer = ByteBuffer.allocate(0);
+
+        public String protocol() {
+            return "line";
+        }
+
+        public void setReadableByteChannel(ReadableByteChannel channel) {
+            readChannel = channel;
+        }
+
+        public Object read() throws IOException {
+            while( true ) {
+                byte[] data = pending.toByteArray();
+                for( int i=0; i < data.length; i++ ) {
+                    if( data[i]=='\n' ) {
+                        pending.reset();
+                        pending.write(data, i+1, data.length-i-1);
+                        return new String(data, 0, i, "UTF-8");
+                    }
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(64);
+                int count = readChannel.read(buffer);
+                if( count < 0 ) {
+                    throw new EOFException();
+                }
+                if( count == 0 ) {
+                    return null;
+                }
+                pending.write(buffer.array(), 0, count);
+            }
+        }
+
+        public void unread(Buffer buffer) {
+            pending.write(buffer.data, buffer.offset, buffer.length);
+        }
+
+        public long getReadCounter() {
+            return 0;
+        }
+
+        public void setWritableByteChannel(WritableByteChannel channel) {
+            writeChannel = channel;
+        }
+
+        public BufferState write(Object value) throws IOException {
+            boolean wasEmpty = !writeBuffer.hasRemaining();
+            byte[] line = (value+"\n").getBytes("UTF-8");
+            ByteBuffer next = ByteBuffer.allocate(writeBuffer.remaining()+line.length);
+            next.put(writeBuffer).put(line).flip();
+            writeBuffer = next;
+            return wasEmpty ? BufferState.WAS_EMPTY : BufferState.NOT_EMPTY;
+        }
+
+        public BufferState flush() throws IOException {
+            writeChannel.write(writeBuffer);
+            return writeBuffer.hasRemaining() ? BufferState.NOT_EMPTY : BufferState.EMPTY;
+        }
+
+        public long getWriteCounter() {
+            return 0;
+        }
+
+        public int getBufferFootprint() {
+            return 0;
+        }
+    }
+
+    static byte[] text(int size) {
+        StringBuilder rc = new StringBuilder();
+        while( rc.length() < size ) {
+            rc.append("message number ").append(rc.length()).append('\n');
+        }
+        return rc.substring(0, size).getBytes();
+    }
+
+    static byte[] deflate(byte[] data) throws IOException {
+        DeflatingChannel deflater = new DeflatingChannel();
+        RecordingChannel out = new RecordingChannel();
+        deflater.setChannel(out);
+        ByteBuffer src = ByteBuffer.wrap(data);
+        while( src.hasRemaining() ) {
+            // write it in pieces, flushing whenever the deflater is full.
+            ByteBuffer piece = ByteBuffer.wrap(data, src.position(), Math.min(1000, src.remaining()));
+            int count = deflater.write(piece);
+            if( count == 0 ) {
+                deflater.flush();
+            }
+            src.position(src.position()+count);
+        }
+        assertTrue(deflater.flush());
+        return out.data.toByteArray();
+    }
+
+    static byte[] inflate(InflatingChannel inflater, int expected, int readSize) throws IOException {
+        ByteArrayOutputStream rc = new ByteArrayOutputStream();
+        ByteBuffer dst = ByteBuffer.allocate(readSize);
+        // a read can come up empty when the compressed bytes it got off the
+        // channel were not enough to inflate anything.
+        int empty = 0;
+        while( rc.size() < expected ) {
+            dst.clear();
+            int count = inflater.read(dst);
+            assertTrue("stream ended early", count >= 0 && empty < 100);
+            empty = count == 0 ? empty+1 : 0;
+            rc.write(dst.array(), 0, count);
+        }
+        return rc.toByteArray();
+    }
+
+    public void testChannelsRoundTripWithSplitReads() throws Exception {
+        byte[] data = text(1024*200);
+        byte[] compressed = deflate(data);
+        assertTrue(compressed.length < data.length/2);
+
+        InflatingChannel inflater = new InflatingChannel();
+        inflater.setChannel(new ChunkedChannel(compressed, 7));
+        assertTrue(Arrays.equals(data, inflate(inflater, data.length, 100)));
+
+        // once all the compressed data is consumed, reads come up empty.
+        assertEquals(0, inflater.read(ByteBuffer.allocate(100)));
+    }
+
+    public void testInflatingIntoDirectBuffers() throws Exception {
+        byte[] data = text(1024*20);
+        InflatingChannel inflater = new InflatingChannel();
+        inflater.setChannel(new ChunkedChannel(deflate(data), 1024));
+        ByteBuffer dst = ByteBuffer.allocateDirect(data.length);
+        while( dst.hasRemaining() ) {
+            assertTrue(inflater.read(dst) > 0);
+        }
+        byte[] rc = new byte[data.length];
+        dst.flip();
+        dst.get(rc);
+        assertTrue(Arrays.equals(data, rc));
+    }
+
+    public void testInvalidCompressedData() throws Exception {
+        InflatingChannel inflater = new InflatingChannel();
+        inflater.setChannel(new ChunkedChannel("not compressed at all".getBytes(), 100));
+        try {
+            inflater.read(ByteBuffer.allocate(100));
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testDeflaterStopsAcceptingWritesWhileTheSocketIsBacked() throws Exception {
+        DeflatingChannel deflater = new DeflatingChannel();
+        RecordingChannel out = new RecordingChannel();
+        out.limit = 0;
+        deflater.setChannel(out);
+
+        // random data does not compress, so the pending data piles up.
+        Random random = new Random(0);
+        byte[] data = new byte[1024*8];
+        random.nextBytes(data);
+        int accepted = 0;
+        while( deflater.write(ByteBuffer.wrap(data)) > 0 ) {
+            accepted += data.length;
+            assertTrue("writes were never held back", accepted < DeflatingChannel.MAX_PENDING*4);
+            random.nextBytes(data);
+        }
+        assertFalse(deflater.flush());
+        assertEquals(0, deflater.write(ByteBuffer.wrap(data)));
+
+        // once the socket takes the data, writes get accepted again.
+        out.limit = Integer.MAX_VALUE;
+        assertTrue(deflater.flush());
+        assertEquals(data.length, deflater.write(ByteBuffer.wrap(data)));
+    }
+
+    public void testCodecRoundTripWithSplitReads() throws Exception {
+        // the client sends the prefix as soon as it gets the socket.
+        CompressingProtocolCodec client = new CompressingProtocolCodec(new LineCodec());
+        RecordingChannel clientOut = new RecordingChannel();
+        client.setWritableByteChannel(clientOut);
+        assertTrue(Arrays.equals(CompressingProtocolCodec.PREFIX.toByteArray(), clientOut.data.toByteArray()));
+
+        assertEquals(ProtocolCodec.BufferState.WAS_EMPTY, client.write("hello"));
+        assertEquals(ProtocolCodec.BufferState.NOT_EMPTY, client.write("world"));
+        assertEquals(ProtocolCodec.BufferState.EMPTY, client.flush());
+
+        // the server identifies the prefix and hands the rest to the inflater.
+        byte[] sent = clientOut.data.toByteArray();
+        byte[] compressed = new byte[sent.length-CompressingProtocolCodec.PREFIX.length];
+        System.arraycopy(sent, CompressingProtocolCodec.PREFIX.length, compressed, 0, compressed.length);
+        CompressingProtocolCodec server = new CompressingProtocolCodec(new LineCodec(), new InflatingChannel());
+        server.setReadableByteChannel(new ChunkedChannel(compressed, 3));
+        assertEquals(list("hello", "world"), readAll(server));
+
+        // and accepts the compression by sending the prefix back.
+        RecordingChannel serverOut = new RecordingChannel();
+        server.setWritableByteChannel(serverOut);
+        server.write("welcome");
+        assertEquals(ProtocolCodec.BufferState.EMPTY, server.flush());
+        byte[] reply = serverOut.data.toByteArray();
+        assertTrue(new Buffer(reply).startsWith(CompressingProtocolCodec.PREFIX));
+
+        // the client reads the reply a byte at a time, so the prefix
+        // check has to cope with it arriving in pieces.
+        client.setReadableByteChannel(new ChunkedChannel(reply, 1));
+        assertEquals(list("welcome"), readAll(client));
+    }
+
+    public void testClientFailsWhenCompressionIsNotAccepted() throws Exception {
+        CompressingProtocolCodec client = new CompressingProtocolCodec(new LineCodec());
+        client.setWritableByteChannel(new RecordingChannel());
+        client.setReadableByteChannel(new ChunkedChannel("ERROR\nmessage:unknown protocol\n".getBytes(), 3));
+        try {
+            readAll(client);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    static List<String> list(String... values) {
+        return Arrays.asList(values);
+    }
+
+    static List<String> readAll(ProtocolCodec codec) throws IOException {
+        ArrayList<String> rc = new ArrayList<String>();
+        // a null read only means the current chunk of data ran out.
+        for( int i=0; i < 1000; i++ ) {
+            Object value = codec.read();
+            if( value!=null ) {
+                rc.add((String) value);
+            }
+        }
+        return rc;
+    }
+
+}
@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.pipe;
+
+import junit.framework.TestCase;
+import org.apache.activemq.apollo.transport.DefaultTransportListener;
+import org.apache.activemq.apollo.transport.Transport;
+import org.apache.activemq.apollo.transport.TransportAcceptListener;
+import org.apache.activemq.apollo.transport.TransportFactory;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.DispatchQueue;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the listener is told once the commands of a read pass
+ * have all been delivered.
+ */
+public class PipeTransportTest extends TestCase {
+
+    static final String DRAINED = "drained";
+
+    private PipeTransportServer server;
+    private Transport client;
+
+    // only accessed from the server transport's queue until the latch trips.
+    private final ArrayList<Object> events = new ArrayList<Object>();
+    private final CountDownLatch received = new CountDownLatch(1);
+
+    @Override
+    protected void setUp() throws Exception {
+        server = (PipeTransportServer) new PipeTransportFactory().bind("pipe://drained-test");
+        server.setDispatchQueue(Dispatch.createQueue("pipe server"));
+        server.setAcceptListener(new TransportAcceptListener() {
+            public void onAccept(final Transport transport) {
+                transport.setDispatchQueue(Dispatch.createQueue("pipe server connection"));
+                transport.setTransportListener(new DefaultTransportListener() {
+                    public void onTransportCommand(Object command) {
+                        events.add(command);
+                    }
+                    public void onTransportCommandsDrained() {
+                        events.add(DRAINED);
+                        if( events.contains("3") ) {
+                            received.countDown();
+                        }
+                    }
+                });
+                try {
+                    transport.start();
+                } catch (Exception e) {
+                    onAcceptError(e);
+                }
+            }
+            public void onAcceptError(Exception error) {
+                error.printStackTrace();
+            }
+        });
+        server.start();
+
+        client = TransportFactory.connect("pipe://drained-test");
+        client.setDispatchQueue(Dispatch.createQueue("pipe client"));
+        client.setTransportListener(new DefaultTransportListener());
+        final CountDownLatch started = new CountDownLatch(1);
+        client.start(new Runnable() {
+            public void run() {
+                started.countDown();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        client.stop();
+        server.stop();
+    }
+
+    public void testDrainedFollowsEachReadPass() throws Exception {
+        final DispatchQueue queue = client.getDispatchQueue();
+        queue.execute(new Runnable() {
+            public void run() {
+                if( !client.offer("1") || !client.offer("2") || !client.offer("3") ) {
+                    // not connected yet, try again in a bit.
+                    queue.dispatchAfter(10, TimeUnit.MILLISECONDS, this);
+                }
+            }
+        });
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+
+        // every pass starts with a command and ends with the drained callback.
+        assertEquals("1", events.get(0));
+        assertEquals(DRAINED, events.get(events.size()-1));
+        int commands = 0;
+        for (int i = 0; i < events.size(); i++) {
+            if( events.get(i) == DRAINED ) {
+                assertTrue(i > 0 && events.get(i-1) != DRAINED);
+            } else {
+                commands++;
+            }
+        }
+        assertEquals(3, commands);
+    }
+
+}
@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.unix;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+
+import org.apache.activemq.apollo.transport.tcp.TcpTransport;
+
+/**
+ * A transport which connects over a unix domain socket.  It avoids the
+ * TCP/IP stack when the client and broker run on the same host.
+ *
+ * The location's path is the file name of the socket, for example
+ * <code>unix:/var/run/apollo/stomp.sock</code>.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class UnixTransport extends TcpTransport {
+
+    @Override
+    protected SocketChannel openChannel() throws IOException {
+        return SocketChannel.open(StandardProtocolFamily.UNIX);
+    }
+
+    @Override
+    protected SocketAddress createRemoteAddress(URI remoteLocation) throws IOException {
+        return UnixDomainSocketAddress.of(remoteLocation.getPath());
+    }
+
+    /**
+     * Unix channels don't support socket(), so the address comes straight
+     * from the channel.
+     */
+    @Override
+    protected String remoteAddress() throws IOException {
+        return String.valueOf(channel.getRemoteAddress());
+    }
+
+    @Override
+    public String getTypeId() {
+        return "unix";
+    }
+
+}
@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.unix;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+import org.apache.activemq.apollo.transport.tcp.TcpTransport;
+import org.apache.activemq.apollo.transport.tcp.TcpTransportServer;
+
+/**
+ * A transport server which accepts connections on a unix domain socket.
+ * The bind location's path is the file name of the socket.  A stale socket
+ * file left behind by a previous run is deleted when the server binds.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class UnixTransportServer extends TcpTransportServer {
+
+    private Path path;
+
+    public UnixTransportServer(URI location) {
+        super(location);
+    }
+
+    @Override
+    protected ArrayList<ServerSocketChannel> bindChannels() throws IOException {
+        path = Paths.get(bindURI.getPath());
+        Files.deleteIfExists(path);
+
+        channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.configureBlocking(false);
+        channel.bind(UnixDomainSocketAddress.of(path), backlog);
+        connectURI = bindURI;
+
+        ArrayList<ServerSocketChannel> channels = new ArrayList<ServerSocketChannel>(1);
+        channels.add(channel);
+        return channels;
+    }
+
+    @Override
+    protected TcpTransport createTransport() {
+        return new UnixTransport();
+    }
+
+    /**
+     * @return null since a unix domain socket does not have an inet address.
+     */
+    @Override
+    public InetSocketAddress getSocketAddress() {
+        return null;
+    }
+
+    @Override
+    public void stop(final Runnable onCompleted) throws Exception {
+        super.stop(new Runnable() {
+            public void run() {
+                try {
+                    if( path!=null ) {
+                        Files.deleteIfExists(path);
+                    }
+                } catch (IOException ignore) {
+                }
+                if( onCompleted!=null ) {
+                    onCompleted.run();
+                }
+            }
+        });
+    }
+
+}
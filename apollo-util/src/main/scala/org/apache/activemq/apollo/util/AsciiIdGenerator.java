@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+
+/**
+ * Generator for globally unique AsciiBuffer ids.
+ * <p>
+ * Each generator gets a unique prefix from an {@link IdGenerator}, and the
+ * ids it generates are that prefix followed by a sequence counter.  The id
+ * bytes are written straight into a pre-allocated chunk which is shared by
+ * the ids, so no strings get built and no numbers get boxed per id.
+ * </p>
+ * <p>
+ * The trade-off is that an id keeps its whole chunk reachable.  A single
+ * long lived id, like the id of a message which sits in a queue for a
+ * long time, holds on to up to chunkSize bytes along with the other ids
+ * sharing the chunk.  Callers which keep ids around for long should use
+ * a smaller chunk size or deepCopy the ids they keep.
+ * </p>
+ * <p>
+ * This class is not thread safe.  It is intended to be used by a single
+ * connection.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class AsciiIdGenerator {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024*4;
+
+    private static final IdGenerator PREFIX_GENERATOR = new IdGenerator();
+
+    private final byte[] prefix;
+    private final int chunkSize;
+
+    private byte[] chunk;
+    private int chunkPos;
+    private long sequence;
+
+    /**
+     * Construct a generator with a globally unique prefix.
+     */
+    public AsciiIdGenerator() {
+        this(PREFIX_GENERATOR.generateId()+":");
+    }
+
+    public AsciiIdGenerator(String prefix) {
+        this(prefix, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize the size of the chunks the ids are written into.
+     *                  Every id retained keeps its chunk reachable.
+     */
+    public AsciiIdGenerator(String prefix, int chunkSize) {
+        this.prefix = new AsciiBuffer(prefix).toByteArray();
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return the prefix shared by all the ids generated.
+     */
+    public AsciiBuffer getPrefix() {
+        return new AsciiBuffer(prefix);
+    }
+
+    /**
+     * Generate a unique id
+     *
+     * @return a unique id
+     */
+    public AsciiBuffer generateId() {
+        long value = ++sequence;
+        int length = prefix.length + digits(value);
+
+        if( chunk==null || chunk.length-chunkPos < length ) {
+            chunk = new byte[Math.max(chunkSize, length)];
+            chunkPos = 0;
+        }
+
+        int offset = chunkPos;
+        System.arraycopy(prefix, 0, chunk, offset, prefix.length);
+
+        // write out the digits from last to first.
+        int pos = offset+length;
+        do {
+            chunk[--pos] = (byte)('0' + (value % 10));
+            value /= 10;
+        } while( value != 0 );
+
+        chunkPos += length;
+        return new AsciiBuffer(chunk, offset, length);
+    }
+
+    private static int digits(long value) {
+        int rc = 1;
+        while( value >= 10 ) {
+            value /= 10;
+            rc++;
+        }
+        return rc;
+    }
+
+}
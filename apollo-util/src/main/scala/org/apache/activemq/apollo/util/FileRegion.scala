@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import java.io.{EOFException, RandomAccessFile, File}
+import java.nio.ByteBuffer
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtdispatch.{Retained, BaseRetained}
+import org.fusesource.hawtdispatch.ScalaDispatch._
+
+/**
+ * <p>
+ * A reference counted, read only channel to a file.  The file is opened
+ * when this object is created so that the regions reading from it stay
+ * readable even if the file gets deleted in the meantime.  The channel
+ * is closed and on_close is run once the last reference is released.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class OpenFile(val file:File, on_close: =>Unit) extends BaseRetained {
+  val channel = new RandomAccessFile(file, "r").getChannel
+  setDisposer(^{
+    try {
+      channel.close
+    } finally {
+      on_close
+    }
+  })
+}
+
+/**
+ * <p>
+ * A reference to a range of bytes stored in a file.  It lets large
+ * message bodies stay on disk until they are sent to a consumer, at which
+ * point they can be transferred straight from the file to the socket.
+ * </p>
+ * <p>
+ * A region and the slices taken from it share the same OpenFile.  Retaining
+ * or releasing a region retains or releases that file.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+case class FileRegion(open_file:OpenFile, offset:Long, length:Int) extends Retained {
+
+  def file = open_file.file
+  def channel = open_file.channel
+
+  def slice(start:Int, count:Int) = FileRegion(open_file, offset+start, count)
+
+  def retain = open_file.retain
+  def release = open_file.release
+  def retained = open_file.retained
+
+  /**
+   * Reads the region into a heap buffer.
+   */
+  def read:Buffer = {
+    val rc = new Buffer(length)
+    val bb = ByteBuffer.wrap(rc.data, rc.offset, rc.length)
+    while( bb.hasRemaining ) {
+      if( channel.read(bb, offset+bb.position-rc.offset) < 0 ) {
+        throw new EOFException("The file ended before the end of the region: "+file)
+      }
+    }
+    rc
+  }
+}
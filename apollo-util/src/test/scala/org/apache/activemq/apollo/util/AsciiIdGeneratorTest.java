@@ -0,0 +1,49 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtbuf.AsciiBuffer;
+
+import java.util.HashSet;
+
+/**
+ */
+public class AsciiIdGeneratorTest extends TestCase {
+
+    public void testGeneratedIds() throws Exception {
+        AsciiIdGenerator generator = new AsciiIdGenerator("conn:", 16);
+        assertEquals(new AsciiBuffer("conn:1"), generator.generateId());
+        assertEquals(new AsciiBuffer("conn:2"), generator.generateId());
+        for( int i=3; i < 1000; i++ ) {
+            assertEquals(new AsciiBuffer("conn:"+i), generator.generateId());
+        }
+    }
+
+    public void testIdsAreUniqueAcrossGenerators() throws Exception {
+        AsciiIdGenerator gen1 = new AsciiIdGenerator();
+        AsciiIdGenerator gen2 = new AsciiIdGenerator();
+        assertFalse(gen1.getPrefix().equals(gen2.getPrefix()));
+
+        HashSet<AsciiBuffer> ids = new HashSet<AsciiBuffer>();
+        for( int i=0; i < 10000; i++ ) {
+            assertTrue(ids.add(gen1.generateId()));
+            assertTrue(ids.add(gen2.generateId()));
+        }
+    }
+
+}
@@ -27,6 +27,7 @@ import org.fusesource.hawtdispatch.{ScalaDispatch, Future}
 import ScalaDispatch._
 import org.apache.activemq.apollo.broker._
 import collection.mutable.ListBuffer
+import org.apache.activemq.apollo.transport.tcp.{SslTransport, TcpTransport}
 
 /**
  * <p>
@@ -289,6 +290,18 @@ case class RuntimeResource(parent:BrokerResource) extends Resource(parent) {
             if( wf!=null ) {
               result.write_counter = wf.getWriteCounter
               result.read_counter = wf.getReadCounter
+              result.buffer_footprint = wf.getBufferFootprint
+            }
+            val tcp = connection.transport.narrow(classOf[TcpTransport])
+            if( tcp!=null ) {
+              result.write_calls = tcp.getWriteCalls
+              result.average_write_size = tcp.getAverageWriteSize
+            }
+            val ssl = connection.transport.narrow(classOf[SslTransport])
+            if( ssl!=null ) {
+              result.ssl_handshake_time = ssl.getHandshakeTime
+              result.ssl_session_resumed = ssl.isSessionResumed
+              result.ssl_overhead = ssl.getSslOverhead
             }
             cb(Some(result))
           }